@@ -0,0 +1,160 @@
+package ok.dht.client;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A client of the {@code /v0/entity} API that sends every request straight to a replica of its key.
+ * <p>
+ * The ring is fetched from {@code /v0/topology} on the first request and cached. Requests carry its version,
+ * and a node routing by another ring answers with its own version in the same header: the client then
+ * fetches the topology again from that node. A replica that can't be reached is skipped for the next node
+ * of the key, any node being able to coordinate a request.
+ */
+public class DhtClient {
+    public static final String RING_VERSION_HEADER = "X-Ring-Version";
+    private static final String ENTITY_PATH = "/v0/entity";
+    private static final String TOPOLOGY_PATH = "/v0/topology";
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(2);
+
+    private final List<String> seeds;
+    private final Duration timeout;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+    private volatile Topology topology;
+
+    /**
+     * {@code seeds} are the URLs of some cluster nodes, tried in order to fetch the topology.
+     */
+    public DhtClient(List<String> seeds) {
+        this(seeds, DEFAULT_TIMEOUT);
+    }
+
+    public DhtClient(List<String> seeds, Duration timeout) {
+        if (seeds.isEmpty()) {
+            throw new IllegalArgumentException("No seed nodes");
+        }
+        this.seeds = List.copyOf(seeds);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the value of {@code key}, or {@code null} if it is absent or deleted.
+     */
+    public byte[] get(String key) throws IOException, InterruptedException {
+        return get(key, 0, 0);
+    }
+
+    /**
+     * Like {@link #get(String)} with explicit replication parameters; {@code 0} keeps the server defaults.
+     */
+    public byte[] get(String key, int ack, int from) throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = send(key, ack, from, "GET", HttpRequest.BodyPublishers.noBody());
+        return switch (response.statusCode()) {
+            case HttpURLConnection.HTTP_OK -> response.body();
+            case HttpURLConnection.HTTP_NOT_FOUND -> null;
+            default -> throw unexpected(response);
+        };
+    }
+
+    public void put(String key, byte[] value) throws IOException, InterruptedException {
+        put(key, value, 0, 0);
+    }
+
+    public void put(String key, byte[] value, int ack, int from) throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = send(key, ack, from, "PUT", HttpRequest.BodyPublishers.ofByteArray(value));
+        if (response.statusCode() != HttpURLConnection.HTTP_CREATED) {
+            throw unexpected(response);
+        }
+    }
+
+    public void delete(String key) throws IOException, InterruptedException {
+        delete(key, 0, 0);
+    }
+
+    public void delete(String key, int ack, int from) throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = send(key, ack, from, "DELETE", HttpRequest.BodyPublishers.noBody());
+        if (response.statusCode() != HttpURLConnection.HTTP_ACCEPTED) {
+            throw unexpected(response);
+        }
+    }
+
+    private HttpResponse<byte[]> send(
+            String key,
+            int ack,
+            int from,
+            String method,
+            HttpRequest.BodyPublisher body
+    ) throws IOException, InterruptedException {
+        Topology current = topology();
+        String query = "?id=" + URLEncoder.encode(key, StandardCharsets.UTF_8)
+                + (ack > 0 && from > 0 ? "&ack=" + ack + "&from=" + from : "");
+
+        IOException failure = null;
+        for (String node : current.preferenceList(key)) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(node + ENTITY_PATH + query))
+                    .method(method, body)
+                    .header(RING_VERSION_HEADER, Long.toString(current.version()))
+                    .timeout(timeout)
+                    .build();
+            HttpResponse<byte[]> response;
+            try {
+                response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            } catch (IOException e) {
+                failure = e;
+                continue;
+            }
+
+            Optional<String> version = response.headers().firstValue(RING_VERSION_HEADER);
+            if (version.isPresent() && !version.get().equals(Long.toString(current.version()))) {
+                refresh(node);
+            }
+            return response;
+        }
+        throw failure;
+    }
+
+    private Topology topology() throws IOException, InterruptedException {
+        Topology current = topology;
+        if (current != null) {
+            return current;
+        }
+
+        IOException failure = null;
+        for (String seed : seeds) {
+            try {
+                refresh(seed);
+                return topology;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private void refresh(String node) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(node + TOPOLOGY_PATH))
+                .GET()
+                .timeout(timeout)
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Can't fetch topology from " + node + ": " + response.statusCode());
+        }
+        topology = Topology.parse(response.body());
+    }
+
+    private static IOException unexpected(HttpResponse<byte[]> response) {
+        return new IOException("Unexpected response " + response.statusCode() + " from " + response.uri());
+    }
+}
@@ -0,0 +1,64 @@
+package ok.dht.client;
+
+import one.nio.util.Hash;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A snapshot of the cluster ring as served by {@code /v0/topology}: the ring version, then a
+ * {@code hash url} line per virtual node in ring order.
+ */
+final class Topology {
+    private final long version;
+    private final int[] hashes;
+    private final String[] owners;
+
+    private Topology(long version, int[] hashes, String[] owners) {
+        this.version = version;
+        this.hashes = hashes;
+        this.owners = owners;
+    }
+
+    static Topology parse(String body) {
+        String[] lines = body.split("\n");
+        if (lines.length < 2) {
+            throw new IllegalArgumentException("Empty topology");
+        }
+        int[] hashes = new int[lines.length - 1];
+        String[] owners = new String[lines.length - 1];
+        for (int i = 1; i < lines.length; i++) {
+            int separator = lines[i].indexOf(' ');
+            hashes[i - 1] = Integer.parseInt(lines[i].substring(0, separator));
+            owners[i - 1] = lines[i].substring(separator + 1);
+        }
+        return new Topology(Long.parseLong(lines[0]), hashes, owners);
+    }
+
+    long version() {
+        return version;
+    }
+
+    /**
+     * Returns the nodes in the order the ring assigns them to {@code key}: its replicas come first,
+     * the first one being the natural coordinator, and the rest can stand in for them.
+     */
+    List<String> preferenceList(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int index = Arrays.binarySearch(hashes, Hash.xxhash(keyBytes, 0, keyBytes.length));
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < hashes.length; i++) {
+            String node = owners[(index + i) % hashes.length];
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+}
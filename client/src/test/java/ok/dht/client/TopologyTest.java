@@ -0,0 +1,48 @@
+package ok.dht.client;
+
+import one.nio.util.Hash;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TopologyTest {
+    private static final String KEY = "key";
+
+    @Test
+    void keyGoesToNextVirtualNode() {
+        int hash = hash(KEY);
+        Topology topology = Topology.parse("42\n"
+                + (hash - 2) + " http://a\n"
+                + hash + " http://b\n"
+                + (hash + 1) + " http://b\n"
+                + (hash + 2) + " http://c\n");
+
+        assertEquals(42, topology.version());
+        assertEquals(List.of("http://b", "http://c", "http://a"), topology.preferenceList(KEY));
+    }
+
+    @Test
+    void keyWrapsAroundRing() {
+        int hash = hash(KEY);
+        Topology topology = Topology.parse("7\n"
+                + (hash - 3) + " http://c\n"
+                + (hash - 2) + " http://a\n"
+                + (hash - 1) + " http://c\n");
+
+        assertEquals(List.of("http://c", "http://a"), topology.preferenceList(KEY));
+    }
+
+    @Test
+    void emptyTopologyRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Topology.parse("1\n"));
+    }
+
+    private static int hash(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return Hash.xxhash(bytes, 0, bytes.length);
+    }
+}
@@ -1,10 +1,37 @@
 package ok.dht;
 
 import jdk.incubator.foreign.MemorySegment;
+import ok.dht.admission.AdaptiveConcurrencyLimiter;
+import ok.dht.admission.RequestPriority;
 import ok.dht.consistenthashing.ConsistentHashingImpl;
 import ok.dht.dao.Entry;
+import ok.dht.execution.ConcurrencyLimitedExecutor;
+import ok.dht.execution.ExecutionMode;
+import ok.dht.execution.NamedThreadFactory;
+import ok.dht.membership.Membership;
+import ok.dht.membership.Rebalancer;
+import ok.dht.replication.AntiEntropy;
+import ok.dht.replication.BinaryReplicaClient;
+import ok.dht.replication.HintedHandoff;
+import ok.dht.replication.HttpReplicaClient;
+import ok.dht.replication.LatencyTracker;
+import ok.dht.replication.MerkleIndex;
+import ok.dht.replication.MerkleTrees;
+import ok.dht.replication.PeerHealth;
+import ok.dht.replication.QuorumCollector;
+import ok.dht.replication.ReadRepair;
+import ok.dht.replication.ReplicaClient;
+import ok.dht.replication.ReplicaUnavailableException;
+import ok.dht.replication.ReplicationFrameReader;
 import ok.dht.replication.ReplicationParameters;
+import ok.dht.replication.ReplicationProtocol;
+import ok.dht.replication.ReplicationRequest;
+import ok.dht.replication.ReplicationTransport;
+import ok.dht.replication.SpeculativeRetry;
 import ok.dht.streaming.ChunkedResponse;
+import ok.dht.streaming.ClusterRangeScanner;
+import ok.dht.streaming.PeerRangeIterator;
+import ok.dht.streaming.RecordFormat;
 import ok.dht.streaming.StreamingHttpSession;
 import ok.dht.utils.RequestUtils;
 import ok.dht.utils.Utils;
@@ -21,25 +48,44 @@ import one.nio.server.SelectorThread;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
 import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+import static ok.dht.utils.RequestUtils.CONNECTION_TIMEOUT_MS;
+import static ok.dht.utils.RequestUtils.HEALTH_PATH;
+import static ok.dht.utils.RequestUtils.HINT_FOR_PARAMETER;
+import static ok.dht.utils.RequestUtils.IF_NEWER_PARAMETER;
+import static ok.dht.utils.RequestUtils.MEMBERSHIP_PATH;
+import static ok.dht.utils.RequestUtils.MERKLE_LEAF_PATH;
+import static ok.dht.utils.RequestUtils.MERKLE_PATH;
+import static ok.dht.utils.RequestUtils.NOT_ENOUGH_REPLICAS;
+import static ok.dht.utils.RequestUtils.RANGE_PATH;
+import static ok.dht.utils.RequestUtils.REBALANCE_PATH;
+import static ok.dht.utils.RequestUtils.REPLICATION_PATH;
+import static ok.dht.utils.RequestUtils.RING_VERSION_HEADER;
 import static ok.dht.utils.RequestUtils.SYNCHRONIZATION_PATH;
 
 public class DatabaseHttpServer extends HttpServer {
@@ -47,14 +93,21 @@ public class DatabaseHttpServer extends HttpServer {
 
     private static final String QUERY_PATH = "/v0/entity";
     private static final String STREAMING_PATH = "/v0/entities";
-
-    private static final String NOT_ENOUGH_REPLICAS = "504 Not Enough Replicas";
+    private static final String ADMISSION_PATH = "/v0/admission";
+    private static final String TOPOLOGY_PATH = "/v0/topology";
+    private static final String MEMBERSHIP_ADMIN_PATH = "/v0/membership";
+    private static final String HINTS_DIRECTORY = "hints";
+    private static final String MERKLE_DIRECTORY = "merkle";
+    private static final String MEMBERSHIP_FILE = "membership";
 
     private static final int HTTP_SERVICE_THREADS = 3;
     private static final int DAO_SERVICE_THREADS = 3;
     private static final int KEEP_ALIVE_TIME_MS = 10;
     private static final int MAX_QUEUE_SIZE = 128;
+    private static final int ELASTIC_KEEP_ALIVE_TIME_MS = 60_000;
     private static final int TERMINATION_TIMEOUT_MS = 800;
+    private static final int INITIAL_CONCURRENCY_LIMIT = 32;
+    private static final int MIN_CONCURRENCY_LIMIT = 4;
 
     private static final Set<Integer> SUPPORTED_METHODS = Set.of(
             Request.METHOD_GET,
@@ -62,33 +115,140 @@ public class DatabaseHttpServer extends HttpServer {
             Request.METHOD_DELETE
     );
 
-    private final ExecutorService httpRequestService =
-            new ThreadPoolExecutor(
-                    HTTP_SERVICE_THREADS,
-                    HTTP_SERVICE_THREADS,
-                    KEEP_ALIVE_TIME_MS,
-                    TimeUnit.MILLISECONDS,
-                    new LinkedBlockingQueue<>(MAX_QUEUE_SIZE),
-                    new ThreadPoolExecutor.AbortPolicy()
-            );
-    private final ExecutorService daoRequestService =
-            Executors.newFixedThreadPool(DAO_SERVICE_THREADS);
+    private final ExecutorService httpRequestService;
+    private final ExecutorService daoRequestService;
+    private final AdaptiveConcurrencyLimiter limiter;
 
     private final String selfUrl;
-    private final ConsistentHashingImpl consistentHashing;
+    private final Membership membership;
+    // Orders membership changes with the rebalances they start
+    private final Object membershipLock = new Object();
     private final DatabaseRequestHandler requestHandler;
-    private final int numberOfNodes;
-    private final HttpClient client;
+    private final ReplicaClient replicaClient;
+    private final ClusterRangeScanner rangeScanner;
+    private final HintedHandoff hintedHandoff;
+    private final ReadRepair readRepair;
+    private final MerkleIndex merkleIndex;
+    private final AntiEntropy antiEntropy;
+    private final LatencyTracker latencies = new LatencyTracker();
+    private final SpeculativeRetry speculativeRetry;
+    private final Rebalancer rebalancer;
+    private final PeerHealth peerHealth;
+    private final boolean sloppyQuorum;
+    private final HttpClient membershipClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
 
     public DatabaseHttpServer(ServiceConfig config) throws IOException {
         super(createHttpServerConfig(config.selfPort()));
+        this.httpRequestService = createHttpRequestService(config);
+        this.daoRequestService = createDaoRequestService(config);
+        this.limiter = new AdaptiveConcurrencyLimiter(
+                INITIAL_CONCURRENCY_LIMIT,
+                MIN_CONCURRENCY_LIMIT,
+                config.executionMode() == ExecutionMode.THREAD_PER_REQUEST
+                        ? config.maxConcurrentRequests()
+                        : HTTP_SERVICE_THREADS + MAX_QUEUE_SIZE
+        );
         this.selfUrl = config.selfUrl();
-        this.consistentHashing = new ConsistentHashingImpl(config.clusterUrls());
-        this.requestHandler = new DatabaseRequestHandler(config.workingDir());
-        this.numberOfNodes = config.clusterUrls().size();
-        this.client = HttpClient.newBuilder()
-                .version(HttpClient.Version.HTTP_1_1)
-                .build();
+        this.membership = new Membership(
+                config.workingDir().resolve(MEMBERSHIP_FILE),
+                config.clusterUrls(),
+                config.virtualNodes()
+        );
+        Path merkleDirectory = config.workingDir().resolve(MERKLE_DIRECTORY);
+        if (config.antiEntropyReplicas() > 0) {
+            this.merkleIndex = new MerkleIndex(merkleDirectory, membership.ring());
+        } else {
+            MerkleIndex.delete(merkleDirectory);
+            this.merkleIndex = null;
+        }
+        this.requestHandler = new DatabaseRequestHandler(config.workingDir(), config.rowCacheBytes(), merkleIndex);
+        this.replicaClient = config.replicationTransport() == ReplicationTransport.BINARY
+                ? new BinaryReplicaClient()
+                : new HttpReplicaClient();
+        this.rangeScanner = new ClusterRangeScanner(selfUrl, this::isSuspected);
+        this.hintedHandoff = config.hintsPerSecond() == 0 ? null : new HintedHandoff(
+                config.workingDir().resolve(HINTS_DIRECTORY),
+                this::peers,
+                config.hintsPerSecond()
+        );
+        this.readRepair = config.readRepairChance() == 0 ? null : new ReadRepair(config.readRepairChance());
+        this.antiEntropy = merkleIndex == null ? null : startAntiEntropy(config.antiEntropyReplicas());
+        this.speculativeRetry = config.speculativeRetryPercentile() == 0 ? null : new SpeculativeRetry(
+                latencies,
+                config.speculativeRetryPercentile(),
+                CONNECTION_TIMEOUT_MS
+        );
+        this.rebalancer = new Rebalancer(
+                selfUrl,
+                config.rebalanceReplicas(),
+                config.rebalanceBytesPerSecond(),
+                () -> requestHandler.getIteratorWithTombstones(null, null)
+        );
+        this.peerHealth = config.phiThreshold() == 0 ? null : new PeerHealth(this::peers, config.phiThreshold());
+        if (config.sloppyQuorum() && hintedHandoff == null) {
+            log.warn("Sloppy quorum needs hinted handoff, writes will only go to their replicas");
+        }
+        this.sloppyQuorum = config.sloppyQuorum() && hintedHandoff != null;
+        // A rebalance interrupted by a restart starts over
+        startRebalance();
+    }
+
+    private boolean isSuspected(String node) {
+        return peerHealth != null && peerHealth.isSuspected(node);
+    }
+
+    /**
+     * Returns the other nodes of the cluster as of now.
+     */
+    private List<String> peers() {
+        return membership.ring().nodes().stream()
+                .filter(url -> !url.equals(selfUrl))
+                .toList();
+    }
+
+    private AntiEntropy startAntiEntropy(int replicas) throws IOException {
+        if (!merkleIndex.isComplete()) {
+            log.info("Building the Merkle index of existing data");
+            merkleIndex.indexExisting(requestHandler.getIteratorWithTombstones(null, null));
+        }
+        return new AntiEntropy(merkleIndex, selfUrl, replicas, requestHandler::upsertIfNewer);
+    }
+
+    private static ExecutorService createHttpRequestService(ServiceConfig config) {
+        if (config.executionMode() == ExecutionMode.THREAD_PER_REQUEST) {
+            return new ConcurrencyLimitedExecutor(
+                    Executors.newCachedThreadPool(new NamedThreadFactory("HttpRequestHandler")),
+                    config.maxConcurrentRequests()
+            );
+        }
+        return new ThreadPoolExecutor(
+                HTTP_SERVICE_THREADS,
+                HTTP_SERVICE_THREADS,
+                KEEP_ALIVE_TIME_MS,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(MAX_QUEUE_SIZE),
+                new NamedThreadFactory("HttpRequestHandler"),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
+    private static ExecutorService createDaoRequestService(ServiceConfig config) {
+        if (config.executionMode() == ExecutionMode.THREAD_PER_REQUEST) {
+            // Grows up to one thread per admitted request so a page fault in one read doesn't stall the rest
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    config.maxConcurrentRequests(),
+                    config.maxConcurrentRequests(),
+                    ELASTIC_KEEP_ALIVE_TIME_MS,
+                    TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new NamedThreadFactory("DaoRequestHandler")
+            );
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+        return Executors.newFixedThreadPool(DAO_SERVICE_THREADS, new NamedThreadFactory("DaoRequestHandler"));
     }
 
     private static HttpServerConfig createHttpServerConfig(int port) {
@@ -107,31 +267,101 @@ public class DatabaseHttpServer extends HttpServer {
 
     @Override
     public void handleRequest(Request request, final HttpSession session) throws IOException {
+        if (REPLICATION_PATH.equals(request.getPath())) {
+            upgradeToReplication((StreamingHttpSession) session);
+            return;
+        }
+
+        if (ADMISSION_PATH.equals(request.getPath())) {
+            session.sendResponse(admissionStats());
+            return;
+        }
+
+        if (HEALTH_PATH.equals(request.getPath())) {
+            // Answered right away, whatever the load: it tells that the node is alive, not that it is idle
+            session.sendResponse(new Response(Response.OK, Response.EMPTY));
+            return;
+        }
+
+        if (TOPOLOGY_PATH.equals(request.getPath())) {
+            session.sendResponse(new Response(Response.OK, Utils.toBytes(membership.ring().topology())));
+            return;
+        }
+
+        AdaptiveConcurrencyLimiter.Permit permit = limiter.tryAcquire(priority(request.getPath()));
+        if (permit == null) {
+            session.sendResponse(new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+            return;
+        }
+
         try {
             httpRequestService.execute(() -> {
+                CompletableFuture<?> completion;
                 try {
-                    if (!SUPPORTED_METHODS.contains(request.getMethod())) {
-                        session.sendResponse(new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
-                        return;
-                    }
-
-                    switch (request.getPath()) {
-                        case SYNCHRONIZATION_PATH -> processSynchronizationRequest(request, session);
-                        case QUERY_PATH -> processQueryRequest(request, session);
-                        case STREAMING_PATH -> processStreamingRequest(request, session);
-                        default -> session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
-                    }
-                } catch (IOException e) {
-                    if (log.isDebugEnabled()) {
-                        log.debug(e.getMessage());
-                    }
+                    completion = processRequest(request, session);
+                } catch (RuntimeException e) {
+                    permit.release();
+                    throw e;
                 }
+                completion.whenComplete((result, throwable) -> permit.release());
             });
         } catch (RejectedExecutionException e) {
+            permit.drop();
             session.sendResponse(new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
         }
     }
 
+    /**
+     * Handles the request and returns a future that completes once its response has been sent.
+     */
+    private CompletableFuture<?> processRequest(Request request, HttpSession session) {
+        try {
+            if (!SUPPORTED_METHODS.contains(request.getMethod())) {
+                session.sendResponse(new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+                return CompletableFuture.completedFuture(null);
+            }
+
+            switch (request.getPath()) {
+                case SYNCHRONIZATION_PATH -> processSynchronizationRequest(request, session);
+                case QUERY_PATH -> {
+                    return processQueryRequest(request, session);
+                }
+                case STREAMING_PATH -> processStreamingRequest(request, session);
+                case RANGE_PATH -> processRangeRequest(request, session);
+                case MERKLE_PATH -> processMerkleRequest(request, session);
+                case MERKLE_LEAF_PATH -> processMerkleLeafRequest(request, session);
+                case MEMBERSHIP_ADMIN_PATH -> {
+                    return processMembershipAdminRequest(request, session);
+                }
+                case MEMBERSHIP_PATH -> processMembershipRequest(request, session);
+                case REBALANCE_PATH -> processRebalanceRequest(request, session);
+                default -> session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            }
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug(e.getMessage());
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static RequestPriority priority(String path) {
+        return switch (path) {
+            case SYNCHRONIZATION_PATH -> RequestPriority.INTERNAL;
+            case MERKLE_PATH, MERKLE_LEAF_PATH, MEMBERSHIP_PATH, REBALANCE_PATH -> RequestPriority.BACKGROUND;
+            default -> RequestPriority.CLIENT;
+        };
+    }
+
+    private Response admissionStats() {
+        String stats = "limit=" + limiter.getLimit() + '\n'
+                + "inFlight=" + limiter.getInFlight() + '\n'
+                + "rejectedClient=" + limiter.getRejected(RequestPriority.CLIENT) + '\n'
+                + "rejectedInternal=" + limiter.getRejected(RequestPriority.INTERNAL) + '\n'
+                + "rejectedBackground=" + limiter.getRejected(RequestPriority.BACKGROUND) + '\n';
+        return new Response(Response.OK, Utils.toBytes(stats));
+    }
+
     private void processStreamingRequest(Request request, final HttpSession session) throws IOException {
         StreamingHttpSession streamingSession = (StreamingHttpSession) session;
 
@@ -151,9 +381,311 @@ public class DatabaseHttpServer extends HttpServer {
             return;
         }
 
-        Iterator<Entry<MemorySegment>> iterator = requestHandler.getIterator(start, end);
+        List<String> peers = peers();
+        if (peers.isEmpty()) {
+            Iterator<Entry<MemorySegment>> iterator = requestHandler.getIterator(start, end);
+            streamingSession.sendResponse(new ChunkedResponse(iterator));
+            return;
+        }
 
-        streamingSession.sendResponse(new ChunkedResponse(iterator));
+        rangeScanner.scan(
+                streamingSession,
+                membership.ring(),
+                requestHandler.getIteratorWithTombstones(start, end),
+                start,
+                end
+        );
+    }
+
+    /**
+     * Streams this node's own part of a range scan coordinated by a peer.
+     */
+    private void processRangeRequest(Request request, final HttpSession session) throws IOException {
+        String start = request.getParameter("start=");
+        String end = request.getParameter("end=");
+        if (request.getMethod() != Request.METHOD_GET || invalidKey(start)) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        Iterator<Entry<MemorySegment>> iterator = requestHandler.getIteratorWithTombstones(start, end);
+        session.sendResponse(new ChunkedResponse(iterator, RecordFormat.REPLICA));
+    }
+
+    /**
+     * Answers a peer comparing its Merkle tree of a range with this node's one: {@code count} node hashes
+     * of a level, starting at {@code from}.
+     */
+    private void processMerkleRequest(Request request, final HttpSession session) throws IOException {
+        int range = intParameter(request, "range=");
+        int level = intParameter(request, "level=");
+        int from = intParameter(request, "from=");
+        int count = intParameter(request, "count=");
+        MerkleTrees trees = merkleTrees(request, session);
+        if (trees == null) {
+            return;
+        }
+        if (request.getMethod() != Request.METHOD_GET || range < 0 || range >= trees.ring().rangeCount()
+                || level < 0 || level > MerkleTrees.DEPTH || from < 0 || count < 0 || from + count > 1 << level) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        long[] nodes = trees.level(range, level, from, count);
+        ByteBuffer body = ByteBuffer.allocate(nodes.length * Long.BYTES);
+        for (long node : nodes) {
+            body.putLong(node);
+        }
+        session.sendResponse(new Response(Response.OK, body.array()));
+    }
+
+    /**
+     * Streams the entries of a leaf of this node's Merkle tree of a range to a peer repairing it.
+     */
+    private void processMerkleLeafRequest(Request request, final HttpSession session) throws IOException {
+        int range = intParameter(request, "range=");
+        int leaf = intParameter(request, "leaf=");
+        MerkleTrees trees = merkleTrees(request, session);
+        if (trees == null) {
+            return;
+        }
+        if (request.getMethod() != Request.METHOD_GET || range < 0 || range >= trees.ring().rangeCount()
+                || leaf < 0 || leaf >= MerkleTrees.LEAVES) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        Iterator<Entry<MemorySegment>> iterator =
+                merkleIndex.leafEntries(trees, range, leaf, requestHandler::getEntry);
+        session.sendResponse(new ChunkedResponse(iterator, RecordFormat.REPLICA));
+    }
+
+    /**
+     * Returns the Merkle trees if they are built for the ring the peer asks about, otherwise answers it and
+     * returns {@code null}: ranges are numbered per ring.
+     */
+    private MerkleTrees merkleTrees(Request request, HttpSession session) throws IOException {
+        if (merkleIndex == null) {
+            session.sendResponse(new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+            return null;
+        }
+        MerkleTrees trees = merkleIndex.trees();
+        if (!Long.toString(trees.ring().version()).equals(request.getParameter("version="))) {
+            session.sendResponse(new Response(Response.CONFLICT, Response.EMPTY));
+            return null;
+        }
+        return trees;
+    }
+
+    /**
+     * Shows the membership on GET. A PUT or a DELETE of {@code node=} adds or removes a node, then sends the
+     * resulting membership to every node concerned, the removed one included, and answers 504 if some of them
+     * didn't take it: repeating the request sends it again.
+     */
+    private CompletableFuture<?> processMembershipAdminRequest(Request request, HttpSession session)
+            throws IOException {
+        if (request.getMethod() == Request.METHOD_GET) {
+            session.sendResponse(new Response(Response.OK, Utils.toBytes(membership.describe())));
+            return CompletableFuture.completedFuture(null);
+        }
+        String node = request.getParameter("node=");
+        if (invalidKey(node)) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Set<String> targets = new LinkedHashSet<>();
+        long epoch;
+        List<String> members;
+        synchronized (membershipLock) {
+            List<String> current = membership.ring().nodes();
+            List<String> changed = new ArrayList<>(current);
+            changed.remove(node);
+            if (request.getMethod() == Request.METHOD_PUT) {
+                changed.add(node);
+            }
+            if (changed.isEmpty()) {
+                session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+                return CompletableFuture.completedFuture(null);
+            }
+            if (changed.size() != current.size()) {
+                applyMembership(membership.epoch() + 1, changed);
+            }
+            epoch = membership.epoch();
+            members = membership.ring().nodes();
+            targets.addAll(current);
+        }
+        targets.addAll(members);
+        targets.add(node);
+        targets.remove(selfUrl);
+
+        List<CompletableFuture<Boolean>> acks = targets.stream()
+                .map(target -> membershipClient.sendAsync(
+                        RequestUtils.makeMembershipRequest(target, epoch, members),
+                        HttpResponse.BodyHandlers.discarding()
+                ).handle((response, throwable) -> throwable == null
+                        && response.statusCode() == HttpURLConnection.HTTP_OK))
+                .toList();
+        return CompletableFuture.allOf(acks.toArray(CompletableFuture[]::new)).thenRun(() -> {
+            boolean acknowledged = acks.stream().allMatch(CompletableFuture::join);
+            try {
+                session.sendResponse(acknowledged
+                        ? new Response(Response.OK, Utils.toBytes(membership.describe()))
+                        : new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+            } catch (IOException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes the membership of {@code epoch=} sent by the node that changed it, if it is newer than this one's.
+     */
+    private void processMembershipRequest(Request request, final HttpSession session) throws IOException {
+        long epoch;
+        try {
+            epoch = Long.parseLong(request.getParameter("epoch="));
+        } catch (NumberFormatException e) {
+            epoch = -1;
+        }
+        List<String> members = request.getBody() == null
+                ? List.of()
+                : Membership.parseMembers(new String(request.getBody(), StandardCharsets.UTF_8));
+        if (request.getMethod() != Request.METHOD_PUT || epoch < 0 || members.isEmpty()) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        synchronized (membershipLock) {
+            applyMembership(epoch, members);
+        }
+        session.sendResponse(new Response(Response.OK, Response.EMPTY));
+    }
+
+    /**
+     * Switches to the membership of {@code epoch} if it is newer than the current one, and starts moving
+     * the data to its new replicas.
+     */
+    private void applyMembership(long epoch, List<String> members) throws IOException {
+        if (!membership.update(epoch, members)) {
+            return;
+        }
+        log.info("Membership of epoch " + epoch + ": " + membership.ring().nodes());
+        if (merkleIndex != null) {
+            merkleIndex.useRing(membership.ring());
+        }
+        startRebalance();
+    }
+
+    private void startRebalance() {
+        ConsistentHashingImpl pendingRing = membership.pendingRing();
+        if (pendingRing == null) {
+            return;
+        }
+        long epoch = membership.epoch();
+        rebalancer.rebalance(pendingRing, membership.ring(), () -> {
+            try {
+                membership.rebalanced(epoch);
+                log.info("Rebalanced to the membership of epoch " + epoch);
+            } catch (IOException e) {
+                log.error("Can't save the membership", e);
+            }
+        });
+    }
+
+    /**
+     * Applies the entries a peer hands over after a membership change, unless newer versions are here.
+     */
+    private void processRebalanceRequest(Request request, final HttpSession session) throws IOException {
+        if (request.getMethod() != Request.METHOD_PUT || request.getBody() == null) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        try (PeerRangeIterator entries = new PeerRangeIterator(new ByteArrayInputStream(request.getBody()))) {
+            while (entries.hasNext()) {
+                requestHandler.upsertIfNewer(entries.next());
+            }
+        } catch (UncheckedIOException e) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        session.sendResponse(new Response(Response.CREATED, Response.EMPTY));
+    }
+
+    /**
+     * Returns a non-negative integer parameter, or {@code -1} if it is missing or malformed.
+     */
+    private static int intParameter(Request request, String name) {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(-1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void upgradeToReplication(StreamingHttpSession session) throws IOException {
+        // Switch before answering: the peer starts sending frames as soon as it reads the response
+        session.switchToReplication(
+                new ReplicationFrameReader((frame, offset, length) -> processReplicationRequest(
+                        ReplicationProtocol.decodeRequest(frame, offset, length),
+                        session
+                ))
+        );
+
+        Response response = new Response(ReplicationProtocol.SWITCHING_PROTOCOLS, Response.EMPTY);
+        response.addHeader("Upgrade: " + ReplicationProtocol.UPGRADE_PROTOCOL);
+        session.sendResponse(response);
+    }
+
+    private void processReplicationRequest(ReplicationRequest replicationRequest, StreamingHttpSession session) {
+        AdaptiveConcurrencyLimiter.Permit permit = limiter.tryAcquire(RequestPriority.INTERNAL);
+        if (permit == null) {
+            writeReplicationResponse(
+                    session,
+                    replicationRequest.id(),
+                    new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY)
+            );
+            return;
+        }
+
+        try {
+            daoRequestService.execute(() -> {
+                Response response;
+                try {
+                    response = requestHandler.handle(
+                            replicationRequest.method(),
+                            replicationRequest.key(),
+                            replicationRequest.value(),
+                            Utils.toByteArray(replicationRequest.timestamp())
+                    );
+                } catch (RuntimeException e) {
+                    response = new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+                }
+
+                permit.release();
+                writeReplicationResponse(session, replicationRequest.id(), response);
+            });
+        } catch (RejectedExecutionException e) {
+            permit.drop();
+            session.close();
+        }
+    }
+
+    private void writeReplicationResponse(StreamingHttpSession session, long id, Response response) {
+        byte[] frame = ReplicationProtocol.encodeResponse(id, response);
+        try {
+            session.write(frame, 0, frame.length);
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug(e.getMessage());
+            }
+        }
     }
 
     private void processSynchronizationRequest(Request request, final HttpSession session)
@@ -162,56 +694,233 @@ public class DatabaseHttpServer extends HttpServer {
 
         byte[] timestamp = Arrays.copyOfRange(request.getBody(), 0, Long.BYTES);
         byte[] body = Arrays.copyOfRange(request.getBody(), Long.BYTES, request.getBody().length);
-        session.sendResponse(requestHandler.handle(request.getMethod(), key, body, timestamp));
+        String hintFor = request.getParameter(HINT_FOR_PARAMETER);
+        if (hintFor != null) {
+            session.sendResponse(keepHint(hintFor, request.getMethod(), key, body, Utils.longFromByteArray(timestamp)));
+        } else if (request.getParameter(IF_NEWER_PARAMETER) != null) {
+            session.sendResponse(requestHandler.handleIfNewer(request.getMethod(), key, body, timestamp));
+        } else {
+            session.sendResponse(requestHandler.handle(request.getMethod(), key, body, timestamp));
+        }
+    }
+
+    /**
+     * Keeps a write handed off by a coordinator for {@code owner}, which missed it.
+     */
+    private Response keepHint(String owner, int method, String key, byte[] body, long timestamp) {
+        if (hintedHandoff == null || (method != Request.METHOD_PUT && method != Request.METHOD_DELETE)) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        byte[] value = method == Request.METHOD_PUT ? body : null;
+        if (!hintedHandoff.hint(owner, method, key, value, timestamp)) {
+            return new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+        }
+        return new Response(method == Request.METHOD_PUT ? Response.CREATED : Response.ACCEPTED, Response.EMPTY);
     }
 
-    private void processQueryRequest(Request request, final HttpSession session)
+    private CompletableFuture<?> processQueryRequest(Request request, final HttpSession session)
             throws IOException {
         String key = request.getParameter("id=");
+        // The whole request is routed by the ring of the moment, however membership changes meanwhile
+        ConsistentHashingImpl ring = membership.ring();
 
         ReplicationParameters parameters =
                 ReplicationParameters.parse(
                         request.getParameter("from="),
                         request.getParameter("ack="),
-                        this.numberOfNodes
+                        ring.nodeCount()
                 );
 
         if (invalidKey(key) || parameters.areInvalid()) {
             session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
-            return;
+            return CompletableFuture.completedFuture(null);
         }
 
-        session.sendResponse(aggregateResponse(parameters, key, request));
+        return aggregateResponse(ring, parameters, key, request).thenAccept(response -> {
+            addRingVersion(ring, request, response);
+            try {
+                session.sendResponse(response);
+            } catch (IOException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug(e.getMessage());
+                }
+            }
+        });
     }
 
-    private Response aggregateResponse(
-            ReplicationParameters parameters, String key, Request request) {
+    /**
+     * Tells a client routing by a ring other than this node's one to fetch the topology again.
+     */
+    private static void addRingVersion(ConsistentHashingImpl ring, Request request, Response response) {
+        String clientVersion = request.getHeader(RING_VERSION_HEADER + ": ");
+        String version = Long.toString(ring.version());
+        if (clientVersion != null && !clientVersion.equals(version)) {
+            response.addHeader(RING_VERSION_HEADER + ": " + version);
+        }
+    }
+
+    private CompletableFuture<Response> aggregateResponse(
+            ConsistentHashingImpl ring, ReplicationParameters parameters, String key, Request request) {
         long timestamp = System.currentTimeMillis();
-        Set<String> nodes = consistentHashing.getNodesByKey(key, parameters.getNumberOfReplicas());
-
-        boolean saveToDao = nodes.remove(selfUrl);
-
-        ConcurrentLinkedQueue<Response> validResponses = new ConcurrentLinkedQueue<>();
-        AtomicInteger failCount = new AtomicInteger();
-
-        for (String node : nodes) {
-            HttpRequest httpRequest = RequestUtils.makeHttpRequest(node, key, request, timestamp);
-            CompletableFuture<?> ignored = client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray())
-                    .thenApply(httpResponse ->
-                            new Response(
-                                    RequestUtils.matchStatusCode(httpResponse.statusCode()),
-                                    httpResponse.body()
-                            )
-                    ).whenComplete((response, throwable) -> {
+        int range = ring.rangeOf(key);
+        int replicas = Math.min(parameters.getNumberOfReplicas(), ring.nodeCount());
+
+        QuorumCollector<ReplicaResponse> collector = new QuorumCollector<>(parameters);
+        Function<String, CompletableFuture<?>> send = node -> sendToReplica(node, request, key, timestamp, collector);
+
+        if (speculativeRetry != null && request.getMethod() == Request.METHOD_GET) {
+            // Writes go to every replica, reads only to as many as the quorum needs
+            speculativeRetry.dispatch(
+                    ring.rangeReplicas(range, replicas),
+                    parameters.getNumberOfAcks(),
+                    collector.future(),
+                    send
+            );
+        } else if (sloppyQuorum && request.getMethod() != Request.METHOD_GET) {
+            // The nodes after the replicas stand in for the ones that fail, each for one replica at most
+            List<String> preferenceList = ring.preferenceList(range);
+            Deque<String> substitutes = new ArrayDeque<>(preferenceList.subList(replicas, preferenceList.size()));
+            for (String node : preferenceList.subList(0, replicas)) {
+                CompletableFuture<?> ignored =
+                        sendToReplicaOrSubstitute(node, substitutes, request, key, timestamp, collector);
+            }
+        } else {
+            for (int i = 0; i < replicas; i++) {
+                CompletableFuture<?> ignored = send.apply(ring.replica(range, i));
+            }
+        }
+
+        return collector.future()
+                .thenApply(responses -> finalizeResponse(request.getMethod(), key, responses))
+                .exceptionally(throwable -> new Response(NOT_ENOUGH_REPLICAS, Response.EMPTY));
+    }
+
+    /**
+     * Applies the request on {@code node}, this one included, and reports the outcome to {@code collector}.
+     * The returned future completes once it has been reported.
+     */
+    private CompletableFuture<Response> sendToReplica(
+            String node,
+            Request request,
+            String key,
+            long timestamp,
+            QuorumCollector<ReplicaResponse> collector
+    ) {
+        return applyOnReplica(node, request, key, timestamp).whenComplete((result, throwable) -> {
+            if (throwable == null) {
+                collector.onSuccess(new ReplicaResponse(node, result));
+            } else {
+                collector.onFailure();
+                if (!node.equals(selfUrl)) {
+                    hintMissedWrite(node, request, key, timestamp);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes to {@code node} like {@link #sendToReplica}, but hands the write over to the next substitute that
+     * is up if {@code node} fails, and so on: the write fails only once no substitute is left.
+     */
+    private CompletableFuture<?> sendToReplicaOrSubstitute(
+            String node,
+            Deque<String> substitutes,
+            Request request,
+            String key,
+            long timestamp,
+            QuorumCollector<ReplicaResponse> collector
+    ) {
+        return applyOnReplica(node, request, key, timestamp).handle((result, throwable) -> {
+            if (throwable == null) {
+                collector.onSuccess(new ReplicaResponse(node, result));
+            } else {
+                handOff(node, substitutes, request, key, timestamp, collector);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Has a substitute keep the write {@code owner} missed as a hint, to be delivered once it is back.
+     * A write kept this way counts towards the quorum like one applied by a replica.
+     */
+    private void handOff(
+            String owner,
+            Deque<String> substitutes,
+            Request request,
+            String key,
+            long timestamp,
+            QuorumCollector<ReplicaResponse> collector
+    ) {
+        String substitute = nextSubstitute(substitutes);
+        if (substitute == null) {
+            collector.onFailure();
+            if (!owner.equals(selfUrl)) {
+                hintMissedWrite(owner, request, key, timestamp);
+            }
+            return;
+        }
+
+        int method = request.getMethod();
+        byte[] value = method == Request.METHOD_PUT ? request.getBody() : null;
+        Response written = new Response(
+                method == Request.METHOD_PUT ? Response.CREATED : Response.ACCEPTED,
+                Response.EMPTY
+        );
+        if (substitute.equals(selfUrl)) {
+            if (hintedHandoff.hint(owner, method, key, value, timestamp)) {
+                collector.onSuccess(new ReplicaResponse(substitute, written));
+            } else {
+                handOff(owner, substitutes, request, key, timestamp, collector);
+            }
+            return;
+        }
+        CompletableFuture<?> ignored = hintedHandoff.handOff(substitute, owner, method, key, value, timestamp)
+                .whenComplete((result, throwable) -> {
+                    if (peerHealth != null) {
                         if (throwable == null) {
-                            validResponses.add(response);
+                            peerHealth.onSuccess(substitute);
                         } else {
-                            failCount.incrementAndGet();
+                            peerHealth.onFailure(substitute);
                         }
-                    });
+                    }
+                    if (throwable == null) {
+                        collector.onSuccess(new ReplicaResponse(substitute, written));
+                    } else {
+                        handOff(owner, substitutes, request, key, timestamp, collector);
+                    }
+                });
+    }
+
+    /**
+     * Takes the next of {@code substitutes} not known to be down, {@code null} if there is none left.
+     */
+    private String nextSubstitute(Deque<String> substitutes) {
+        synchronized (substitutes) {
+            String substitute;
+            while ((substitute = substitutes.pollFirst()) != null) {
+                if (substitute.equals(selfUrl) || peerHealth == null || peerHealth.allowRequest(substitute)) {
+                    return substitute;
+                }
+            }
+            return null;
         }
-        if (saveToDao) {
-            CompletableFuture<?> ignored = CompletableFuture.supplyAsync(() ->
+    }
+
+    /**
+     * Applies the request on {@code node}, this one included. A peer known to be down isn't sent anything:
+     * the returned future fails at once rather than after the timeout.
+     */
+    private CompletableFuture<Response> applyOnReplica(String node, Request request, String key, long timestamp) {
+        boolean remote = !node.equals(selfUrl);
+        if (remote && peerHealth != null && !peerHealth.allowRequest(node)) {
+            return CompletableFuture.failedFuture(new ReplicaUnavailableException(node));
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<Response> response;
+        if (!remote) {
+            response = CompletableFuture.supplyAsync(() ->
                     requestHandler.handle(
                             request.getMethod(),
                             key,
@@ -219,30 +928,41 @@ public class DatabaseHttpServer extends HttpServer {
                             Utils.toByteArray(timestamp)
                     ),
                     daoRequestService
-            ).whenComplete((response, throwable) -> validResponses.add(response));
+            );
+        } else {
+            response = replicaClient.send(node, request.getMethod(), key, request.getBody(), timestamp);
         }
-
-        while (true) {
-            int currFailCount = failCount.get();
-            if (currFailCount > parameters.getNumberOfReplicas() - parameters.getNumberOfAcks()) {
-                return new Response(NOT_ENOUGH_REPLICAS, Response.EMPTY);
-            }
-            if (validResponses.size() >= parameters.getNumberOfAcks()) {
-                return finalizeResponse(request.getMethod(), List.copyOf(validResponses));
+        return response.whenComplete((result, throwable) -> {
+            latencies.record(node, System.nanoTime() - start);
+            if (remote && peerHealth != null) {
+                if (throwable == null) {
+                    peerHealth.onSuccess(node);
+                } else {
+                    peerHealth.onFailure(node);
+                }
             }
+        });
+    }
+
+    private void hintMissedWrite(String node, Request request, String key, long timestamp) {
+        if (hintedHandoff == null || request.getMethod() == Request.METHOD_GET) {
+            return;
         }
+        byte[] value = request.getMethod() == Request.METHOD_PUT ? request.getBody() : null;
+        hintedHandoff.hint(node, request.getMethod(), key, value, timestamp);
     }
 
-    private Response finalizeResponse(int method, List<Response> responses) {
+    private Response finalizeResponse(int method, String key, List<ReplicaResponse> responses) {
         if (method != Request.METHOD_GET) {
-            return responses.get(0);
+            return responses.get(0).response();
         }
 
         long maxTombstoneTimestamp = -1;
         long maxValueTimestamp = -1;
         byte[] value = new byte[0];
 
-        for (Response response : responses) {
+        for (ReplicaResponse replicaResponse : responses) {
+            Response response = replicaResponse.response();
             byte[] body = response.getBody();
             if (response.getStatus() == HttpURLConnection.HTTP_NOT_FOUND
                     && body.length > 0) {
@@ -259,13 +979,81 @@ public class DatabaseHttpServer extends HttpServer {
                 }
             }
         }
-        if (maxValueTimestamp == -1 || maxTombstoneTimestamp > maxValueTimestamp) {
+        boolean deleted = maxValueTimestamp == -1 || maxTombstoneTimestamp > maxValueTimestamp;
+        if (readRepair != null) {
+            repairStaleReplicas(
+                    key,
+                    responses,
+                    deleted ? Request.METHOD_DELETE : Request.METHOD_PUT,
+                    deleted ? null : value,
+                    deleted ? maxTombstoneTimestamp : maxValueTimestamp
+            );
+        }
+        if (deleted) {
             return new Response(Response.NOT_FOUND, Response.EMPTY);
         } else {
             return new Response(Response.OK, value);
         }
     }
 
+    /**
+     * Sends the newest version to the replicas that answered with an older one, if this read is picked for repair.
+     */
+    private void repairStaleReplicas(
+            String key,
+            List<ReplicaResponse> responses,
+            int method,
+            byte[] value,
+            long timestamp
+    ) {
+        if (timestamp == -1) {
+            // No replica has ever seen the key
+            return;
+        }
+        List<String> staleNodes = responses.stream()
+                .filter(response -> response.timestamp() < timestamp)
+                .map(ReplicaResponse::node)
+                .toList();
+        if (staleNodes.isEmpty() || !readRepair.shouldRepair()) {
+            return;
+        }
+        for (String node : staleNodes) {
+            repair(node, method, key, value, timestamp);
+        }
+    }
+
+    private void repair(String node, int method, String key, byte[] value, long timestamp) {
+        if (!node.equals(selfUrl)) {
+            readRepair.repair(node, method, key, value, timestamp);
+            return;
+        }
+        try {
+            daoRequestService.execute(
+                    () -> requestHandler.handleIfNewer(method, key, value, Utils.toByteArray(timestamp))
+            );
+        } catch (RejectedExecutionException e) {
+            // Repairs are best effort, the next read of the key gets another chance
+        }
+    }
+
+    /**
+     * A replica's answer to a coordinated request, remembered with the replica so stale ones can be repaired.
+     */
+    private record ReplicaResponse(String node, Response response) {
+        /**
+         * Returns the timestamp of the version the replica has, {@code -1} if it has none.
+         */
+        long timestamp() {
+            byte[] body = response.getBody();
+            if (body.length < Long.BYTES
+                    || (response.getStatus() != HttpURLConnection.HTTP_OK
+                    && response.getStatus() != HttpURLConnection.HTTP_NOT_FOUND)) {
+                return -1;
+            }
+            return Utils.longFromByteArray(Arrays.copyOfRange(body, 0, Long.BYTES));
+        }
+    }
+
     private boolean invalidKey(String key) {
         return key == null || key.isEmpty();
     }
@@ -283,17 +1071,41 @@ public class DatabaseHttpServer extends HttpServer {
     }
 
     public void close() throws IOException {
-        httpRequestService.shutdown();
+        shutdownAndAwait(httpRequestService);
+
+        stop();
+        shutdownAndAwait(daoRequestService);
+        replicaClient.close();
+        rangeScanner.close();
+        if (hintedHandoff != null) {
+            hintedHandoff.close();
+        }
+        if (antiEntropy != null) {
+            antiEntropy.close();
+        }
+        if (speculativeRetry != null) {
+            speculativeRetry.close();
+        }
+        rebalancer.close();
+        if (peerHealth != null) {
+            peerHealth.close();
+        }
+        // The final flush of the data reports to the Merkle index, so it is closed last
+        requestHandler.close();
+        if (merkleIndex != null) {
+            merkleIndex.close();
+        }
+    }
+
+    private static void shutdownAndAwait(ExecutorService executor) {
+        executor.shutdown();
         try {
-            if (!httpRequestService.awaitTermination(TERMINATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
-                httpRequestService.shutdownNow();
+            if (!executor.awaitTermination(TERMINATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
             }
         } catch (InterruptedException e) {
-            httpRequestService.shutdownNow();
+            executor.shutdownNow();
             Thread.currentThread().interrupt();
         }
-
-        stop();
-        requestHandler.close();
     }
 }
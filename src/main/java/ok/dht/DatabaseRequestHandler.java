@@ -4,6 +4,7 @@ import jdk.incubator.foreign.MemorySegment;
 import ok.dht.dao.BaseEntry;
 import ok.dht.dao.Config;
 import ok.dht.dao.Entry;
+import ok.dht.dao.FlushListener;
 import ok.dht.dao.MemorySegmentDao;
 import ok.dht.utils.Utils;
 import one.nio.http.Request;
@@ -11,16 +12,38 @@ import one.nio.http.Response;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 class DatabaseRequestHandler {
     private static final long FLUSH_THRESHOLD_BYTES = 4 * 1024 * 1024;
+    private static final int WRITE_LOCK_STRIPES = 64;
 
     private final MemorySegmentDao dao;
+    private final RowCache rowCache;
+    // Makes the version check of a conditional write atomic with respect to other writes of the key.
+    // Plain writes share the read lock of their stripe and don't hold each other back; a conditional write
+    // takes the write lock, so it sleeps until the plain writes in flight are done, and plain writes arriving
+    // after it queue behind it instead of starving it.
+    private final ReadWriteLock[] writeLocks = new ReadWriteLock[WRITE_LOCK_STRIPES];
 
-    DatabaseRequestHandler(Path workingDir) throws IOException {
-        this.dao = new MemorySegmentDao(
-                new Config(workingDir, FLUSH_THRESHOLD_BYTES));
+    /**
+     * {@code rowCacheBytes == 0} disables the row cache; {@code flushListener} may be {@code null}.
+     */
+    DatabaseRequestHandler(Path workingDir, long rowCacheBytes, FlushListener flushListener) throws IOException {
+        this.dao = new MemorySegmentDao(new Config(workingDir, FLUSH_THRESHOLD_BYTES), flushListener);
+        if (rowCacheBytes > 0) {
+            this.rowCache = new RowCache(rowCacheBytes);
+            dao.addUpsertListener(key -> rowCache.invalidate(key.toByteArray()));
+        } else {
+            this.rowCache = null;
+        }
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new ReentrantReadWriteLock();
+        }
     }
 
     void close() throws IOException {
@@ -28,18 +51,13 @@ class DatabaseRequestHandler {
     }
 
     Response handle(int method, String key, byte[] body, byte[] timestamp) {
+        return handle(method, Utils.toBytes(key), body, timestamp);
+    }
+
+    Response handle(int method, byte[] key, byte[] body, byte[] timestamp) {
         switch (method) {
             case Request.METHOD_GET -> {
-                Entry<MemorySegment> entry = dao.get(Utils.memorySegmentFromString(key));
-                if (entry == null) {
-                    return new Response(Response.NOT_FOUND, Response.EMPTY);
-                }
-                if (entry.value() == null) {
-                    return new Response(Response.NOT_FOUND, entry.timestamp().toByteArray());
-                }
-                byte[] value = entry.value().toByteArray();
-                byte[] responseBody = Utils.toByteArray(entry.timestamp().toByteArray(), value);
-                return new Response(Response.OK, responseBody);
+                return get(key);
             }
             case Request.METHOD_PUT -> {
                 insertIntoDao(key, body, timestamp);
@@ -53,17 +71,107 @@ class DatabaseRequestHandler {
         }
     }
 
+    /**
+     * Applies a write delivered after the fact (a hint, a repair) unless the key already has a newer version.
+     * The response is the same whether or not the write was skipped.
+     */
+    Response handleIfNewer(int method, String key, byte[] body, byte[] timestamp) {
+        if (method != Request.METHOD_PUT && method != Request.METHOD_DELETE) {
+            return handle(method, key, body, timestamp);
+        }
+        insertIfNewer(Utils.toBytes(key), method == Request.METHOD_PUT ? body : null, timestamp);
+        return new Response(method == Request.METHOD_PUT ? Response.CREATED : Response.ACCEPTED, Response.EMPTY);
+    }
+
+    /**
+     * Applies a version found on another replica unless the key already has a newer one.
+     */
+    void upsertIfNewer(Entry<MemorySegment> entry) {
+        insertIfNewer(entry.key().toByteArray(), Utils.toBytes(entry.value()), entry.timestamp().toByteArray());
+    }
+
+    /**
+     * Returns the newest version of the key, a tombstone if it is deleted, or {@code null}.
+     */
+    Entry<MemorySegment> getEntry(MemorySegment key) {
+        return dao.get(key);
+    }
+
+    private Response get(byte[] key) {
+        long generation = 0;
+        if (rowCache != null) {
+            Response cached = rowCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            generation = rowCache.generation(key);
+        }
+
+        Entry<MemorySegment> entry = dao.get(MemorySegment.ofArray(key));
+        if (entry == null) {
+            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        }
+        String status;
+        byte[] responseBody;
+        if (entry.value() == null) {
+            status = Response.NOT_FOUND;
+            responseBody = entry.timestamp().toByteArray();
+        } else {
+            status = Response.OK;
+            responseBody = Utils.toByteArray(entry.timestamp().toByteArray(), entry.value().toByteArray());
+        }
+        if (rowCache != null) {
+            rowCache.put(key, generation, status, responseBody);
+        }
+        return new Response(status, responseBody);
+    }
+
     Iterator<Entry<MemorySegment>> getIterator(String start, String end) {
         return dao.get(Utils.memorySegmentFromString(start), Utils.memorySegmentFromString(end));
     }
 
-    private void insertIntoDao(String key, byte[] bytes, byte[] timestamp) {
+    Iterator<Entry<MemorySegment>> getIteratorWithTombstones(String start, String end) {
+        return dao.getWithTombstones(Utils.memorySegmentFromString(start), Utils.memorySegmentFromString(end));
+    }
+
+    private void insertIntoDao(byte[] key, byte[] bytes, byte[] timestamp) {
+        Lock lock = writeLocks[stripe(key)].readLock();
+        lock.lock();
+        try {
+            upsert(key, bytes, timestamp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the version unless the key already has a newer one.
+     */
+    private void insertIfNewer(byte[] key, byte[] bytes, byte[] timestamp) {
+        Lock lock = writeLocks[stripe(key)].writeLock();
+        lock.lock();
+        try {
+            Entry<MemorySegment> current = dao.get(MemorySegment.ofArray(key));
+            if (current == null || Utils.longFromByteArray(current.timestamp().toByteArray())
+                    <= Utils.longFromByteArray(timestamp)) {
+                upsert(key, bytes, timestamp);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void upsert(byte[] key, byte[] bytes, byte[] timestamp) {
         dao.upsert(
                 new BaseEntry<>(
-                        Utils.memorySegmentFromString(key),
+                        MemorySegment.ofArray(key),
                         Utils.memorySegmentFromBytes(bytes),
                         MemorySegment.ofArray(timestamp)
                 )
         );
     }
+
+    private static int stripe(byte[] key) {
+        return Math.floorMod(Arrays.hashCode(key), WRITE_LOCK_STRIPES);
+    }
 }
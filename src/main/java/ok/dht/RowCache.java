@@ -0,0 +1,189 @@
+package ok.dht;
+
+import one.nio.http.Response;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded cache of serialized GET responses, so a hot key is served by one hash lookup.
+ * <p>
+ * Readers take a {@link #generation} before reading the DAO, and {@link #put} takes its entry back if an upsert
+ * of a key in the same stripe was seen since. An upsert bumps the generation after it is applied and then drops
+ * the key, so a value read before it can never stay cached.
+ * Eviction is second-chance FIFO: a hit only sets a flag, which keeps lookups lock-free. Invalidation leaves its
+ * slot in the queue behind, so the queue is swept of such stale slots once they outnumber the cached entries.
+ */
+final class RowCache {
+    private static final int STRIPES = 256;
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+    private static final int MIN_SLOTS_TO_SWEEP = 1024;
+
+    private final long capacityBytes;
+    private final Map<Key, CachedResponse> responses = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Slot> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger clockSlots = new AtomicInteger();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final AtomicLong sizeBytes = new AtomicLong();
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    RowCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    Response get(byte[] key) {
+        CachedResponse cached = responses.get(new Key(key));
+        if (cached == null) {
+            return null;
+        }
+        cached.referenced = true;
+        return new Response(cached.status, cached.body);
+    }
+
+    long generation(byte[] key) {
+        return generations.get(stripe(Arrays.hashCode(key)));
+    }
+
+    void put(byte[] key, long generation, String status, byte[] body) {
+        Key cacheKey = new Key(key);
+        int stripe = stripe(cacheKey.hashCode);
+        CachedResponse cached = new CachedResponse(status, body, key.length + body.length + ENTRY_OVERHEAD_BYTES);
+        if (generations.get(stripe) != generation || responses.putIfAbsent(cacheKey, cached) != null) {
+            return;
+        }
+        sizeBytes.addAndGet(cached.weight);
+        // An invalidation that missed the entry we just added has already bumped the generation
+        if (generations.get(stripe) != generation) {
+            if (responses.remove(cacheKey, cached)) {
+                sizeBytes.addAndGet(-cached.weight);
+            }
+            return;
+        }
+        addSlot(new Slot(cacheKey, cached));
+        if (sizeBytes.get() > capacityBytes) {
+            evict();
+        }
+        int slots = clockSlots.get();
+        if (slots > MIN_SLOTS_TO_SWEEP && slots > 2 * responses.size()) {
+            sweep();
+        }
+    }
+
+    void invalidate(byte[] key) {
+        Key cacheKey = new Key(key);
+        int stripe = stripe(cacheKey.hashCode);
+        generations.incrementAndGet(stripe);
+        CachedResponse removed = responses.remove(cacheKey);
+        if (removed != null) {
+            sizeBytes.addAndGet(-removed.weight);
+        }
+    }
+
+    /**
+     * Returns the number of queued slots, live or stale.
+     */
+    int clockSlots() {
+        return clockSlots.get();
+    }
+
+    private void evict() {
+        while (sizeBytes.get() > capacityBytes) {
+            Slot slot = clock.poll();
+            if (slot == null) {
+                return;
+            }
+            clockSlots.decrementAndGet();
+            if (slot.isStale()) {
+                continue;
+            }
+            if (slot.cached.referenced) {
+                slot.cached.referenced = false;
+                addSlot(slot);
+            } else if (responses.remove(slot.key, slot.cached)) {
+                sizeBytes.addAndGet(-slot.cached.weight);
+            }
+        }
+    }
+
+    private void addSlot(Slot slot) {
+        clock.add(slot);
+        clockSlots.incrementAndGet();
+    }
+
+    private void sweep() {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            clock.removeIf(slot -> {
+                if (!slot.isStale()) {
+                    return false;
+                }
+                clockSlots.decrementAndGet();
+                return true;
+            });
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    private static int stripe(int hash) {
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static final class CachedResponse {
+        final String status;
+        final byte[] body;
+        final long weight;
+        volatile boolean referenced;
+
+        CachedResponse(String status, byte[] body, long weight) {
+            this.status = status;
+            this.body = body;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A queued entry, stale once its key was invalidated or evicted, even if the key was cached again since.
+     */
+    private final class Slot {
+        final Key key;
+        final CachedResponse cached;
+
+        Slot(Key key, CachedResponse cached) {
+            this.key = key;
+            this.cached = cached;
+        }
+
+        boolean isStale() {
+            return responses.get(key) != cached;
+        }
+    }
+
+    private static final class Key {
+        final byte[] bytes;
+        final int hashCode;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && hashCode == other.hashCode && Arrays.equals(bytes, other.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -1,24 +1,226 @@
 package ok.dht;
 
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+import ok.dht.execution.ExecutionMode;
+import ok.dht.replication.ReplicationTransport;
+
 import java.nio.file.Path;
 import java.util.List;
 
 public final class ServiceConfig {
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 1024;
+    private static final long DEFAULT_ROW_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final int DEFAULT_HINTS_PER_SECOND = 1000;
+    private static final double DEFAULT_READ_REPAIR_CHANCE = 0.1;
+    private static final long DEFAULT_REBALANCE_BYTES_PER_SECOND = 8 * 1024 * 1024;
+
     private final int selfPort;
     private final String selfUrl;
     private final List<String> clusterUrls;
     private final Path workingDir;
 
+    private final ReplicationTransport replicationTransport;
+    private final ExecutionMode executionMode;
+    private final int maxConcurrentRequests;
+    private final long rowCacheBytes;
+    private final int hintsPerSecond;
+    private final double readRepairChance;
+    private final int antiEntropyReplicas;
+    private final double speculativeRetryPercentile;
+    private final int virtualNodes;
+    private final int rebalanceReplicas;
+    private final long rebalanceBytesPerSecond;
+    private final double phiThreshold;
+    private final boolean sloppyQuorum;
+
     public ServiceConfig(
             int selfPort,
             String selfUrl,
             List<String> clusterUrls,
             Path workingDir
+    ) {
+        this(selfPort, selfUrl, clusterUrls, workingDir, new Settings());
+    }
+
+    private ServiceConfig(
+            int selfPort,
+            String selfUrl,
+            List<String> clusterUrls,
+            Path workingDir,
+            Settings settings
     ) {
         this.selfPort = selfPort;
         this.selfUrl = selfUrl;
-        this.clusterUrls = clusterUrls;
+        this.clusterUrls = List.copyOf(clusterUrls);
         this.workingDir = workingDir;
+        this.replicationTransport = settings.replicationTransport;
+        this.executionMode = settings.executionMode;
+        this.maxConcurrentRequests = settings.maxConcurrentRequests;
+        this.rowCacheBytes = settings.rowCacheBytes;
+        this.hintsPerSecond = settings.hintsPerSecond;
+        this.readRepairChance = settings.readRepairChance;
+        this.antiEntropyReplicas = settings.antiEntropyReplicas;
+        this.speculativeRetryPercentile = settings.speculativeRetryPercentile;
+        this.virtualNodes = settings.virtualNodes;
+        this.rebalanceReplicas = settings.rebalanceReplicas;
+        this.rebalanceBytesPerSecond = settings.rebalanceBytesPerSecond;
+        this.phiThreshold = settings.phiThreshold;
+        this.sloppyQuorum = settings.sloppyQuorum;
+    }
+
+    private ServiceConfig with(Settings settings) {
+        return new ServiceConfig(selfPort, selfUrl, clusterUrls, workingDir, settings);
+    }
+
+    /**
+     * Selects how replica requests travel between nodes. {@link ReplicationTransport#HTTP}, the default, works
+     * with every node; {@link ReplicationTransport#BINARY} needs every node of the cluster to accept the upgrade
+     * of a connection to the binary protocol.
+     */
+    public ServiceConfig withReplicationTransport(ReplicationTransport replicationTransport) {
+        Settings settings = new Settings(this);
+        settings.replicationTransport = replicationTransport;
+        return with(settings);
+    }
+
+    /**
+     * Selects how requests are scheduled. {@code maxConcurrentRequests} only applies
+     * to {@link ExecutionMode#THREAD_PER_REQUEST}.
+     */
+    public ServiceConfig withExecutionMode(ExecutionMode executionMode, int maxConcurrentRequests) {
+        if (maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be positive: " + maxConcurrentRequests);
+        }
+        Settings settings = new Settings(this);
+        settings.executionMode = executionMode;
+        settings.maxConcurrentRequests = maxConcurrentRequests;
+        return with(settings);
+    }
+
+    /**
+     * Sets the memory for cached GET responses of hot keys, {@code 0} disables the cache.
+     */
+    public ServiceConfig withRowCache(long rowCacheBytes) {
+        if (rowCacheBytes < 0) {
+            throw new IllegalArgumentException("rowCacheBytes must not be negative: " + rowCacheBytes);
+        }
+        Settings settings = new Settings(this);
+        settings.rowCacheBytes = rowCacheBytes;
+        return with(settings);
+    }
+
+    /**
+     * Sets how fast writes missed by a replica are handed off to it once it is back, per replica;
+     * {@code 0} disables hinted handoff.
+     */
+    public ServiceConfig withHintedHandoff(int hintsPerSecond) {
+        if (hintsPerSecond < 0) {
+            throw new IllegalArgumentException("hintsPerSecond must not be negative: " + hintsPerSecond);
+        }
+        Settings settings = new Settings(this);
+        settings.hintsPerSecond = hintsPerSecond;
+        return with(settings);
+    }
+
+    /**
+     * Sets the fraction of quorum reads with disagreeing replicas that update the stale ones;
+     * {@code 0} disables read repair.
+     */
+    public ServiceConfig withReadRepair(double readRepairChance) {
+        if (readRepairChance < 0 || readRepairChance > 1) {
+            throw new IllegalArgumentException("readRepairChance must be in [0, 1]: " + readRepairChance);
+        }
+        Settings settings = new Settings(this);
+        settings.readRepairChance = readRepairChance;
+        return with(settings);
+    }
+
+    /**
+     * Enables background reconciliation of replicas for a cluster where every key is written to the
+     * {@code replicas} nodes following it on the ring; {@code 0}, the default, disables it. Keys written
+     * to fewer nodes would be copied to all {@code replicas} of them.
+     */
+    public ServiceConfig withAntiEntropy(int replicas) {
+        if (replicas < 0) {
+            throw new IllegalArgumentException("replicas must not be negative: " + replicas);
+        }
+        Settings settings = new Settings(this);
+        settings.antiEntropyReplicas = replicas;
+        return with(settings);
+    }
+
+    /**
+     * Makes a quorum read ask only the {@code ack} fastest replicas, and one more whenever a replica fails or
+     * is slower than {@code percentile} of its recent responses, e.g. {@code 0.95}; {@code 0}, the default,
+     * disables speculation, reads then ask all {@code from} replicas at once.
+     */
+    public ServiceConfig withSpeculativeRetry(double percentile) {
+        if (percentile < 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be in [0, 1): " + percentile);
+        }
+        Settings settings = new Settings(this);
+        settings.speculativeRetryPercentile = percentile;
+        return with(settings);
+    }
+
+    /**
+     * Sets how many positions every node takes on the ring: more even out the share of keys each node owns,
+     * and make more, smaller ranges. Every node of the cluster must use the same value. The default keeps the
+     * placement of earlier versions. Any other value gives most keys other owners, and nothing moves the data
+     * already stored to them, so it is for new clusters only.
+     */
+    public ServiceConfig withVirtualNodes(int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive: " + virtualNodes);
+        }
+        Settings settings = new Settings(this);
+        settings.virtualNodes = virtualNodes;
+        return with(settings);
+    }
+
+    /**
+     * Sets how data moves after a membership change: every key is assumed to be kept by the {@code replicas}
+     * nodes following it on the ring, {@code 0}, the default, meaning all nodes like a request without
+     * {@code from}, and a node reads at most {@code bytesPerSecond} of its data to find the keys to move.
+     */
+    public ServiceConfig withRebalancing(int replicas, long bytesPerSecond) {
+        if (replicas < 0) {
+            throw new IllegalArgumentException("replicas must not be negative: " + replicas);
+        }
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive: " + bytesPerSecond);
+        }
+        Settings settings = new Settings(this);
+        settings.rebalanceReplicas = replicas;
+        settings.rebalanceBytesPerSecond = bytesPerSecond;
+        return with(settings);
+    }
+
+    /**
+     * Makes the coordinator fail a replica at once, rather than after the timeout, once the failure detector's
+     * phi for it reaches {@code phiThreshold}, e.g. {@code 8}, or it failed too many requests in a row. Every
+     * node then sends each peer a heartbeat several times a second. {@code 0}, the default, disables failure
+     * detection.
+     */
+    public ServiceConfig withFailureDetection(double phiThreshold) {
+        if (phiThreshold < 0) {
+            throw new IllegalArgumentException("phiThreshold must not be negative: " + phiThreshold);
+        }
+        Settings settings = new Settings(this);
+        settings.phiThreshold = phiThreshold;
+        return with(settings);
+    }
+
+    /**
+     * Makes a write whose replica is down, or fails, go to the next healthy node of the ring instead, which
+     * keeps it as a hint for the replica rather than storing it, so that writes meet {@code ack} through node
+     * outages. Reads still ask the replicas only. Needs hinted handoff on every node, and works best with
+     * failure detection, which makes a replica known to be down replaced at once.
+     */
+    public ServiceConfig withSloppyQuorum(boolean sloppyQuorum) {
+        Settings settings = new Settings(this);
+        settings.sloppyQuorum = sloppyQuorum;
+        return with(settings);
     }
 
     public int selfPort() {
@@ -37,4 +239,93 @@ public final class ServiceConfig {
         return workingDir;
     }
 
+    public ReplicationTransport replicationTransport() {
+        return replicationTransport;
+    }
+
+    public ExecutionMode executionMode() {
+        return executionMode;
+    }
+
+    public int maxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public long rowCacheBytes() {
+        return rowCacheBytes;
+    }
+
+    public int hintsPerSecond() {
+        return hintsPerSecond;
+    }
+
+    public double readRepairChance() {
+        return readRepairChance;
+    }
+
+    public int antiEntropyReplicas() {
+        return antiEntropyReplicas;
+    }
+
+    public double speculativeRetryPercentile() {
+        return speculativeRetryPercentile;
+    }
+
+    public int virtualNodes() {
+        return virtualNodes;
+    }
+
+    public int rebalanceReplicas() {
+        return rebalanceReplicas;
+    }
+
+    public long rebalanceBytesPerSecond() {
+        return rebalanceBytesPerSecond;
+    }
+
+    public double phiThreshold() {
+        return phiThreshold;
+    }
+
+    public boolean sloppyQuorum() {
+        return sloppyQuorum;
+    }
+
+    /**
+     * The optional settings of a config being derived by a {@code with*} method; never escapes it.
+     */
+    private static final class Settings {
+        private ReplicationTransport replicationTransport = ReplicationTransport.HTTP;
+        private ExecutionMode executionMode = ExecutionMode.POOLED;
+        private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+        private long rowCacheBytes = DEFAULT_ROW_CACHE_BYTES;
+        private int hintsPerSecond = DEFAULT_HINTS_PER_SECOND;
+        private double readRepairChance = DEFAULT_READ_REPAIR_CHANCE;
+        private int antiEntropyReplicas;
+        private double speculativeRetryPercentile;
+        private int virtualNodes = ConsistentHashingImpl.DEFAULT_VIRTUAL_NODES;
+        private int rebalanceReplicas;
+        private long rebalanceBytesPerSecond = DEFAULT_REBALANCE_BYTES_PER_SECOND;
+        private double phiThreshold;
+        private boolean sloppyQuorum;
+
+        Settings() {
+        }
+
+        Settings(ServiceConfig config) {
+            this.replicationTransport = config.replicationTransport;
+            this.executionMode = config.executionMode;
+            this.maxConcurrentRequests = config.maxConcurrentRequests;
+            this.rowCacheBytes = config.rowCacheBytes;
+            this.hintsPerSecond = config.hintsPerSecond;
+            this.readRepairChance = config.readRepairChance;
+            this.antiEntropyReplicas = config.antiEntropyReplicas;
+            this.speculativeRetryPercentile = config.speculativeRetryPercentile;
+            this.virtualNodes = config.virtualNodes;
+            this.rebalanceReplicas = config.rebalanceReplicas;
+            this.rebalanceBytesPerSecond = config.rebalanceBytesPerSecond;
+            this.phiThreshold = config.phiThreshold;
+            this.sloppyQuorum = config.sloppyQuorum;
+        }
+    }
 }
@@ -0,0 +1,176 @@
+package ok.dht.admission;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrency limit that follows the measured request latency (gradient algorithm).
+ * <p>
+ * Each completed request yields an RTT sample. Samples are only accumulated on the request path;
+ * once every {@link #SAMPLES_PER_UPDATE} of them a single completing thread folds the batch into
+ * the limit, the others skip the update instead of waiting for it.
+ * <p>
+ * The no-load baseline is the minimum RTT seen over the last one to two windows of
+ * {@link #BASELINE_WINDOW_UPDATES} updates, so sustained queueing can't drag it up the way an
+ * average would. When the batch's mean RTT grows above {@code baseline * tolerance}, queues are
+ * building up somewhere and the limit shrinks proportionally, otherwise it grows by roughly
+ * {@code sqrt(limit)} per update. Requests beyond the current limit are rejected right away, so
+ * load is shed before executor queues fill.
+ */
+public class AdaptiveConcurrencyLimiter {
+    static final int SAMPLES_PER_UPDATE = 32;
+    static final int BASELINE_WINDOW_UPDATES = 100;
+
+    private static final double RTT_TOLERANCE = 1.5;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double INTERNAL_RESERVED_SHARE = 0.2;
+    private static final double BACKGROUND_SHARE = 0.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLongArray rejected = new AtomicLongArray(RequestPriority.values().length);
+
+    // Current batch, filled by completing requests
+    private final LongAdder batchRttSum = new LongAdder();
+    private final AtomicInteger batchSamples = new AtomicInteger();
+    private final AtomicLong batchMinRtt = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicInteger batchMaxInFlight = new AtomicInteger();
+    private final AtomicBoolean updating = new AtomicBoolean();
+
+    // Guarded by updating
+    private long windowMinRtt = Long.MAX_VALUE;
+    private long previousWindowMinRtt = Long.MAX_VALUE;
+    private int windowUpdates;
+
+    private volatile double limit;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+    }
+
+    /**
+     * Admits a request or returns {@code null} if it should be shed.
+     */
+    public Permit tryAcquire(RequestPriority priority) {
+        int allowed = allowedInFlight(priority);
+        while (true) {
+            int current = inFlight.get();
+            if (current >= allowed) {
+                rejected.incrementAndGet(priority.ordinal());
+                return null;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return new Permit(System.nanoTime(), current + 1);
+            }
+        }
+    }
+
+    private int allowedInFlight(RequestPriority priority) {
+        int currentLimit = getLimit();
+        return switch (priority) {
+            case INTERNAL -> currentLimit;
+            case CLIENT -> currentLimit - Math.max(1, (int) (currentLimit * INTERNAL_RESERVED_SHARE));
+            case BACKGROUND -> Math.max(1, (int) (currentLimit * BACKGROUND_SHARE));
+        };
+    }
+
+    void onSample(long rttNanos, int inFlightAtStart) {
+        batchRttSum.add(rttNanos);
+        lowerTo(batchMinRtt, rttNanos);
+        raiseTo(batchMaxInFlight, inFlightAtStart);
+        if (batchSamples.incrementAndGet() >= SAMPLES_PER_UPDATE && updating.compareAndSet(false, true)) {
+            try {
+                updateLimit();
+            } finally {
+                updating.set(false);
+            }
+        }
+    }
+
+    private void updateLimit() {
+        int samples = batchSamples.getAndSet(0);
+        if (samples == 0) {
+            return;
+        }
+        double meanRtt = (double) batchRttSum.sumThenReset() / samples;
+        long minRtt = batchMinRtt.getAndSet(Long.MAX_VALUE);
+        int maxInFlight = batchMaxInFlight.getAndSet(0);
+
+        windowMinRtt = Math.min(windowMinRtt, minRtt);
+        double baselineRtt = Math.min(windowMinRtt, previousWindowMinRtt);
+        if (++windowUpdates == BASELINE_WINDOW_UPDATES) {
+            previousWindowMinRtt = windowMinRtt;
+            windowMinRtt = Long.MAX_VALUE;
+            windowUpdates = 0;
+        }
+
+        double currentLimit = limit;
+        // Don't grow the limit on batches that didn't even use half of it
+        if (meanRtt <= baselineRtt * RTT_TOLERANCE && maxInFlight < currentLimit / 2) {
+            return;
+        }
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, baselineRtt * RTT_TOLERANCE / meanRtt));
+        double newLimit = currentLimit * gradient + Math.sqrt(currentLimit);
+        newLimit = currentLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    private static void lowerTo(AtomicLong min, long value) {
+        long current = min.get();
+        while (value < current && !min.compareAndSet(current, value)) {
+            current = min.get();
+        }
+    }
+
+    private static void raiseTo(AtomicInteger max, int value) {
+        int current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejected(RequestPriority priority) {
+        return rejected.get(priority.ordinal());
+    }
+
+    public final class Permit {
+        private final long startNanos;
+        private final int inFlightAtStart;
+
+        private Permit(long startNanos, int inFlightAtStart) {
+            this.startNanos = startNanos;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * Marks the request as completed and feeds its latency into the limit.
+         */
+        public void release() {
+            inFlight.decrementAndGet();
+            onSample(System.nanoTime() - startNanos, inFlightAtStart);
+        }
+
+        /**
+         * Gives the slot back without a latency sample, e.g. when the request never ran.
+         */
+        public void drop() {
+            inFlight.decrementAndGet();
+        }
+    }
+}
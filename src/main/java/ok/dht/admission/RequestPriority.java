@@ -0,0 +1,19 @@
+package ok.dht.admission;
+
+public enum RequestPriority {
+    /**
+     * Reads and writes a coordinator sends to the replicas of a key. Shedding it turns into 504s on the
+     * coordinator, so it may use the whole limit.
+     */
+    INTERNAL,
+    /**
+     * Client traffic on the public API, and the replica side of client range scans; it can't take the share
+     * reserved for internal traffic.
+     */
+    CLIENT,
+    /**
+     * Rebalancing, anti-entropy and membership changes: bulk work nobody waits on, retried when refused. It
+     * only gets the lower part of the limit, so it is the first to be shed as load grows.
+     */
+    BACKGROUND
+}
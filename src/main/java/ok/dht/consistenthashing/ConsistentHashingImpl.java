@@ -3,56 +3,195 @@ package ok.dht.consistenthashing;
 import one.nio.util.Hash;
 import one.nio.util.Utf8;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
+/**
+ * The ring: every node owns {@code virtualNodes} positions, and a token belongs to the range ending at the
+ * first position at or after it.
+ * <p>
+ * Lookups are on the path of every request, so the ring is laid out in flat arrays: the sorted positions,
+ * and for every range all the nodes in the order they replicate it, as indexes into the node array. Finding
+ * the replicas of a key is a binary search, no boxing and no allocation beyond the caller's own.
+ */
 public class ConsistentHashingImpl {
-    private static final int VIRTUAL_NODES_COUNT = 3;
+    // What rings have always been built with, so keys keep the owners they were stored on
+    public static final int DEFAULT_VIRTUAL_NODES = 3;
 
+    private static final ThreadLocal<byte[]> KEY_BUFFER = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private final String[] nodes;
     private final int[] hashes;
-    private final Map<Integer, String> hashToShard = new HashMap<>();
+    // preferences[range * nodes.length + i] is the i-th replica of range
+    private final int[] preferences;
+    private final long version;
 
     public ConsistentHashingImpl(List<String> clusterUrls) {
-        hashes = new int[clusterUrls.size() * VIRTUAL_NODES_COUNT];
-
-        for (int i = 0; i < clusterUrls.size(); i++) {
-            String serverUrl = clusterUrls.get(i);
-            for (int j = 0; j < VIRTUAL_NODES_COUNT; j++) {
-                String virtualNode = serverUrl + "_" + j;
-                int hash = hashForKey(virtualNode);
-                hashes[i * VIRTUAL_NODES_COUNT + j] = hash;
-                hashToShard.put(hash, serverUrl);
+        this(clusterUrls, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashingImpl(List<String> clusterUrls, int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive: " + virtualNodes);
+        }
+        // Sorted, so that nodes agree on the ring whatever order they were given the cluster in. The order only
+        // labels the positions, which depend on the urls alone, so it doesn't move keys.
+        nodes = clusterUrls.stream().distinct().sorted().toArray(String[]::new);
+
+        // A position and its owner in one long, so that sorting orders positions and breaks ties by owner
+        long[] positions = new long[nodes.length * virtualNodes];
+        for (int i = 0; i < nodes.length; i++) {
+            for (int j = 0; j < virtualNodes; j++) {
+                positions[i * virtualNodes + j] = (long) hashForKey(nodes[i] + "_" + j) << Integer.SIZE | i;
+            }
+        }
+        Arrays.sort(positions);
+
+        // Positions colliding with an earlier one are dropped: a range must not be empty
+        int[] sortedHashes = new int[positions.length];
+        int[] owners = new int[positions.length];
+        int count = 0;
+        for (long position : positions) {
+            int hash = (int) (position >> Integer.SIZE);
+            if (count == 0 || sortedHashes[count - 1] != hash) {
+                sortedHashes[count] = hash;
+                owners[count] = (int) position;
+                count++;
+            }
+        }
+        hashes = Arrays.copyOf(sortedHashes, count);
+
+        preferences = new int[count * nodes.length];
+        boolean[] seen = new boolean[nodes.length];
+        for (int range = 0; range < count; range++) {
+            Arrays.fill(seen, false);
+            int replicas = 0;
+            for (int i = 0; replicas < nodes.length; i++) {
+                int owner = owners[(range + i) % count];
+                if (!seen[owner]) {
+                    seen[owner] = true;
+                    preferences[range * nodes.length + replicas++] = owner;
+                }
             }
         }
 
-        Arrays.sort(hashes);
+        long digest = 0;
+        for (int i = 0; i < count; i++) {
+            digest = 31 * digest + hashes[i];
+            digest = 31 * digest + nodes[owners[i]].hashCode();
+        }
+        version = digest;
+    }
+
+    /**
+     * Identifies the ring: nodes built from the same cluster agree on it, a different membership changes it.
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Describes the ring for clients routing requests themselves: the version on the first line, then a
+     * {@code hash url} line per virtual node in ring order.
+     */
+    public String topology() {
+        StringBuilder topology = new StringBuilder().append(version).append('\n');
+        for (int range = 0; range < hashes.length; range++) {
+            topology.append(hashes[range]).append(' ').append(replica(range, 0)).append('\n');
+        }
+        return topology.toString();
     }
 
-    private int hashForKey(String key) {
-        byte[] keyBytes = Utf8.toBytes(key);
-        return Hash.xxhash(keyBytes, 0, keyBytes.length);
+    private static int hashForKey(String key) {
+        // Encoded into a per-thread buffer rather than a new array for every request
+        int length = Utf8.length(key);
+        byte[] buffer = KEY_BUFFER.get();
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+            KEY_BUFFER.set(buffer);
+        }
+        Utf8.write(key, buffer, 0);
+        return Hash.xxhash(buffer, 0, length);
     }
 
-    public Set<String> getNodesByKey(String key, int replicas) {
-        int hash = hashForKey(key);
+    /**
+     * Position of a key on the ring.
+     */
+    public static int token(byte[] key) {
+        return Hash.xxhash(key, 0, key.length);
+    }
 
-        int shardIndex = Arrays.binarySearch(hashes, hash);
+    /**
+     * Number of token ranges: range {@code i} holds the tokens after the end of range {@code i - 1}
+     * up to and including {@link #rangeEnd(int) rangeEnd(i)}, range {@code 0} wrapping around the ring.
+     */
+    public int rangeCount() {
+        return hashes.length;
+    }
+
+    public int rangeOf(int token) {
+        int shardIndex = Arrays.binarySearch(hashes, token);
         if (shardIndex < 0) {
             shardIndex = -shardIndex - 1;
         }
+        return shardIndex == hashes.length ? 0 : shardIndex;
+    }
 
-        Set<String> nodes = new HashSet<>();
-        for (int i = 0; i < hashes.length; i++) {
-            int currHash = hashes[(shardIndex + i) % hashes.length];
-            nodes.add(hashToShard.get(currHash));
-            if (nodes.size() == replicas) {
-                break;
-            }
+    public int rangeOf(String key) {
+        return rangeOf(hashForKey(key));
+    }
+
+    public int rangeEnd(int range) {
+        return hashes[range];
+    }
+
+    public int rangeStart(int range) {
+        return hashes[(range + hashes.length - 1) % hashes.length];
+    }
+
+    /**
+     * Number of distinct nodes, the most replicas a range can have.
+     */
+    public int nodeCount() {
+        return nodes.length;
+    }
+
+    /**
+     * Returns the nodes of the ring, sorted.
+     */
+    public List<String> nodes() {
+        return List.of(nodes);
+    }
+
+    /**
+     * Returns the {@code i}-th node replicating {@code range}, in ring order.
+     */
+    public String replica(int range, int i) {
+        return nodes[preferences[range * nodes.length + i]];
+    }
+
+    /**
+     * Returns the first {@code replicas} distinct nodes owning the tokens of {@code range}, in ring order.
+     */
+    public List<String> rangeReplicas(int range, int replicas) {
+        int count = Math.min(replicas, nodes.length);
+        List<String> owners = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            owners.add(replica(range, i));
         }
-        return nodes;
+        return owners;
+    }
+
+    /**
+     * Returns every node in the order it stands in for {@code range}: its replicas first, then the nodes that
+     * take over their writes while they are down.
+     */
+    public List<String> preferenceList(int range) {
+        return rangeReplicas(range, nodes.length);
+    }
+
+    public List<String> getNodesByKey(String key, int replicas) {
+        return rangeReplicas(rangeOf(key), replicas);
     }
 }
@@ -0,0 +1,262 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryLayout;
+import jdk.incubator.foreign.MemoryLayouts;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.lang.invoke.VarHandle;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ok.dht.dao.NativeArena.NULL;
+
+/**
+ * Memtable that copies entries into a {@link NativeArena} and indexes them with a lock-free skip list whose
+ * links are arena pointers, so the heap only holds the arena chunks whatever the memtable size.
+ * <p>
+ * Node: {@code valuePointer:long, keySize:int, level:int, next:long[level], key}.
+ * Value: {@code timestamp:long, valueSize:long, value}, {@code valueSize == -1} marks a tombstone.
+ * Nodes are never removed: an upsert of an existing key swaps the value pointer with a CAS, and the
+ * memtable grows by the arena bytes it takes, since replaced values aren't reclaimed.
+ */
+final class ArenaMemory extends DaoMemory {
+    private static final VarHandle LONGS = MemoryLayout.sequenceLayout(MemoryLayouts.JAVA_LONG)
+            .varHandle(long.class, MemoryLayout.PathElement.sequenceElement());
+
+    private static final int MAX_LEVEL = 16;
+    private static final long VALUE_POINTER_OFFSET = 0;
+    private static final long KEY_SIZE_OFFSET = 8;
+    private static final long LEVEL_OFFSET = 12;
+    private static final long NEXT_OFFSET = 16;
+    private static final long VALUE_HEADER_SIZE = Long.BYTES * 2;
+
+    private final NativeArena arena = new NativeArena();
+    private final long head;
+    private final AtomicInteger count = new AtomicInteger();
+
+    ArenaMemory(long sizeThreshold, WriteAheadLog wal) {
+        super(sizeThreshold, wal);
+        this.head = arena.allocate(NEXT_OFFSET + (long) MAX_LEVEL * Long.BYTES);
+    }
+
+    @Override
+    long insert(MemorySegment key, Entry<MemorySegment> entry) {
+        long value = writeValue(entry);
+        long valueSize = entry.value() == null ? 0 : entry.value().byteSize();
+        long allocated = NativeArena.alignedSize(VALUE_HEADER_SIZE + valueSize);
+        long[] preds = new long[MAX_LEVEL];
+        long[] succs = new long[MAX_LEVEL];
+        long node = NULL;
+        int level = 0;
+        while (true) {
+            long found = find(key, preds, succs);
+            if (found != NULL) {
+                setVolatile(found, VALUE_POINTER_OFFSET, value);
+                return allocated;
+            }
+            if (node == NULL) {
+                level = randomLevel();
+                node = writeNode(key, level, value);
+                allocated += NativeArena.alignedSize(nextOffset(level) + key.byteSize());
+            }
+            for (int i = 0; i < level; i++) {
+                setVolatile(node, nextOffset(i), succs[i]);
+            }
+            if (compareAndSet(preds[0], nextOffset(0), succs[0], node)) {
+                break;
+            }
+        }
+        count.incrementAndGet();
+
+        // The node is in the list from here on, upper levels are only shortcuts
+        for (int i = 1; i < level; i++) {
+            while (!compareAndSet(preds[i], nextOffset(i), succs[i], node)) {
+                find(key, preds, succs);
+                setVolatile(node, nextOffset(i), succs[i]);
+            }
+        }
+        return allocated;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getVolatile(head, nextOffset(0)) == NULL;
+    }
+
+    @Override
+    public Collection<Entry<MemorySegment>> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Entry<MemorySegment>> iterator() {
+                return new NodeIterator(getVolatile(head, nextOffset(0)), null);
+            }
+
+            @Override
+            public int size() {
+                return count.get();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
+        return new NodeIterator(ceiling(from), to);
+    }
+
+    @Override
+    public Entry<MemorySegment> get(MemorySegment key) {
+        long node = ceiling(key);
+        if (node == NULL || compare(node, key) != 0) {
+            return null;
+        }
+        return entry(node);
+    }
+
+    /**
+     * Returns the first node with a key not less than {@code key}, or {@link NativeArena#NULL}.
+     */
+    private long ceiling(MemorySegment key) {
+        long pred = head;
+        long curr = NULL;
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            curr = getVolatile(pred, nextOffset(level));
+            while (curr != NULL && compare(curr, key) < 0) {
+                pred = curr;
+                curr = getVolatile(curr, nextOffset(level));
+            }
+        }
+        return curr;
+    }
+
+    /**
+     * Fills the neighbours of {@code key} on every level and returns its node if it is present.
+     */
+    private long find(MemorySegment key, long[] preds, long[] succs) {
+        long pred = head;
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            long curr = getVolatile(pred, nextOffset(level));
+            while (curr != NULL && compare(curr, key) < 0) {
+                pred = curr;
+                curr = getVolatile(curr, nextOffset(level));
+            }
+            preds[level] = pred;
+            succs[level] = curr;
+        }
+        long candidate = succs[0];
+        return candidate != NULL && compare(candidate, key) == 0 ? candidate : NULL;
+    }
+
+    private long writeValue(Entry<MemorySegment> entry) {
+        MemorySegment value = entry.value();
+        long valueSize = value == null ? 0 : value.byteSize();
+        long pointer = arena.allocate(VALUE_HEADER_SIZE + valueSize);
+        MemorySegment chunk = arena.chunk(pointer);
+        long offset = NativeArena.offset(pointer);
+        chunk.asSlice(offset, Long.BYTES).copyFrom(entry.timestamp());
+        MemoryAccess.setLongAtOffset(chunk, offset + Long.BYTES, value == null ? -1 : valueSize);
+        if (value != null) {
+            chunk.asSlice(offset + VALUE_HEADER_SIZE, valueSize).copyFrom(value);
+        }
+        return pointer;
+    }
+
+    private long writeNode(MemorySegment key, int level, long value) {
+        long keyOffset = nextOffset(level);
+        long pointer = arena.allocate(keyOffset + key.byteSize());
+        MemorySegment chunk = arena.chunk(pointer);
+        long offset = NativeArena.offset(pointer);
+        MemoryAccess.setLongAtOffset(chunk, offset + VALUE_POINTER_OFFSET, value);
+        MemoryAccess.setIntAtOffset(chunk, offset + KEY_SIZE_OFFSET, (int) key.byteSize());
+        MemoryAccess.setIntAtOffset(chunk, offset + LEVEL_OFFSET, level);
+        chunk.asSlice(offset + keyOffset, key.byteSize()).copyFrom(key);
+        return pointer;
+    }
+
+    private Entry<MemorySegment> entry(long node) {
+        long value = getVolatile(node, VALUE_POINTER_OFFSET);
+        MemorySegment chunk = arena.chunk(value);
+        long offset = NativeArena.offset(value);
+        long valueSize = MemoryAccess.getLongAtOffset(chunk, offset + Long.BYTES);
+        return new BaseEntry<>(
+                key(node),
+                valueSize == -1 ? null : chunk.asSlice(offset + VALUE_HEADER_SIZE, valueSize),
+                chunk.asSlice(offset, Long.BYTES)
+        );
+    }
+
+    private MemorySegment key(long node) {
+        MemorySegment chunk = arena.chunk(node);
+        long offset = NativeArena.offset(node);
+        int keySize = MemoryAccess.getIntAtOffset(chunk, offset + KEY_SIZE_OFFSET);
+        int level = MemoryAccess.getIntAtOffset(chunk, offset + LEVEL_OFFSET);
+        return chunk.asSlice(offset + nextOffset(level), keySize);
+    }
+
+    private int compare(long node, MemorySegment key) {
+        return MemorySegmentComparator.INSTANCE.compare(key(node), key);
+    }
+
+    private static long nextOffset(int level) {
+        return NEXT_OFFSET + (long) level * Long.BYTES;
+    }
+
+    private static int randomLevel() {
+        // Each level holds a quarter of the nodes of the level below
+        int level = 1;
+        int random = ThreadLocalRandom.current().nextInt();
+        while (level < MAX_LEVEL && (random & 3) == 0) {
+            level++;
+            random >>>= 2;
+        }
+        return level;
+    }
+
+    private long getVolatile(long pointer, long fieldOffset) {
+        return (long) LONGS.getVolatile(arena.chunk(pointer), index(pointer, fieldOffset));
+    }
+
+    private void setVolatile(long pointer, long fieldOffset, long value) {
+        LONGS.setVolatile(arena.chunk(pointer), index(pointer, fieldOffset), value);
+    }
+
+    private boolean compareAndSet(long pointer, long fieldOffset, long expected, long value) {
+        return LONGS.compareAndSet(arena.chunk(pointer), index(pointer, fieldOffset), expected, value);
+    }
+
+    private static long index(long pointer, long fieldOffset) {
+        return (NativeArena.offset(pointer) + fieldOffset) / Long.BYTES;
+    }
+
+    private final class NodeIterator implements Iterator<Entry<MemorySegment>> {
+        private final MemorySegment to;
+        private long next;
+
+        NodeIterator(long first, MemorySegment to) {
+            this.to = to;
+            this.next = first;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != NULL && to != null && compare(next, to) >= 0) {
+                next = NULL;
+            }
+            return next != NULL;
+        }
+
+        @Override
+        public Entry<MemorySegment> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<MemorySegment> entry = entry(next);
+            next = getVolatile(next, nextOffset(0));
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Off-heap cache of decoded SSTable blocks with W-TinyLFU eviction.
+ * <p>
+ * New blocks enter a small LRU window. A block evicted from the window competes for a place in the main
+ * segmented LRU against the main region's victim, and only wins if a count-min sketch has seen it more often.
+ * Blocks hit again in the probation part of the main region move to its protected part.
+ * So a burst of blocks read once can't push out blocks that are read repeatedly.
+ * <p>
+ * Range scans use {@link #peek}, which neither inserts nor counts, so scans don't disturb point lookups
+ * at all. The cache is split into shards with their own lock.
+ */
+public class BlockCache {
+    private static final int SHARDS = 16;
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+    private static final int EXPECTED_BLOCK_SIZE = 4096;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public BlockCache(long capacityBytes) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacityBytes);
+        }
+        long shardCapacity = Math.max(capacityBytes / SHARDS, 1);
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(shardCapacity);
+        }
+    }
+
+    /**
+     * Returns the cached block and records the access, or {@code null} on a miss.
+     */
+    DataBlock get(long tableId, int blockIndex) {
+        BlockKey key = new BlockKey(tableId, blockIndex);
+        DataBlock block = shard(key).get(key);
+        if (block == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return block;
+    }
+
+    /**
+     * Returns the cached block without affecting eviction, or {@code null}.
+     */
+    DataBlock peek(long tableId, int blockIndex) {
+        BlockKey key = new BlockKey(tableId, blockIndex);
+        return shard(key).peek(key);
+    }
+
+    /**
+     * Copies the block off-heap and offers it to the cache; returns the copy.
+     */
+    DataBlock put(long tableId, int blockIndex, MemorySegment decoded) {
+        // Freed by the GC once neither the cache nor a reader refers to it
+        MemorySegment copy = MemorySegment.allocateNative(decoded.byteSize(), ResourceScope.newImplicitScope());
+        copy.copyFrom(decoded);
+        DataBlock block = DataBlock.of(copy);
+        BlockKey key = new BlockKey(tableId, blockIndex);
+        shard(key).put(key, block);
+        return block;
+    }
+
+    /**
+     * Drops the blocks of tables that were compacted away.
+     */
+    void invalidate(Collection<Long> tableIds) {
+        for (Shard shard : shards) {
+            shard.invalidate(tableIds);
+        }
+    }
+
+    public Stats stats() {
+        long sizeBytes = 0;
+        for (Shard shard : shards) {
+            sizeBytes += shard.sizeBytes();
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), sizeBytes);
+    }
+
+    private Shard shard(BlockKey key) {
+        return shards[(int) (key.hash() >>> 60)];
+    }
+
+    public record Stats(long hits, long misses, long evictions, long sizeBytes) {
+        public double hitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+    }
+
+    private record BlockKey(long tableId, int blockIndex) {
+        long hash() {
+            long h = (tableId * 0x9E3779B97F4A7C15L) ^ blockIndex;
+            h *= 0xC2B2AE3D27D4EB4FL;
+            return h ^ (h >>> 31);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash();
+        }
+    }
+
+    private final class Shard {
+        private final long windowMax;
+        private final long protectedMax;
+        private final long mainMax;
+        private final FrequencySketch sketch;
+
+        // Every cached block, looked up without touching the access order of the regions
+        private final Map<BlockKey, DataBlock> blocks = new HashMap<>();
+        private final LinkedHashMap<BlockKey, DataBlock> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<BlockKey, DataBlock> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<BlockKey, DataBlock> protectedRegion = new LinkedHashMap<>(16, 0.75f, true);
+        private long windowBytes;
+        private long probationBytes;
+        private long protectedBytes;
+
+        Shard(long capacity) {
+            this.windowMax = Math.max((long) (capacity * WINDOW_SHARE), 1);
+            this.mainMax = capacity - windowMax;
+            this.protectedMax = (long) (mainMax * PROTECTED_SHARE);
+            this.sketch = new FrequencySketch(Math.max(capacity / EXPECTED_BLOCK_SIZE, 16));
+        }
+
+        synchronized DataBlock get(BlockKey key) {
+            long hash = key.hash();
+            sketch.increment(hash);
+
+            DataBlock block = window.get(key);
+            if (block != null) {
+                return block;
+            }
+            block = protectedRegion.get(key);
+            if (block != null) {
+                return block;
+            }
+            block = probation.remove(key);
+            if (block != null) {
+                probationBytes -= block.byteSize();
+                protectedRegion.put(key, block);
+                protectedBytes += block.byteSize();
+                demoteProtected();
+            }
+            return block;
+        }
+
+        synchronized DataBlock peek(BlockKey key) {
+            return blocks.get(key);
+        }
+
+        synchronized void put(BlockKey key, DataBlock block) {
+            if (block.byteSize() > mainMax || blocks.containsKey(key)) {
+                return;
+            }
+            blocks.put(key, block);
+            window.put(key, block);
+            windowBytes += block.byteSize();
+            while (windowBytes > windowMax && !window.isEmpty()) {
+                Map.Entry<BlockKey, DataBlock> candidate = removeEldest(window);
+                windowBytes -= candidate.getValue().byteSize();
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+
+        private void admit(BlockKey key, DataBlock block) {
+            long size = block.byteSize();
+            if (probationBytes + protectedBytes + size > mainMax) {
+                Map.Entry<BlockKey, DataBlock> victim = eldest(probation.isEmpty() ? protectedRegion : probation);
+                if (victim != null && sketch.frequency(key.hash()) <= sketch.frequency(victim.getKey().hash())) {
+                    blocks.remove(key);
+                    evictions.increment();
+                    return;
+                }
+                while (probationBytes + protectedBytes + size > mainMax) {
+                    Map.Entry<BlockKey, DataBlock> evicted;
+                    if (!probation.isEmpty()) {
+                        evicted = removeEldest(probation);
+                        probationBytes -= evicted.getValue().byteSize();
+                    } else {
+                        evicted = removeEldest(protectedRegion);
+                        protectedBytes -= evicted.getValue().byteSize();
+                    }
+                    blocks.remove(evicted.getKey());
+                    evictions.increment();
+                }
+            }
+            probation.put(key, block);
+            probationBytes += size;
+        }
+
+        private void demoteProtected() {
+            while (protectedBytes > protectedMax) {
+                Map.Entry<BlockKey, DataBlock> demoted = removeEldest(protectedRegion);
+                protectedBytes -= demoted.getValue().byteSize();
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationBytes += demoted.getValue().byteSize();
+            }
+        }
+
+        synchronized void invalidate(Collection<Long> tableIds) {
+            blocks.keySet().removeIf(key -> tableIds.contains(key.tableId()));
+            windowBytes -= removeTables(window, tableIds);
+            probationBytes -= removeTables(probation, tableIds);
+            protectedBytes -= removeTables(protectedRegion, tableIds);
+        }
+
+        synchronized long sizeBytes() {
+            return windowBytes + probationBytes + protectedBytes;
+        }
+
+        private static long removeTables(Map<BlockKey, DataBlock> region, Collection<Long> tableIds) {
+            long removed = 0;
+            Iterator<Map.Entry<BlockKey, DataBlock>> iterator = region.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<BlockKey, DataBlock> entry = iterator.next();
+                if (tableIds.contains(entry.getKey().tableId())) {
+                    removed += entry.getValue().byteSize();
+                    iterator.remove();
+                }
+            }
+            return removed;
+        }
+
+        private static Map.Entry<BlockKey, DataBlock> eldest(Map<BlockKey, DataBlock> region) {
+            Iterator<Map.Entry<BlockKey, DataBlock>> iterator = region.entrySet().iterator();
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        private static Map.Entry<BlockKey, DataBlock> removeEldest(Map<BlockKey, DataBlock> region) {
+            Iterator<Map.Entry<BlockKey, DataBlock>> iterator = region.entrySet().iterator();
+            Map.Entry<BlockKey, DataBlock> eldest = iterator.next();
+            iterator.remove();
+            return eldest;
+        }
+    }
+
+    /**
+     * Count-min sketch with 4-bit counters that are halved periodically, so old popularity fades.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedEntries) {
+            int width = Integer.highestOneBit((int) Math.min(expectedEntries, 1 << 24) - 1) << 1;
+            this.counters = new byte[width * DEPTH];
+            this.mask = width - 1;
+            this.sampleSize = width * 10;
+        }
+
+        void increment(long hash) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(hash, row);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(long hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(long hash, int row) {
+            int h = (int) (hash >>> (row * 16)) * (0x9E3779B9 + row * 2);
+            return row * (mask + 1) + ((h ^ (h >>> 15)) & mask);
+        }
+    }
+}
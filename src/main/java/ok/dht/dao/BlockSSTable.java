@@ -0,0 +1,266 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read access to a version 2 SSTable: entries are grouped into {@link DataBlock data blocks} that are
+ * found through a sparse index holding the first key of every block.
+ * <p>
+ * Layout: header {@code version, count, hasTombstones, bloomOffset, bloomWords, indexOffset, blockCount,
+ * reserved}, data blocks, index, bloom filter words.
+ * Block: {@code storedSize:int, rawSize:int, crc32:int, codec:byte}, then the stored bytes; the checksum
+ * covers the stored bytes and the codec is {@link #CODEC_RAW} or {@link #CODEC_DEFLATE}.
+ * Index: {@code blockOffset:long, firstKeyOffset:long} for every block, then the first keys as
+ * {@code keySize:int, key}.
+ */
+final class BlockSSTable implements SSTable {
+    static final long VERSION = 2;
+    static final int HEADER_SIZE = Long.BYTES * 8;
+    static final int BLOCK_HEADER_SIZE = Integer.BYTES * 3 + 1;
+    static final int INDEX_RECORD_SIZE = Long.BYTES * 2;
+    static final byte CODEC_RAW = 0;
+    static final byte CODEC_DEFLATE = 1;
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    // java.util.zip can't read buffers of shared mapped segments, so stored bytes are copied here first
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private final MemorySegment segment;
+    private final long tableId;
+    private final BlockCache cache;
+    private final long bloomOffset;
+    private final long bloomWords;
+    private final long indexOffset;
+    private final int blockCount;
+    // One bit per block whose checksum matched; the mapped file is read-only, so once is enough
+    private final AtomicLongArray verified;
+
+    private BlockSSTable(
+            MemorySegment segment,
+            long tableId,
+            BlockCache cache,
+            long bloomOffset,
+            long bloomWords,
+            long indexOffset,
+            int blockCount) {
+        this.segment = segment;
+        this.tableId = tableId;
+        this.cache = cache;
+        this.bloomOffset = bloomOffset;
+        this.bloomWords = bloomWords;
+        this.indexOffset = indexOffset;
+        this.blockCount = blockCount;
+        this.verified = new AtomicLongArray((blockCount + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    /**
+     * Wraps a mapped table; {@code cache} may be {@code null}.
+     */
+    static BlockSSTable of(MemorySegment segment, long tableId, BlockCache cache) {
+        return new BlockSSTable(
+                segment,
+                tableId,
+                cache,
+                MemoryAccess.getLongAtOffset(segment, 24),
+                MemoryAccess.getLongAtOffset(segment, 32),
+                MemoryAccess.getLongAtOffset(segment, 40),
+                (int) MemoryAccess.getLongAtOffset(segment, 48)
+        );
+    }
+
+    @Override
+    public long byteSize() {
+        return segment.byteSize();
+    }
+
+    @Override
+    public boolean hasTombstones() {
+        return MemoryAccess.getLongAtOffset(segment, 16) == 1;
+    }
+
+    @Override
+    public boolean mightContain(MemorySegment key) {
+        return BloomFilter.mightContain(segment, bloomOffset, bloomWords, key);
+    }
+
+    @Override
+    public Entry<MemorySegment> get(MemorySegment key) {
+        int blockIndex = blockIndex(key);
+        if (blockIndex < 0) {
+            return null;
+        }
+        DataBlock block = cachedBlock(blockIndex);
+        int index = block.find(key);
+        return index >= 0 ? block.entryAt(index) : null;
+    }
+
+    @Override
+    public Iterator<Entry<MemorySegment>> iterator(MemorySegment keyFrom, MemorySegment keyTo) {
+        int firstBlock = Math.max(blockIndex(keyFrom), 0);
+        return new Iterator<>() {
+            int blockIndex = firstBlock;
+            DataBlock block = blockCount == 0 ? null : scannedBlock(firstBlock);
+            int index = block == null ? 0 : insertionPoint(block.find(keyFrom));
+            Entry<MemorySegment> next = advance();
+
+            private Entry<MemorySegment> advance() {
+                if (block == null) {
+                    return null;
+                }
+                while (index >= block.count()) {
+                    if (++blockIndex >= blockCount) {
+                        block = null;
+                        return null;
+                    }
+                    block = scannedBlock(blockIndex);
+                    index = 0;
+                }
+                Entry<MemorySegment> entry = block.entryAt(index++);
+                if (keyTo != null && MemorySegmentComparator.INSTANCE.compare(entry.key(), keyTo) >= 0) {
+                    block = null;
+                    return null;
+                }
+                return entry;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry<MemorySegment> entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    private static int insertionPoint(int index) {
+        return index < 0 ? ~index : index;
+    }
+
+    /**
+     * Returns the last block whose first key is not greater than {@code key}, or {@code -1} if there is none.
+     */
+    private int blockIndex(MemorySegment key) {
+        int left = 0;
+        int right = blockCount - 1;
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            if (MemorySegmentComparator.INSTANCE.compare(firstKey(mid), key) <= 0) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return right;
+    }
+
+    /**
+     * Point lookups go through the cache and populate it.
+     */
+    private DataBlock cachedBlock(int blockIndex) {
+        if (cache == null) {
+            return block(blockIndex);
+        }
+        DataBlock block = cache.get(tableId, blockIndex);
+        if (block == null) {
+            block = cache.put(tableId, blockIndex, decode(blockIndex));
+        }
+        return block;
+    }
+
+    /**
+     * Scans use blocks that happen to be cached but never insert, so they can't evict hot blocks.
+     */
+    private DataBlock scannedBlock(int blockIndex) {
+        DataBlock block = cache == null ? null : cache.peek(tableId, blockIndex);
+        return block == null ? block(blockIndex) : block;
+    }
+
+    private MemorySegment firstKey(int blockIndex) {
+        long keyOffset = MemoryAccess.getLongAtOffset(segment, indexOffset + (long) blockIndex * INDEX_RECORD_SIZE + 8);
+        int keySize = MemoryAccess.getIntAtOffset(segment, keyOffset);
+        return segment.asSlice(keyOffset + Integer.BYTES, keySize);
+    }
+
+    private DataBlock block(int blockIndex) {
+        return DataBlock.of(decode(blockIndex));
+    }
+
+    /**
+     * Returns the raw contents of the block, verifying its checksum the first time it is read.
+     * Raw blocks are returned in place, only the first read of a block copies it.
+     */
+    private MemorySegment decode(int blockIndex) {
+        long offset = MemoryAccess.getLongAtOffset(segment, indexOffset + (long) blockIndex * INDEX_RECORD_SIZE);
+        int storedSize = MemoryAccess.getIntAtOffset(segment, offset);
+        int rawSize = MemoryAccess.getIntAtOffset(segment, offset + Integer.BYTES);
+        int checksum = MemoryAccess.getIntAtOffset(segment, offset + Integer.BYTES * 2);
+        byte codec = MemoryAccess.getByteAtOffset(segment, offset + Integer.BYTES * 3);
+        MemorySegment stored = segment.asSlice(offset + BLOCK_HEADER_SIZE, storedSize);
+        if (codec != CODEC_RAW && codec != CODEC_DEFLATE) {
+            throw new IllegalStateException("Unknown codec " + codec + " of block at " + offset);
+        }
+
+        boolean verify = !isVerified(blockIndex);
+        if (codec == CODEC_RAW && !verify) {
+            return stored;
+        }
+
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < storedSize) {
+            scratch = new byte[storedSize];
+            SCRATCH.set(scratch);
+        }
+        MemorySegment.ofArray(scratch).asSlice(0, storedSize).copyFrom(stored);
+        if (verify) {
+            CRC32 crc = new CRC32();
+            crc.update(scratch, 0, storedSize);
+            if ((int) crc.getValue() != checksum) {
+                throw new IllegalStateException("Checksum mismatch in block at " + offset);
+            }
+            markVerified(blockIndex);
+        }
+
+        if (codec == CODEC_RAW) {
+            return stored;
+        }
+        byte[] raw = new byte[rawSize];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(scratch, 0, storedSize);
+        try {
+            int inflated = inflater.inflate(ByteBuffer.wrap(raw));
+            if (inflated != rawSize || !inflater.finished()) {
+                throw new IllegalStateException("Truncated block at " + offset);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted block at " + offset, e);
+        }
+        return MemorySegment.ofArray(raw);
+    }
+
+    private boolean isVerified(int blockIndex) {
+        return (verified.get(blockIndex >>> 6) & (1L << blockIndex)) != 0;
+    }
+
+    private void markVerified(int blockIndex) {
+        long bit = 1L << blockIndex;
+        verified.getAndAccumulate(blockIndex >>> 6, bit, (word, mask) -> word | mask);
+    }
+}
@@ -0,0 +1,195 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a {@link BlockSSTable} in a single pass over sorted entries.
+ */
+final class BlockSSTableWriter {
+    private final FileChannel channel;
+    private final int blockSize;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+
+    private ByteBuffer block;
+    private ByteBuffer compressed;
+    private int[] recordOffsets = new int[64];
+    private int blockEntries;
+
+    private long[] blockOffsets = new long[64];
+    private final List<byte[]> firstKeys = new ArrayList<>();
+    private long[] keyHashes = new long[1024];
+    private long entriesCount;
+    private boolean hasTombstones;
+    private long position = BlockSSTable.HEADER_SIZE;
+
+    BlockSSTableWriter(FileChannel channel, int blockSize, boolean compress) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.block = ByteBuffer.allocate(blockSize * 2).order(ByteOrder.nativeOrder());
+    }
+
+    void add(Entry<MemorySegment> entry) throws IOException {
+        MemorySegment key = entry.key();
+        MemorySegment value = entry.value();
+        int recordSize = (int) (Integer.BYTES + key.byteSize() + Long.BYTES + Integer.BYTES
+                + (value == null ? 0 : value.byteSize()));
+        // Room for the record and for the offsets table with it
+        ensureBlockCapacity(recordSize + (blockEntries + 2) * Integer.BYTES);
+
+        if (blockEntries == 0) {
+            firstKeys.add(key.toByteArray());
+        }
+        if (blockEntries == recordOffsets.length) {
+            recordOffsets = Arrays.copyOf(recordOffsets, blockEntries * 2);
+        }
+        recordOffsets[blockEntries++] = block.position();
+
+        block.putInt((int) key.byteSize());
+        block.put(key.asByteBuffer());
+        block.put(entry.timestamp().asByteBuffer());
+        if (value == null) {
+            block.putInt(-1);
+            hasTombstones = true;
+        } else {
+            block.putInt((int) value.byteSize());
+            block.put(value.asByteBuffer());
+        }
+
+        if (entriesCount == keyHashes.length) {
+            keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+        }
+        keyHashes[(int) entriesCount++] = BloomFilter.hash(key);
+
+        if (block.position() >= blockSize) {
+            finishBlock();
+        }
+    }
+
+    /**
+     * Writes the index, bloom filter and header. Syncing the file is up to the caller.
+     */
+    void finish() throws IOException {
+        if (blockEntries > 0) {
+            finishBlock();
+        }
+
+        int blockCount = firstKeys.size();
+        long indexOffset = position;
+        long keysSize = 0;
+        for (byte[] key : firstKeys) {
+            keysSize += Integer.BYTES + key.length;
+        }
+        ByteBuffer index = ByteBuffer.allocate((int) (blockCount * BlockSSTable.INDEX_RECORD_SIZE + keysSize))
+                .order(ByteOrder.nativeOrder());
+        long keyOffset = indexOffset + (long) blockCount * BlockSSTable.INDEX_RECORD_SIZE;
+        for (int i = 0; i < blockCount; i++) {
+            index.putLong(blockOffsets[i]);
+            index.putLong(keyOffset);
+            keyOffset += Integer.BYTES + firstKeys.get(i).length;
+        }
+        for (byte[] key : firstKeys) {
+            index.putInt(key.length);
+            index.put(key);
+        }
+        write(index.flip());
+
+        long[] bloom = BloomFilter.create(entriesCount);
+        for (int i = 0; i < entriesCount; i++) {
+            BloomFilter.addHash(bloom, keyHashes[i]);
+        }
+        long bloomOffset = position;
+        ByteBuffer bloomBuffer = ByteBuffer.allocate(bloom.length * Long.BYTES).order(ByteOrder.nativeOrder());
+        bloomBuffer.asLongBuffer().put(bloom);
+        write(bloomBuffer);
+
+        ByteBuffer header = ByteBuffer.allocate(BlockSSTable.HEADER_SIZE).order(ByteOrder.nativeOrder());
+        header.putLong(BlockSSTable.VERSION);
+        header.putLong(entriesCount);
+        header.putLong(hasTombstones ? 1 : 0);
+        header.putLong(bloomOffset);
+        header.putLong(bloom.length);
+        header.putLong(indexOffset);
+        header.putLong(blockCount);
+        header.putLong(0);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    private void finishBlock() throws IOException {
+        for (int i = 0; i < blockEntries; i++) {
+            block.putInt(recordOffsets[i]);
+        }
+        block.putInt(blockEntries);
+        block.flip();
+        int rawSize = block.remaining();
+
+        ByteBuffer stored = block;
+        byte codec = BlockSSTable.CODEC_RAW;
+        if (deflater != null) {
+            if (compressed == null || compressed.capacity() < rawSize) {
+                compressed = ByteBuffer.allocate(block.capacity());
+            }
+            compressed.clear().limit(rawSize);
+            deflater.reset();
+            deflater.setInput(block.duplicate());
+            deflater.finish();
+            deflater.deflate(compressed);
+            // Blocks that don't shrink are kept raw, so they can be read straight from the mapped file
+            if (deflater.finished() && compressed.position() < rawSize) {
+                stored = compressed.flip();
+                codec = BlockSSTable.CODEC_DEFLATE;
+            }
+        }
+
+        crc.reset();
+        crc.update(stored.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(BlockSSTable.BLOCK_HEADER_SIZE).order(ByteOrder.nativeOrder());
+        header.putInt(stored.remaining());
+        header.putInt(rawSize);
+        header.putInt((int) crc.getValue());
+        header.put(codec);
+
+        int blockIndex = firstKeys.size() - 1;
+        if (blockIndex == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockOffsets.length * 2);
+        }
+        blockOffsets[blockIndex] = position;
+        write(header.flip());
+        write(stored);
+
+        block.clear();
+        blockEntries = 0;
+    }
+
+    private void ensureBlockCapacity(int bytes) {
+        if (block.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(block.position() + bytes).order(ByteOrder.nativeOrder());
+            bigger.put(block.flip());
+            block = bigger;
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Bloom filter over SSTable keys. It is built on the heap while a table is written and
+ * queried in place from the mapped file afterwards.
+ */
+final class BloomFilter {
+    static final int HASH_FUNCTIONS = 7;
+    private static final int BITS_PER_KEY = 10;
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+
+    private BloomFilter() {
+    }
+
+    static long[] create(long keysCount) {
+        long bits = Math.max(Long.SIZE, keysCount * BITS_PER_KEY);
+        return new long[(int) ((bits + Long.SIZE - 1) / Long.SIZE)];
+    }
+
+    static void add(long[] words, MemorySegment key) {
+        addHash(words, hash(key));
+    }
+
+    /**
+     * Adds a key by its {@link #hash}, for writers that collect hashes before the keys count is known.
+     */
+    static void addHash(long[] words, long hash) {
+        long bitsCount = (long) words.length * Long.SIZE;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bitsCount);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks the filter stored at {@code offset} of {@code sstable} as {@code wordsCount} longs.
+     */
+    static boolean mightContain(MemorySegment sstable, long offset, long wordsCount, MemorySegment key) {
+        long bitsCount = wordsCount * Long.SIZE;
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bitsCount);
+            long word = MemoryAccess.getLongAtOffset(sstable, offset + (bit >>> 6) * Long.BYTES);
+            if ((word & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long hash(MemorySegment key) {
+        long size = key.byteSize();
+        long hash = SEED ^ size;
+        long offset = 0;
+        for (; offset + Long.BYTES <= size; offset += Long.BYTES) {
+            hash = mix(hash ^ MemoryAccess.getLongAtOffset(key, offset));
+        }
+        long tail = 0;
+        for (; offset < size; offset++) {
+            tail = (tail << 8) | (MemoryAccess.getByteAtOffset(key, offset) & 0xFF);
+        }
+        return mix(hash ^ tail);
+    }
+
+    private static long mix(long value) {
+        long h = value * MULTIPLIER;
+        h ^= h >>> 29;
+        h *= SEED;
+        return h ^ (h >>> 32);
+    }
+}
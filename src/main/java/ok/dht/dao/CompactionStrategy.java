@@ -0,0 +1,28 @@
+package ok.dht.dao;
+
+/**
+ * Decides which SSTables the background compaction merges next.
+ * <p>
+ * Tables are ordered oldest first and a newer table shadows older ones, so only a contiguous run
+ * can be merged without changing what reads return.
+ */
+public interface CompactionStrategy {
+
+    /**
+     * Returns the run to merge, or {@code null} if no compaction is needed.
+     *
+     * @param tableSizes on-disk size of every table, oldest first
+     */
+    Range select(long[] tableSizes);
+
+    /**
+     * Tables {@code [from, to)}, at least two of them.
+     */
+    record Range(int from, int to) {
+        public Range {
+            if (from < 0 || to - from < 2) {
+                throw new IllegalArgumentException("Bad compaction range [" + from + ", " + to + ")");
+            }
+        }
+    }
+}
@@ -1,8 +1,192 @@
 package ok.dht.dao;
 
 import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * DAO settings.
+ *
+ * @param memoryBudgetBytes        total size of the active memtable and the ones waiting to be flushed;
+ *                                 upserts stall while it is exceeded until a flush frees memory
+ * @param walSyncIntervalMs        {@code 0} makes every upsert wait until its log record is synced
+ *                                 (concurrent upserts share one fsync); a positive value syncs the log
+ *                                 in the background at this interval instead
+ * @param walSyncBytes             in background mode, an upsert syncs the log itself once this many bytes
+ *                                 are unsynced, bounding what a crash can lose
+ * @param compactionStrategy       picks the tables merged in the background after each flush;
+ *                                 {@code null} leaves compaction to explicit {@code compact()} calls
+ * @param compactionBytesPerSecond caps the rate at which background compaction reads and writes entries;
+ *                                 {@code 0} means unlimited
+ * @param blockSizeBytes           uncompressed size of the data blocks of new SSTables; a lookup reads
+ *                                 one block
+ * @param compressBlocks           deflate data blocks that shrink when compressed
+ * @param blockCacheBytes          off-heap memory for decoded blocks of point lookups; {@code 0} disables
+ *                                 the cache
+ * @param offHeapMemtable          keep memtable entries in native memory instead of the heap
+ * @param tombstoneGraceMs         how long after its timestamp a tombstone is kept by compactions that could
+ *                                 drop it; it must outlast the time replicas take to converge, or a replica
+ *                                 that missed the delete resurrects the value
+ */
 public record Config(
         Path basePath,
-        long flushThresholdBytes) {
+        long flushThresholdBytes,
+        long memoryBudgetBytes,
+        long walSyncIntervalMs,
+        long walSyncBytes,
+        CompactionStrategy compactionStrategy,
+        long compactionBytesPerSecond,
+        int blockSizeBytes,
+        boolean compressBlocks,
+        long blockCacheBytes,
+        boolean offHeapMemtable,
+        long tombstoneGraceMs) {
+
+    private static final int DEFAULT_MEMTABLES_IN_BUDGET = 4;
+    private static final long DEFAULT_WAL_SYNC_BYTES = 1024 * 1024;
+    private static final long DEFAULT_COMPACTION_BYTES_PER_SECOND = 32 * 1024 * 1024;
+    private static final int DEFAULT_BLOCK_SIZE_BYTES = 4096;
+    private static final long DEFAULT_BLOCK_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_TOMBSTONE_GRACE_MS = TimeUnit.DAYS.toMillis(10);
+
+    public Config(Path basePath, long flushThresholdBytes) {
+        this(
+                basePath,
+                flushThresholdBytes,
+                flushThresholdBytes * DEFAULT_MEMTABLES_IN_BUDGET,
+                0,
+                DEFAULT_WAL_SYNC_BYTES,
+                new SizeTieredCompactionStrategy(),
+                DEFAULT_COMPACTION_BYTES_PER_SECOND,
+                DEFAULT_BLOCK_SIZE_BYTES,
+                true,
+                DEFAULT_BLOCK_CACHE_BYTES,
+                false,
+                DEFAULT_TOMBSTONE_GRACE_MS
+        );
+    }
+
+    public Config withMemoryBudget(long memoryBudgetBytes) {
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                memoryBudgetBytes,
+                walSyncIntervalMs,
+                walSyncBytes,
+                compactionStrategy,
+                compactionBytesPerSecond,
+                blockSizeBytes,
+                compressBlocks,
+                blockCacheBytes,
+                offHeapMemtable,
+                tombstoneGraceMs
+        );
+    }
+
+    public Config withWalSync(long walSyncIntervalMs, long walSyncBytes) {
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                memoryBudgetBytes,
+                walSyncIntervalMs,
+                walSyncBytes,
+                compactionStrategy,
+                compactionBytesPerSecond,
+                blockSizeBytes,
+                compressBlocks,
+                blockCacheBytes,
+                offHeapMemtable,
+                tombstoneGraceMs
+        );
+    }
+
+    public Config withCompaction(CompactionStrategy compactionStrategy, long compactionBytesPerSecond) {
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                memoryBudgetBytes,
+                walSyncIntervalMs,
+                walSyncBytes,
+                compactionStrategy,
+                compactionBytesPerSecond,
+                blockSizeBytes,
+                compressBlocks,
+                blockCacheBytes,
+                offHeapMemtable,
+                tombstoneGraceMs
+        );
+    }
+
+    public Config withBlocks(int blockSizeBytes, boolean compressBlocks) {
+        if (blockSizeBytes <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSizeBytes);
+        }
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                memoryBudgetBytes,
+                walSyncIntervalMs,
+                walSyncBytes,
+                compactionStrategy,
+                compactionBytesPerSecond,
+                blockSizeBytes,
+                compressBlocks,
+                blockCacheBytes,
+                offHeapMemtable,
+                tombstoneGraceMs
+        );
+    }
+
+    public Config withBlockCache(long blockCacheBytes) {
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                memoryBudgetBytes,
+                walSyncIntervalMs,
+                walSyncBytes,
+                compactionStrategy,
+                compactionBytesPerSecond,
+                blockSizeBytes,
+                compressBlocks,
+                blockCacheBytes,
+                offHeapMemtable,
+                tombstoneGraceMs
+        );
+    }
+
+    public Config withOffHeapMemtable(boolean offHeapMemtable) {
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                memoryBudgetBytes,
+                walSyncIntervalMs,
+                walSyncBytes,
+                compactionStrategy,
+                compactionBytesPerSecond,
+                blockSizeBytes,
+                compressBlocks,
+                blockCacheBytes,
+                offHeapMemtable,
+                tombstoneGraceMs
+        );
+    }
+
+    public Config withTombstoneGrace(long tombstoneGraceMs) {
+        if (tombstoneGraceMs < 0) {
+            throw new IllegalArgumentException("Tombstone grace must not be negative: " + tombstoneGraceMs);
+        }
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                memoryBudgetBytes,
+                walSyncIntervalMs,
+                walSyncBytes,
+                compactionStrategy,
+                compactionBytesPerSecond,
+                blockSizeBytes,
+                compressBlocks,
+                blockCacheBytes,
+                offHeapMemtable,
+                tombstoneGraceMs
+        );
+    }
 }
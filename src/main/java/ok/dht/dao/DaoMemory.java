@@ -4,42 +4,47 @@ import jdk.incubator.foreign.MemorySegment;
 
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
-public class DaoMemory {
-    static final DaoMemory EMPTY = new DaoMemory(-1);
+/**
+ * A memtable: sorted entries together with the size accounting that decides when it gets flushed.
+ */
+public abstract class DaoMemory {
+    static final DaoMemory EMPTY = new SkipListMemory(-1, null);
     private final AtomicLong size = new AtomicLong();
     private final AtomicBoolean oversized = new AtomicBoolean();
 
-    private final ConcurrentSkipListMap<MemorySegment, Entry<MemorySegment>> delegate =
-            new ConcurrentSkipListMap<>(MemorySegmentComparator.INSTANCE);
-
     private final long sizeThreshold;
+    private final WriteAheadLog wal;
 
-    DaoMemory(long sizeThreshold) {
+    DaoMemory(long sizeThreshold, WriteAheadLog wal) {
         this.sizeThreshold = sizeThreshold;
+        this.wal = wal;
+    }
+
+    static DaoMemory create(Config config, WriteAheadLog wal) {
+        return config.offHeapMemtable()
+                ? new ArenaMemory(config.flushThresholdBytes(), wal)
+                : new SkipListMemory(config.flushThresholdBytes(), wal);
     }
 
-    public boolean isEmpty() {
-        return delegate.isEmpty();
+    /**
+     * Log of the upserts applied to this memtable, {@code null} for {@link #EMPTY}.
+     */
+    WriteAheadLog wal() {
+        return wal;
     }
 
-    public Collection<Entry<MemorySegment>> values() {
-        return delegate.values();
+    long byteSize() {
+        return size.get();
     }
 
     public boolean put(MemorySegment key, Entry<MemorySegment> entry) {
         if (sizeThreshold == -1) {
             throw new UnsupportedOperationException("Read-only map");
         }
-        Entry<MemorySegment> segmentEntry = delegate.put(key, entry);
-        long sizeDelta = Storage.getSizeOnDisk(entry);
-        if (segmentEntry != null) {
-            sizeDelta -= Storage.getSizeOnDisk(segmentEntry);
-        }
-        long newSize = size.addAndGet(sizeDelta);
+        long newSize = size.addAndGet(insert(key, entry));
         if (newSize > sizeThreshold) {
             return !oversized.getAndSet(true);
         }
@@ -50,13 +55,16 @@ public class DaoMemory {
         return !oversized.getAndSet(true);
     }
 
-    public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
-        return to == null
-                ? delegate.tailMap(from).values().iterator()
-                : delegate.subMap(from, to).values().iterator();
-    }
+    /**
+     * Stores the entry, replacing the one with the same key, and returns how much the memtable grew.
+     */
+    abstract long insert(MemorySegment key, Entry<MemorySegment> entry);
 
-    public Entry<MemorySegment> get(MemorySegment key) {
-        return delegate.get(key);
-    }
+    public abstract boolean isEmpty();
+
+    public abstract Collection<Entry<MemorySegment>> values();
+
+    public abstract Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to);
+
+    public abstract Entry<MemorySegment> get(MemorySegment key);
 }
@@ -1,13 +1,17 @@
 package ok.dht.dao;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class DaoState {
     final Config config;
     final DaoMemory memory;
-    final DaoMemory flushing;
+    // Immutable memtables waiting to be written, oldest first
+    final List<DaoMemory> flushing;
     final Storage storage;
     final boolean closed;
 
-    DaoState(Config config, DaoMemory memory, DaoMemory flushing, Storage storage) {
+    DaoState(Config config, DaoMemory memory, List<DaoMemory> flushing, Storage storage) {
         this.config = config;
         this.memory = memory;
         this.flushing = flushing;
@@ -18,29 +22,29 @@ public class DaoState {
     DaoState(Config config, Storage storage, boolean closed) {
         this.config = config;
         this.memory = DaoMemory.EMPTY;
-        this.flushing = DaoMemory.EMPTY;
+        this.flushing = List.of();
         this.storage = storage;
         this.closed = closed;
     }
 
-    static DaoState newState(Config config, Storage storage) {
+    static DaoState newState(Config config, Storage storage, DaoMemory memory) {
         return new DaoState(
                 config,
-                new DaoMemory(config.flushThresholdBytes()),
-                DaoMemory.EMPTY,
+                memory,
+                List.of(),
                 storage
         );
     }
 
-    public DaoState prepareForFlush() {
+    public DaoState prepareForFlush(DaoMemory newMemory) {
         checkNotClosed();
-        if (isFlushing()) {
-            throw new IllegalStateException("Already flushing");
-        }
+        List<DaoMemory> newFlushing = new ArrayList<>(flushing.size() + 1);
+        newFlushing.addAll(flushing);
+        newFlushing.add(memory);
         return new DaoState(
                 config,
-                new DaoMemory(config.flushThresholdBytes()),
-                memory,
+                newMemory,
+                List.copyOf(newFlushing),
                 storage
         );
     }
@@ -55,15 +59,15 @@ public class DaoState {
         );
     }
 
-    public DaoState afterFlush(Storage storage) {
+    public DaoState afterFlush(DaoMemory flushed, Storage storage) {
         checkNotClosed();
-        if (!isFlushing()) {
-            throw new IllegalStateException("Wasn't flushing");
+        if (flushing.isEmpty() || flushing.get(0) != flushed) {
+            throw new IllegalStateException("Memtables must be flushed oldest first");
         }
         return new DaoState(
                 config,
                 memory,
-                DaoMemory.EMPTY,
+                flushing.subList(1, flushing.size()),
                 storage
         );
     }
@@ -83,6 +87,17 @@ public class DaoState {
     }
 
     public boolean isFlushing() {
-        return this.flushing != DaoMemory.EMPTY;
+        return !flushing.isEmpty();
+    }
+
+    /**
+     * Size of the active memtable together with the ones waiting to be flushed.
+     */
+    long memoryBytes() {
+        long bytes = memory.byteSize();
+        for (DaoMemory memtable : flushing) {
+            bytes += memtable.byteSize();
+        }
+        return bytes;
     }
 }
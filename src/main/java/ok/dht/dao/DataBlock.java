@@ -0,0 +1,80 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * One decoded SSTable data block.
+ * <p>
+ * Layout: records, then the {@code int} offset of every record, then the record count as an {@code int}.
+ * Record: {@code keySize:int, key, timestamp:long, valueSize:int, value}, {@code valueSize == -1} marks
+ * a tombstone.
+ */
+final class DataBlock {
+    private final MemorySegment data;
+    private final int count;
+    private final long offsetsStart;
+
+    private DataBlock(MemorySegment data, int count, long offsetsStart) {
+        this.data = data;
+        this.count = count;
+        this.offsetsStart = offsetsStart;
+    }
+
+    static DataBlock of(MemorySegment data) {
+        long countOffset = data.byteSize() - Integer.BYTES;
+        int count = MemoryAccess.getIntAtOffset(data, countOffset);
+        return new DataBlock(data, count, countOffset - (long) count * Integer.BYTES);
+    }
+
+    int count() {
+        return count;
+    }
+
+    long byteSize() {
+        return data.byteSize();
+    }
+
+    MemorySegment keyAt(int index) {
+        long offset = recordOffset(index);
+        int keySize = MemoryAccess.getIntAtOffset(data, offset);
+        return data.asSlice(offset + Integer.BYTES, keySize);
+    }
+
+    Entry<MemorySegment> entryAt(int index) {
+        long offset = recordOffset(index);
+        int keySize = MemoryAccess.getIntAtOffset(data, offset);
+        long timestampOffset = offset + Integer.BYTES + keySize;
+        long valueOffset = timestampOffset + Long.BYTES;
+        int valueSize = MemoryAccess.getIntAtOffset(data, valueOffset);
+        return new BaseEntry<>(
+                data.asSlice(offset + Integer.BYTES, keySize),
+                valueSize == -1 ? null : data.asSlice(valueOffset + Integer.BYTES, valueSize),
+                data.asSlice(timestampOffset, Long.BYTES)
+        );
+    }
+
+    /**
+     * Returns the index of {@code key}, or {@code ~insertionPoint} if it is absent.
+     */
+    int find(MemorySegment key) {
+        int left = 0;
+        int right = count - 1;
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            int compared = MemorySegmentComparator.INSTANCE.compare(key, keyAt(mid));
+            if (compared > 0) {
+                left = mid + 1;
+            } else if (compared < 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return ~left;
+    }
+
+    private long recordOffset(int index) {
+        return MemoryAccess.getIntAtOffset(data, offsetsStart + (long) index * Integer.BYTES);
+    }
+}
@@ -0,0 +1,26 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.ByteOrder;
+import java.util.Comparator;
+
+/**
+ * Orders entries by their write timestamps, stored as big-endian milliseconds.
+ */
+public final class EntryTimestampComparator implements Comparator<Entry<MemorySegment>> {
+    public static final Comparator<Entry<MemorySegment>> INSTANCE = new EntryTimestampComparator();
+
+    private EntryTimestampComparator() {
+    }
+
+    @Override
+    public int compare(Entry<MemorySegment> o1, Entry<MemorySegment> o2) {
+        return Long.compare(timestamp(o1), timestamp(o2));
+    }
+
+    static long timestamp(Entry<MemorySegment> entry) {
+        return MemoryAccess.getLongAtOffset(entry.timestamp(), 0, ByteOrder.BIG_ENDIAN);
+    }
+}
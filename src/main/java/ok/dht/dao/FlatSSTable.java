@@ -0,0 +1,136 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static ok.dht.dao.StorageUtils.INDEX_RECORD_SIZE;
+
+/**
+ * Read access to an SSTable written before the block format: every entry is found through a dense index.
+ * <p>
+ * Version 0: {@code version, count, hasTombstones}, dense index, records.
+ * Version 1: {@code version, count, hasTombstones, bloomOffset, bloomWords}, dense index, records,
+ * bloom filter words.
+ */
+final class FlatSSTable implements SSTable {
+    private final MemorySegment segment;
+    private final long recordsCount;
+    private final long indexOffset;
+    private final long bloomOffset;
+    private final long bloomWords;
+
+    private FlatSSTable(MemorySegment segment, long recordsCount, long indexOffset, long bloomOffset, long bloomWords) {
+        this.segment = segment;
+        this.recordsCount = recordsCount;
+        this.indexOffset = indexOffset;
+        this.bloomOffset = bloomOffset;
+        this.bloomWords = bloomWords;
+    }
+
+    static FlatSSTable v0(MemorySegment segment) {
+        long recordsCount = MemoryAccess.getLongAtOffset(segment, 8);
+        return new FlatSSTable(segment, recordsCount, StorageUtils.V0_HEADER_SIZE, -1, 0);
+    }
+
+    static FlatSSTable v1(MemorySegment segment) {
+        return new FlatSSTable(
+                segment,
+                MemoryAccess.getLongAtOffset(segment, 8),
+                StorageUtils.V1_HEADER_SIZE,
+                MemoryAccess.getLongAtOffset(segment, 24),
+                MemoryAccess.getLongAtOffset(segment, 32)
+        );
+    }
+
+    @Override
+    public boolean hasTombstones() {
+        return MemoryAccess.getLongAtOffset(segment, 16) == 1;
+    }
+
+    @Override
+    public long byteSize() {
+        return segment.byteSize();
+    }
+
+    @Override
+    public boolean mightContain(MemorySegment key) {
+        return bloomOffset < 0 || BloomFilter.mightContain(segment, bloomOffset, bloomWords, key);
+    }
+
+    @Override
+    public Entry<MemorySegment> get(MemorySegment key) {
+        long index = entryIndex(key);
+        return index >= 0 ? entryAt(index) : null;
+    }
+
+    @Override
+    public Iterator<Entry<MemorySegment>> iterator(MemorySegment keyFrom, MemorySegment keyTo) {
+        long keyFromPos = greaterOrEqualEntryIndex(keyFrom);
+        long keyToPos = greaterOrEqualEntryIndex(keyTo);
+
+        return new Iterator<>() {
+            long pos = keyFromPos;
+
+            @Override
+            public boolean hasNext() {
+                return pos < keyToPos;
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return entryAt(pos++);
+            }
+        };
+    }
+
+    private long greaterOrEqualEntryIndex(MemorySegment key) {
+        long index = entryIndex(key);
+        return index < 0 ? ~index : index;
+    }
+
+    private long entryIndex(MemorySegment key) {
+        if (key == null) {
+            return recordsCount;
+        }
+
+        long left = 0;
+        long right = recordsCount - 1;
+
+        while (left <= right) {
+            long mid = (left + right) >>> 1;
+            long keyPos = MemoryAccess.getLongAtOffset(segment, indexOffset + mid * INDEX_RECORD_SIZE);
+            long keySize = MemoryAccess.getLongAtOffset(segment, keyPos);
+
+            MemorySegment keyForCheck = segment.asSlice(keyPos + Long.BYTES, keySize);
+            int comparedResult = MemorySegmentComparator.INSTANCE.compare(key, keyForCheck);
+            if (comparedResult > 0) {
+                left = mid + 1;
+            } else if (comparedResult < 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return ~left;
+    }
+
+    private Entry<MemorySegment> entryAt(long keyIndex) {
+        long offset = MemoryAccess.getLongAtOffset(segment, indexOffset + keyIndex * INDEX_RECORD_SIZE);
+        long keySize = MemoryAccess.getLongAtOffset(segment, offset);
+        long timestampOffset = offset + Long.BYTES + keySize;
+        long valueOffset = timestampOffset + Long.BYTES;
+        long valueSize = MemoryAccess.getLongAtOffset(segment, valueOffset);
+        return new BaseEntry<>(
+                segment.asSlice(offset + Long.BYTES, keySize),
+                valueSize == -1 ? null : segment.asSlice(valueOffset + Long.BYTES, valueSize),
+                segment.asSlice(timestampOffset, Long.BYTES)
+        );
+    }
+}
@@ -0,0 +1,22 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Sees every entry the DAO persists into a new SSTable from a memtable or a write-ahead log: background
+ * flushes, the final flush on close and the logs replayed on open. Compactions only rewrite entries that
+ * were already reported, so they are not.
+ * <p>
+ * The listener runs on the thread writing the table, after it is published and before the write-ahead log
+ * it came from is deleted: entries lost to a crash in between are reported again on the next open.
+ */
+@FunctionalInterface
+public interface FlushListener {
+    /**
+     * Receives the entries of the new table in key order, tombstones included.
+     */
+    void flushed(Iterator<Entry<MemorySegment>> entries) throws IOException;
+}
@@ -0,0 +1,27 @@
+package ok.dht.dao;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a single background writer to {@code bytesPerSecond}, allowing bursts of up to a second.
+ */
+public class IoRateLimiter {
+    private static final long MAX_BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double nanosPerByte;
+    private long nextFreeNanos = System.nanoTime();
+
+    public IoRateLimiter(long bytesPerSecond) {
+        this.nanosPerByte = (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+    }
+
+    public void acquire(long bytes) {
+        long now = System.nanoTime();
+        nextFreeNanos = Math.max(nextFreeNanos, now - MAX_BURST_NANOS) + (long) (bytes * nanosPerByte);
+        long waitNanos = nextFreeNanos - now;
+        if (waitNanos > 0) {
+            LockSupport.parkNanos(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ok.dht.dao;
+
+/**
+ * Keeps table sizes growing geometrically from newest to oldest: as soon as the newer tables add
+ * up to more than {@code 1 / sizeRatio} of the next older one, they are merged into it.
+ * <p>
+ * This is leveling in the LSM sense, one sorted run per level: reads touch about
+ * {@code log(total / flushSize) / log(sizeRatio)} tables, and each entry is rewritten up to
+ * {@code sizeRatio} times per level.
+ */
+public class LeveledCompactionStrategy implements CompactionStrategy {
+    private final int sizeRatio;
+
+    public LeveledCompactionStrategy() {
+        this(10);
+    }
+
+    public LeveledCompactionStrategy(int sizeRatio) {
+        if (sizeRatio < 2) {
+            throw new IllegalArgumentException("Bad size ratio: " + sizeRatio);
+        }
+        this.sizeRatio = sizeRatio;
+    }
+
+    @Override
+    public Range select(long[] tableSizes) {
+        int to = tableSizes.length;
+        int from = to - 1;
+        if (from < 0) {
+            return null;
+        }
+        long newerSize = tableSizes[from];
+        while (from > 0 && tableSizes[from - 1] < newerSize * sizeRatio) {
+            from--;
+            newerSize += tableSizes[from];
+        }
+        return to - from >= 2 ? new Range(from, to) : null;
+    }
+}
@@ -0,0 +1,47 @@
+package ok.dht.dao;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * The list of live SSTable files, oldest first, one name per line.
+ * <p>
+ * It is the only source of truth for which tables are live: a table file only becomes visible once
+ * it is listed here, and a file that isn't listed is garbage left by an interrupted flush or compaction.
+ * Every change rewrites the whole file and atomically renames it into place.
+ */
+final class Manifest {
+    static final String FILE_NAME = "MANIFEST";
+
+    private Manifest() {
+    }
+
+    /**
+     * Returns the live tables, or {@code null} if the directory predates manifests.
+     */
+    static List<String> read(Path basePath) throws IOException {
+        Path manifest = basePath.resolve(FILE_NAME);
+        if (!Files.exists(manifest)) {
+            return null;
+        }
+        return Files.readAllLines(manifest, StandardCharsets.UTF_8).stream()
+                .filter(line -> !line.isEmpty())
+                .toList();
+    }
+
+    static void write(Path basePath, List<String> tables) throws IOException {
+        Path manifest = basePath.resolve(FILE_NAME);
+        Path tmp = basePath.resolve(FILE_NAME + StorageUtils.FILE_EXT_TMP);
+        Files.write(tmp, tables, StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
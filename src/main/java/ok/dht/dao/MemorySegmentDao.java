@@ -5,17 +5,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>> {
     private static final Logger LOG = LoggerFactory.getLogger(MemorySegmentDao.class);
@@ -25,35 +34,108 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
 
     private final ExecutorService executor = Executors.newSingleThreadExecutor(
             r -> new Thread(r, "MemorySegmentDaoBG"));
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "MemorySegmentDaoCompaction"));
+    private final ScheduledExecutorService walSyncExecutor;
+    private final AtomicLong walGeneration = new AtomicLong();
+
+    // Serializes manifest updates of flushes and compactions together with the storage reload
+    private final Object storageLock = new Object();
+    private final AtomicLong tableIds;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final IoRateLimiter compactionRateLimiter;
+    private final BlockCache blockCache;
+    private volatile boolean closing;
+
+    // Notified after every flush, wakes up upserts stalled on the memory budget
+    private final Object flushMonitor = new Object();
+    private volatile boolean flushFailed;
+
+    private final List<Consumer<MemorySegment>> upsertListeners = new CopyOnWriteArrayList<>();
 
     private volatile DaoState state;
 
     private final Config config;
+    private final FlushListener flushListener;
 
     public MemorySegmentDao(Config config) throws IOException {
+        this(config, null);
+    }
+
+    /**
+     * {@code flushListener} may be {@code null}. It is a constructor argument rather than a registered
+     * callback because the logs replayed while opening are flushed before the constructor returns.
+     */
+    public MemorySegmentDao(Config config, FlushListener flushListener) throws IOException {
         this.config = config;
-        this.state = DaoState.newState(config, Storage.load(config));
+        this.flushListener = flushListener;
+        this.blockCache = config.blockCacheBytes() > 0 ? new BlockCache(config.blockCacheBytes()) : null;
+        // The manifest and the first write-ahead log are written before anything else
+        Files.createDirectories(config.basePath());
+        Storage storage = Storage.loadAndReplayLogs(config, blockCache, flushListener);
+        this.tableIds = new AtomicLong(storage.nextTableId());
+        this.state = DaoState.newState(config, storage, newMemory());
+        this.compactionRateLimiter = config.compactionBytesPerSecond() > 0
+                ? new IoRateLimiter(config.compactionBytesPerSecond())
+                : null;
+
+        if (config.walSyncIntervalMs() > 0) {
+            walSyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "MemorySegmentDaoWalSync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            walSyncExecutor.scheduleWithFixedDelay(
+                    this::syncWal,
+                    config.walSyncIntervalMs(),
+                    config.walSyncIntervalMs(),
+                    TimeUnit.MILLISECONDS
+            );
+        } else {
+            walSyncExecutor = null;
+        }
+        scheduleCompaction();
+    }
+
+    private DaoMemory newMemory() throws IOException {
+        return DaoMemory.create(config, WriteAheadLog.create(config, walGeneration.getAndIncrement()));
+    }
+
+    private void syncWal() {
+        WriteAheadLog wal = this.state.memory.wal();
+        if (wal == null) {
+            return;
+        }
+        try {
+            wal.sync();
+        } catch (IOException e) {
+            LOG.error("Can't sync write-ahead log", e);
+        }
     }
 
     @Override
     public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
-        if (from == null) {
-            return getTombstoneFilteringIterator(VERY_FIRST_KEY, to);
-        }
-        return getTombstoneFilteringIterator(from, to);
+        return new TombstoneFilteringIterator(getWithTombstones(from, to));
     }
 
-    private TombstoneFilteringIterator getTombstoneFilteringIterator(MemorySegment from, MemorySegment to) {
+    /**
+     * Like {@link #get(MemorySegment, MemorySegment)}, but also returns the tombstones of deleted keys,
+     * for callers that merge this range with other replicas.
+     */
+    public Iterator<Entry<MemorySegment>> getWithTombstones(MemorySegment from, MemorySegment to) {
+        if (from == null) {
+            return getWithTombstones(VERY_FIRST_KEY, to);
+        }
         DaoState daoState = accessState();
 
         List<Iterator<Entry<MemorySegment>>> iterators = daoState.storage.iterate(from, to);
 
-        iterators.add(daoState.flushing.get(from, to));
+        for (DaoMemory flushing : daoState.flushing) {
+            iterators.add(flushing.get(from, to));
+        }
         iterators.add(daoState.memory.get(from, to));
 
-        Iterator<Entry<MemorySegment>> mergeIterator = MergeIterator.of(iterators, EntryKeyComparator.INSTANCE);
-
-        return new TombstoneFilteringIterator(mergeIterator);
+        return MergeIterator.of(iterators, EntryKeyComparator.INSTANCE);
     }
 
     @Override
@@ -61,6 +143,9 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         DaoState daoState = accessState();
 
         Entry<MemorySegment> result = daoState.memory.get(key);
+        for (int i = daoState.flushing.size() - 1; result == null && i >= 0; i--) {
+            result = daoState.flushing.get(i).get(key);
+        }
         if (result == null) {
             result = daoState.storage.get(key);
         }
@@ -70,54 +155,102 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
 
     @Override
     public void upsert(Entry<MemorySegment> entry) {
-        DaoState daoState = accessState();
+        awaitMemoryBudget();
+
         boolean runFlush;
+        WriteAheadLog wal;
+        long walPosition;
         upsertLock.readLock().lock();
         try {
+            DaoState daoState = accessState();
+            wal = daoState.memory.wal();
+            walPosition = wal.append(entry);
             runFlush = daoState.memory.put(entry.key(), entry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         } finally {
             upsertLock.readLock().unlock();
         }
+        for (Consumer<MemorySegment> listener : upsertListeners) {
+            listener.accept(entry.key());
+        }
 
-        if (runFlush) {
-            flushInBg(false);
+        try {
+            // Outside of the lock, so that waiting for fsync doesn't hold back a memtable switch
+            if (config.walSyncIntervalMs() > 0) {
+                wal.syncIfLagging();
+            } else {
+                wal.awaitDurable(walPosition);
+            }
+            if (runFlush) {
+                flushInBg();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stalls the caller while the memtables exceed the memory budget and a flush is on its way to free some.
+     */
+    private void awaitMemoryBudget() {
+        if (!isOverBudget(accessState())) {
+            return;
         }
+        synchronized (flushMonitor) {
+            while (isOverBudget(accessState())) {
+                if (flushFailed) {
+                    throw new IllegalStateException("Flush failed, can't accept writes");
+                }
+                try {
+                    flushMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private boolean isOverBudget(DaoState daoState) {
+        return daoState.isFlushing() && daoState.memoryBytes() > config.memoryBudgetBytes();
     }
 
-    private Future<?> flushInBg(boolean tolerateFlushInProgress) {
+    /**
+     * Queues the active memtable for flushing, unless it is empty. The returned future completes once it
+     * and every memtable queued before it are on disk.
+     */
+    private Future<?> flushInBg() throws IOException {
+        DaoMemory flushing;
         upsertLock.writeLock().lock();
         try {
             DaoState daoState = accessState();
-            if (daoState.isFlushing()) {
-                if (tolerateFlushInProgress) {
-                    return CompletableFuture.completedFuture(null);
-                }
-                throw new TooManyFlushesInBgException();
+            if (daoState.memory.isEmpty()) {
+                // The flush thread handles memtables in order, so this waits for the ones already queued
+                return executor.submit(() -> null);
             }
 
-            daoState = daoState.prepareForFlush();
-            this.state = daoState;
+            flushing = daoState.memory;
+            this.state = daoState.prepareForFlush(newMemory());
         } finally {
             upsertLock.writeLock().unlock();
         }
 
         return executor.submit(() -> {
             try {
-                DaoState daoState = accessState();
-
-                Storage storage = daoState.storage;
-                Storage.save(config, storage, daoState.flushing.values());
-                Storage load = Storage.load(config);
-
-                upsertLock.writeLock().lock();
-                try {
-                    this.state = daoState.afterFlush(load);
-                } finally {
-                    upsertLock.writeLock().unlock();
-                }
+                String tableName = Storage.write(
+                        config,
+                        tableIds.getAndIncrement(),
+                        flushing.values()::iterator
+                );
+                publish(List.of(), tableName, (daoState, storage) -> daoState.afterFlush(flushing, storage));
+                notifyFlushed(flushing);
+                flushing.wal().delete();
+                scheduleCompaction();
                 return null;
             } catch (Exception e) {
                 LOG.error("Can't flush", e);
+                flushFailed = true;
                 try {
                     this.state.storage.close();
                 } catch (IOException ex) {
@@ -126,6 +259,10 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
                     throw ex;
                 }
                 throw e;
+            } finally {
+                synchronized (flushMonitor) {
+                    flushMonitor.notifyAll();
+                }
             }
         });
     }
@@ -141,11 +278,15 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         }
 
         if (runFlush) {
-            Future<?> future = flushInBg(true);
+            Future<?> future = flushInBg();
             awaitAndUnwrap(future);
         }
     }
 
+    /**
+     * Merges all tables into one, dropping tombstones older than the grace period. Runs on the compaction thread,
+     * so it waits for a background compaction in progress.
+     */
     @Override
     public void compact() throws IOException {
         DaoState preCompactState = accessState();
@@ -154,36 +295,121 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             return;
         }
 
-        Future<Object> future = executor.submit(() -> {
-            DaoState daoState = accessState();
+        Future<Object> future = compactionExecutor.submit(() -> {
+            Storage storage = accessState().storage;
+            if (!storage.isCompacted()) {
+                compactTables(storage, 0, storage.tableCount(), false);
+            }
+            return null;
+        });
 
-            if (daoState.memory.isEmpty() && daoState.storage.isCompacted()) {
-                return null;
+        awaitAndUnwrap(future);
+    }
+
+    /**
+     * Registers a callback invoked with the key of every upsert once it is visible to reads.
+     */
+    public void addUpsertListener(Consumer<MemorySegment> listener) {
+        upsertListeners.add(listener);
+    }
+
+    /**
+     * Returns the block cache counters, or {@code null} if the cache is disabled.
+     */
+    public BlockCache.Stats blockCacheStats() {
+        return blockCache == null ? null : blockCache.stats();
+    }
+
+    private void scheduleCompaction() {
+        if (config.compactionStrategy() == null || !compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactionExecutor.execute(() -> {
+                compactionScheduled.set(false);
+                try {
+                    runCompactions();
+                } catch (CancellationException e) {
+                    LOG.info("Compaction interrupted by close");
+                } catch (Exception e) {
+                    LOG.error("Can't compact", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closing
+            compactionScheduled.set(false);
+        }
+    }
+
+    private void runCompactions() throws IOException {
+        while (!closing) {
+            Storage storage = accessState().storage;
+            CompactionStrategy.Range range = config.compactionStrategy().select(storage.tableSizes());
+            if (range == null) {
+                return;
             }
+            compactTables(storage, range.from(), range.to(), true);
+        }
+    }
 
-            Storage.compact(
-                    config,
-                    () -> MergeIterator.of(
-                            daoState.storage.iterate(VERY_FIRST_KEY,
-                                    null
-                            ),
-                            EntryKeyComparator.INSTANCE
-                    )
+    /**
+     * Merges tables {@code [from, to)} of {@code storage} into one in place of them.
+     * Flushes only ever append newer tables, so the run stays contiguous while it is merged.
+     */
+    private void compactTables(Storage storage, int from, int to, boolean throttle) throws IOException {
+        List<String> replaced = List.copyOf(storage.tableNames().subList(from, to));
+        // Nothing older can be shadowed by a tombstone in the oldest table, but a replica that missed
+        // the delete may still hold the value: keep tombstones until repair had the grace period to spread them
+        boolean dropTombstones = from == 0;
+        long keepTombstonesSince = System.currentTimeMillis() - config.tombstoneGraceMs();
+        Storage.Data data = () -> {
+            Iterator<Entry<MemorySegment>> iterator = MergeIterator.of(
+                    storage.iterate(from, to, VERY_FIRST_KEY, null),
+                    EntryKeyComparator.INSTANCE
             );
+            if (dropTombstones) {
+                iterator = new TombstoneFilteringIterator(iterator, keepTombstonesSince);
+            }
+            if (throttle && compactionRateLimiter != null) {
+                iterator = new ThrottledIterator(iterator, compactionRateLimiter, () -> closing);
+            }
+            return iterator;
+        };
+
+        String tableName = Storage.write(config, tableIds.getAndIncrement(), data);
+        publish(replaced, tableName, DaoState::afterCompact);
+        Storage.delete(config, replaced);
+        if (blockCache != null) {
+            blockCache.invalidate(replaced.stream().map(Storage::tableId).toList());
+        }
+        LOG.info("Compacted {} tables into {}", replaced.size(), tableName);
+    }
 
-            Storage storage = Storage.load(config);
+    private void publish(
+            List<String> replaced,
+            String tableName,
+            BiFunction<DaoState, Storage, DaoState> transition) throws IOException {
+        synchronized (storageLock) {
+            Storage.publish(config, replaced, tableName);
+            Storage load = Storage.load(config, blockCache);
 
             upsertLock.writeLock().lock();
             try {
-                this.state = daoState.afterCompact(storage);
+                this.state = transition.apply(this.state, load);
             } finally {
                 upsertLock.writeLock().unlock();
             }
+        }
+    }
 
-            return null;
-        });
-
-        awaitAndUnwrap(future);
+    /**
+     * Reports a memtable that was just written out. Its entries are read from memory: they are the same
+     * as in the new table, which a compaction could already be replacing.
+     */
+    private void notifyFlushed(DaoMemory flushed) throws IOException {
+        if (flushListener != null) {
+            flushListener.flushed(flushed.values().iterator());
+        }
     }
 
     private void awaitAndUnwrap(Future<?> future) throws IOException {
@@ -220,10 +446,16 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         if (daoState.closed) {
             return;
         }
+        closing = true;
         executor.shutdown();
+        compactionExecutor.shutdown();
+        if (walSyncExecutor != null) {
+            walSyncExecutor.shutdown();
+        }
         try {
             while (true) {
-                if (executor.awaitTermination(10, TimeUnit.DAYS)) {
+                if (executor.awaitTermination(10, TimeUnit.DAYS)
+                        && compactionExecutor.awaitTermination(10, TimeUnit.DAYS)) {
                     break;
                 }
             }
@@ -234,43 +466,40 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         daoState = this.state;
         daoState.storage.close();
         this.state = daoState.afterClosed();
-        if (daoState.memory.isEmpty()) {
-            return;
+        if (!daoState.memory.isEmpty()) {
+            Storage.save(config, daoState.storage, daoState.memory.values());
+            notifyFlushed(daoState.memory);
         }
-        Storage.save(config, daoState.storage, daoState.memory.values());
+        daoState.memory.wal().delete();
     }
 
-    private static class TombstoneFilteringIterator implements Iterator<Entry<MemorySegment>> {
+    private static class ThrottledIterator implements Iterator<Entry<MemorySegment>> {
         private final Iterator<Entry<MemorySegment>> iterator;
-        private Entry<MemorySegment> current;
+        private final IoRateLimiter rateLimiter;
+        private final BooleanSupplier cancelled;
 
-        public TombstoneFilteringIterator(Iterator<Entry<MemorySegment>> iterator) {
+        ThrottledIterator(
+                Iterator<Entry<MemorySegment>> iterator,
+                IoRateLimiter rateLimiter,
+                BooleanSupplier cancelled) {
             this.iterator = iterator;
+            this.rateLimiter = rateLimiter;
+            this.cancelled = cancelled;
         }
 
         @Override
         public boolean hasNext() {
-            if (current != null) {
-                return true;
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException();
             }
-            while (iterator.hasNext()) {
-                Entry<MemorySegment> entry = iterator.next();
-                if (!entry.isTombstone()) {
-                    this.current = entry;
-                    return true;
-                }
-            }
-            return false;
+            return iterator.hasNext();
         }
 
         @Override
         public Entry<MemorySegment> next() {
-            if (!hasNext()) {
-                throw new NoSuchElementException("...");
-            }
-            Entry<MemorySegment> next = current;
-            current = null;
-            return next;
+            Entry<MemorySegment> entry = iterator.next();
+            rateLimiter.acquire(StorageUtils.getSize(entry));
+            return entry;
         }
     }
 }
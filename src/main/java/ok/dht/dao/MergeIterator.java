@@ -17,6 +17,18 @@ public class MergeIterator<E> implements Iterator<E> {
     }
 
     public static <E> Iterator<E> of(List<Iterator<E>> iterators, Comparator<E> comparator) {
+        return of(iterators, comparator, (o1, o2) -> 0);
+    }
+
+    /**
+     * Merges iterators sorted by {@code comparator}. Of the elements equal by {@code comparator} only one is
+     * returned: the greatest by {@code preference}, then the one from the latest iterator.
+     */
+    public static <E> Iterator<E> of(
+            List<Iterator<E>> iterators,
+            Comparator<E> comparator,
+            Comparator<E> preference
+    ) {
         switch (iterators.size()) {
             case 0:
                 return Collections.emptyIterator();
@@ -30,6 +42,10 @@ public class MergeIterator<E> implements Iterator<E> {
             if (result != 0) {
                 return result;
             }
+            result = preference.compare(o2.peek(), o1.peek());
+            if (result != 0) {
+                return result;
+            }
             return Integer.compare(o2.index, o1.index);
         });
 
@@ -0,0 +1,95 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only off-heap memory carved out of native chunks by bumping a pointer.
+ * <p>
+ * Allocations are addressed by {@code long} pointers, {@code chunkIndex << 32 | offset}. Offsets start at 8,
+ * so {@code 0} is never a valid pointer. All allocations are 8-byte aligned and zeroed.
+ * The chunks share an implicit scope: they are freed by the GC once the arena and every segment sliced
+ * from it are unreachable, so readers can keep entries after the memtable is flushed.
+ * The chunk directory starts small and doubles when full, so an arena costs the heap a few references per chunk
+ * actually allocated rather than a slot for every chunk it could ever address.
+ */
+final class NativeArena {
+    static final long NULL = 0;
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_CHUNKS = 1 << 20;
+    private static final int INITIAL_CHUNKS = 16;
+    private static final int ALIGNMENT = Long.BYTES;
+
+    private final ResourceScope scope = ResourceScope.newImplicitScope();
+    // Replaced by a bigger copy when full; only written by newChunk
+    private volatile MemorySegment[] chunks = new MemorySegment[INITIAL_CHUNKS];
+    private volatile Chunk current;
+
+    NativeArena() {
+        this.current = newChunk(0, CHUNK_SIZE);
+    }
+
+    long allocate(long size) {
+        long alignedSize = alignedSize(size);
+        while (true) {
+            Chunk chunk = current;
+            long offset = chunk.top.getAndAdd(alignedSize);
+            if (offset + alignedSize <= chunk.segment.byteSize()) {
+                return ((long) chunk.index << 32) | offset;
+            }
+            synchronized (this) {
+                if (current == chunk) {
+                    current = newChunk(chunk.index + 1, Math.max(CHUNK_SIZE, alignedSize + ALIGNMENT));
+                }
+            }
+        }
+    }
+
+    MemorySegment chunk(long pointer) {
+        return chunks[(int) (pointer >>> 32)];
+    }
+
+    /**
+     * Returns how many arena bytes an allocation of {@code size} takes.
+     */
+    static long alignedSize(long size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    static long offset(long pointer) {
+        return pointer & 0xFFFF_FFFFL;
+    }
+
+    /**
+     * Called from the constructor or under the lock.
+     */
+    private Chunk newChunk(int index, long size) {
+        if (index >= MAX_CHUNKS || size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Arena is full");
+        }
+        MemorySegment segment = MemorySegment.allocateNative(size, ALIGNMENT, scope);
+        MemorySegment[] directory = chunks;
+        if (index == directory.length) {
+            directory = Arrays.copyOf(directory, Math.min(directory.length * 2, MAX_CHUNKS));
+        }
+        directory[index] = segment;
+        // The volatile write publishes the new slot to readers that got a pointer into the chunk
+        chunks = directory;
+        return new Chunk(index, segment);
+    }
+
+    private static final class Chunk {
+        final int index;
+        final MemorySegment segment;
+        final AtomicLong top = new AtomicLong(ALIGNMENT);
+
+        Chunk(int index, MemorySegment segment) {
+            this.index = index;
+            this.segment = segment;
+        }
+    }
+}
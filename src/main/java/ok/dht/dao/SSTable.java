@@ -0,0 +1,45 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.Iterator;
+
+/**
+ * Read access to one mapped SSTable file, whatever version it was written in.
+ */
+interface SSTable {
+
+    /**
+     * Wraps a mapped table; {@code cache} may be {@code null} and only serves block-based tables.
+     */
+    static SSTable of(MemorySegment segment, long tableId, BlockCache cache) {
+        long fileVersion = MemoryAccess.getLongAtOffset(segment, 0);
+        if (fileVersion == 0) {
+            return FlatSSTable.v0(segment);
+        }
+        if (fileVersion == 1) {
+            return FlatSSTable.v1(segment);
+        }
+        if (fileVersion == 2) {
+            return BlockSSTable.of(segment, tableId, cache);
+        }
+        throw new IllegalStateException("Unknown file version: " + fileVersion);
+    }
+
+    long byteSize();
+
+    boolean hasTombstones();
+
+    /**
+     * Returns {@code false} if the key is definitely absent from this table.
+     */
+    boolean mightContain(MemorySegment key);
+
+    Entry<MemorySegment> get(MemorySegment key);
+
+    /**
+     * Iterates over keys in {@code [keyFrom, keyTo)}, {@code keyTo == null} meaning up to the last key.
+     */
+    Iterator<Entry<MemorySegment>> iterator(MemorySegment keyFrom, MemorySegment keyTo);
+}
@@ -0,0 +1,53 @@
+package ok.dht.dao;
+
+/**
+ * Merges a run of tables of similar size once there are {@code minThreshold} of them.
+ * <p>
+ * Each table is written about {@code log(total / flushSize)} times, which keeps write amplification
+ * low at the cost of keeping several tables per size tier.
+ */
+public class SizeTieredCompactionStrategy implements CompactionStrategy {
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+
+    private final int minThreshold;
+    private final int maxThreshold;
+
+    public SizeTieredCompactionStrategy() {
+        this(4, 32);
+    }
+
+    public SizeTieredCompactionStrategy(int minThreshold, int maxThreshold) {
+        if (minThreshold < 2 || maxThreshold < minThreshold) {
+            throw new IllegalArgumentException("Bad thresholds: " + minThreshold + ", " + maxThreshold);
+        }
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+    }
+
+    @Override
+    public Range select(long[] tableSizes) {
+        // Newest tables are the smallest ones, so look at them first: merging them is cheapest
+        int to = tableSizes.length;
+        while (to > 0) {
+            int from = to - 1;
+            long bucketSize = tableSizes[from];
+            while (from > 0 && to - from < maxThreshold && isSimilar(tableSizes[from - 1], bucketSize, to - from)) {
+                from--;
+                bucketSize += tableSizes[from];
+            }
+            // Only the newest run grows with flushes, an older one is stranded between bigger tables
+            boolean stranded = to < tableSizes.length;
+            if (to - from >= minThreshold || stranded && to - from >= 2) {
+                return new Range(from, to);
+            }
+            to = from;
+        }
+        return null;
+    }
+
+    private static boolean isSimilar(long size, long bucketSize, int bucketCount) {
+        double average = (double) bucketSize / bucketCount;
+        return size >= average * BUCKET_LOW && size <= average * BUCKET_HIGH;
+    }
+}
@@ -0,0 +1,51 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Memtable of heap entries in a {@link ConcurrentSkipListMap}.
+ */
+final class SkipListMemory extends DaoMemory {
+    private final ConcurrentSkipListMap<MemorySegment, Entry<MemorySegment>> delegate =
+            new ConcurrentSkipListMap<>(MemorySegmentComparator.INSTANCE);
+
+    SkipListMemory(long sizeThreshold, WriteAheadLog wal) {
+        super(sizeThreshold, wal);
+    }
+
+    @Override
+    long insert(MemorySegment key, Entry<MemorySegment> entry) {
+        Entry<MemorySegment> segmentEntry = delegate.put(key, entry);
+        long sizeDelta = Storage.getSizeOnDisk(entry);
+        if (segmentEntry != null) {
+            sizeDelta -= Storage.getSizeOnDisk(segmentEntry);
+        }
+        return sizeDelta;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return delegate.isEmpty();
+    }
+
+    @Override
+    public Collection<Entry<MemorySegment>> values() {
+        return delegate.values();
+    }
+
+    @Override
+    public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
+        return to == null
+                ? delegate.tailMap(from).values().iterator()
+                : delegate.subMap(from, to).values().iterator();
+    }
+
+    @Override
+    public Entry<MemorySegment> get(MemorySegment key) {
+        return delegate.get(key);
+    }
+}
@@ -1,6 +1,5 @@
 package ok.dht.dao;
 
-import jdk.incubator.foreign.MemoryAccess;
 import jdk.incubator.foreign.MemorySegment;
 import jdk.incubator.foreign.ResourceScope;
 
@@ -13,11 +12,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
 
 import static ok.dht.dao.StorageUtils.FILE_EXT;
+import static ok.dht.dao.StorageUtils.FILE_EXT_TMP;
 import static ok.dht.dao.StorageUtils.FILE_NAME;
-import static ok.dht.dao.StorageUtils.INDEX_HEADER_SIZE;
 import static ok.dht.dao.StorageUtils.INDEX_RECORD_SIZE;
 
 class Storage implements Closeable {
@@ -25,115 +27,210 @@ class Storage implements Closeable {
     private static final Cleaner CLEANER = Cleaner.create(new CleanerThreadFactory());
 
     private final ResourceScope scope;
-    private final List<MemorySegment> ssTables;
+    private final List<String> tableNames;
+    private final List<SSTable> ssTables;
     private final boolean hasTombstones;
 
-    private Storage(ResourceScope scope, List<MemorySegment> ssTables, boolean hasTombstones) {
+    private Storage(ResourceScope scope, List<String> tableNames, List<SSTable> ssTables, boolean hasTombstones) {
         this.scope = scope;
+        this.tableNames = tableNames;
         this.ssTables = ssTables;
         this.hasTombstones = hasTombstones;
     }
 
-    static Storage load(Config config) throws IOException {
+    /**
+     * Maps the live tables; {@code cache} may be {@code null}.
+     */
+    static Storage load(Config config, BlockCache cache) throws IOException {
         Path basePath = config.basePath();
-        Path compactedFile = config.basePath().resolve(COMPACTED_FILE);
+        List<String> tableNames = Manifest.read(basePath);
+        if (tableNames == null) {
+            tableNames = migrateToManifest(config);
+        }
+
+        ArrayList<SSTable> sstables = new ArrayList<>(tableNames.size());
+        ResourceScope scope = ResourceScope.newSharedScope(CLEANER);
+        for (String tableName : tableNames) {
+            MemorySegment segment = StorageUtils.mapForRead(scope, basePath.resolve(tableName));
+            sstables.add(SSTable.of(segment, tableId(tableName), cache));
+        }
+
+        boolean hasTombstones = !sstables.isEmpty() && sstables.get(0).hasTombstones();
+        return new Storage(scope, tableNames, sstables, hasTombstones);
+    }
+
+    /**
+     * Lists the tables of a directory written before manifests existed: {@code data0.dat},
+     * {@code data1.dat}, ... oldest first, after finishing an interrupted full compaction.
+     */
+    private static List<String> migrateToManifest(Config config) throws IOException {
+        Path basePath = config.basePath();
+        Path compactedFile = basePath.resolve(COMPACTED_FILE);
         if (Files.exists(compactedFile)) {
             StorageUtils.finishCompact(config, compactedFile);
         }
 
-        ArrayList<MemorySegment> sstables = new ArrayList<>();
-        ResourceScope scope = ResourceScope.newSharedScope(CLEANER);
+        List<String> tableNames = new ArrayList<>();
+        for (int i = 0; Files.exists(basePath.resolve(tableName(i))); i++) {
+            tableNames.add(tableName(i));
+        }
+        Manifest.write(basePath, tableNames);
+        return tableNames;
+    }
+
+    /**
+     * Loads the storage and turns the write-ahead logs left by a previous run into an SSTable,
+     * reporting its entries to {@code flushListener} unless it is {@code null}.
+     */
+    static Storage loadAndReplayLogs(
+            Config config,
+            BlockCache cache,
+            FlushListener flushListener) throws IOException {
+        Storage storage = load(config, cache);
+        deleteUnlisted(config, storage.tableNames);
+        List<Path> logs = WriteAheadLog.existingLogs(config.basePath());
+        if (logs.isEmpty()) {
+            return storage;
+        }
 
-        Path nextFile = basePath.resolve(FILE_NAME + 0 + FILE_EXT);
-        for (int i = 1; Files.exists(nextFile); i++) {
-            sstables.add(StorageUtils.mapForRead(scope, nextFile));
-            nextFile = basePath.resolve(FILE_NAME + i + FILE_EXT);
+        NavigableMap<MemorySegment, Entry<MemorySegment>> replayed = new TreeMap<>(MemorySegmentComparator.INSTANCE);
+        for (Path log : logs) {
+            WriteAheadLog.replay(log, entry -> replayed.put(entry.key(), entry));
+        }
+        if (!replayed.isEmpty()) {
+            save(config, storage, replayed.values());
+            storage.close();
+            storage = load(config, cache);
+            if (flushListener != null) {
+                flushListener.flushed(replayed.values().iterator());
+            }
+        }
+        for (Path log : logs) {
+            Files.delete(log);
         }
+        return storage;
+    }
 
-        boolean hasTombstones = !sstables.isEmpty() && MemoryAccess.getLongAtOffset(sstables.get(0), 16) == 1;
-        return new Storage(scope, sstables, hasTombstones);
+    /**
+     * Removes table files that a crash left behind before they made it into the manifest.
+     */
+    private static void deleteUnlisted(Config config, List<String> tableNames) throws IOException {
+        List<Path> garbage = new ArrayList<>();
+        try (Stream<Path> files = Files.list(config.basePath())) {
+            files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(FILE_NAME) && !tableNames.contains(name)
+                        && (name.endsWith(FILE_EXT) || name.endsWith(FILE_EXT_TMP));
+            }).forEach(garbage::add);
+        }
+        for (Path file : garbage) {
+            Files.delete(file);
+        }
     }
 
+    /**
+     * Writes and publishes a new newest table. Only for use while nothing else modifies the storage.
+     */
     static void save(
             Config config,
             Storage previousState,
             Collection<Entry<MemorySegment>> entries) throws IOException {
-        int nextSSTableIndex = previousState.ssTables.size();
-        Path sstablePath = config.basePath().resolve(FILE_NAME + nextSSTableIndex + FILE_EXT);
-        StorageUtils.save(entries::iterator, sstablePath);
+        String tableName = write(config, previousState.nextTableId(), entries::iterator);
+        publish(config, List.of(), tableName);
     }
 
-    public static long getSizeOnDisk(Entry<MemorySegment> entry) {
-        return StorageUtils.getSize(entry) + INDEX_RECORD_SIZE;
+    /**
+     * Writes a table file that stays invisible until it is {@link #publish published}.
+     */
+    static String write(Config config, long tableId, Data data) throws IOException {
+        String tableName = tableName(tableId);
+        StorageUtils.save(
+                data,
+                config.basePath().resolve(tableName),
+                config.blockSizeBytes(),
+                config.compressBlocks()
+        );
+        return tableName;
+    }
+
+    /**
+     * Puts {@code tableName} in place of the contiguous run {@code replaced} in the manifest,
+     * or appends it as the newest table if {@code replaced} is empty.
+     * Callers must serialize publications.
+     */
+    static void publish(Config config, List<String> replaced, String tableName) throws IOException {
+        List<String> tableNames = new ArrayList<>(Manifest.read(config.basePath()));
+        if (replaced.isEmpty()) {
+            tableNames.add(tableName);
+        } else {
+            int from = tableNames.indexOf(replaced.get(0));
+            if (from < 0 || !tableNames.subList(from, from + replaced.size()).equals(replaced)) {
+                throw new IllegalStateException("Replaced tables " + replaced + " aren't a run of " + tableNames);
+            }
+            tableNames.subList(from, from + replaced.size()).clear();
+            tableNames.add(from, tableName);
+        }
+        Manifest.write(config.basePath(), tableNames);
     }
 
-    public static void compact(Config config, Data data) throws IOException {
-        Path compactedFile = config.basePath().resolve(COMPACTED_FILE);
-        StorageUtils.save(data, compactedFile);
-        StorageUtils.finishCompact(config, compactedFile);
+    static void delete(Config config, List<String> tableNames) throws IOException {
+        for (String tableName : tableNames) {
+            Files.deleteIfExists(config.basePath().resolve(tableName));
+        }
     }
 
-    private long greaterOrEqualEntryIndex(MemorySegment sstable, MemorySegment key) {
-        long index = entryIndex(sstable, key);
-        return index < 0 ? ~index : index;
+    private static String tableName(long tableId) {
+        return FILE_NAME + tableId + FILE_EXT;
     }
 
-    private long entryIndex(MemorySegment sstable, MemorySegment key) {
-        long fileVersion = MemoryAccess.getLongAtOffset(sstable, 0);
-        if (fileVersion != 0) {
-            throw new IllegalStateException("Unknown file version: " + fileVersion);
-        }
-        long recordsCount = MemoryAccess.getLongAtOffset(sstable, 8);
-        if (key == null) {
-            return recordsCount;
-        }
+    static long tableId(String tableName) {
+        return Long.parseLong(tableName.substring(FILE_NAME.length(), tableName.length() - FILE_EXT.length()));
+    }
 
-        long left = 0;
-        long right = recordsCount - 1;
+    public static long getSizeOnDisk(Entry<MemorySegment> entry) {
+        return StorageUtils.getSize(entry) + INDEX_RECORD_SIZE;
+    }
 
-        while (left <= right) {
-            long mid = (left + right) >>> 1;
-            long keyPos = MemoryAccess.getLongAtOffset(sstable, INDEX_HEADER_SIZE + mid * INDEX_RECORD_SIZE);
-            long keySize = MemoryAccess.getLongAtOffset(sstable, keyPos);
+    int tableCount() {
+        return ssTables.size();
+    }
 
-            MemorySegment keyForCheck = sstable.asSlice(keyPos + Long.BYTES, keySize);
-            int comparedResult = MemorySegmentComparator.INSTANCE.compare(key, keyForCheck);
-            if (comparedResult > 0) {
-                left = mid + 1;
-            } else if (comparedResult < 0) {
-                right = mid - 1;
-            } else {
-                return mid;
-            }
-        }
+    /**
+     * Returns the live table names, oldest first.
+     */
+    List<String> tableNames() {
+        return tableNames;
+    }
 
-        return ~left;
+    long[] tableSizes() {
+        long[] sizes = new long[ssTables.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = ssTables.get(i).byteSize();
+        }
+        return sizes;
     }
 
-    private Entry<MemorySegment> entryAt(MemorySegment sstable, long keyIndex) {
-        try {
-            long offset = MemoryAccess.getLongAtOffset(sstable, INDEX_HEADER_SIZE + keyIndex * INDEX_RECORD_SIZE);
-            long keySize = MemoryAccess.getLongAtOffset(sstable, offset);
-            long timestampOffset = offset + Long.BYTES + keySize;
-            long valueOffset = timestampOffset + Long.BYTES;
-            long valueSize = MemoryAccess.getLongAtOffset(sstable, valueOffset);
-            return new BaseEntry<>(
-                    sstable.asSlice(offset + Long.BYTES, keySize),
-                    valueSize == -1 ? null : sstable.asSlice(valueOffset + Long.BYTES, valueSize),
-                    sstable.asSlice(timestampOffset, Long.BYTES)
-            );
-        } catch (IllegalStateException e) {
-            throw checkForClose(e);
+    /**
+     * Returns an id greater than that of every live table.
+     */
+    long nextTableId() {
+        long maxId = -1;
+        for (String tableName : tableNames) {
+            maxId = Math.max(maxId, tableId(tableName));
         }
+        return maxId + 1;
     }
 
     public Entry<MemorySegment> get(MemorySegment key) {
         try {
             for (int i = ssTables.size() - 1; i >= 0; i--) {
-                MemorySegment sstable = ssTables.get(i);
-                long keyFromPos = entryIndex(sstable, key);
-                if (keyFromPos >= 0) {
-                    return entryAt(sstable, keyFromPos);
+                SSTable sstable = ssTables.get(i);
+                if (!sstable.mightContain(key)) {
+                    continue;
+                }
+                Entry<MemorySegment> entry = sstable.get(key);
+                if (entry != null) {
+                    return entry;
                 }
             }
             return null;
@@ -142,31 +239,45 @@ class Storage implements Closeable {
         }
     }
 
-    private Iterator<Entry<MemorySegment>> iterate(MemorySegment sstable, MemorySegment keyFrom, MemorySegment keyTo) {
-        long keyFromPos = greaterOrEqualEntryIndex(sstable, keyFrom);
-        long keyToPos = greaterOrEqualEntryIndex(sstable, keyTo);
+    private Iterator<Entry<MemorySegment>> iterate(SSTable sstable, MemorySegment keyFrom, MemorySegment keyTo) {
+        Iterator<Entry<MemorySegment>> iterator = sstable.iterator(keyFrom, keyTo);
 
         return new Iterator<>() {
-            long pos = keyFromPos;
-
             @Override
             public boolean hasNext() {
-                return pos < keyToPos;
+                try {
+                    return iterator.hasNext();
+                } catch (IllegalStateException e) {
+                    throw checkForClose(e);
+                }
             }
 
             @Override
             public Entry<MemorySegment> next() {
-                Entry<MemorySegment> entry = entryAt(sstable, pos);
-                pos++;
-                return entry;
+                try {
+                    return iterator.next();
+                } catch (IllegalStateException e) {
+                    throw checkForClose(e);
+                }
             }
         };
     }
 
     public List<Iterator<Entry<MemorySegment>>> iterate(MemorySegment keyFrom, MemorySegment keyTo) {
+        return iterate(0, ssTables.size(), keyFrom, keyTo);
+    }
+
+    /**
+     * Iterates over tables {@code [fromTable, toTable)}, oldest first.
+     */
+    List<Iterator<Entry<MemorySegment>>> iterate(
+            int fromTable,
+            int toTable,
+            MemorySegment keyFrom,
+            MemorySegment keyTo) {
         try {
-            ArrayList<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(ssTables.size());
-            for (MemorySegment sstable : ssTables) {
+            ArrayList<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(toTable - fromTable + 2);
+            for (SSTable sstable : ssTables.subList(fromTable, toTable)) {
                 iterators.add(iterate(sstable, keyFrom, keyTo));
             }
             return iterators;
@@ -1,6 +1,5 @@
 package ok.dht.dao;
 
-import jdk.incubator.foreign.MemoryAccess;
 import jdk.incubator.foreign.MemorySegment;
 import jdk.incubator.foreign.ResourceScope;
 
@@ -9,10 +8,11 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public final class StorageUtils {
-    static final long VERSION = 0;
-    static final int INDEX_HEADER_SIZE = Long.BYTES * 3;
+    static final int V0_HEADER_SIZE = Long.BYTES * 3;
+    static final int V1_HEADER_SIZE = Long.BYTES * 5;
     static final int INDEX_RECORD_SIZE = Long.BYTES;
     static final String FILE_NAME = "data";
     static final String FILE_EXT = ".dat";
@@ -21,47 +21,21 @@ public final class StorageUtils {
     private StorageUtils() {
     }
 
-    static void save(Storage.Data entries, Path sstablePath) throws IOException {
+    static void save(Storage.Data entries, Path sstablePath, int blockSize, boolean compress) throws IOException {
         Path sstableTmpPath = sstablePath.resolveSibling(sstablePath.getFileName().toString() + FILE_EXT_TMP);
         Files.deleteIfExists(sstableTmpPath);
-        Files.createFile(sstableTmpPath);
 
-        try (ResourceScope writeScope = ResourceScope.newConfinedScope()) {
-            long size = 0;
-            long entriesCount = 0;
-            boolean hasTombstone = false;
+        try (FileChannel channel = FileChannel.open(
+                sstableTmpPath,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE
+        )) {
+            BlockSSTableWriter writer = new BlockSSTableWriter(channel, blockSize, compress);
             for (Entry<MemorySegment> entry : entries) {
-                size += getSize(entry);
-                if (entry.isTombstone()) {
-                    hasTombstone = true;
-                }
-                entriesCount++;
+                writer.add(entry);
             }
-
-            long dataStart = INDEX_HEADER_SIZE + INDEX_RECORD_SIZE * entriesCount;
-            MemorySegment nextSSTable = MemorySegment.mapFile(
-                    sstableTmpPath,
-                    0,
-                    dataStart + size,
-                    FileChannel.MapMode.READ_WRITE,
-                    writeScope
-            );
-
-            long index = 0;
-            long offset = dataStart;
-            for (Entry<MemorySegment> entry : entries) {
-                MemoryAccess.setLongAtOffset(nextSSTable, INDEX_HEADER_SIZE + index * INDEX_RECORD_SIZE, offset);
-                offset += writeRecord(nextSSTable, offset, entry.key());
-                nextSSTable.asSlice(offset, Long.BYTES).copyFrom(entry.timestamp());
-                offset += Long.BYTES;
-                offset += writeRecord(nextSSTable, offset, entry.value());
-                index++;
-            }
-
-            MemoryAccess.setLongAtOffset(nextSSTable, 0, VERSION);
-            MemoryAccess.setLongAtOffset(nextSSTable, 8, entriesCount);
-            MemoryAccess.setLongAtOffset(nextSSTable, 16, hasTombstone ? 1 : 0);
-            nextSSTable.force();
+            writer.finish();
+            channel.force(false);
         }
         Files.move(sstableTmpPath, sstablePath, StandardCopyOption.ATOMIC_MOVE);
     }
@@ -71,17 +45,6 @@ public final class StorageUtils {
         return entry.value() == null ? size : size + entry.value().byteSize();
     }
 
-    private static long writeRecord(MemorySegment nextSSTable, long offset, MemorySegment record) {
-        if (record == null) {
-            MemoryAccess.setLongAtOffset(nextSSTable, offset, -1);
-            return Long.BYTES;
-        }
-        long recordSize = record.byteSize();
-        MemoryAccess.setLongAtOffset(nextSSTable, offset, recordSize);
-        nextSSTable.asSlice(offset + Long.BYTES, recordSize).copyFrom(record);
-        return Long.BYTES + recordSize;
-    }
-
     static void finishCompact(Config config, Path compactedFile) throws IOException {
         for (int i = 0; ; i++) {
             Path nextFile = config.basePath().resolve(FILE_NAME + i + FILE_EXT);
@@ -0,0 +1,49 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class TombstoneFilteringIterator implements Iterator<Entry<MemorySegment>> {
+    private final Iterator<Entry<MemorySegment>> iterator;
+    private final long keepSinceMillis;
+    private Entry<MemorySegment> current;
+
+    public TombstoneFilteringIterator(Iterator<Entry<MemorySegment>> iterator) {
+        this(iterator, Long.MAX_VALUE);
+    }
+
+    /**
+     * Skips only the tombstones written before {@code keepSinceMillis}, newer ones are returned.
+     */
+    public TombstoneFilteringIterator(Iterator<Entry<MemorySegment>> iterator, long keepSinceMillis) {
+        this.iterator = iterator;
+        this.keepSinceMillis = keepSinceMillis;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (current != null) {
+            return true;
+        }
+        while (iterator.hasNext()) {
+            Entry<MemorySegment> entry = iterator.next();
+            if (!entry.isTombstone() || EntryTimestampComparator.timestamp(entry) >= keepSinceMillis) {
+                this.current = entry;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Entry<MemorySegment> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("...");
+        }
+        Entry<MemorySegment> next = current;
+        current = null;
+        return next;
+    }
+}
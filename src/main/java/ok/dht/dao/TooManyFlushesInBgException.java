@@ -1,4 +0,0 @@
-package ok.dht.dao;
-
-public class TooManyFlushesInBgException extends RuntimeException {
-}
@@ -0,0 +1,202 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the upserts applied to one memtable, deleted once that memtable is flushed.
+ * <p>
+ * Record layout: {@code length:int, crc32:int, keySize:long, key, timestamp:long, valueSize:long, value}
+ * where {@code length} and {@code crc32} cover everything after the checksum and
+ * {@code valueSize == -1} marks a tombstone. Replay stops at the first torn or corrupted record.
+ * <p>
+ * Durability uses group commit: writers append without syncing and then wait in
+ * {@link #awaitDurable(long)}, where a single {@code fsync} covers every record appended before it started.
+ */
+class WriteAheadLog implements Closeable {
+    private static final String FILE_NAME = "wal";
+    private static final String FILE_EXT = ".log";
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long syncBytes;
+    private final Object syncLock = new Object();
+
+    private volatile long appendedBytes;
+    private volatile long syncedBytes;
+    private volatile boolean closed;
+
+    private WriteAheadLog(Path path, FileChannel channel, long syncBytes) {
+        this.path = path;
+        this.channel = channel;
+        this.syncBytes = syncBytes;
+    }
+
+    static WriteAheadLog create(Config config, long generation) throws IOException {
+        Path path = config.basePath().resolve(FILE_NAME + generation + FILE_EXT);
+        FileChannel channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE
+        );
+        return new WriteAheadLog(path, channel, config.walSyncBytes());
+    }
+
+    /**
+     * Appends the entry and returns the log position that must be synced for it to be durable.
+     */
+    long append(Entry<MemorySegment> entry) throws IOException {
+        ByteBuffer record = serialize(entry);
+        synchronized (this) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            appendedBytes = channel.position();
+            return appendedBytes;
+        }
+    }
+
+    /**
+     * Blocks until everything up to {@code position} is on disk.
+     */
+    void awaitDurable(long position) throws IOException {
+        while (syncedBytes < position) {
+            synchronized (syncLock) {
+                if (syncedBytes >= position) {
+                    return;
+                }
+                // Records appended while we waited for the lock are covered by the same fsync
+                long target = appendedBytes;
+                try {
+                    channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // The log is only closed on purpose after its memtable was flushed, so the entry is
+                    // already durable. Any other close, e.g. by an interrupted fsync, loses the tail.
+                    if (!closed) {
+                        throw e;
+                    }
+                    return;
+                }
+                syncedBytes = target;
+            }
+        }
+    }
+
+    /**
+     * Syncs if the unsynced tail has grown past the configured threshold.
+     */
+    void syncIfLagging() throws IOException {
+        long appended = appendedBytes;
+        if (appended - syncedBytes >= syncBytes) {
+            awaitDurable(appended);
+        }
+    }
+
+    void sync() throws IOException {
+        awaitDurable(appendedBytes);
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    private static ByteBuffer serialize(Entry<MemorySegment> entry) {
+        long valueSize = entry.value() == null ? 0 : entry.value().byteSize();
+        int payloadSize = (int) (Long.BYTES + entry.key().byteSize() + Long.BYTES + Long.BYTES + valueSize);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadSize);
+        record.position(RECORD_HEADER_SIZE);
+
+        record.putLong(entry.key().byteSize());
+        record.put(entry.key().asByteBuffer());
+        record.put(entry.timestamp().asByteBuffer());
+        if (entry.value() == null) {
+            record.putLong(-1);
+        } else {
+            record.putLong(valueSize);
+            record.put(entry.value().asByteBuffer());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, payloadSize);
+        record.putInt(0, payloadSize);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        return record.flip();
+    }
+
+    /**
+     * Returns the logs left in {@code basePath}, oldest first.
+     */
+    static List<Path> existingLogs(Path basePath) throws IOException {
+        List<Path> logs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(basePath)) {
+            files.filter(WriteAheadLog::isLogFile).forEach(logs::add);
+        }
+        logs.sort((p1, p2) -> Long.compare(generation(p1), generation(p2)));
+        return logs;
+    }
+
+    static void replay(Path log, Consumer<Entry<MemorySegment>> consumer) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(log));
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= RECORD_HEADER_SIZE) {
+            int payloadSize = data.getInt();
+            int checksum = data.getInt();
+            if (payloadSize < 0 || payloadSize > data.remaining()) {
+                return;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), payloadSize);
+            if ((int) crc.getValue() != checksum) {
+                return;
+            }
+
+            byte[] key = new byte[(int) data.getLong()];
+            data.get(key);
+            byte[] timestamp = new byte[Long.BYTES];
+            data.get(timestamp);
+            long valueSize = data.getLong();
+            byte[] value = null;
+            if (valueSize >= 0) {
+                value = new byte[(int) valueSize];
+                data.get(value);
+            }
+
+            consumer.accept(new BaseEntry<>(
+                    MemorySegment.ofArray(key),
+                    value == null ? null : MemorySegment.ofArray(value),
+                    MemorySegment.ofArray(timestamp)
+            ));
+        }
+    }
+
+    private static boolean isLogFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(FILE_NAME) && name.endsWith(FILE_EXT);
+    }
+
+    private static long generation(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(FILE_NAME.length(), name.length() - FILE_EXT.length()));
+    }
+}
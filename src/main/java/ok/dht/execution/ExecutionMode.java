@@ -0,0 +1,14 @@
+package ok.dht.execution;
+
+public enum ExecutionMode {
+    /**
+     * Fixed pools of platform threads; requests beyond the queue capacity are rejected.
+     */
+    POOLED,
+    /**
+     * Every admitted request gets its own thread, so blocking DAO reads and replica waits
+     * don't hold back other requests. Admission is bounded by a concurrency limit instead
+     * of a queue size.
+     */
+    THREAD_PER_REQUEST
+}
@@ -0,0 +1,138 @@
+package ok.dht.membership;
+
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The nodes of the cluster and the ring they make, as changed at runtime by joins and leaves.
+ * <p>
+ * Every change gets the next epoch, and a node takes a membership only if it is newer than its own: a higher
+ * epoch, or the same epoch and a ring of a higher version, so that nodes told of two concurrent changes settle
+ * on the same one. While the data of a change is being moved, the ring it was placed by is kept as the
+ * {@link #pendingRing() pending} one, across changes and restarts, until {@link #rebalanced(long)} is called.
+ * <p>
+ * The state is saved to a file, in lines of {@code epoch <epoch>}, {@code member <url>} and
+ * {@code previous <url>}; a node without one starts from the cluster of its configuration at epoch {@code 0}.
+ */
+public class Membership {
+    private static final String EPOCH = "epoch ";
+    private static final String MEMBER = "member ";
+    private static final String PREVIOUS = "previous ";
+
+    private final Path file;
+    private final int virtualNodes;
+    private volatile ConsistentHashingImpl ring;
+    private long epoch;
+    private ConsistentHashingImpl pendingRing;
+
+    public Membership(Path file, List<String> clusterUrls, int virtualNodes) throws IOException {
+        this.file = file;
+        this.virtualNodes = virtualNodes;
+        if (Files.notExists(file)) {
+            this.ring = new ConsistentHashingImpl(clusterUrls, virtualNodes);
+            return;
+        }
+
+        List<String> members = new ArrayList<>();
+        List<String> previous = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.startsWith(EPOCH)) {
+                epoch = Long.parseLong(line.substring(EPOCH.length()));
+            } else if (line.startsWith(MEMBER)) {
+                members.add(line.substring(MEMBER.length()));
+            } else if (line.startsWith(PREVIOUS)) {
+                previous.add(line.substring(PREVIOUS.length()));
+            }
+        }
+        this.ring = new ConsistentHashingImpl(members, virtualNodes);
+        this.pendingRing = previous.isEmpty() ? null : new ConsistentHashingImpl(previous, virtualNodes);
+    }
+
+    /**
+     * Returns the current ring. Callers should route a request by a single call's result.
+     */
+    public ConsistentHashingImpl ring() {
+        return ring;
+    }
+
+    public synchronized long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the ring the local data was placed by if it is still being moved to the current one,
+     * {@code null} otherwise.
+     */
+    public synchronized ConsistentHashingImpl pendingRing() {
+        return pendingRing;
+    }
+
+    /**
+     * Takes {@code members} as the membership of {@code epoch} if it is newer than the current one, and
+     * returns whether it did.
+     */
+    public synchronized boolean update(long newEpoch, List<String> members) throws IOException {
+        ConsistentHashingImpl newRing = new ConsistentHashingImpl(members, virtualNodes);
+        if (newEpoch < epoch || (newEpoch == epoch && newRing.version() <= ring.version())) {
+            return false;
+        }
+        if (pendingRing == null) {
+            pendingRing = ring;
+        }
+        ring = newRing;
+        epoch = newEpoch;
+        save();
+        return true;
+    }
+
+    /**
+     * Records that the data has been moved to the ring of {@code rebalancedEpoch}, unless it changed since.
+     */
+    public synchronized void rebalanced(long rebalancedEpoch) throws IOException {
+        if (rebalancedEpoch != epoch || pendingRing == null) {
+            return;
+        }
+        pendingRing = null;
+        save();
+    }
+
+    /**
+     * Describes the membership as the epoch on the first line, then a member per line.
+     */
+    public synchronized String describe() {
+        StringBuilder description = new StringBuilder().append(epoch).append('\n');
+        for (String member : ring.nodes()) {
+            description.append(member).append('\n');
+        }
+        return description.toString();
+    }
+
+    /**
+     * Reads the members from a body of one URL per line.
+     */
+    public static List<String> parseMembers(String body) {
+        return body.lines().map(String::trim).filter(line -> !line.isEmpty()).toList();
+    }
+
+    private void save() throws IOException {
+        StringBuilder content = new StringBuilder().append(EPOCH).append(epoch).append('\n');
+        for (String member : ring.nodes()) {
+            content.append(MEMBER).append(member).append('\n');
+        }
+        if (pendingRing != null) {
+            for (String member : pendingRing.nodes()) {
+                content.append(PREVIOUS).append(member).append('\n');
+            }
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmp, content, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
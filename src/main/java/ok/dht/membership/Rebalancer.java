@@ -0,0 +1,264 @@
+package ok.dht.membership;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+import ok.dht.dao.Entry;
+import ok.dht.dao.IoRateLimiter;
+import ok.dht.execution.NamedThreadFactory;
+import ok.dht.streaming.RecordFormat;
+import ok.dht.utils.RequestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Moves the local data to the nodes that became its replicas after a membership change.
+ * <p>
+ * The token spans between the positions of both rings are the units that move: a span is sent by its first
+ * replica in the old ring, so that every entry is sent once, to each of its replicas in the new ring that
+ * didn't replicate it in the old one. The data is sorted by key rather than by token, so a rebalance is a
+ * single scan of the local entries, tombstones included, keeping those of the spans to send. It reads at most
+ * {@code bytesPerSecond} and ships entries in batches to an internal endpoint that applies each unless the
+ * key has a newer version; the receiver admits them as background requests, which admission control sheds
+ * first.
+ * <p>
+ * A target that can't take a batch is retried on its own after {@link #RETRY_DELAY_MS}, with a new scan.
+ * A new membership change cancels the rebalance in progress and starts over from the ring the data was
+ * placed by.
+ */
+public class Rebalancer implements Closeable {
+    private static final Log log = LogFactory.getLog(Rebalancer.class);
+
+    private static final int BATCH_BYTES = 32 * 1024;
+    private static final int SEND_ATTEMPTS = 3;
+    private static final long SEND_RETRY_DELAY_MS = 1000;
+    private static final long RETRY_DELAY_MS = 10_000;
+    private static final int TERMINATION_TIMEOUT_MS = 800;
+
+    private final String selfUrl;
+    private final int replicas;
+    private final IoRateLimiter rateLimiter;
+    private final Supplier<Iterator<Entry<MemorySegment>>> localData;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Rebalancer"));
+
+    // Guarded by this
+    private Future<?> running;
+    private long generation;
+
+    /**
+     * Assumes every key is kept by the first {@code replicas} nodes of its range, {@code 0} meaning all nodes.
+     * {@code localData} lists the local entries, tombstones included.
+     */
+    public Rebalancer(
+            String selfUrl,
+            int replicas,
+            long bytesPerSecond,
+            Supplier<Iterator<Entry<MemorySegment>>> localData
+    ) {
+        this.selfUrl = selfUrl;
+        this.replicas = replicas;
+        this.rateLimiter = new IoRateLimiter(bytesPerSecond);
+        this.localData = localData;
+    }
+
+    /**
+     * Starts moving the data placed by {@code from} to the nodes that replicate it in {@code to}, and calls
+     * {@code done} once every target has it.
+     */
+    public synchronized void rebalance(ConsistentHashingImpl from, ConsistentHashingImpl to, Runnable done) {
+        if (running != null) {
+            running.cancel(true);
+        }
+        generation++;
+        Plan plan = new Plan(from, to);
+        long current = generation;
+        running = executor.submit(() -> run(plan, null, current, done));
+    }
+
+    private void run(Plan plan, Set<String> onlyTargets, long runGeneration, Runnable done) {
+        Set<String> failed;
+        try {
+            failed = plan.isEmpty() ? Set.of() : transfer(plan, onlyTargets);
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            log.error("Rebalancing failed", e);
+            failed = plan.targets();
+        }
+
+        synchronized (this) {
+            if (runGeneration != generation || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (failed.isEmpty()) {
+                running = null;
+                done.run();
+                return;
+            }
+            log.warn("Can't rebalance to " + failed + ", retrying in " + RETRY_DELAY_MS + " ms");
+            Set<String> retryTargets = failed;
+            running = executor.schedule(
+                    () -> run(plan, retryTargets, runGeneration, done),
+                    RETRY_DELAY_MS,
+                    TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    /**
+     * Sends the entries of the plan to its targets, or only to {@code onlyTargets} if not {@code null},
+     * and returns the targets that couldn't take them.
+     */
+    private Set<String> transfer(Plan plan, Set<String> onlyTargets) throws InterruptedException {
+        Map<String, ByteArrayOutputStream> batches = new HashMap<>();
+        Set<String> failed = new HashSet<>();
+        long sent = 0;
+        Iterator<Entry<MemorySegment>> entries = localData.get();
+        while (entries.hasNext()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Entry<MemorySegment> entry = entries.next();
+            rateLimiter.acquire(entry.key().byteSize() + (entry.value() == null ? 0 : entry.value().byteSize()));
+
+            List<String> targets = plan.targetsOf(ConsistentHashingImpl.token(entry.key().toByteArray()));
+            if (targets.isEmpty()) {
+                continue;
+            }
+            byte[] record = RecordFormat.REPLICA.encode(entry);
+            for (String target : targets) {
+                if (failed.contains(target) || (onlyTargets != null && !onlyTargets.contains(target))) {
+                    continue;
+                }
+                ByteArrayOutputStream batch = batches.computeIfAbsent(target, t -> new ByteArrayOutputStream());
+                batch.writeBytes(record);
+                sent++;
+                if (batch.size() >= BATCH_BYTES && !send(target, batch)) {
+                    failed.add(target);
+                }
+            }
+        }
+        for (Map.Entry<String, ByteArrayOutputStream> batch : batches.entrySet()) {
+            if (!failed.contains(batch.getKey()) && batch.getValue().size() > 0
+                    && !send(batch.getKey(), batch.getValue())) {
+                failed.add(batch.getKey());
+            }
+        }
+        log.info("Sent " + sent + " entries to " + batches.keySet() + (failed.isEmpty() ? "" : ", failed: " + failed));
+        return failed;
+    }
+
+    private boolean send(String target, ByteArrayOutputStream batch) throws InterruptedException {
+        byte[] records = batch.toByteArray();
+        batch.reset();
+        for (int attempt = 0; attempt < SEND_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                Thread.sleep(SEND_RETRY_DELAY_MS);
+            }
+            try {
+                HttpResponse<Void> response = client.send(
+                        RequestUtils.makeRebalanceRequest(target, records),
+                        HttpResponse.BodyHandlers.discarding()
+                );
+                if (response.statusCode() == HttpURLConnection.HTTP_CREATED) {
+                    return true;
+                }
+            } catch (IOException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Can't rebalance to " + target + ": " + e.getMessage());
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(TERMINATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The spans between the positions of both rings, span {@code i} ending at {@code ends[i]} and the first
+     * one wrapping around the ring, with the nodes this one has to send each of them to.
+     */
+    private final class Plan {
+        private final int[] ends;
+        private final List<List<String>> targets;
+
+        Plan(ConsistentHashingImpl from, ConsistentHashingImpl to) {
+            int[] positions = new int[from.rangeCount() + to.rangeCount()];
+            for (int range = 0; range < from.rangeCount(); range++) {
+                positions[range] = from.rangeEnd(range);
+            }
+            for (int range = 0; range < to.rangeCount(); range++) {
+                positions[from.rangeCount() + range] = to.rangeEnd(range);
+            }
+            this.ends = Arrays.stream(positions).sorted().distinct().toArray();
+
+            // No position of either ring falls inside a span, so its end stands for all of its tokens
+            this.targets = new ArrayList<>(ends.length);
+            for (int end : ends) {
+                List<String> oldOwners = from.rangeReplicas(from.rangeOf(end), replicasOf(from));
+                List<String> spanTargets = new ArrayList<>();
+                if (oldOwners.get(0).equals(selfUrl)) {
+                    for (String owner : to.rangeReplicas(to.rangeOf(end), replicasOf(to))) {
+                        if (!oldOwners.contains(owner) && !owner.equals(selfUrl)) {
+                            spanTargets.add(owner);
+                        }
+                    }
+                }
+                targets.add(spanTargets);
+            }
+        }
+
+        private int replicasOf(ConsistentHashingImpl ring) {
+            return replicas == 0 ? ring.nodeCount() : Math.min(replicas, ring.nodeCount());
+        }
+
+        List<String> targetsOf(int token) {
+            int span = Arrays.binarySearch(ends, token);
+            if (span < 0) {
+                span = -span - 1;
+            }
+            return targets.get(span == ends.length ? 0 : span);
+        }
+
+        Set<String> targets() {
+            Set<String> all = new HashSet<>();
+            targets.forEach(all::addAll);
+            return all;
+        }
+
+        boolean isEmpty() {
+            return targets.stream().allMatch(List::isEmpty);
+        }
+    }
+}
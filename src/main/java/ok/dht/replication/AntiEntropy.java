@@ -0,0 +1,218 @@
+package ok.dht.replication;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+import ok.dht.dao.Entry;
+import ok.dht.execution.NamedThreadFactory;
+import ok.dht.streaming.PeerRangeIterator;
+import ok.dht.utils.RequestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Reconciles this node with the other replicas of its token ranges in the background.
+ * <p>
+ * Every round compares the {@link MerkleTrees} of each shared range with the peer's, descending
+ * {@link #LEVEL_STEP} levels at a time and only below the nodes that differ, then pulls the entries of the
+ * differing leaves and applies those newer than the local version. Pulling is enough: the peer runs the same
+ * job against this node. Replicas in sync cost a root hash per range and peer; a round repairs at most
+ * {@link #MAX_LEAVES_PER_ROUND} leaves and leaves the rest to the following ones.
+ * <p>
+ * The trees only cover flushed data, so a write still in a memtable makes a leaf differ until it is flushed:
+ * pulling such a leaf finds nothing newer and changes nothing.
+ */
+public class AntiEntropy implements Closeable {
+    private static final Log log = LogFactory.getLog(AntiEntropy.class);
+
+    private static final long ROUND_INTERVAL_MS = 10_000;
+    private static final int LEVEL_STEP = 3;
+    private static final int MAX_DIFFERING_NODES = 64;
+    private static final int MAX_LEAVES_PER_ROUND = 64;
+    private static final int TERMINATION_TIMEOUT_MS = 800;
+
+    private final MerkleIndex index;
+    private final String selfUrl;
+    private final int replicas;
+    private final Consumer<Entry<MemorySegment>> repair;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("AntiEntropy"));
+
+    /**
+     * Assumes every key is kept by the first {@code replicas} nodes of its range. {@code repair} gets the
+     * versions found on peers that are newer than the flushed local ones and must not overwrite newer writes.
+     */
+    public AntiEntropy(
+            MerkleIndex index,
+            String selfUrl,
+            int replicas,
+            Consumer<Entry<MemorySegment>> repair
+    ) {
+        this.index = index;
+        this.selfUrl = selfUrl;
+        this.replicas = replicas;
+        this.repair = repair;
+        executor.scheduleWithFixedDelay(this::runRound, ROUND_INTERVAL_MS, ROUND_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void runRound() {
+        int budget = MAX_LEAVES_PER_ROUND;
+        List<String> unreachable = new ArrayList<>();
+        // Compared in the ring the trees were built for: a peer on another ring refuses the comparison
+        MerkleTrees trees = index.trees();
+        ConsistentHashingImpl ring = trees.ring();
+        for (int range = 0; range < ring.rangeCount() && budget > 0; range++) {
+            List<String> owners = ring.rangeReplicas(range, replicas);
+            if (!owners.contains(selfUrl)) {
+                continue;
+            }
+            for (String peer : owners) {
+                if (peer.equals(selfUrl) || unreachable.contains(peer) || budget <= 0) {
+                    continue;
+                }
+                try {
+                    budget -= syncRange(trees, peer, range, budget);
+                } catch (IOException | UncheckedIOException e) {
+                    unreachable.add(peer);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Anti-entropy with " + peer + " failed: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException e) {
+                    // Keep the periodic task alive: an exception would cancel it for good
+                    log.error("Anti-entropy with " + peer + " failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Repairs up to {@code budget} differing leaves of {@code range} and returns how many it repaired.
+     */
+    private int syncRange(
+            MerkleTrees trees,
+            String peer,
+            int range,
+            int budget
+    ) throws IOException, InterruptedException {
+        List<Integer> differing = List.of(0);
+        int level = 0;
+        if (differs(trees, peer, range, level, differing, 1).isEmpty()) {
+            return 0;
+        }
+        while (level < MerkleTrees.DEPTH) {
+            int nextLevel = Math.min(level + LEVEL_STEP, MerkleTrees.DEPTH);
+            differing = differs(trees, peer, range, nextLevel, differing, 1 << (nextLevel - level));
+            level = nextLevel;
+        }
+
+        int repaired = 0;
+        for (int leaf : differing) {
+            if (repaired == budget) {
+                break;
+            }
+            pullLeaf(trees.ring().version(), peer, range, leaf);
+            repaired++;
+        }
+        return repaired;
+    }
+
+    /**
+     * Compares the {@code fanOut} nodes of {@code level} under every node of {@code parents} and returns
+     * those that differ, at most {@link #MAX_DIFFERING_NODES} of them.
+     */
+    private List<Integer> differs(
+            MerkleTrees trees,
+            String peer,
+            int range,
+            int level,
+            List<Integer> parents,
+            int fanOut
+    ) throws IOException, InterruptedException {
+        List<Integer> differing = new ArrayList<>();
+        for (int parent : parents) {
+            int from = parent * fanOut;
+            long[] remote = fetchNodes(peer, trees.ring().version(), range, level, from, fanOut);
+            long[] local = trees.level(range, level, from, fanOut);
+            for (int i = 0; i < fanOut && differing.size() < MAX_DIFFERING_NODES; i++) {
+                if (remote[i] != local[i]) {
+                    differing.add(from + i);
+                }
+            }
+        }
+        return differing;
+    }
+
+    private long[] fetchNodes(
+            String peer,
+            long version,
+            int range,
+            int level,
+            int from,
+            int count
+    ) throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = client.send(
+                RequestUtils.makeMerkleRequest(peer, version, range, level, from, count),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+        if (response.statusCode() != HttpURLConnection.HTTP_OK || response.body().length != count * Long.BYTES) {
+            throw new IOException("Unexpected Merkle tree response: " + response.statusCode());
+        }
+        ByteBuffer body = ByteBuffer.wrap(response.body());
+        long[] nodes = new long[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = body.getLong();
+        }
+        return nodes;
+    }
+
+    private void pullLeaf(long version, String peer, int range, int leaf) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = client.send(
+                RequestUtils.makeMerkleLeafRequest(peer, version, range, leaf),
+                HttpResponse.BodyHandlers.ofInputStream()
+        );
+        try (PeerRangeIterator entries = new PeerRangeIterator(response.body())) {
+            if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected Merkle leaf response: " + response.statusCode());
+            }
+            while (entries.hasNext()) {
+                Entry<MemorySegment> entry = entries.next();
+                long timestamp = MemoryAccess.getLongAtOffset(entry.timestamp(), 0, ByteOrder.BIG_ENDIAN);
+                if (index.timestamp(entry.key().toByteArray()) < timestamp) {
+                    repair.accept(entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(TERMINATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
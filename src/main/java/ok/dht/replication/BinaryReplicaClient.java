@@ -0,0 +1,115 @@
+package ok.dht.replication;
+
+import ok.dht.execution.NamedThreadFactory;
+import ok.dht.utils.RequestUtils;
+import ok.dht.utils.Utils;
+import one.nio.http.Response;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends replica requests over one {@link ReplicationConnection} per peer.
+ * <p>
+ * Connections are opened on a connector thread, never on the caller's: concurrent callers wait on the same
+ * attempt, which fails after {@link RequestUtils#CONNECTION_TIMEOUT_MS}. A peer whose connection attempt timed
+ * out, black-holed rather than down, fails its requests at once for a while, twice as long after every timeout
+ * in a row. A refused connection is cheap, so a restarted peer is connected to again on the next request.
+ */
+public class BinaryReplicaClient implements ReplicaClient {
+    private static final long MIN_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MS = 30_000;
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final ExecutorService connector =
+            Executors.newCachedThreadPool(new NamedThreadFactory("ReplicationConnector"));
+
+    @Override
+    public CompletableFuture<Response> send(String node, int method, String key, byte[] value, long timestamp) {
+        byte[] keyBytes = Utils.toBytes(key);
+        return peers.computeIfAbsent(node, Peer::new)
+                .connection()
+                .thenCompose(connection -> connection.send(method, keyBytes, timestamp, value));
+    }
+
+    @Override
+    public void close() {
+        connector.shutdownNow();
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        peers.clear();
+    }
+
+    private final class Peer {
+        private final String node;
+
+        // Guarded by this
+        private CompletableFuture<ReplicationConnection> attempt;
+        private long retryAtMillis;
+        private long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+
+        Peer(String node) {
+            this.node = node;
+        }
+
+        synchronized CompletableFuture<ReplicationConnection> connection() {
+            if (attempt != null) {
+                if (!attempt.isDone()) {
+                    return attempt;
+                }
+                if (attempt.isCompletedExceptionally()) {
+                    if (System.currentTimeMillis() < retryAtMillis) {
+                        return attempt;
+                    }
+                } else if (attempt.join().isOpen()) {
+                    return attempt;
+                }
+            }
+
+            CompletableFuture<ReplicationConnection> next = new CompletableFuture<>();
+            attempt = next;
+            try {
+                connector.execute(() -> {
+                    try {
+                        ReplicationConnection connection = ReplicationConnection.open(node);
+                        if (!next.complete(connection)) {
+                            // Timed out meanwhile
+                            connection.close();
+                        }
+                    } catch (IOException e) {
+                        next.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                next.completeExceptionally(new IOException("Client is closed"));
+            }
+            CompletableFuture<?> ignored = next.orTimeout(RequestUtils.CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .whenComplete((connection, throwable) -> attempted(throwable));
+            return next;
+        }
+
+        private synchronized void attempted(Throwable failure) {
+            if (!(failure instanceof TimeoutException)) {
+                retryAtMillis = 0;
+                reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+                return;
+            }
+            retryAtMillis = System.currentTimeMillis() + reconnectDelayMs;
+            reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+        }
+
+        synchronized void close() {
+            if (attempt != null) {
+                CompletableFuture<?> ignored = attempt.thenAccept(ReplicationConnection::close);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package ok.dht.replication;
+
+import one.nio.util.Utf8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a replica missed, kept on the coordinator until they can be handed off to it.
+ * <p>
+ * Every target node has a directory of append-only files {@code <generation>.hints}, oldest first.
+ * Record layout: {@code length:int, crc32:int, method:byte, keySize:int, key, timestamp:long,
+ * valueSize:int, value} where {@code length} and {@code crc32} cover everything after the checksum and
+ * {@code valueSize == -1} marks a tombstone. Reading a file stops at the first torn or corrupted record.
+ * <p>
+ * New hints go to the newest file of the target. {@link #seal(String)} closes it, so the files handed out
+ * for replay are never appended to again and can be deleted once delivered.
+ */
+public class HintStore implements Closeable {
+    private static final String FILE_EXT = ".hints";
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+    private static final long MAX_FILE_BYTES = 4 * 1024 * 1024;
+
+    private final Path dir;
+    private final long maxBytesPerTarget;
+    private final Map<String, TargetHints> targets = new HashMap<>();
+
+    public record Hint(int method, byte[] key, long timestamp, byte[] value) {
+    }
+
+    /**
+     * Hints for a target are dropped while it already has {@code maxBytesPerTarget} of them.
+     */
+    public HintStore(Path dir, long maxBytesPerTarget) throws IOException {
+        this.dir = dir;
+        this.maxBytesPerTarget = maxBytesPerTarget;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Returns {@code false} if the hint was dropped because the target has too many of them.
+     */
+    public synchronized boolean add(String target, Hint hint) throws IOException {
+        TargetHints hints = target(target);
+        ByteBuffer record = serialize(hint);
+        if (hints.bytes + record.remaining() > maxBytesPerTarget) {
+            return false;
+        }
+        if (hints.channel == null || hints.channel.position() >= MAX_FILE_BYTES) {
+            hints.openNextFile();
+        }
+        hints.bytes += record.remaining();
+        while (record.hasRemaining()) {
+            hints.channel.write(record);
+        }
+        return true;
+    }
+
+    public synchronized boolean hasHints(String target) throws IOException {
+        return target(target).bytes > 0;
+    }
+
+    /**
+     * Closes the file new hints for {@code target} were appended to and returns all its files, oldest first.
+     */
+    public synchronized List<Path> seal(String target) throws IOException {
+        TargetHints hints = target(target);
+        hints.closeFile();
+        return hints.files();
+    }
+
+    /**
+     * Deletes a file returned by {@link #seal(String)} once its hints have been delivered.
+     */
+    public synchronized void delete(String target, Path file) throws IOException {
+        TargetHints hints = target(target);
+        hints.bytes -= Files.size(file);
+        Files.delete(file);
+    }
+
+    public static List<Hint> read(Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        List<Hint> hints = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= RECORD_HEADER_SIZE) {
+            int payloadSize = data.getInt();
+            int checksum = data.getInt();
+            if (payloadSize < 0 || payloadSize > data.remaining()) {
+                break;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), payloadSize);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            int method = data.get();
+            byte[] key = new byte[data.getInt()];
+            data.get(key);
+            long timestamp = data.getLong();
+            int valueSize = data.getInt();
+            byte[] value = null;
+            if (valueSize >= 0) {
+                value = new byte[valueSize];
+                data.get(value);
+            }
+            hints.add(new Hint(method, key, timestamp, value));
+        }
+        return hints;
+    }
+
+    private static ByteBuffer serialize(Hint hint) {
+        int valueSize = hint.value() == null ? 0 : hint.value().length;
+        int payloadSize = Byte.BYTES + Integer.BYTES + hint.key().length + Long.BYTES + Integer.BYTES + valueSize;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadSize);
+        record.position(RECORD_HEADER_SIZE);
+
+        record.put((byte) hint.method());
+        record.putInt(hint.key().length);
+        record.put(hint.key());
+        record.putLong(hint.timestamp());
+        if (hint.value() == null) {
+            record.putInt(-1);
+        } else {
+            record.putInt(valueSize);
+            record.put(hint.value());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, payloadSize);
+        record.putInt(0, payloadSize);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        return record.flip();
+    }
+
+    private TargetHints target(String target) throws IOException {
+        TargetHints hints = targets.get(target);
+        if (hints == null) {
+            hints = new TargetHints(dir.resolve(directoryName(target)));
+            targets.put(target, hints);
+        }
+        return hints;
+    }
+
+    private static String directoryName(String target) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : Utf8.toBytes(target)) {
+            char c = (char) (b & 0xFF);
+            name.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c : '_');
+        }
+        return name.toString();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (TargetHints hints : targets.values()) {
+            hints.closeFile();
+        }
+    }
+
+    private static final class TargetHints {
+        final Path dir;
+        FileChannel channel;
+        long nextGeneration;
+        long bytes;
+
+        TargetHints(Path dir) throws IOException {
+            this.dir = dir;
+            Files.createDirectories(dir);
+            List<Path> files = files();
+            for (Path file : files) {
+                bytes += Files.size(file);
+            }
+            nextGeneration = files.isEmpty() ? 0 : generation(files.get(files.size() - 1)) + 1;
+        }
+
+        void openNextFile() throws IOException {
+            closeFile();
+            channel = FileChannel.open(
+                    dir.resolve(nextGeneration++ + FILE_EXT),
+                    StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE
+            );
+        }
+
+        void closeFile() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+
+        List<Path> files() throws IOException {
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> list = Files.list(dir)) {
+                list.filter(file -> file.getFileName().toString().endsWith(FILE_EXT)).forEach(files::add);
+            }
+            files.sort((f1, f2) -> Long.compare(generation(f1), generation(f2)));
+            return files;
+        }
+
+        private static long generation(Path file) {
+            String name = file.getFileName().toString();
+            return Long.parseLong(name.substring(0, name.length() - FILE_EXT.length()));
+        }
+    }
+}
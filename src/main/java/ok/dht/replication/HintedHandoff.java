@@ -0,0 +1,202 @@
+package ok.dht.replication;
+
+import ok.dht.execution.NamedThreadFactory;
+import ok.dht.utils.RequestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Records the writes a replica failed to take in a {@link HintStore} and replays them in the background
+ * once it answers again.
+ * <p>
+ * Replay goes through the synchronization path with the {@code ifNewer} flag, so a hint never overwrites
+ * a version the replica got later. Every target gets at most {@code hintsPerSecond} hints, delivered one at
+ * a time, and a failed delivery postpones the target by {@link #RETRY_DELAY_MS}: the first hint doubles as
+ * the probe for the replica being back.
+ * <p>
+ * With a sloppy quorum, the coordinator {@link #handOff hands} a write a replica can't take to another node,
+ * which keeps it as a hint like the ones it records itself.
+ */
+public class HintedHandoff implements Closeable {
+    private static final Log log = LogFactory.getLog(HintedHandoff.class);
+
+    private static final long MAX_HINT_BYTES_PER_TARGET = 256 * 1024 * 1024;
+    private static final long TICK_MS = 100;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final int TERMINATION_TIMEOUT_MS = 800;
+
+    private final HintStore store;
+    private final Supplier<List<String>> targets;
+    private final int hintsPerTick;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("HintedHandoff"));
+
+    // Only touched by the handoff thread
+    private final Map<String, Replay> replays = new HashMap<>();
+
+    /**
+     * Delivers hints to the nodes {@code targets} returns at the time, the cluster changing as nodes come and go.
+     */
+    public HintedHandoff(Path dir, Supplier<List<String>> targets, int hintsPerSecond) throws IOException {
+        this.store = new HintStore(dir, MAX_HINT_BYTES_PER_TARGET);
+        this.targets = targets;
+        this.hintsPerTick = (int) Math.max(1, hintsPerSecond * TICK_MS / 1000);
+        executor.scheduleWithFixedDelay(this::deliverHints, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps a write {@code target} failed to apply, to be delivered later, and returns whether it was kept.
+     */
+    public boolean hint(String target, int method, String key, byte[] value, long timestamp) {
+        HintStore.Hint hint = new HintStore.Hint(method, key.getBytes(StandardCharsets.UTF_8), timestamp, value);
+        try {
+            if (store.add(target, hint)) {
+                return true;
+            }
+            log.warn("Too many hints for " + target + ", dropping one");
+        } catch (IOException e) {
+            log.error("Can't store hint for " + target, e);
+        }
+        return false;
+    }
+
+    /**
+     * Has {@code substitute} keep a write for {@code target} as one of its own hints, and completes once it
+     * has, or exceptionally if it couldn't.
+     */
+    public CompletableFuture<Void> handOff(
+            String substitute, String target, int method, String key, byte[] value, long timestamp) {
+        return client.sendAsync(
+                RequestUtils.makeHandoffRequest(substitute, target, key, method, value, timestamp),
+                HttpResponse.BodyHandlers.discarding()
+        ).thenAccept(response -> {
+            if (response.statusCode() != HttpURLConnection.HTTP_CREATED
+                    && response.statusCode() != HttpURLConnection.HTTP_ACCEPTED) {
+                throw new IllegalStateException(substitute + " didn't keep a hint: " + response.statusCode());
+            }
+        });
+    }
+
+    private void deliverHints() {
+        for (String target : targets.get()) {
+            try {
+                deliverHints(target);
+            } catch (IOException | RuntimeException e) {
+                // Keep the periodic task alive: an exception would cancel it for good
+                log.error("Can't replay hints for " + target, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void deliverHints(String target) throws IOException, InterruptedException {
+        Replay replay = replays.computeIfAbsent(target, t -> new Replay());
+        if (System.currentTimeMillis() < replay.retryAt) {
+            return;
+        }
+
+        int budget = hintsPerTick;
+        while (budget > 0) {
+            if (replay.hints.isEmpty() && !replay.nextFile(store, target)) {
+                return;
+            }
+            while (budget > 0 && !replay.hints.isEmpty()) {
+                if (!deliver(target, replay.hints.peekFirst())) {
+                    replay.retryAt = System.currentTimeMillis() + RETRY_DELAY_MS;
+                    return;
+                }
+                replay.hints.removeFirst();
+                budget--;
+            }
+            if (replay.hints.isEmpty()) {
+                store.delete(target, replay.files.removeFirst());
+            }
+        }
+    }
+
+    private boolean deliver(String target, HintStore.Hint hint) throws InterruptedException {
+        try {
+            HttpResponse<Void> response = client.send(
+                    RequestUtils.makeHttpRequest(
+                            target,
+                            new String(hint.key(), StandardCharsets.UTF_8),
+                            hint.method(),
+                            hint.value(),
+                            hint.timestamp(),
+                            true
+                    ),
+                    HttpResponse.BodyHandlers.discarding()
+            );
+            return response.statusCode() == HttpURLConnection.HTTP_CREATED
+                    || response.statusCode() == HttpURLConnection.HTTP_ACCEPTED;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(TERMINATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+
+    /**
+     * Replay progress of one target: the sealed files left and the hints of the first one not yet delivered.
+     */
+    private static final class Replay {
+        final Deque<Path> files = new ArrayDeque<>();
+        final Deque<HintStore.Hint> hints = new ArrayDeque<>();
+        long retryAt;
+
+        /**
+         * Loads the hints of the next file, sealing the ones being written if none is left.
+         * Returns {@code false} if the target has no hints.
+         */
+        boolean nextFile(HintStore store, String target) throws IOException {
+            while (hints.isEmpty()) {
+                if (files.isEmpty()) {
+                    if (!store.hasHints(target)) {
+                        return false;
+                    }
+                    files.addAll(store.seal(target));
+                    if (files.isEmpty()) {
+                        return false;
+                    }
+                }
+                hints.addAll(HintStore.read(files.peekFirst()));
+                if (hints.isEmpty()) {
+                    store.delete(target, files.removeFirst());
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ok.dht.replication;
+
+import ok.dht.utils.RequestUtils;
+import one.nio.http.Response;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+
+public class HttpReplicaClient implements ReplicaClient {
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+
+    @Override
+    public CompletableFuture<Response> send(String node, int method, String key, byte[] value, long timestamp) {
+        HttpRequest httpRequest = RequestUtils.makeHttpRequest(node, key, method, value, timestamp);
+        return client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(httpResponse ->
+                        new Response(
+                                RequestUtils.matchStatusCode(httpResponse.statusCode()),
+                                httpResponse.body()
+                        )
+                );
+    }
+
+    @Override
+    public void close() {
+        // java.net.http.HttpClient has no explicit shutdown in JDK 17
+    }
+}
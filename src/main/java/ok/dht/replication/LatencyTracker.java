@@ -0,0 +1,71 @@
+package ok.dht.replication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent response times of every replica, as seen by this coordinator.
+ * <p>
+ * A replica keeps its last {@link #WINDOW} samples, failures and timeouts included since they make the tail.
+ * Percentiles are read from a sorted copy refreshed every {@link #RESORT_INTERVAL} samples, so a lookup on
+ * the request path is a plain array access.
+ */
+public class LatencyTracker {
+    private static final int WINDOW = 256;
+    private static final int RESORT_INTERVAL = 16;
+    private static final int MIN_SAMPLES = 16;
+
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    public void record(String node, long latencyNanos) {
+        windows.computeIfAbsent(node, n -> new Window()).add(latencyNanos);
+    }
+
+    /**
+     * Returns the {@code percentile} (in {@code [0, 1]}) of the recent latencies of {@code node},
+     * or {@code defaultNanos} until it has enough samples.
+     */
+    public long percentile(String node, double percentile, long defaultNanos) {
+        Window window = windows.get(node);
+        return window == null ? defaultNanos : window.percentile(percentile, defaultNanos);
+    }
+
+    /**
+     * Orders {@code nodes} by median latency. Nodes without enough samples come first, so that they get some;
+     * ties keep the original order.
+     */
+    public List<String> fastestFirst(Collection<String> nodes) {
+        List<String> ordered = new ArrayList<>(nodes);
+        ordered.sort(Comparator.comparingLong(node -> percentile(node, 0.5, 0)));
+        return ordered;
+    }
+
+    private static final class Window {
+        private final long[] samples = new long[WINDOW];
+        private long count;
+        private volatile long[] sorted = new long[0];
+
+        synchronized void add(long latencyNanos) {
+            samples[(int) (count % WINDOW)] = latencyNanos;
+            count++;
+            if (count % RESORT_INTERVAL == 0) {
+                long[] copy = Arrays.copyOf(samples, (int) Math.min(count, WINDOW));
+                Arrays.sort(copy);
+                sorted = copy;
+            }
+        }
+
+        long percentile(double percentile, long defaultNanos) {
+            long[] snapshot = sorted;
+            if (snapshot.length < MIN_SAMPLES) {
+                return defaultNanos;
+            }
+            return snapshot[(int) Math.min(snapshot.length - 1, (long) (percentile * snapshot.length))];
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package ok.dht.replication;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+import ok.dht.dao.BaseEntry;
+import ok.dht.dao.Config;
+import ok.dht.dao.Entry;
+import ok.dht.dao.FlushListener;
+import ok.dht.dao.MemorySegmentDao;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the {@link MerkleTrees} of the local data up to date from the tables the DAO flushes.
+ * <p>
+ * The index is a DAO of its own holding, for every key ever written, {@code timestamp:long, hash:long} of its
+ * newest version under the key {@code token:int, key}, the token stored as an offset from
+ * {@link Integer#MIN_VALUE} so that keys sort by token. It provides the old hash needed to update a leaf, and
+ * lists the keys of a leaf with a range read instead of a scan of the data, which is sorted by key.
+ * Deletions stay in the index after compaction dropped their tombstones, so a repair can still tell that
+ * the version a peer offers was deleted here.
+ */
+public class MerkleIndex implements FlushListener, Closeable {
+    private static final Log log = LogFactory.getLog(MerkleIndex.class);
+
+    private static final long FLUSH_THRESHOLD_BYTES = 4 * 1024 * 1024;
+    private static final long WAL_SYNC_INTERVAL_MS = 1000;
+    private static final long WAL_SYNC_BYTES = 1024 * 1024;
+    private static final int TOKEN_BYTES = Integer.BYTES;
+    private static final int RECORD_BYTES = Long.BYTES * 2;
+    private static final String COMPLETE_MARKER = "complete";
+
+    private final MemorySegmentDao index;
+    private final Path completeMarker;
+    // Replaced as a whole when the ring changes, under the lock that updates it
+    private volatile MerkleTrees trees;
+
+    public MerkleIndex(Path dir, ConsistentHashingImpl ring) throws IOException {
+        this.completeMarker = dir.resolve(COMPLETE_MARKER);
+        Files.createDirectories(dir);
+        // Every batch of updates is flushed before the data it came from is considered indexed,
+        // so the log doesn't need a sync per upsert
+        this.index = new MemorySegmentDao(
+                new Config(dir, FLUSH_THRESHOLD_BYTES).withWalSync(WAL_SYNC_INTERVAL_MS, WAL_SYNC_BYTES));
+        this.trees = buildTrees(ring);
+    }
+
+    public MerkleTrees trees() {
+        return trees;
+    }
+
+    /**
+     * Rebuilds the trees for the ranges of a new ring from the index. Flushes wait meanwhile.
+     */
+    public synchronized void useRing(ConsistentHashingImpl ring) {
+        trees = buildTrees(ring);
+    }
+
+    private MerkleTrees buildTrees(ConsistentHashingImpl ring) {
+        MerkleTrees built = new MerkleTrees(ring);
+        Iterator<Entry<MemorySegment>> records = index.get(null, null);
+        while (records.hasNext()) {
+            Entry<MemorySegment> record = records.next();
+            int token = MemoryAccess.getIntAtOffset(record.key(), 0, ByteOrder.BIG_ENDIAN) ^ Integer.MIN_VALUE;
+            built.update(token, recordHash(record));
+        }
+        return built;
+    }
+
+    /**
+     * Whether the data written before the index existed has been {@link #indexExisting indexed}.
+     */
+    public boolean isComplete() {
+        return Files.exists(completeMarker);
+    }
+
+    /**
+     * Indexes all the data once, when the index is new. Flushes may go on meanwhile.
+     */
+    public void indexExisting(Iterator<Entry<MemorySegment>> entries) throws IOException {
+        flushed(entries);
+        Files.createFile(completeMarker);
+    }
+
+    /**
+     * Deletes an index left by a run with anti-entropy enabled: it misses whatever was written since,
+     * so it has to be rebuilt from scratch if anti-entropy is turned on again.
+     */
+    public static void delete(Path dir) throws IOException {
+        if (Files.notExists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Override
+    public void flushed(Iterator<Entry<MemorySegment>> entries) throws IOException {
+        long count = 0;
+        synchronized (this) {
+            while (entries.hasNext()) {
+                add(entries.next());
+                count++;
+            }
+        }
+        index.flush();
+        if (log.isDebugEnabled()) {
+            log.debug("Indexed " + count + " flushed entries");
+        }
+    }
+
+    private void add(Entry<MemorySegment> entry) {
+        byte[] key = entry.key().toByteArray();
+        int token = ConsistentHashingImpl.token(key);
+        MemorySegment indexKey = indexKey(token, key);
+        Entry<MemorySegment> current = index.get(indexKey);
+        long timestamp = MemoryAccess.getLongAtOffset(entry.timestamp(), 0, ByteOrder.BIG_ENDIAN);
+        if (current != null && recordTimestamp(current) > timestamp) {
+            // Replayed logs and bulk indexing may bring versions older than the indexed ones
+            return;
+        }
+
+        long hash = MerkleTrees.hash(entry);
+        trees.update(token, (current == null ? 0 : recordHash(current)) ^ hash);
+        MemorySegment record = MemorySegment.ofArray(new byte[RECORD_BYTES]);
+        MemoryAccess.setLongAtOffset(record, 0, ByteOrder.BIG_ENDIAN, timestamp);
+        MemoryAccess.setLongAtOffset(record, Long.BYTES, ByteOrder.BIG_ENDIAN, hash);
+        // Copied: the entry may live in a memtable arena that is freed once nothing refers to it
+        index.upsert(new BaseEntry<>(indexKey, record, MemorySegment.ofArray(entry.timestamp().toByteArray())));
+    }
+
+    /**
+     * Returns the timestamp of the newest flushed version of {@code key}, deletions included,
+     * or {@code -1} if it was never flushed.
+     */
+    public long timestamp(byte[] key) {
+        Entry<MemorySegment> record = index.get(indexKey(ConsistentHashingImpl.token(key), key));
+        return record == null ? -1 : recordTimestamp(record);
+    }
+
+    /**
+     * Lists the entries of a leaf of {@code leafTrees}, fetching them from the data with {@code lookup}. A key
+     * whose tombstone is gone from the data comes back as a tombstone with the indexed timestamp.
+     */
+    public Iterator<Entry<MemorySegment>> leafEntries(
+            MerkleTrees leafTrees,
+            int range,
+            int leaf,
+            Function<MemorySegment, Entry<MemorySegment>> lookup
+    ) {
+        long[] tokens = leafTrees.leafTokens(range, leaf);
+        List<Iterator<Entry<MemorySegment>>> parts = new ArrayList<>(2);
+        if (tokens[1] <= 1L << Integer.SIZE) {
+            parts.add(records(tokens[0], tokens[1]));
+        } else {
+            parts.add(records(tokens[0], 1L << Integer.SIZE));
+            parts.add(records(0, tokens[1] - (1L << Integer.SIZE)));
+        }
+        return new LeafIterator(parts.iterator(), lookup);
+    }
+
+    private Iterator<Entry<MemorySegment>> records(long fromToken, long toToken) {
+        if (fromToken == toToken) {
+            return Collections.emptyIterator();
+        }
+        MemorySegment to = toToken == 1L << Integer.SIZE ? null : tokenPrefix((int) toToken);
+        return index.get(tokenPrefix((int) fromToken), to);
+    }
+
+    private static MemorySegment indexKey(int token, byte[] key) {
+        MemorySegment indexKey = MemorySegment.ofArray(new byte[TOKEN_BYTES + key.length]);
+        MemoryAccess.setIntAtOffset(indexKey, 0, ByteOrder.BIG_ENDIAN, token ^ Integer.MIN_VALUE);
+        indexKey.asSlice(TOKEN_BYTES).copyFrom(MemorySegment.ofArray(key));
+        return indexKey;
+    }
+
+    private static MemorySegment tokenPrefix(int tokenOffset) {
+        MemorySegment prefix = MemorySegment.ofArray(new byte[TOKEN_BYTES]);
+        MemoryAccess.setIntAtOffset(prefix, 0, ByteOrder.BIG_ENDIAN, tokenOffset);
+        return prefix;
+    }
+
+    private static long recordTimestamp(Entry<MemorySegment> record) {
+        return MemoryAccess.getLongAtOffset(record.value(), 0, ByteOrder.BIG_ENDIAN);
+    }
+
+    private static long recordHash(Entry<MemorySegment> record) {
+        return MemoryAccess.getLongAtOffset(record.value(), Long.BYTES, ByteOrder.BIG_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        index.close();
+    }
+
+    private static final class LeafIterator implements Iterator<Entry<MemorySegment>> {
+        private final Iterator<Iterator<Entry<MemorySegment>>> parts;
+        private final Function<MemorySegment, Entry<MemorySegment>> lookup;
+        private Iterator<Entry<MemorySegment>> records = Collections.emptyIterator();
+
+        LeafIterator(
+                Iterator<Iterator<Entry<MemorySegment>>> parts,
+                Function<MemorySegment, Entry<MemorySegment>> lookup
+        ) {
+            this.parts = parts;
+            this.lookup = lookup;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!records.hasNext() && parts.hasNext()) {
+                records = parts.next();
+            }
+            return records.hasNext();
+        }
+
+        @Override
+        public Entry<MemorySegment> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<MemorySegment> record = records.next();
+            MemorySegment key = record.key().asSlice(TOKEN_BYTES);
+            Entry<MemorySegment> entry = lookup.apply(key);
+            if (entry == null) {
+                MemorySegment timestamp = record.value().asSlice(0, Long.BYTES);
+                return new BaseEntry<>(key, null, timestamp);
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package ok.dht.replication;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+import ok.dht.dao.Entry;
+
+import java.nio.ByteOrder;
+
+/**
+ * A Merkle tree over the live entries of every token range of the ring.
+ * <p>
+ * A range is split into {@link #LEAVES} leaves of consecutive tokens. The digest of a leaf is the XOR of the
+ * hashes of its live entries, so a new version of a key updates it in place: XOR out the hash of the old
+ * version, XOR in the new one, and nothing has to be rescanned. Tombstones contribute nothing, which keeps a
+ * tombstone dropped by compaction from changing the tree. Inner nodes are computed from the leaves when a
+ * level is asked for: a whole tree is a few hundred hashes.
+ * <p>
+ * Nodes are numbered per level, level {@code 0} being the root and level {@link #DEPTH} the leaves.
+ */
+public class MerkleTrees {
+    public static final int DEPTH = 8;
+    public static final int LEAVES = 1 << DEPTH;
+    private static final long TOKENS = 1L << Integer.SIZE;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final ConsistentHashingImpl ring;
+    private final long[][] leaves;
+
+    public MerkleTrees(ConsistentHashingImpl ring) {
+        this.ring = ring;
+        this.leaves = new long[ring.rangeCount()][LEAVES];
+    }
+
+    public ConsistentHashingImpl ring() {
+        return ring;
+    }
+
+    /**
+     * Folds {@code delta}, the XOR of the hashes of the old and the new version of a key, into its leaf.
+     */
+    public synchronized void update(int token, long delta) {
+        int range = ring.rangeOf(token);
+        leaves[range][leafOf(range, token)] ^= delta;
+    }
+
+    /**
+     * Returns nodes {@code [from, from + count)} of {@code level} of the tree of {@code range}.
+     */
+    public long[] level(int range, int level, int from, int count) {
+        if (level < 0 || level > DEPTH || from < 0 || count < 0 || from + count > 1 << level) {
+            throw new IllegalArgumentException("No nodes [" + from + ", " + (from + count) + ") at level " + level);
+        }
+        long[] nodes;
+        synchronized (this) {
+            nodes = leaves[range].clone();
+        }
+        for (int width = LEAVES; width > 1 << level; width >>= 1) {
+            for (int i = 0; i < width / 2; i++) {
+                nodes[i] = mix(nodes[2 * i] * GOLDEN_GAMMA + nodes[2 * i + 1]);
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(nodes, from, result, 0, count);
+        return result;
+    }
+
+    int leafOf(int range, int token) {
+        long offset = (token - ring.rangeStart(range) - 1) & 0xFFFFFFFFL;
+        return (int) (offset * LEAVES / rangeSize(range));
+    }
+
+    /**
+     * Returns the tokens of a leaf as {@code [from, to)} offsets from {@link Integer#MIN_VALUE}, so that they
+     * sort like the tokens. {@code from} is below {@code 2^32}, {@code to} exceeds it if the leaf wraps around
+     * the ring.
+     */
+    long[] leafTokens(int range, int leaf) {
+        long size = rangeSize(range);
+        long first = (ring.rangeStart(range) + 1L - Integer.MIN_VALUE) & 0xFFFFFFFFL;
+        // The first offset that leafOf maps to a leaf, rounded up
+        long from = first + (leaf * size + LEAVES - 1) / LEAVES;
+        long to = first + ((leaf + 1L) * size + LEAVES - 1) / LEAVES;
+        if (from >= TOKENS) {
+            from -= TOKENS;
+            to -= TOKENS;
+        }
+        return new long[]{from, to};
+    }
+
+    private long rangeSize(int range) {
+        long size = (ring.rangeEnd(range) - ring.rangeStart(range)) & 0xFFFFFFFFL;
+        // A ring of a single virtual node is one range covering every token
+        return size == 0 ? TOKENS : size;
+    }
+
+    /**
+     * Hashes a live entry; tombstones hash to {@code 0}.
+     */
+    public static long hash(Entry<MemorySegment> entry) {
+        if (entry.value() == null) {
+            return 0;
+        }
+        long hash = hash(entry.key(), 0);
+        hash = hash(entry.timestamp(), hash);
+        return hash(entry.value(), hash);
+    }
+
+    private static long hash(MemorySegment data, long seed) {
+        long hash = mix(seed + data.byteSize() * GOLDEN_GAMMA);
+        long size = data.byteSize();
+        long offset = 0;
+        for (; offset + Long.BYTES <= size; offset += Long.BYTES) {
+            hash = mix(hash ^ MemoryAccess.getLongAtOffset(data, offset, ByteOrder.LITTLE_ENDIAN)) + GOLDEN_GAMMA;
+        }
+        for (; offset < size; offset++) {
+            hash = mix(hash ^ MemoryAccess.getByteAtOffset(data, offset)) + GOLDEN_GAMMA;
+        }
+        return mix(hash);
+    }
+
+    // The finalizer of SplitMix64
+    private static long mix(long value) {
+        long z = value;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
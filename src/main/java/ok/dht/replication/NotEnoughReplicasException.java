@@ -0,0 +1,4 @@
+package ok.dht.replication;
+
+public class NotEnoughReplicasException extends RuntimeException {
+}
@@ -0,0 +1,198 @@
+package ok.dht.replication;
+
+import ok.dht.execution.NamedThreadFactory;
+import ok.dht.utils.RequestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.net.HttpURLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Tells the coordinator which replicas to skip rather than wait the full timeout for.
+ * <p>
+ * Two signals, for two ways of failing. Every peer is sent a heartbeat every {@link #HEARTBEAT_INTERVAL_MS},
+ * and a {@link PhiAccrualFailureDetector} suspects one that stops answering: a crash, a partition. A peer that
+ * answers heartbeats but fails {@link #FAILURES_TO_OPEN} requests in a row, stuck on its disk for instance,
+ * trips its circuit breaker. An open breaker lets no request through for a while, then a single one as a
+ * probe: its success closes the breaker, its failure opens it again for twice as long, up to
+ * {@link #MAX_OPEN_MS}.
+ */
+public class PeerHealth implements Closeable {
+    private static final Log log = LogFactory.getLog(PeerHealth.class);
+
+    private static final long HEARTBEAT_INTERVAL_MS = 200;
+    private static final long MIN_STD_DEV_MS = 100;
+    private static final long ACCEPTABLE_PAUSE_MS = 300;
+    private static final int FAILURES_TO_OPEN = 5;
+    private static final long MIN_OPEN_MS = 1000;
+    private static final long MAX_OPEN_MS = 30_000;
+    private static final int TERMINATION_TIMEOUT_MS = 800;
+
+    private final Supplier<List<String>> peers;
+    private final double phiThreshold;
+    private final PhiAccrualFailureDetector detector =
+            new PhiAccrualFailureDetector(HEARTBEAT_INTERVAL_MS, MIN_STD_DEV_MS, ACCEPTABLE_PAUSE_MS);
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final Set<String> awaitingHeartbeat = ConcurrentHashMap.newKeySet();
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("PeerHealth"));
+
+    // Only touched by the heartbeat thread
+    private final Set<String> suspected = new HashSet<>();
+
+    /**
+     * Watches the nodes {@code peers} returns at the time, and suspects one once its phi reaches
+     * {@code phiThreshold}.
+     */
+    public PeerHealth(Supplier<List<String>> peers, double phiThreshold) {
+        this.peers = peers;
+        this.phiThreshold = phiThreshold;
+        executor.scheduleWithFixedDelay(
+                this::sendHeartbeats,
+                0,
+                HEARTBEAT_INTERVAL_MS,
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Returns whether a request should be sent to {@code node}. A {@code true} from a breaker half open
+     * makes the request its probe, so its outcome must be reported.
+     */
+    public boolean allowRequest(String node) {
+        return detector.phi(node) < phiThreshold && breaker(node).allowRequest(System.nanoTime());
+    }
+
+    /**
+     * Returns whether the failure detector believes {@code node} down. Unlike {@link #allowRequest}, this
+     * never makes a request a probe of an open breaker.
+     */
+    public boolean isSuspected(String node) {
+        return detector.phi(node) >= phiThreshold;
+    }
+
+    public void onSuccess(String node) {
+        if (breaker(node).onSuccess()) {
+            log.info("Circuit to " + node + " closed");
+        }
+    }
+
+    public void onFailure(String node) {
+        long openMs = breaker(node).onFailure(System.nanoTime());
+        if (openMs > 0) {
+            log.warn("Circuit to " + node + " opened for " + openMs + " ms");
+        }
+    }
+
+    private CircuitBreaker breaker(String node) {
+        return breakers.computeIfAbsent(node, n -> new CircuitBreaker());
+    }
+
+    private void sendHeartbeats() {
+        try {
+            for (String peer : peers.get()) {
+                reportSuspicion(peer);
+                // A peer slower than the interval has one heartbeat in flight, not one per tick
+                if (awaitingHeartbeat.add(peer)) {
+                    CompletableFuture<?> ignored = client.sendAsync(
+                            RequestUtils.makeHealthRequest(peer),
+                            HttpResponse.BodyHandlers.discarding()
+                    ).whenComplete((response, throwable) -> {
+                        awaitingHeartbeat.remove(peer);
+                        if (throwable == null && response.statusCode() == HttpURLConnection.HTTP_OK) {
+                            detector.heartbeat(peer);
+                        }
+                    });
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep the periodic task alive: an exception would cancel it for good
+            log.error("Can't send heartbeats", e);
+        }
+    }
+
+    private void reportSuspicion(String peer) {
+        boolean down = isSuspected(peer);
+        if (down && suspected.add(peer)) {
+            log.warn(peer + " is suspected to be down");
+        } else if (!down && suspected.remove(peer)) {
+            log.info(peer + " is up again");
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(TERMINATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class CircuitBreaker {
+        private int failures;
+        private boolean open;
+        private boolean probing;
+        private long openUntilNanos;
+        private long openMs = MIN_OPEN_MS;
+
+        synchronized boolean allowRequest(long nowNanos) {
+            if (!open) {
+                return true;
+            }
+            if (probing || nowNanos - openUntilNanos < 0) {
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+
+        /**
+         * Returns whether this closed the breaker.
+         */
+        synchronized boolean onSuccess() {
+            boolean wasOpen = open;
+            failures = 0;
+            open = false;
+            probing = false;
+            openMs = MIN_OPEN_MS;
+            return wasOpen;
+        }
+
+        /**
+         * Returns for how long this opened the breaker, {@code 0} if it didn't.
+         */
+        synchronized long onFailure(long nowNanos) {
+            if (open) {
+                // Requests sent before the breaker opened fail late; only the probe reopens it
+                if (!probing) {
+                    return 0;
+                }
+                probing = false;
+                openMs = Math.min(openMs * 2, MAX_OPEN_MS);
+            } else if (++failures < FAILURES_TO_OPEN) {
+                return 0;
+            }
+            open = true;
+            openUntilNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(openMs);
+            return openMs;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ok.dht.replication;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells how likely a node is to be down from how long it has been silent, rather than after a fixed timeout.
+ * <p>
+ * Every node keeps the intervals between its last {@link #WINDOW} heartbeats, and the silence since the
+ * latest one is weighed against their normal distribution: phi is {@code -log10} of the probability that
+ * a heartbeat still comes, so {@code 1} means a 10% chance of a wrong suspicion, {@code 8} one in 10^8.
+ * A node that is steady on a quiet network is suspected sooner than one whose heartbeats jitter.
+ * <p>
+ * A node is unknown until it is first asked about, and then assumed to have just sent a heartbeat at the
+ * expected interval, so that one down from the start is suspected too.
+ */
+public class PhiAccrualFailureDetector {
+    private static final int WINDOW = 100;
+    // A silence this many expected intervals long is downtime, not a sample of the network
+    private static final int MAX_INTERVAL_FACTOR = 10;
+
+    private final double expectedIntervalMs;
+    private final double minStdDevMs;
+    private final double acceptablePauseMs;
+    private final Map<String, History> histories = new ConcurrentHashMap<>();
+
+    /**
+     * Expects a heartbeat every {@code expectedIntervalMs}. The standard deviation of the intervals is taken
+     * to be at least {@code minStdDevMs}, and {@code acceptablePauseMs} is added to their mean, so that a
+     * very steady node isn't suspected on the first late heartbeat.
+     */
+    public PhiAccrualFailureDetector(long expectedIntervalMs, long minStdDevMs, long acceptablePauseMs) {
+        this.expectedIntervalMs = expectedIntervalMs;
+        this.minStdDevMs = minStdDevMs;
+        this.acceptablePauseMs = acceptablePauseMs;
+    }
+
+    public void heartbeat(String node) {
+        history(node).heartbeat(System.nanoTime());
+    }
+
+    public double phi(String node) {
+        return history(node).phi(System.nanoTime());
+    }
+
+    private History history(String node) {
+        return histories.computeIfAbsent(node, n -> new History(System.nanoTime()));
+    }
+
+    private final class History {
+        private final double[] intervals = new double[WINDOW];
+        private int count;
+        private int next;
+        private double sum;
+        private double sumOfSquares;
+        private long lastNanos;
+
+        History(long nowNanos) {
+            this.lastNanos = nowNanos;
+            add(expectedIntervalMs);
+        }
+
+        synchronized void heartbeat(long nowNanos) {
+            double interval = millisSince(nowNanos);
+            lastNanos = nowNanos;
+            if (interval <= expectedIntervalMs * MAX_INTERVAL_FACTOR) {
+                add(interval);
+            }
+        }
+
+        private void add(double interval) {
+            if (count == WINDOW) {
+                sum -= intervals[next];
+                sumOfSquares -= intervals[next] * intervals[next];
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW;
+            sum += interval;
+            sumOfSquares += interval * interval;
+        }
+
+        synchronized double phi(long nowNanos) {
+            double mean = sum / count;
+            double variance = Math.max(0, sumOfSquares / count - mean * mean);
+            double stdDev = Math.max(minStdDevMs, Math.sqrt(variance));
+            double elapsed = millisSince(nowNanos);
+
+            // Logistic approximation of the normal CDF, precise enough and free of underflow in the tail
+            double y = (elapsed - (mean + acceptablePauseMs)) / stdDev;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+        }
+
+        private double millisSince(long nowNanos) {
+            return (double) (nowNanos - lastNanos) / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ok.dht.replication;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects replica responses and completes its future as soon as the outcome is known:
+ * either {@code ack} successful responses have arrived or {@code from - ack + 1} replicas
+ * have failed, so the quorum can no longer be reached.
+ */
+public class QuorumCollector<T> {
+    private final int numberOfAcks;
+    private final int maxFailures;
+
+    private final Queue<T> responses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger successCount = new AtomicInteger();
+    private final AtomicInteger failCount = new AtomicInteger();
+    private final CompletableFuture<List<T>> result = new CompletableFuture<>();
+
+    public QuorumCollector(ReplicationParameters parameters) {
+        this.numberOfAcks = parameters.getNumberOfAcks();
+        this.maxFailures = parameters.getNumberOfReplicas() - parameters.getNumberOfAcks();
+    }
+
+    public void onSuccess(T response) {
+        responses.add(response);
+        if (successCount.incrementAndGet() == numberOfAcks) {
+            result.complete(List.copyOf(responses));
+        }
+    }
+
+    public void onFailure() {
+        if (failCount.incrementAndGet() == maxFailures + 1) {
+            result.completeExceptionally(new NotEnoughReplicasException());
+        }
+    }
+
+    public CompletableFuture<List<T>> future() {
+        return result;
+    }
+}
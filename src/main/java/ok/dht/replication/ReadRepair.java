@@ -0,0 +1,52 @@
+package ok.dht.replication;
+
+import ok.dht.utils.RequestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Pushes the newest version found by a quorum read back to the replicas that answered with an older one.
+ * <p>
+ * Repairs are sent asynchronously over the synchronization path with the {@code ifNewer} flag, so the read
+ * never waits for them and a repair can't undo a write that overtook it. Only a {@code chance} fraction of
+ * the reads that disagree is repaired: a hot key still converges after a few reads, without every read of
+ * it turning into writes.
+ */
+public class ReadRepair {
+    private static final Log log = LogFactory.getLog(ReadRepair.class);
+
+    private final double chance;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+
+    public ReadRepair(double chance) {
+        this.chance = chance;
+    }
+
+    /**
+     * Decides whether a read whose replicas disagree gets repaired.
+     */
+    public boolean shouldRepair() {
+        return chance >= 1 || ThreadLocalRandom.current().nextDouble() < chance;
+    }
+
+    /**
+     * Sends the winning version to a stale peer; {@code value == null} repairs a deletion.
+     */
+    public void repair(String node, int method, String key, byte[] value, long timestamp) {
+        CompletableFuture<?> ignored = client.sendAsync(
+                RequestUtils.makeHttpRequest(node, key, method, value, timestamp, true),
+                HttpResponse.BodyHandlers.discarding()
+        ).whenComplete((response, throwable) -> {
+            if (throwable != null && log.isDebugEnabled()) {
+                log.debug("Read repair of " + node + " failed: " + throwable.getMessage());
+            }
+        });
+    }
+}
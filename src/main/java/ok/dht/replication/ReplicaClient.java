@@ -0,0 +1,17 @@
+package ok.dht.replication;
+
+import one.nio.http.Response;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport used by the coordinator to apply a request on a remote replica.
+ * The returned response mirrors the one produced by the replica's local handler.
+ */
+public interface ReplicaClient extends Closeable {
+    CompletableFuture<Response> send(String node, int method, String key, byte[] value, long timestamp);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,10 @@
+package ok.dht.replication;
+
+/**
+ * A replica the coordinator didn't send a request to, because {@link PeerHealth} knows it to be down.
+ */
+public class ReplicaUnavailableException extends RuntimeException {
+    public ReplicaUnavailableException(String node) {
+        super(node + " is unavailable");
+    }
+}
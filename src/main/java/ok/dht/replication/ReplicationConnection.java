@@ -0,0 +1,218 @@
+package ok.dht.replication;
+
+import ok.dht.utils.RequestUtils;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+import one.nio.util.Utf8;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent connection to a single peer speaking {@link ReplicationProtocol}.
+ * Requests are pipelined: senders only enqueue frames, a writer thread coalesces
+ * queued frames into batches written with a single syscall, and a reader thread
+ * matches responses to the waiting futures by request id.
+ */
+class ReplicationConnection implements Closeable {
+    private static final Log log = LogFactory.getLog(ReplicationConnection.class);
+
+    private static final byte[] HEADERS_END = Utf8.toBytes("\r\n\r\n");
+    private static final String SWITCHING_PROTOCOLS_STATUS = "HTTP/1.1 101";
+
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final int MAX_QUEUED_FRAMES = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final Map<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+    private final BlockingQueue<byte[]> outbound = new LinkedBlockingQueue<>(MAX_QUEUED_FRAMES);
+    private final AtomicLong nextId = new AtomicLong();
+
+    private volatile boolean closed;
+    private Thread writer;
+
+    private ReplicationConnection(Socket socket) {
+        this.socket = socket;
+    }
+
+    static ReplicationConnection open(String node) throws IOException {
+        URI uri = URI.create(node);
+        Socket socket = Socket.create();
+        try {
+            socket.setTimeout(RequestUtils.CONNECTION_TIMEOUT_MS);
+            socket.connect(uri.getHost(), uri.getPort());
+            socket.setNoDelay(true);
+            upgrade(socket, uri);
+            socket.setTimeout(0);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        ReplicationConnection connection = new ReplicationConnection(socket);
+        connection.writer = startThread(connection::writeRequests, "ReplicationWriter-" + uri.getAuthority());
+        startThread(connection::readResponses, "ReplicationReader-" + uri.getAuthority());
+        return connection;
+    }
+
+    private static Thread startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void upgrade(Socket socket, URI uri) throws IOException {
+        byte[] request = Utf8.toBytes(
+                "GET " + RequestUtils.REPLICATION_PATH + " HTTP/1.1\r\n"
+                        + "Host: " + uri.getAuthority() + "\r\n"
+                        + "Connection: Upgrade\r\n"
+                        + "Upgrade: " + ReplicationProtocol.UPGRADE_PROTOCOL + "\r\n"
+                        + "\r\n"
+        );
+        socket.writeFully(request, 0, request.length);
+
+        // Read byte by byte so that nothing past the headers is consumed
+        StringBuilder headers = new StringBuilder();
+        byte[] next = new byte[1];
+        int matched = 0;
+        while (matched < HEADERS_END.length) {
+            socket.readFully(next, 0, 1);
+            headers.append((char) next[0]);
+            matched = next[0] == HEADERS_END[matched] ? matched + 1 : (next[0] == HEADERS_END[0] ? 1 : 0);
+        }
+        if (!headers.toString().startsWith(SWITCHING_PROTOCOLS_STATUS)) {
+            throw new IOException("Peer refused replication upgrade: " + headers);
+        }
+    }
+
+    CompletableFuture<Response> send(int method, byte[] key, long timestamp, byte[] value) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Connection is closed"));
+        }
+        long id = nextId.getAndIncrement();
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        pending.put(id, future);
+
+        if (!outbound.offer(ReplicationProtocol.encodeRequest(id, method, key, timestamp, value))) {
+            pending.remove(id);
+            return CompletableFuture.failedFuture(new IOException("Replication queue is full"));
+        }
+
+        return future.orTimeout(RequestUtils.CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((response, throwable) -> pending.remove(id));
+    }
+
+    private void writeRequests() {
+        byte[] batch = new byte[MAX_BATCH_BYTES];
+        try {
+            while (!closed) {
+                byte[] frame = outbound.take();
+                int batchLength = 0;
+                int batchFrames = 0;
+                long lingerDeadline = System.nanoTime() + LINGER_NANOS;
+                while (frame != null) {
+                    if (batchLength + frame.length > batch.length) {
+                        batch = Arrays.copyOf(batch, batchLength + frame.length);
+                    }
+                    System.arraycopy(frame, 0, batch, batchLength, frame.length);
+                    batchLength += frame.length;
+                    batchFrames++;
+                    if (batchLength >= MAX_BATCH_BYTES) {
+                        break;
+                    }
+                    frame = nextFrame(batchFrames, lingerDeadline);
+                }
+                socket.writeFully(batch, 0, batchLength);
+                if (batch.length > MAX_BATCH_BYTES) {
+                    batch = new byte[MAX_BATCH_BYTES];
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            closeExceptionally(e);
+        }
+    }
+
+    private byte[] nextFrame(int batchFrames, long lingerDeadline) throws InterruptedException {
+        byte[] frame = outbound.poll();
+        if (frame != null) {
+            return frame;
+        }
+        // Linger only while other requests are in flight: an idle peer gets the frame right away
+        long linger = lingerDeadline - System.nanoTime();
+        if (linger <= 0 || pending.size() <= batchFrames) {
+            return null;
+        }
+        return outbound.poll(linger, TimeUnit.NANOSECONDS);
+    }
+
+    private void readResponses() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        ReplicationFrameReader frameReader = new ReplicationFrameReader(this::completeRequest);
+        try {
+            while (!closed) {
+                int length = socket.read(buffer, 0, buffer.length, 0);
+                if (length <= 0) {
+                    throw new IOException("Connection closed by peer");
+                }
+                frameReader.feed(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            closeExceptionally(e);
+        }
+    }
+
+    private void completeRequest(byte[] frame, int offset, int length) {
+        CompletableFuture<Response> future = pending.remove(ReplicationProtocol.responseId(frame, offset, length));
+        if (future == null) {
+            return;
+        }
+        try {
+            future.complete(ReplicationProtocol.decodeResponse(frame, offset, length));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    boolean isOpen() {
+        return !closed;
+    }
+
+    private void closeExceptionally(IOException cause) {
+        if (!closed && log.isDebugEnabled()) {
+            log.debug("Replication connection failed: " + cause.getMessage());
+        }
+        closed = true;
+        socket.close();
+        if (writer != null) {
+            writer.interrupt();
+        }
+        outbound.clear();
+        for (Long id : pending.keySet()) {
+            CompletableFuture<Response> future = pending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closeExceptionally(new IOException("Connection is closed"));
+    }
+}
@@ -0,0 +1,66 @@
+package ok.dht.replication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reassembles length-prefixed replication frames from arbitrary socket reads,
+ * so that a batch of frames arriving in one read is consumed without extra syscalls.
+ * Not thread-safe: it is fed from the single thread reading the connection.
+ * <p>
+ * The length prefix comes from the peer, so it is checked before anything is buffered for it: a negative
+ * length or one above {@link #MAX_FRAME_LENGTH} fails the read, and the caller closes the connection.
+ */
+public class ReplicationFrameReader {
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final FrameConsumer consumer;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length;
+
+    public ReplicationFrameReader(FrameConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    public void feed(byte[] data, int offset, int count) throws IOException {
+        ensureCapacity(length + count);
+        System.arraycopy(data, offset, buffer, length, count);
+        length += count;
+
+        int position = 0;
+        while (length - position >= ReplicationProtocol.LENGTH_SIZE) {
+            int frameLength = ByteBuffer.wrap(buffer, position, ReplicationProtocol.LENGTH_SIZE).getInt();
+            if (frameLength < 0 || frameLength > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid replication frame length: " + frameLength);
+            }
+            int frameEnd = position + ReplicationProtocol.LENGTH_SIZE + frameLength;
+            if (frameEnd > length) {
+                break;
+            }
+            consumer.accept(buffer, position + ReplicationProtocol.LENGTH_SIZE, frameLength);
+            position = frameEnd;
+        }
+
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, length - position);
+            length -= position;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+    @FunctionalInterface
+    public interface FrameConsumer {
+        /**
+         * Called for every complete frame; the bytes are only valid for the duration of the call.
+         */
+        void accept(byte[] frame, int offset, int length);
+    }
+}
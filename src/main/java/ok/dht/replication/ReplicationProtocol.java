@@ -0,0 +1,85 @@
+package ok.dht.replication;
+
+import ok.dht.utils.RequestUtils;
+import one.nio.http.Response;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary framing used between cluster members once a connection has been upgraded
+ * on {@link RequestUtils#REPLICATION_PATH}.
+ * <p>
+ * Every frame is prefixed with its length (not including the prefix itself).
+ * Request: {@code id:long, method:byte, keyLength:int, key, timestamp:long, valueLength:int, value}
+ * where {@code valueLength == -1} stands for an absent value.
+ * Response: {@code id:long, status:int, body}.
+ */
+public final class ReplicationProtocol {
+    public static final String UPGRADE_PROTOCOL = "dht-replication";
+    public static final String SWITCHING_PROTOCOLS = "101 Switching Protocols";
+
+    static final int LENGTH_SIZE = Integer.BYTES;
+    private static final int REQUEST_HEADER_SIZE = Long.BYTES + Byte.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int RESPONSE_HEADER_SIZE = Long.BYTES + Integer.BYTES;
+
+    private ReplicationProtocol() {
+    }
+
+    public static byte[] encodeRequest(long id, int method, byte[] key, long timestamp, byte[] value) {
+        int valueLength = value == null ? 0 : value.length;
+        int frameLength = REQUEST_HEADER_SIZE + key.length + valueLength;
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_SIZE + frameLength)
+                .putInt(frameLength)
+                .putLong(id)
+                .put((byte) method)
+                .putInt(key.length)
+                .put(key)
+                .putLong(timestamp);
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(value.length).put(value);
+        }
+        return buffer.array();
+    }
+
+    public static ReplicationRequest decodeRequest(byte[] frame, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame, offset, length);
+        long id = buffer.getLong();
+        int method = buffer.get();
+        byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        long timestamp = buffer.getLong();
+        int valueLength = buffer.getInt();
+        byte[] value = null;
+        if (valueLength >= 0) {
+            value = new byte[valueLength];
+            buffer.get(value);
+        }
+        return new ReplicationRequest(id, method, key, timestamp, value);
+    }
+
+    public static byte[] encodeResponse(long id, Response response) {
+        byte[] body = response.getBody();
+        int frameLength = RESPONSE_HEADER_SIZE + body.length;
+        return ByteBuffer.allocate(LENGTH_SIZE + frameLength)
+                .putInt(frameLength)
+                .putLong(id)
+                .putInt(response.getStatus())
+                .put(body)
+                .array();
+    }
+
+    static long responseId(byte[] frame, int offset, int length) {
+        return ByteBuffer.wrap(frame, offset, length).getLong();
+    }
+
+    static Response decodeResponse(byte[] frame, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame, offset, length);
+        buffer.position(offset + Long.BYTES);
+        int status = buffer.getInt();
+        byte[] body = new byte[buffer.remaining()];
+        buffer.get(body);
+        return new Response(RequestUtils.matchStatusCode(status), body);
+    }
+}
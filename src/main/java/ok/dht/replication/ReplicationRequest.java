@@ -0,0 +1,4 @@
+package ok.dht.replication;
+
+public record ReplicationRequest(long id, int method, byte[] key, long timestamp, byte[] value) {
+}
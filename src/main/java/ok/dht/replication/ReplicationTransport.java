@@ -0,0 +1,12 @@
+package ok.dht.replication;
+
+public enum ReplicationTransport {
+    /**
+     * One java.net.http request to {@code /synchronization} per replica operation.
+     */
+    HTTP,
+    /**
+     * Length-prefixed binary frames pipelined over a persistent upgraded connection per peer.
+     */
+    BINARY
+}
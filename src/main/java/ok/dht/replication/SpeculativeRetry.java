@@ -0,0 +1,125 @@
+package ok.dht.replication;
+
+import ok.dht.execution.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Sends a request to as few replicas as the quorum needs, and to one more for every replica that fails or
+ * takes longer than usual.
+ * <p>
+ * "Usual" is a per-replica percentile of the latencies in the {@link LatencyTracker}, so a replica that is
+ * always slow doesn't trigger extra requests while one stuck in a GC pause or behind a compaction does,
+ * long before the request times out. Each replica that is sent a request is replaced at most once.
+ */
+public class SpeculativeRetry implements Closeable {
+    private static final long DEFAULT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final LatencyTracker latencies;
+    private final double percentile;
+    private final long maxDelayNanos;
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SpeculativeRetry"));
+
+    /**
+     * Speculates once a replica is slower than {@code percentile} of its recent requests, and no later than
+     * {@code maxDelayMs}.
+     */
+    public SpeculativeRetry(LatencyTracker latencies, double percentile, long maxDelayMs) {
+        this.latencies = latencies;
+        this.percentile = percentile;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+    }
+
+    /**
+     * Sends to the {@code initial} fastest of {@code nodes}, then to the next fastest whenever one of those
+     * fails or runs late, until {@code done} completes or no node is left.
+     */
+    public void dispatch(
+            List<String> nodes,
+            int initial,
+            CompletableFuture<?> done,
+            Function<String, CompletableFuture<?>> send
+    ) {
+        List<String> ordered = latencies.fastestFirst(nodes);
+        Dispatch dispatch = new Dispatch(new ArrayDeque<>(ordered.subList(initial, ordered.size())), done, send);
+        for (String node : ordered.subList(0, initial)) {
+            dispatch.send(node);
+        }
+    }
+
+    private long delayNanos(String node) {
+        long delay = latencies.percentile(node, percentile, DEFAULT_DELAY_NANOS);
+        return Math.max(MIN_DELAY_NANOS, Math.min(maxDelayNanos, delay));
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    private final class Dispatch {
+        private final Deque<String> spares;
+        private final CompletableFuture<?> done;
+        private final Function<String, CompletableFuture<?>> send;
+
+        Dispatch(Deque<String> spares, CompletableFuture<?> done, Function<String, CompletableFuture<?>> send) {
+            this.spares = spares;
+            this.done = done;
+            this.send = send;
+        }
+
+        void send(String node) {
+            AtomicBoolean replaced = new AtomicBoolean();
+            CompletableFuture<?> response = send.apply(node);
+            CompletableFuture<?> ignored = response.whenComplete((result, throwable) -> {
+                if (throwable != null && replaced.compareAndSet(false, true)) {
+                    sendSpare();
+                }
+            });
+
+            if (response.isDone() || !hasSpares()) {
+                return;
+            }
+            try {
+                timer.schedule(() -> {
+                    if (!response.isDone() && replaced.compareAndSet(false, true)) {
+                        sendSpare();
+                    }
+                }, delayNanos(node), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closing: the request still completes or times out on its own
+            }
+        }
+
+        private void sendSpare() {
+            if (done.isDone()) {
+                return;
+            }
+            String spare;
+            synchronized (spares) {
+                spare = spares.pollFirst();
+            }
+            if (spare != null) {
+                send(spare);
+            }
+        }
+
+        private boolean hasSpares() {
+            synchronized (spares) {
+                return !spares.isEmpty();
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ok.dht.streaming;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.dao.Entry;
+import ok.dht.utils.Utils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Packs range entries into HTTP chunks of about {@link #CHUNK_SIZE}.
+ * <p>
+ * A chunk is assembled in one buffer: records are copied there straight from the entry segments,
+ * and the chunk size line (preceded by the response headers for the first chunk, followed by the last chunk
+ * once the iterator is exhausted) is written in the room reserved around them, so a chunk is one socket write.
+ */
+final class ChunkEncoder {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte[] LINE_END = Utils.toBytes("\r\n");
+    private static final byte[] LAST_CHUNK = Utils.toBytes("0\r\n\r\n");
+    private static final byte[] HEX_DIGITS = Utils.toBytes("0123456789abcdef");
+    // Chunk size in hex followed by CRLF
+    private static final int CHUNK_SIZE_LINE_CAPACITY = Integer.BYTES * 2 + 2;
+    private static final int TRAILER_CAPACITY = 2 + 5;
+
+    private final byte[] headers;
+    private final RecordFormat format;
+    private final int dataStart;
+
+    private Entry<MemorySegment> pending;
+    private boolean sendHeaders = true;
+    private boolean finished;
+    private int start;
+    private int end;
+
+    ChunkEncoder(byte[] headers, RecordFormat format) {
+        this.headers = Arrays.copyOf(headers, headers.length);
+        this.format = format;
+        this.dataStart = headers.length + CHUNK_SIZE_LINE_CAPACITY;
+    }
+
+    byte[] newBuffer() {
+        return newBuffer(CHUNK_SIZE);
+    }
+
+    /**
+     * Fills {@code buffer} with the next chunk, found in {@code [start(), end())} of the returned buffer.
+     * That is {@code buffer} itself unless a single record doesn't fit in it.
+     */
+    byte[] fill(byte[] buffer, Iterator<Entry<MemorySegment>> iterator) {
+        byte[] chunk = buffer;
+        MemorySegment segment = MemorySegment.ofArray(chunk);
+        long position = dataStart;
+        while (pending != null || iterator.hasNext()) {
+            Entry<MemorySegment> entry = pending == null ? iterator.next() : pending;
+            pending = null;
+            long recordSize = format.recordSize(entry);
+            if (position + recordSize + TRAILER_CAPACITY > chunk.length) {
+                if (position > dataStart) {
+                    pending = entry;
+                    break;
+                }
+                if (recordSize > Integer.MAX_VALUE - dataStart - TRAILER_CAPACITY) {
+                    throw new IllegalStateException("Entry is too large to stream: " + recordSize);
+                }
+                chunk = newBuffer((int) recordSize);
+                segment = MemorySegment.ofArray(chunk);
+            }
+            position = format.write(entry, segment, position);
+            if (position - dataStart >= CHUNK_SIZE) {
+                break;
+            }
+        }
+
+        end = (int) position;
+        start = dataStart;
+        if (end > dataStart) {
+            start = prependSizeLine(chunk, end - dataStart);
+            end = append(chunk, LINE_END, end);
+        }
+        if (pending == null && !iterator.hasNext()) {
+            end = append(chunk, LAST_CHUNK, end);
+            finished = true;
+        }
+        if (sendHeaders) {
+            start -= headers.length;
+            System.arraycopy(headers, 0, chunk, start, headers.length);
+            sendHeaders = false;
+        }
+        return chunk;
+    }
+
+    int start() {
+        return start;
+    }
+
+    int end() {
+        return end;
+    }
+
+    /**
+     * Returns {@code true} once the last chunk has been filled.
+     */
+    boolean finished() {
+        return finished;
+    }
+
+    private byte[] newBuffer(int dataCapacity) {
+        return new byte[dataStart + dataCapacity + TRAILER_CAPACITY];
+    }
+
+    private static int append(byte[] chunk, byte[] bytes, int offset) {
+        System.arraycopy(bytes, 0, chunk, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    /**
+     * Writes the hex size line right before the data and returns where it begins.
+     */
+    private int prependSizeLine(byte[] chunk, int size) {
+        int position = dataStart - LINE_END.length;
+        System.arraycopy(LINE_END, 0, chunk, position, LINE_END.length);
+        int remaining = size;
+        do {
+            chunk[--position] = HEX_DIGITS[remaining & 0xF];
+            remaining >>>= 4;
+        } while (remaining != 0);
+        return position;
+    }
+}
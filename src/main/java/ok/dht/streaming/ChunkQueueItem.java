@@ -0,0 +1,57 @@
+package ok.dht.streaming;
+
+import one.nio.net.Session.QueueItem;
+import one.nio.net.Socket;
+
+import java.io.IOException;
+import java.util.Queue;
+
+/**
+ * A filled chunk buffer pushed to the session by a producer thread. The buffer goes back to
+ * {@code freeBuffers} once it has been written or the session dropped it.
+ */
+final class ChunkQueueItem extends QueueItem {
+    private final byte[] buffer;
+    private final int limit;
+    private final Queue<byte[]> freeBuffers;
+
+    private int position;
+    private boolean recycled;
+
+    ChunkQueueItem(byte[] buffer, int start, int end, Queue<byte[]> freeBuffers) {
+        super();
+        this.buffer = buffer;
+        this.position = start;
+        this.limit = end;
+        this.freeBuffers = freeBuffers;
+    }
+
+    @Override
+    public int remaining() {
+        return limit - position;
+    }
+
+    @Override
+    public int write(Socket socket) throws IOException {
+        int bytesWritten = socket.write(buffer, position, limit - position, 0);
+        if (bytesWritten > 0) {
+            position += bytesWritten;
+        }
+        if (position == limit) {
+            recycle();
+        }
+        return bytesWritten;
+    }
+
+    @Override
+    public void release() {
+        recycle();
+    }
+
+    private synchronized void recycle() {
+        if (!recycled) {
+            recycled = true;
+            freeBuffers.add(buffer);
+        }
+    }
+}
@@ -8,14 +8,24 @@ import java.util.Iterator;
 
 public class ChunkedResponse extends Response {
     private final Iterator<Entry<MemorySegment>> iterator;
+    private final RecordFormat format;
 
     public ChunkedResponse(Iterator<Entry<MemorySegment>> iterator) {
+        this(iterator, RecordFormat.CLIENT);
+    }
+
+    public ChunkedResponse(Iterator<Entry<MemorySegment>> iterator, RecordFormat format) {
         super(OK);
         addHeader("Transfer-Encoding: chunked");
         this.iterator = iterator;
+        this.format = format;
     }
 
     public Iterator<Entry<MemorySegment>> getIterator() {
         return iterator;
     }
+
+    public RecordFormat getFormat() {
+        return format;
+    }
 }
@@ -0,0 +1,272 @@
+package ok.dht.streaming;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+import ok.dht.dao.Entry;
+import ok.dht.dao.EntryKeyComparator;
+import ok.dht.dao.EntryTimestampComparator;
+import ok.dht.dao.MergeIterator;
+import ok.dht.dao.TombstoneFilteringIterator;
+import ok.dht.execution.NamedThreadFactory;
+import ok.dht.utils.RequestUtils;
+import one.nio.http.Response;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * Answers {@code /v0/entities} for the whole cluster.
+ * <p>
+ * Keys are spread over the ring by hash, so every node may own part of any key range. The scan reads every
+ * token range from its owner, the first replica the ring gives for it, or from the next replica if the owner
+ * is suspected down or doesn't answer in time; the range is unavailable once no replica is left. Each chosen
+ * peer streams its local entries with timestamps and tombstones, and a scan thread merges them with the
+ * coordinator's own ones, keeping the newest version of every key.
+ * <p>
+ * Memory is bounded on both sides: a peer stream buffers one read, leaving the peer blocked on TCP flow
+ * control while the merge is behind, and the merged chunks are pushed to the client session from a small
+ * pool of buffers, so the scan waits whenever the client reads slowly.
+ */
+public class ClusterRangeScanner implements Closeable {
+    private static final Log log = LogFactory.getLog(ClusterRangeScanner.class);
+
+    private static final int MAX_CONCURRENT_SCANS = 8;
+    private static final int MAX_CHUNKS_IN_FLIGHT = 4;
+    private static final int KEEP_ALIVE_TIME_MS = 60_000;
+    private static final long CLOSED_SESSION_CHECK_INTERVAL_MS = 100;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+    private final String selfUrl;
+    private final Predicate<String> suspected;
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            0,
+            MAX_CONCURRENT_SCANS,
+            KEEP_ALIVE_TIME_MS,
+            TimeUnit.MILLISECONDS,
+            new SynchronousQueue<>(),
+            new NamedThreadFactory("RangeScan")
+    );
+
+    /**
+     * {@code suspected} tells the peers the failure detector believes down, which are skipped in favour of
+     * the next replicas.
+     */
+    public ClusterRangeScanner(String selfUrl, Predicate<String> suspected) {
+        this.selfUrl = selfUrl;
+        this.suspected = suspected;
+    }
+
+    /**
+     * Starts streaming {@code [start, end)} to {@code session}, merged from {@code local} and the peers owning
+     * the token ranges of {@code ring}. Responds with 503 right away if too many scans are running.
+     */
+    public void scan(
+            StreamingHttpSession session,
+            ConsistentHashingImpl ring,
+            Iterator<Entry<MemorySegment>> local,
+            String start,
+            String end
+    ) throws IOException {
+        try {
+            executor.execute(() -> run(session, ring, local, start, end));
+        } catch (RejectedExecutionException e) {
+            session.sendResponse(new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+        }
+    }
+
+    private void run(
+            StreamingHttpSession session,
+            ConsistentHashingImpl ring,
+            Iterator<Entry<MemorySegment>> local,
+            String start,
+            String end
+    ) {
+        List<PeerRangeIterator> streams = new ArrayList<>();
+        try {
+            if (!openStreams(ring, start, end, streams)) {
+                session.sendResponse(new Response(RequestUtils.NOT_ENOUGH_REPLICAS, Response.EMPTY));
+                return;
+            }
+
+            List<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(streams);
+            iterators.add(local);
+            Iterator<Entry<MemorySegment>> merged = new TombstoneFilteringIterator(MergeIterator.of(
+                    iterators,
+                    EntryKeyComparator.INSTANCE,
+                    EntryTimestampComparator.INSTANCE
+            ));
+            stream(session, merged);
+        } catch (IOException | UncheckedIOException e) {
+            // The headers may be gone already, so the only way to report a broken stream is to cut it
+            if (log.isDebugEnabled()) {
+                log.debug("Range scan aborted: " + e.getMessage());
+            }
+            session.close();
+        } catch (InterruptedException e) {
+            session.close();
+            Thread.currentThread().interrupt();
+        } finally {
+            for (PeerRangeIterator stream : streams) {
+                closeQuietly(stream);
+            }
+        }
+    }
+
+    /**
+     * Adds a stream to {@code streams} for every peer the token ranges are read from. A peer that fails or
+     * times out is replaced by the next replicas of its ranges, requested all at once again.
+     * Returns {@code false} if some token range has no replica left to read it from.
+     */
+    private boolean openStreams(
+            ConsistentHashingImpl ring,
+            String start,
+            String end,
+            List<PeerRangeIterator> streams
+    ) throws InterruptedException {
+        Set<String> failed = new HashSet<>();
+        Set<String> opened = new HashSet<>();
+        opened.add(selfUrl);
+        while (true) {
+            Set<String> sources = sources(ring, failed);
+            if (sources == null) {
+                return false;
+            }
+            sources.removeAll(opened);
+            if (sources.isEmpty()) {
+                return true;
+            }
+
+            Map<String, CompletableFuture<HttpResponse<InputStream>>> responses = new HashMap<>();
+            for (String peer : sources) {
+                responses.put(peer, client.sendAsync(
+                        RequestUtils.makeRangeRequest(peer, start, end),
+                        HttpResponse.BodyHandlers.ofInputStream()
+                ));
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RequestUtils.CONNECTION_TIMEOUT_MS);
+            for (Map.Entry<String, CompletableFuture<HttpResponse<InputStream>>> response : responses.entrySet()) {
+                String peer = response.getKey();
+                HttpResponse<InputStream> peerResponse = await(peer, response.getValue(), deadline);
+                if (peerResponse == null) {
+                    failed.add(peer);
+                } else if (peerResponse.statusCode() != HttpURLConnection.HTTP_OK) {
+                    failed.add(peer);
+                    closeQuietly(peerResponse.body());
+                } else {
+                    opened.add(peer);
+                    streams.add(new PeerRangeIterator(peerResponse.body()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first replica of every token range that is neither suspected nor in {@code failed},
+     * or {@code null} if some range has none.
+     */
+    private Set<String> sources(ConsistentHashingImpl ring, Set<String> failed) {
+        Set<String> sources = new HashSet<>();
+        for (int range = 0; range < ring.rangeCount(); range++) {
+            String source = null;
+            for (int i = 0; i < ring.nodeCount() && source == null; i++) {
+                String replica = ring.replica(range, i);
+                if (replica.equals(selfUrl) || !failed.contains(replica) && !suspected.test(replica)) {
+                    source = replica;
+                }
+            }
+            if (source == null) {
+                return null;
+            }
+            sources.add(source);
+        }
+        return sources;
+    }
+
+    /**
+     * Waits for the response headers of a peer until {@code deadlineNanos}, returns {@code null} if they
+     * didn't come.
+     */
+    private static HttpResponse<InputStream> await(
+            String peer,
+            CompletableFuture<HttpResponse<InputStream>> response,
+            long deadlineNanos
+    ) throws InterruptedException {
+        try {
+            return response.get(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // A response that comes after all is not read from, its connection must be released
+            CompletableFuture<?> ignored = response.thenAccept(late -> closeQuietly(late.body()));
+            if (log.isDebugEnabled()) {
+                log.debug("Range request to " + peer + " failed: " + e);
+            }
+            return null;
+        }
+    }
+
+    private static void stream(
+            StreamingHttpSession session,
+            Iterator<Entry<MemorySegment>> iterator
+    ) throws IOException, InterruptedException {
+        ChunkEncoder encoder = new ChunkEncoder(new ChunkedResponse(null).toBytes(false), RecordFormat.CLIENT);
+        BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(MAX_CHUNKS_IN_FLIGHT);
+        for (int i = 0; i < MAX_CHUNKS_IN_FLIGHT; i++) {
+            freeBuffers.add(encoder.newBuffer());
+        }
+
+        while (!encoder.finished()) {
+            byte[] buffer = freeBuffers.poll(CLOSED_SESSION_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (buffer == null) {
+                if (!session.socket().isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                continue;
+            }
+            byte[] chunk = encoder.fill(buffer, iterator);
+            session.write(new ChunkQueueItem(chunk, encoder.start(), encoder.end(), freeBuffers));
+        }
+        session.sendResponse(new StreamEndResponse());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug(e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,84 @@
+package ok.dht.streaming;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.dao.BaseEntry;
+import ok.dht.dao.Entry;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the {@link RecordFormat#REPLICA} records a peer streams for its part of a range scan or a Merkle leaf.
+ * At most one read buffer is held per peer: the peer is slowed down by TCP flow control when
+ * the merge falls behind.
+ */
+public final class PeerRangeIterator implements Iterator<Entry<MemorySegment>>, Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream input;
+    private Entry<MemorySegment> next;
+    private boolean exhausted;
+
+    public PeerRangeIterator(InputStream input) {
+        this.input = new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !exhausted) {
+            try {
+                next = readRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            exhausted = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public Entry<MemorySegment> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entry<MemorySegment> entry = next;
+        next = null;
+        return entry;
+    }
+
+    private Entry<MemorySegment> readRecord() throws IOException {
+        int keySize;
+        try {
+            keySize = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] key = new byte[keySize];
+        input.readFully(key);
+        byte[] timestamp = new byte[Long.BYTES];
+        input.readFully(timestamp);
+        int valueSize = input.readInt();
+        byte[] value = null;
+        if (valueSize >= 0) {
+            value = new byte[valueSize];
+            input.readFully(value);
+        }
+        return new BaseEntry<>(
+                MemorySegment.ofArray(key),
+                value == null ? null : MemorySegment.ofArray(value),
+                MemorySegment.ofArray(timestamp)
+        );
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
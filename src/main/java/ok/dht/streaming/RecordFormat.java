@@ -0,0 +1,75 @@
+package ok.dht.streaming;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.dao.Entry;
+
+import java.nio.ByteOrder;
+
+/**
+ * How range entries are serialized inside the HTTP chunks of a stream.
+ */
+public enum RecordFormat {
+    /**
+     * {@code key '\n' value}, for clients of {@code /v0/entities}; the stream holds live entries only.
+     */
+    CLIENT {
+        @Override
+        long recordSize(Entry<MemorySegment> entry) {
+            return entry.key().byteSize() + 1 + entry.value().byteSize();
+        }
+
+        @Override
+        long write(Entry<MemorySegment> entry, MemorySegment buffer, long offset) {
+            long end = copy(entry.key(), buffer, offset);
+            MemoryAccess.setByteAtOffset(buffer, end, (byte) '\n');
+            return copy(entry.value(), buffer, end + 1);
+        }
+    },
+
+    /**
+     * {@code keySize:int, key, timestamp:long, valueSize:int, value} in big-endian order,
+     * {@code valueSize == -1} marking a tombstone. Replicas answer coordinated range scans with it.
+     */
+    REPLICA {
+        @Override
+        long recordSize(Entry<MemorySegment> entry) {
+            long valueSize = entry.value() == null ? 0 : entry.value().byteSize();
+            return Integer.BYTES + entry.key().byteSize() + Long.BYTES + Integer.BYTES + valueSize;
+        }
+
+        @Override
+        long write(Entry<MemorySegment> entry, MemorySegment buffer, long offset) {
+            MemoryAccess.setIntAtOffset(buffer, offset, ByteOrder.BIG_ENDIAN, (int) entry.key().byteSize());
+            long end = copy(entry.key(), buffer, offset + Integer.BYTES);
+            end = copy(entry.timestamp(), buffer, end);
+            if (entry.value() == null) {
+                MemoryAccess.setIntAtOffset(buffer, end, ByteOrder.BIG_ENDIAN, -1);
+                return end + Integer.BYTES;
+            }
+            MemoryAccess.setIntAtOffset(buffer, end, ByteOrder.BIG_ENDIAN, (int) entry.value().byteSize());
+            return copy(entry.value(), buffer, end + Integer.BYTES);
+        }
+    };
+
+    abstract long recordSize(Entry<MemorySegment> entry);
+
+    /**
+     * Serializes {@code entry} on the heap, to be sent as part of a body a {@link PeerRangeIterator} reads.
+     */
+    public byte[] encode(Entry<MemorySegment> entry) {
+        byte[] record = new byte[Math.toIntExact(recordSize(entry))];
+        write(entry, MemorySegment.ofArray(record), 0);
+        return record;
+    }
+
+    /**
+     * Writes the record at {@code offset} and returns the offset right after it.
+     */
+    abstract long write(Entry<MemorySegment> entry, MemorySegment buffer, long offset);
+
+    private static long copy(MemorySegment source, MemorySegment buffer, long offset) {
+        buffer.asSlice(offset, source.byteSize()).copyFrom(source);
+        return offset + source.byteSize();
+    }
+}
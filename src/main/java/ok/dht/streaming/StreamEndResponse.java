@@ -0,0 +1,14 @@
+package ok.dht.streaming;
+
+import one.nio.http.Response;
+
+/**
+ * Completes a request whose chunked response was pushed to the session piece by piece.
+ * Nothing is written for it: the request is only marked as answered, so pipelined requests
+ * are handled after the whole stream.
+ */
+public class StreamEndResponse extends Response {
+    public StreamEndResponse() {
+        super(OK);
+    }
+}
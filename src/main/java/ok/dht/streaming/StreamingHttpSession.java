@@ -1,5 +1,6 @@
 package ok.dht.streaming;
 
+import ok.dht.replication.ReplicationFrameReader;
 import one.nio.http.HttpServer;
 import one.nio.http.HttpSession;
 import one.nio.http.Response;
@@ -8,15 +9,47 @@ import one.nio.net.Socket;
 import java.io.IOException;
 
 public class StreamingHttpSession extends HttpSession {
+    // Bytes a streamed response may write per selector pass before other sessions get their turn
+    private static final int STREAM_WRITE_BUDGET_BYTES = 256 * 1024;
+
+    private volatile ReplicationFrameReader replicationReader;
 
     public StreamingHttpSession(Socket socket, HttpServer server) {
         super(socket, server);
     }
 
+    /**
+     * Stops HTTP parsing on this connection: every further byte is a replication frame.
+     */
+    public void switchToReplication(ReplicationFrameReader reader) {
+        this.replicationReader = reader;
+    }
+
+    @Override
+    protected void processRead(byte[] buffer) throws IOException {
+        ReplicationFrameReader reader = replicationReader;
+        if (reader == null) {
+            super.processRead(buffer);
+            return;
+        }
+
+        int length = read(buffer, 0, buffer.length);
+        if (length > 0) {
+            reader.feed(buffer, 0, length);
+        }
+    }
+
     @Override
     protected void writeResponse(Response response, boolean includeBody) throws IOException {
         if (response instanceof ChunkedResponse chunkedResponse) {
-            write(new StreamingQueueItem(chunkedResponse.getIterator(), chunkedResponse.toBytes(false)));
+            write(new StreamingQueueItem(
+                    chunkedResponse.getIterator(),
+                    chunkedResponse.toBytes(false),
+                    chunkedResponse.getFormat(),
+                    STREAM_WRITE_BUDGET_BYTES
+            ));
+        } else if (response instanceof StreamEndResponse) {
+            // Everything was pushed with write(QueueItem) while the request was in progress
         } else {
             super.writeResponse(response, includeBody);
         }
@@ -2,37 +2,44 @@ package ok.dht.streaming;
 
 import jdk.incubator.foreign.MemorySegment;
 import ok.dht.dao.Entry;
-import ok.dht.utils.Utils;
 import one.nio.net.Session.QueueItem;
 import one.nio.net.Socket;
-import one.nio.util.ByteArrayBuilder;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Iterator;
 
+/**
+ * Streams a range from the selector thread, pulling the next chunk from the iterator once the previous one
+ * has been written. The chunk buffer is reused for the whole response.
+ * <p>
+ * A call to {@link #write(Socket)} stops when the socket would block, keeping the partly written chunk for the
+ * next call, or after {@code writeBudget} bytes even if the socket could take more: the session stays queued
+ * for writing and the selector serves its other sessions before coming back to this one.
+ */
 public class StreamingQueueItem extends QueueItem {
-    private static final byte[] LINE_END = Utils.toBytes("\r\n");
-    private static final byte[] INPUT_END = Utils.toBytes("0\r\n");
-    private static final byte[] OUTPUT_SPLIT = Utils.toBytes("\n");
-
     private final Iterator<Entry<MemorySegment>> iterator;
-    private final byte[] headers;
+    private final ChunkEncoder encoder;
+    private final int writeBudget;
 
-    private byte[] bytes;
-    private boolean sendHeaders = true;
-    private int count;
-    private int written;
+    private byte[] buffer;
+    private int position;
+    private int limit;
 
-    public StreamingQueueItem(Iterator<Entry<MemorySegment>> iterator, byte[] headers) {
+    public StreamingQueueItem(
+            Iterator<Entry<MemorySegment>> iterator,
+            byte[] headers,
+            RecordFormat format,
+            int writeBudget
+    ) {
         super();
         this.iterator = iterator;
-        this.headers = Arrays.copyOf(headers, headers.length);
+        this.encoder = new ChunkEncoder(headers, format);
+        this.writeBudget = writeBudget;
     }
 
     @Override
     public int remaining() {
-        if (iterator.hasNext() || written < count) {
+        if (!encoder.finished() || position < limit) {
             return 1;
         }
         return 0;
@@ -40,61 +47,27 @@ public class StreamingQueueItem extends QueueItem {
 
     @Override
     public int write(Socket socket) throws IOException {
-        boolean finalChunk = false;
-        if (written == count) {
-            byte[] data;
-            if (iterator.hasNext()) {
-                data = makeResponse(iterator.next());
-            } else {
-                data = makeFinalResponse();
-                finalChunk = true;
+        int written = 0;
+        while (written < writeBudget) {
+            if (position == limit) {
+                if (encoder.finished()) {
+                    break;
+                }
+                buffer = encoder.fill(buffer == null ? encoder.newBuffer() : buffer, iterator);
+                position = encoder.start();
+                limit = encoder.end();
             }
-
-            if (sendHeaders) {
-                bytes = new ByteArrayBuilder()
-                        .append(headers)
-                        .append(data)
-                        .toBytes();
-                sendHeaders = false;
-            } else {
-                bytes = data;
+            int bytesWritten = socket.write(buffer, position, limit - position, 0);
+            if (bytesWritten <= 0) {
+                break;
             }
-
-            written = 0;
-            count = bytes.length;
-        }
-        int bytesWritten = socket.write(bytes, written, count - written, 0);
-        if (bytesWritten > 0) {
+            position += bytesWritten;
             written += bytesWritten;
-        }
-        if (written == count && !finalChunk) {
-            write(socket);
+            if (position < limit) {
+                // The socket buffer is full, resume once it is writable again
+                break;
+            }
         }
         return written;
     }
-
-    private static byte[] makeFinalResponse() {
-        return new ByteArrayBuilder()
-                .append(INPUT_END)
-                .append(LINE_END)
-                .toBytes();
-    }
-
-    private static byte[] makeResponse(Entry<MemorySegment> entry) {
-        byte[] key = Utils.toBytes(entry.key());
-        byte[] value = Utils.toBytes(entry.value());
-        byte[] data = new ByteArrayBuilder()
-                .append(key)
-                .append(OUTPUT_SPLIT)
-                .append(value)
-                .toBytes();
-
-        String size = Integer.toHexString(data.length);
-        return new ByteArrayBuilder()
-                .append(size)
-                .append(LINE_END)
-                .append(data)
-                .append(LINE_END)
-                .toBytes();
-    }
 }
@@ -7,10 +7,22 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.http.HttpRequest;
 import java.time.Duration;
+import java.util.List;
 
 public class RequestUtils {
     public static final String SYNCHRONIZATION_PATH = "/synchronization";
-    private static final int CONNECTION_TIMEOUT_MS = 1000;
+    public static final String REPLICATION_PATH = "/replication";
+    public static final String RANGE_PATH = "/range";
+    public static final String MERKLE_PATH = "/merkle";
+    public static final String MERKLE_LEAF_PATH = "/merkle/leaf";
+    public static final String MEMBERSHIP_PATH = "/membership";
+    public static final String REBALANCE_PATH = "/rebalance";
+    public static final String HEALTH_PATH = "/health";
+    public static final String NOT_ENOUGH_REPLICAS = "504 Not Enough Replicas";
+    public static final String IF_NEWER_PARAMETER = "ifNewer=";
+    public static final String HINT_FOR_PARAMETER = "hintFor=";
+    public static final String RING_VERSION_HEADER = "X-Ring-Version";
+    public static final int CONNECTION_TIMEOUT_MS = 1000;
 
     private RequestUtils() {
     }
@@ -26,19 +38,124 @@ public class RequestUtils {
     }
 
     public static HttpRequest makeHttpRequest(
-            String serverUrl, String key, Request request, long timestamp) {
+            String serverUrl, String key, int method, byte[] value, long timestamp) {
+        return makeHttpRequest(serverUrl, key, method, value, timestamp, false);
+    }
+
+    /**
+     * With {@code ifNewer} the replica skips the write if it already has a newer version of the key,
+     * which is how writes are redelivered after the fact.
+     */
+    public static HttpRequest makeHttpRequest(
+            String serverUrl, String key, int method, byte[] value, long timestamp, boolean ifNewer) {
+        String requestPath = SYNCHRONIZATION_PATH + "?id=" + key;
+        if (ifNewer) {
+            requestPath += "&" + IF_NEWER_PARAMETER + "true";
+        }
+        return makeSynchronizationRequest(serverUrl, requestPath, method, value, timestamp);
+    }
+
+    /**
+     * Has {@code serverUrl} keep a write for {@code owner} as a hint, to be delivered once {@code owner}
+     * is back, rather than apply it.
+     */
+    public static HttpRequest makeHandoffRequest(
+            String serverUrl, String owner, String key, int method, byte[] value, long timestamp) {
+        String requestPath = SYNCHRONIZATION_PATH + "?id=" + key + "&" + HINT_FOR_PARAMETER + owner;
+        return makeSynchronizationRequest(serverUrl, requestPath, method, value, timestamp);
+    }
+
+    private static HttpRequest makeSynchronizationRequest(
+            String serverUrl, String requestPath, int method, byte[] value, long timestamp) {
         byte[] body;
-        if (request.getMethod() == Request.METHOD_PUT) {
-            body = Utils.toByteArray(timestamp, request.getBody());
+        if (method == Request.METHOD_PUT) {
+            body = Utils.toByteArray(timestamp, value);
         } else {
             body = Utils.toByteArray(timestamp);
         }
-        String requestPath = SYNCHRONIZATION_PATH + "?id=" + key;
         return HttpRequest.newBuilder(URI.create(serverUrl + requestPath))
                         .method(
-                                request.getMethodName(),
+                                methodName(method),
                                 HttpRequest.BodyPublishers.ofByteArray(body))
                         .timeout(Duration.ofMillis(CONNECTION_TIMEOUT_MS))
                         .build();
     }
+
+    /**
+     * Asks {@code serverUrl} for its local entries in {@code [start, end)}, tombstones included;
+     * {@code end == null} means up to the last key.
+     */
+    public static HttpRequest makeRangeRequest(String serverUrl, String start, String end) {
+        String requestPath = RANGE_PATH + "?start=" + start + (end == null ? "" : "&end=" + end);
+        return HttpRequest.newBuilder(URI.create(serverUrl + requestPath))
+                .GET()
+                .timeout(Duration.ofMillis(CONNECTION_TIMEOUT_MS))
+                .build();
+    }
+
+    /**
+     * Asks {@code serverUrl} for nodes {@code [from, from + count)} of a level of its Merkle tree of {@code range}
+     * in the ring of {@code version}.
+     */
+    public static HttpRequest makeMerkleRequest(
+            String serverUrl, long version, int range, int level, int from, int count) {
+        String requestPath = MERKLE_PATH + "?version=" + version + "&range=" + range + "&level=" + level
+                + "&from=" + from + "&count=" + count;
+        return HttpRequest.newBuilder(URI.create(serverUrl + requestPath))
+                .GET()
+                .timeout(Duration.ofMillis(CONNECTION_TIMEOUT_MS))
+                .build();
+    }
+
+    /**
+     * Asks {@code serverUrl} for its entries in a leaf of its Merkle tree of {@code range} in the ring of
+     * {@code version}, tombstones included.
+     */
+    public static HttpRequest makeMerkleLeafRequest(String serverUrl, long version, int range, int leaf) {
+        String requestPath = MERKLE_LEAF_PATH + "?version=" + version + "&range=" + range + "&leaf=" + leaf;
+        return HttpRequest.newBuilder(URI.create(serverUrl + requestPath))
+                .GET()
+                .timeout(Duration.ofMillis(CONNECTION_TIMEOUT_MS))
+                .build();
+    }
+
+    /**
+     * Tells {@code serverUrl} the members of the cluster as of {@code epoch}, one URL per line.
+     */
+    public static HttpRequest makeMembershipRequest(String serverUrl, long epoch, List<String> members) {
+        return HttpRequest.newBuilder(URI.create(serverUrl + MEMBERSHIP_PATH + "?epoch=" + epoch))
+                .PUT(HttpRequest.BodyPublishers.ofString(String.join("\n", members)))
+                .timeout(Duration.ofMillis(CONNECTION_TIMEOUT_MS))
+                .build();
+    }
+
+    /**
+     * Hands {@code serverUrl} entries it became a replica of, as {@link ok.dht.streaming.RecordFormat#REPLICA}
+     * records, to be applied unless it has newer versions.
+     */
+    public static HttpRequest makeRebalanceRequest(String serverUrl, byte[] records) {
+        return HttpRequest.newBuilder(URI.create(serverUrl + REBALANCE_PATH))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(records))
+                .timeout(Duration.ofMillis(CONNECTION_TIMEOUT_MS))
+                .build();
+    }
+
+    /**
+     * Asks {@code serverUrl} for a heartbeat.
+     */
+    public static HttpRequest makeHealthRequest(String serverUrl) {
+        return HttpRequest.newBuilder(URI.create(serverUrl + HEALTH_PATH))
+                .GET()
+                .timeout(Duration.ofMillis(CONNECTION_TIMEOUT_MS))
+                .build();
+    }
+
+    public static String methodName(int method) {
+        return switch (method) {
+            case Request.METHOD_GET -> "GET";
+            case Request.METHOD_PUT -> "PUT";
+            case Request.METHOD_DELETE -> "DELETE";
+            default -> throw new IllegalArgumentException("Unexpected method: " + method);
+        };
+    }
 }
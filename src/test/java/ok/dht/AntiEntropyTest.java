@@ -0,0 +1,78 @@
+package ok.dht;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AntiEntropyTest extends TestBase {
+    // A repair round runs every 10 seconds
+    private static final long REPAIR_TIMEOUT_MS = 30_000;
+
+    private List<ServiceInfo> nodes;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        // Nothing but anti-entropy can bring a replica that missed writes up to date
+        nodes = createServices(2, config -> config
+                .withAntiEntropy(2)
+                .withReadRepair(0)
+                .withHintedHandoff(0)
+                .withFailureDetection(0));
+    }
+
+    @AfterEach
+    public void teardown() throws Exception {
+        for (ServiceInfo serviceInfo : nodes) {
+            serviceInfo.cleanUp();
+        }
+    }
+
+    @Test
+    void replicaCatchesUpWithMissedWrites() throws Exception {
+        String deletedKey = randomId();
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(deletedKey, randomValue(), 2, 2).statusCode());
+        // Flushed on both nodes, so that the trees agree on it
+        restart(nodes.get(0));
+        restart(nodes.get(1));
+
+        nodes.get(1).stop();
+        String key = randomId();
+        byte[] value = randomValue();
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(key, value, 1, 2).statusCode());
+        assertEquals(HttpURLConnection.HTTP_ACCEPTED, nodes.get(0).delete(deletedKey, 1, 2).statusCode());
+        // The trees only cover flushed data
+        restart(nodes.get(0));
+        nodes.get(1).start();
+
+        HttpResponse<byte[]> repaired = awaitLocal(nodes.get(1), key, HttpURLConnection.HTTP_OK);
+        assertArrayEquals(value, Arrays.copyOfRange(repaired.body(), Long.BYTES, repaired.body().length));
+        awaitLocal(nodes.get(1), deletedKey, HttpURLConnection.HTTP_NOT_FOUND);
+    }
+
+    private static void restart(ServiceInfo node) throws Exception {
+        node.stop();
+        node.start();
+    }
+
+    private static HttpResponse<byte[]> awaitLocal(ServiceInfo node, String key, int status) throws Exception {
+        long deadline = System.currentTimeMillis() + REPAIR_TIMEOUT_MS;
+        while (true) {
+            HttpResponse<byte[]> response = node.localGet(key);
+            if (response.statusCode() == status && response.body().length > 0) {
+                return response;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("No repair reached " + node.url() + ", got " + response.statusCode());
+            }
+            Thread.sleep(200);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ok.dht;
+
+import ok.dht.replication.ReplicationTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BinaryTransportTest extends TestBase {
+    private List<ServiceInfo> nodes;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        nodes = createServices(3, config -> config.withReplicationTransport(ReplicationTransport.BINARY));
+    }
+
+    @AfterEach
+    public void teardown() throws Exception {
+        for (ServiceInfo serviceInfo : nodes) {
+            serviceInfo.cleanUp();
+        }
+    }
+
+    @Test
+    void quorumWritesAndReads() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            String key = randomId();
+            byte[] value = randomValue();
+
+            assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(i % 3).upsert(key, value, 3, 3).statusCode());
+            assertArrayEquals(value, nodes.get((i + 1) % 3).get(key, 3, 3).body());
+            assertEquals(HttpURLConnection.HTTP_ACCEPTED, nodes.get((i + 2) % 3).delete(key, 3, 3).statusCode());
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, nodes.get(i % 3).get(key, 3, 3).statusCode());
+        }
+    }
+
+    @Test
+    void peerRestartReconnects() throws Exception {
+        String key = randomId();
+        byte[] value = randomValue();
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(key, value, 3, 3).statusCode());
+
+        nodes.get(1).stop();
+        nodes.get(1).start();
+
+        assertArrayEquals(value, nodes.get(0).get(key, 3, 3).body());
+    }
+}
@@ -0,0 +1,100 @@
+package ok.dht;
+
+import ok.dht.client.DhtClient;
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ClientRoutingTest extends TestBase {
+    private static final int KEYS = 20;
+
+    private List<ServiceInfo> nodes;
+    private List<String> urls;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        nodes = createServices(3);
+        urls = nodes.stream().map(ServiceInfo::url).toList();
+    }
+
+    @AfterEach
+    public void teardown() throws Exception {
+        for (ServiceInfo serviceInfo : nodes) {
+            serviceInfo.cleanUp();
+        }
+    }
+
+    @Test
+    void topologyDescribesRing() throws Exception {
+        String expected = new ConsistentHashingImpl(urls).topology();
+        for (ServiceInfo node : nodes) {
+            HttpResponse<String> response = HttpClient.newHttpClient().send(
+                    node.request("/v0/topology").GET().build(),
+                    HttpResponse.BodyHandlers.ofString()
+            );
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+            assertEquals(expected, response.body());
+        }
+    }
+
+    @Test
+    void staleRingVersionAnswered() throws Exception {
+        String version = Long.toString(new ConsistentHashingImpl(urls).version());
+        String key = randomId();
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(key, randomValue()).statusCode());
+
+        assertEquals(Optional.of(version), ringVersionHeader(nodes.get(0), key, "0"));
+        assertEquals(Optional.empty(), ringVersionHeader(nodes.get(0), key, version));
+    }
+
+    @Test
+    void clientRoundTrip() throws Exception {
+        DhtClient client = new DhtClient(List.of(urls.get(0)));
+        for (int i = 0; i < KEYS; i++) {
+            String key = randomId();
+            byte[] value = randomValue();
+
+            client.put(key, value);
+            assertArrayEquals(value, client.get(key));
+            // Written through the client, readable through any node
+            assertArrayEquals(value, nodes.get(i % nodes.size()).get(key).body());
+
+            client.delete(key);
+            assertNull(client.get(key));
+        }
+    }
+
+    @Test
+    void clientSkipsDownNodes() throws Exception {
+        nodes.get(0).stop();
+        DhtClient client = new DhtClient(urls);
+        for (int i = 0; i < KEYS; i++) {
+            String key = randomId();
+            byte[] value = randomValue();
+
+            // Some of the keys are coordinated by the stopped node first
+            client.put(key, value);
+            assertArrayEquals(value, client.get(key));
+        }
+    }
+
+    private static Optional<String> ringVersionHeader(ServiceInfo node, String key, String version) throws Exception {
+        HttpResponse<byte[]> response = HttpClient.newHttpClient().send(
+                node.request("/v0/entity?id=" + key).header(DhtClient.RING_VERSION_HEADER, version).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+        assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+        return response.headers().firstValue(DhtClient.RING_VERSION_HEADER);
+    }
+}
@@ -0,0 +1,95 @@
+package ok.dht;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ClusterRangeTest extends TestBase {
+    private static final int KEYS = 50;
+
+    private List<ServiceInfo> serviceInfos;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        serviceInfos = createServices(3);
+    }
+
+    @AfterEach
+    public void teardown() throws Exception {
+        for (ServiceInfo serviceInfo : serviceInfos) {
+            serviceInfo.cleanUp();
+        }
+    }
+
+    @Test
+    void readsEveryOwner() throws Exception {
+        // A single replica each: only the owner of its token range has a key
+        for (int i = 0; i < KEYS; i++) {
+            ServiceInfo service = serviceInfos.get(i % serviceInfos.size());
+            assertEquals(HttpURLConnection.HTTP_CREATED, service.upsert(key(i), value(i), 1, 1).statusCode());
+        }
+
+        for (ServiceInfo service : serviceInfos) {
+            HttpResponse<byte[]> response = service.range(key(0), null);
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+            assertArrayEquals(expected(0, KEYS), response.body());
+        }
+    }
+
+    @Test
+    void skipsDeleted() throws Exception {
+        ServiceInfo service = serviceInfos.get(0);
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(HttpURLConnection.HTTP_CREATED, service.upsert(key(i), value(i), 3, 3).statusCode());
+        }
+        for (int i = 10; i < KEYS; i++) {
+            assertEquals(HttpURLConnection.HTTP_ACCEPTED, service.delete(key(i), 3, 3).statusCode());
+        }
+
+        HttpResponse<byte[]> response = serviceInfos.get(1).range(key(0), key(KEYS));
+        assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+        assertArrayEquals(expected(0, 10), response.body());
+    }
+
+    @Test
+    void fallsBackToReplicaOfStoppedOwner() throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            ServiceInfo service = serviceInfos.get(i % serviceInfos.size());
+            assertEquals(HttpURLConnection.HTTP_CREATED, service.upsert(key(i), value(i), 3, 3).statusCode());
+        }
+
+        serviceInfos.get(2).stop();
+
+        for (ServiceInfo service : serviceInfos.subList(0, 2)) {
+            HttpResponse<byte[]> response = service.range(key(0), null);
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+            assertArrayEquals(expected(0, KEYS), response.body());
+        }
+    }
+
+    private static String key(int i) {
+        return "range" + String.format("%04d", i);
+    }
+
+    private static byte[] value(int i) {
+        return ("value" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] expected(int from, int to) {
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        for (int i = from; i < to; i++) {
+            chunks.writeBytes((key(i) + '\n').getBytes(StandardCharsets.UTF_8));
+            chunks.writeBytes(value(i));
+        }
+        return chunks.toByteArray();
+    }
+}
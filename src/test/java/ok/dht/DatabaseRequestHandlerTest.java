@@ -0,0 +1,84 @@
+package ok.dht;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.dao.Entry;
+import ok.dht.utils.Utils;
+import one.nio.http.Request;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DatabaseRequestHandlerTest {
+    private static final int KEYS = 20_000;
+    private static final long NEWER = 2;
+    private static final long OLDER = 1;
+    private static final byte[] NEWER_VALUE = Utils.toBytes("newer");
+    private static final byte[] OLDER_VALUE = Utils.toBytes("older");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void conditionalWriteNeverOverwritesNewerPlainWrite() throws Exception {
+        DatabaseRequestHandler handler = new DatabaseRequestHandler(dir, 0, null);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            Future<?> plain = executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < KEYS; i++) {
+                    handler.handle(Request.METHOD_PUT, key(i), NEWER_VALUE, Utils.toByteArray(NEWER));
+                }
+                return null;
+            });
+            Future<?> conditional = executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < KEYS; i++) {
+                    handler.handleIfNewer(Request.METHOD_PUT, key(i), OLDER_VALUE, Utils.toByteArray(OLDER));
+                }
+                return null;
+            });
+            start.countDown();
+            plain.get();
+            conditional.get();
+
+            for (int i = 0; i < KEYS; i++) {
+                Entry<MemorySegment> entry = handler.getEntry(Utils.memorySegmentFromString(key(i)));
+                assertNotNull(entry, key(i));
+                assertEquals(NEWER, Utils.longFromByteArray(entry.timestamp().toByteArray()), key(i));
+            }
+        } finally {
+            executor.shutdownNow();
+            handler.close();
+        }
+    }
+
+    @Test
+    void conditionalWriteAppliesNewerVersion() throws Exception {
+        DatabaseRequestHandler handler = new DatabaseRequestHandler(dir, 0, null);
+        try {
+            handler.handle(Request.METHOD_PUT, "key", OLDER_VALUE, Utils.toByteArray(OLDER));
+            handler.handleIfNewer(Request.METHOD_DELETE, "key", null, Utils.toByteArray(NEWER));
+
+            Entry<MemorySegment> entry = handler.getEntry(Utils.memorySegmentFromString("key"));
+            assertNotNull(entry);
+            assertTrue(entry.isTombstone());
+            assertEquals(NEWER, Utils.longFromByteArray(entry.timestamp().toByteArray()));
+        } finally {
+            handler.close();
+        }
+    }
+
+    private static String key(int i) {
+        return "key" + i;
+    }
+}
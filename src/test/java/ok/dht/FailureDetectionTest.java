@@ -0,0 +1,84 @@
+package ok.dht;
+
+import ok.dht.replication.ReplicationTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FailureDetectionTest extends TestBase {
+    private static final long FAST_MS = 500;
+    private static final long SUSPICION_TIMEOUT_MS = 5_000;
+
+    // Accepts connections into its backlog and never answers, like a node cut off by a partition
+    private ServerSocket blackHole;
+    private List<ServiceInfo> nodes = List.of();
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        blackHole = new ServerSocket();
+        blackHole.bind(new InetSocketAddress(0), 64);
+    }
+
+    @AfterEach
+    public void teardown() throws Exception {
+        for (ServiceInfo serviceInfo : nodes) {
+            serviceInfo.cleanUp();
+        }
+        blackHole.close();
+    }
+
+    @Test
+    void suspectedReplicaFailsFast() throws Exception {
+        nodes = createServices(2, config -> withBlackHole(config).withFailureDetection(8));
+
+        long deadline = System.currentTimeMillis() + SUSPICION_TIMEOUT_MS;
+        while (true) {
+            long start = System.nanoTime();
+            HttpResponse<byte[]> response = nodes.get(0).upsert(randomId(), randomValue(), 3, 3);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals(HttpURLConnection.HTTP_GATEWAY_TIMEOUT, response.statusCode());
+            if (elapsedMs < FAST_MS) {
+                break;
+            }
+            assertTrue(System.currentTimeMillis() < deadline, "Black hole never suspected");
+        }
+
+        // Writes the live replicas can acknowledge go on
+        String key = randomId();
+        byte[] value = randomValue();
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(1).upsert(key, value, 2, 3).statusCode());
+        assertEquals(HttpURLConnection.HTTP_OK, nodes.get(0).get(key, 2, 3).statusCode());
+    }
+
+    @Test
+    void blackHoleCostsTimeoutWithoutDetection() throws Exception {
+        nodes = createServices(2, config -> withBlackHole(config).withFailureDetection(0));
+
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            HttpResponse<byte[]> response = nodes.get(0).upsert(randomId(), randomValue(), 3, 3);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals(HttpURLConnection.HTTP_GATEWAY_TIMEOUT, response.statusCode());
+            assertTrue(elapsedMs >= FAST_MS, "Failed after " + elapsedMs + " ms");
+        }
+    }
+
+    private ServiceConfig withBlackHole(ServiceConfig config) {
+        List<String> cluster = new ArrayList<>(config.clusterUrls());
+        cluster.add("http://localhost:" + blackHole.getLocalPort());
+        // The binary transport fails fast on its own after a connection attempt times out
+        return new ServiceConfig(config.selfPort(), config.selfUrl(), cluster, config.workingDir())
+                .withReplicationTransport(ReplicationTransport.HTTP);
+    }
+}
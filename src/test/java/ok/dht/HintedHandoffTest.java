@@ -0,0 +1,86 @@
+package ok.dht;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HintedHandoffTest extends TestBase {
+    private static final long DELIVERY_TIMEOUT_MS = 10_000;
+
+    private List<ServiceInfo> nodes;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        // Without read repair, only a hint can bring the replica up to date
+        nodes = createServices(2, config -> config.withReadRepair(0));
+    }
+
+    @AfterEach
+    public void teardown() throws Exception {
+        for (ServiceInfo serviceInfo : nodes) {
+            serviceInfo.cleanUp();
+        }
+    }
+
+    @Test
+    void missedWriteDeliveredOnReturn() throws Exception {
+        String key = randomId();
+        byte[] value = randomValue();
+
+        nodes.get(1).stop();
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(key, value, 1, 2).statusCode());
+        nodes.get(1).start();
+
+        HttpResponse<byte[]> response = awaitLocal(nodes.get(1), key, HttpURLConnection.HTTP_OK);
+        assertArrayEquals(value, Arrays.copyOfRange(response.body(), Long.BYTES, response.body().length));
+    }
+
+    @Test
+    void missedDeleteDeliveredOnReturn() throws Exception {
+        String key = randomId();
+
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(key, randomValue(), 2, 2).statusCode());
+        nodes.get(1).stop();
+        assertEquals(HttpURLConnection.HTTP_ACCEPTED, nodes.get(0).delete(key, 1, 2).statusCode());
+        nodes.get(1).start();
+
+        awaitLocal(nodes.get(1), key, HttpURLConnection.HTTP_NOT_FOUND);
+    }
+
+    @Test
+    void hintsSurviveCoordinatorRestart() throws Exception {
+        String key = randomId();
+        byte[] value = randomValue();
+
+        nodes.get(1).stop();
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(key, value, 1, 2).statusCode());
+        nodes.get(0).stop();
+        nodes.get(0).start();
+        nodes.get(1).start();
+
+        HttpResponse<byte[]> response = awaitLocal(nodes.get(1), key, HttpURLConnection.HTTP_OK);
+        assertArrayEquals(value, Arrays.copyOfRange(response.body(), Long.BYTES, response.body().length));
+    }
+
+    private static HttpResponse<byte[]> awaitLocal(ServiceInfo node, String key, int status) throws Exception {
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+        while (true) {
+            HttpResponse<byte[]> response = node.localGet(key);
+            if (response.statusCode() == status && response.body().length > 0) {
+                return response;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("No hint delivered to " + node.url() + ", got " + response.statusCode());
+            }
+            Thread.sleep(100);
+        }
+    }
+}
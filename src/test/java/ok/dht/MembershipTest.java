@@ -0,0 +1,139 @@
+package ok.dht;
+
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MembershipTest extends TestBase {
+    private static final int KEYS = 50;
+    private static final int REPLICAS = 2;
+    private static final long REBALANCE_BYTES_PER_SECOND = 8 * 1024 * 1024;
+    private static final long REBALANCE_TIMEOUT_MS = 10_000;
+
+    private List<ServiceInfo> nodes = List.of();
+
+    @AfterEach
+    public void teardown() throws Exception {
+        for (ServiceInfo serviceInfo : nodes) {
+            serviceInfo.cleanUp();
+        }
+    }
+
+    @Test
+    void joinMovesKeysToNewNode() throws Exception {
+        // The last node starts outside the cluster the others form
+        nodes = createServices(4, config -> {
+            List<String> cluster = config.clusterUrls();
+            List<String> initial = config.selfUrl().equals(cluster.get(3)) ? cluster : cluster.subList(0, 3);
+            return configure(new ServiceConfig(config.selfPort(), config.selfUrl(), initial, config.workingDir()));
+        });
+        List<String> cluster = nodes.stream().map(ServiceInfo::url).toList();
+        Map<String, byte[]> data = write(nodes.get(0));
+
+        HttpResponse<String> response = changeMembership(nodes.get(0), "PUT", cluster.get(3));
+        assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+        assertEquals(membership(1, cluster), response.body());
+
+        assertRebalanced(new ConsistentHashingImpl(cluster), data);
+        for (ServiceInfo node : nodes) {
+            assertEquals(membership(1, cluster), changeMembership(node, "GET", null).body());
+            assertReadable(node, data);
+        }
+    }
+
+    @Test
+    void leaveMovesKeysOffLeavingNode() throws Exception {
+        nodes = createServices(3, MembershipTest::configure);
+        List<String> remaining = List.of(nodes.get(0).url(), nodes.get(1).url());
+        Map<String, byte[]> data = write(nodes.get(0));
+
+        HttpResponse<String> response = changeMembership(nodes.get(0), "DELETE", nodes.get(2).url());
+        assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+        assertEquals(membership(1, remaining), response.body());
+
+        assertRebalanced(new ConsistentHashingImpl(remaining), data);
+        nodes.get(2).stop();
+        assertReadable(nodes.get(0), data);
+        assertReadable(nodes.get(1), data);
+    }
+
+    private static ServiceConfig configure(ServiceConfig config) {
+        // Without read repair, only the rebalance can bring a key to its new replicas
+        return config.withRebalancing(REPLICAS, REBALANCE_BYTES_PER_SECOND).withReadRepair(0);
+    }
+
+    private Map<String, byte[]> write(ServiceInfo coordinator) throws Exception {
+        Map<String, byte[]> data = new LinkedHashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            String key = randomId();
+            byte[] value = randomValue();
+            HttpResponse<byte[]> response = coordinator.upsert(key, value, REPLICAS, REPLICAS);
+            assertEquals(HttpURLConnection.HTTP_CREATED, response.statusCode());
+            data.put(key, value);
+        }
+        return data;
+    }
+
+    /**
+     * Waits until every key is stored by each of its replicas in {@code ring}.
+     */
+    private void assertRebalanced(ConsistentHashingImpl ring, Map<String, byte[]> data) throws Exception {
+        long deadline = System.currentTimeMillis() + REBALANCE_TIMEOUT_MS;
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            for (String replica : ring.getNodesByKey(entry.getKey(), REPLICAS)) {
+                ServiceInfo node = nodes.stream().filter(n -> n.url().equals(replica)).findFirst().orElseThrow();
+                assertArrayEquals(entry.getValue(), awaitLocalValue(node, entry.getKey(), deadline), replica);
+            }
+        }
+    }
+
+    private static void assertReadable(ServiceInfo node, Map<String, byte[]> data) throws Exception {
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            HttpResponse<byte[]> response = node.get(entry.getKey(), REPLICAS, REPLICAS);
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+            assertArrayEquals(entry.getValue(), response.body());
+        }
+    }
+
+    private static byte[] awaitLocalValue(ServiceInfo node, String key, long deadline) throws Exception {
+        while (true) {
+            HttpResponse<byte[]> response = node.localGet(key);
+            if (response.statusCode() == HttpURLConnection.HTTP_OK) {
+                return Arrays.copyOfRange(response.body(), Long.BYTES, response.body().length);
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Key " + key + " not moved to " + node.url());
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static HttpResponse<String> changeMembership(ServiceInfo node, String method, String member)
+            throws Exception {
+        String path = "/v0/membership" + (member == null ? "" : "?node=" + member);
+        return HttpClient.newHttpClient().send(
+                node.request(path).method(method, HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.ofString()
+        );
+    }
+
+    private static String membership(long epoch, List<String> members) {
+        StringBuilder description = new StringBuilder().append(epoch).append('\n');
+        for (String member : members) {
+            description.append(member).append('\n');
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package ok.dht;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ReadRepairTest extends TestBase {
+    private static final long REPAIR_TIMEOUT_MS = 5_000;
+
+    private List<ServiceInfo> nodes = List.of();
+
+    @AfterEach
+    public void teardown() throws Exception {
+        for (ServiceInfo serviceInfo : nodes) {
+            serviceInfo.cleanUp();
+        }
+    }
+
+    @Test
+    void quorumReadRepairsStaleReplica() throws Exception {
+        nodes = startCluster(1);
+        String key = randomId();
+        byte[] value = randomValue();
+        writeWhileDown(key, value);
+
+        HttpResponse<byte[]> read = nodes.get(0).get(key, 2, 2);
+        assertEquals(HttpURLConnection.HTTP_OK, read.statusCode());
+        assertArrayEquals(value, read.body());
+
+        assertArrayEquals(value, valueOf(awaitLocal(nodes.get(1), key, HttpURLConnection.HTTP_OK)));
+    }
+
+    @Test
+    void coordinatorRepairsItself() throws Exception {
+        nodes = startCluster(1);
+        String key = randomId();
+        byte[] value = randomValue();
+        writeWhileDown(key, value);
+
+        // The stale replica coordinates the read, so it repairs its own copy
+        HttpResponse<byte[]> read = nodes.get(1).get(key, 2, 2);
+        assertEquals(HttpURLConnection.HTTP_OK, read.statusCode());
+        assertArrayEquals(value, read.body());
+
+        assertArrayEquals(value, valueOf(awaitLocal(nodes.get(1), key, HttpURLConnection.HTTP_OK)));
+    }
+
+    @Test
+    void quorumReadRepairsMissedDelete() throws Exception {
+        nodes = startCluster(1);
+        String key = randomId();
+
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(key, randomValue(), 2, 2).statusCode());
+        nodes.get(1).stop();
+        assertEquals(HttpURLConnection.HTTP_ACCEPTED, nodes.get(0).delete(key, 1, 2).statusCode());
+        nodes.get(1).start();
+
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, nodes.get(0).get(key, 2, 2).statusCode());
+
+        awaitLocal(nodes.get(1), key, HttpURLConnection.HTTP_NOT_FOUND);
+    }
+
+    @Test
+    void noRepairWithZeroChance() throws Exception {
+        nodes = startCluster(0);
+        String key = randomId();
+        byte[] value = randomValue();
+        writeWhileDown(key, value);
+
+        HttpResponse<byte[]> read = nodes.get(0).get(key, 2, 2);
+        assertEquals(HttpURLConnection.HTTP_OK, read.statusCode());
+        assertArrayEquals(value, read.body());
+
+        Thread.sleep(500);
+        HttpResponse<byte[]> stale = nodes.get(1).localGet(key);
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, stale.statusCode());
+        assertEquals(0, stale.body().length);
+    }
+
+    private static List<ServiceInfo> startCluster(double readRepairChance) throws Exception {
+        // No hints and no failure detector: only a read can fix the replica, and a restarted one is used at once
+        return createServices(2, config -> config
+                .withReadRepair(readRepairChance)
+                .withHintedHandoff(0)
+                .withFailureDetection(0));
+    }
+
+    /**
+     * Leaves node 1 without the value node 0 has.
+     */
+    private void writeWhileDown(String key, byte[] value) throws Exception {
+        nodes.get(1).stop();
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(key, value, 1, 2).statusCode());
+        nodes.get(1).start();
+    }
+
+    private static byte[] valueOf(HttpResponse<byte[]> localResponse) {
+        return Arrays.copyOfRange(localResponse.body(), Long.BYTES, localResponse.body().length);
+    }
+
+    private static HttpResponse<byte[]> awaitLocal(ServiceInfo node, String key, int status) throws Exception {
+        long deadline = System.currentTimeMillis() + REPAIR_TIMEOUT_MS;
+        while (true) {
+            HttpResponse<byte[]> response = node.localGet(key);
+            if (response.statusCode() == status && response.body().length > 0) {
+                return response;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("No repair reached " + node.url() + ", got " + response.statusCode());
+            }
+            Thread.sleep(100);
+        }
+    }
+}
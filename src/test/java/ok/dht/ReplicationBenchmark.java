@@ -0,0 +1,109 @@
+package ok.dht;
+
+import ok.dht.replication.ReplicationTransport;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares replicated PUT throughput and latency of the replication transports
+ * on a local three-node cluster. Run with {@code gradle replicationBenchmark}.
+ */
+public final class ReplicationBenchmark extends TestBase {
+    private static final int CLUSTER_SIZE = 3;
+    private static final int ACK = 2;
+    private static final int CLIENT_THREADS = 16;
+    private static final long WARMUP_MS = 3_000;
+    private static final long MEASUREMENT_MS = 10_000;
+
+    private ReplicationBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (ReplicationTransport transport : ReplicationTransport.values()) {
+            List<ServiceInfo> nodes = createServices(
+                    CLUSTER_SIZE,
+                    config -> config.withReplicationTransport(transport)
+            );
+            try {
+                run(nodes, WARMUP_MS);
+                long[] latencies = run(nodes, MEASUREMENT_MS);
+                report(transport, latencies);
+            } finally {
+                for (ServiceInfo node : nodes) {
+                    node.cleanUp();
+                }
+            }
+        }
+    }
+
+    private static long[] run(List<ServiceInfo> nodes, long durationMs) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENT_THREADS);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>(CLIENT_THREADS);
+            for (int i = 0; i < CLIENT_THREADS; i++) {
+                futures.add(executor.submit(() -> putUntil(nodes, deadline)));
+            }
+
+            long[] latencies = new long[0];
+            for (Future<long[]> future : futures) {
+                long[] threadLatencies = future.get();
+                int offset = latencies.length;
+                latencies = Arrays.copyOf(latencies, offset + threadLatencies.length);
+                System.arraycopy(threadLatencies, 0, latencies, offset, threadLatencies.length);
+            }
+            return latencies;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long[] putUntil(List<ServiceInfo> nodes, long deadline) throws Exception {
+        long[] latencies = new long[1024];
+        int count = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < deadline) {
+            ServiceInfo node = nodes.get(random.nextInt(nodes.size()));
+            long start = System.nanoTime();
+            int status = node.upsert(randomId(), randomValue(), ACK, nodes.size()).statusCode();
+            long latency = System.nanoTime() - start;
+            if (status != HttpURLConnection.HTTP_CREATED) {
+                throw new IllegalStateException("Unexpected status: " + status);
+            }
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    private static void report(ReplicationTransport transport, long[] latencies) {
+        Arrays.sort(latencies);
+        double throughput = latencies.length * 1000.0 / MEASUREMENT_MS;
+        System.out.printf(
+                "%-6s PUT ack=%d/from=%d: %8.1f ops/s, p50 %6.2f ms, p99 %6.2f ms%n",
+                transport,
+                ACK,
+                CLUSTER_SIZE,
+                throughput,
+                percentile(latencies, 0.50) / 1e6,
+                percentile(latencies, 0.99) / 1e6
+        );
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,105 @@
+package ok.dht;
+
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reports how evenly rings with different numbers of virtual nodes spread the tokens over the nodes, and how
+ * long finding the replicas of a key takes. Run with {@code gradle ringBenchmark}.
+ */
+public final class RingBenchmark {
+    private static final int[] CLUSTER_SIZES = {3, 10};
+    private static final int[] VIRTUAL_NODES = {3, 16, 64, 256};
+    private static final int REPLICAS = 3;
+    private static final int KEYS = 1 << 16;
+    private static final int WARMUP_ROUNDS = 50;
+    private static final int MEASUREMENT_ROUNDS = 100;
+    private static final double TOKENS = 1L << Integer.SIZE;
+
+    private RingBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "k" + ThreadLocalRandom.current().nextLong();
+        }
+
+        System.out.println("nodes vnodes | primary share min/max of mean | replica share min/max of mean | lookup");
+        for (int clusterSize : CLUSTER_SIZES) {
+            List<String> urls = new ArrayList<>(clusterSize);
+            for (int i = 0; i < clusterSize; i++) {
+                urls.add("http://localhost:" + (19234 + i));
+            }
+            for (int virtualNodes : VIRTUAL_NODES) {
+                ConsistentHashingImpl ring = new ConsistentHashingImpl(urls, virtualNodes);
+                double[] primary = shares(ring, urls, 1);
+                double[] replica = shares(ring, urls, Math.min(REPLICAS, clusterSize));
+                System.out.printf(
+                        "%5d %6d | %13.2f %13.2f | %13.2f %13.2f | %6.1f ns%n",
+                        clusterSize,
+                        virtualNodes,
+                        primary[0],
+                        primary[1],
+                        replica[0],
+                        replica[1],
+                        lookupNanos(ring, keys, Math.min(REPLICAS, clusterSize))
+                );
+            }
+        }
+    }
+
+    /**
+     * Returns the smallest and the largest share of the ring a node replicates, relative to the mean.
+     */
+    private static double[] shares(ConsistentHashingImpl ring, List<String> urls, int replicas) {
+        Map<String, Double> tokens = new HashMap<>();
+        for (int range = 0; range < ring.rangeCount(); range++) {
+            long size = (ring.rangeEnd(range) - ring.rangeStart(range)) & 0xFFFFFFFFL;
+            for (int i = 0; i < replicas; i++) {
+                tokens.merge(ring.replica(range, i), size == 0 ? TOKENS : size, Double::sum);
+            }
+        }
+        double mean = TOKENS * replicas / urls.size();
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (String url : urls) {
+            double share = tokens.getOrDefault(url, 0.0) / mean;
+            min = Math.min(min, share);
+            max = Math.max(max, share);
+        }
+        return new double[]{min, max};
+    }
+
+    private static double lookupNanos(ConsistentHashingImpl ring, String[] keys, int replicas) {
+        long sink = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            sink += lookup(ring, keys, replicas);
+        }
+        long start = System.nanoTime();
+        for (int round = 0; round < MEASUREMENT_ROUNDS; round++) {
+            sink += lookup(ring, keys, replicas);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.println();
+        }
+        return (double) elapsed / MEASUREMENT_ROUNDS / keys.length;
+    }
+
+    private static long lookup(ConsistentHashingImpl ring, String[] keys, int replicas) {
+        long sink = 0;
+        for (String key : keys) {
+            int range = ring.rangeOf(key);
+            for (int i = 0; i < replicas; i++) {
+                sink += ring.replica(range, i).length();
+            }
+        }
+        return sink;
+    }
+}
@@ -0,0 +1,54 @@
+package ok.dht;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RowCacheTest {
+    private static final long CAPACITY_BYTES = 1024 * 1024;
+    private static final int KEYS = 100;
+    private static final int ROUNDS = 100_000;
+    private static final int MAX_SLOTS = 4096;
+
+    @Test
+    void invalidationChurnStaysBounded() {
+        RowCache cache = new RowCache(CAPACITY_BYTES);
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] key = key(i % KEYS);
+            cache.invalidate(key);
+            cache.put(key, cache.generation(key), "200 OK", body(i));
+            assertTrue(cache.clockSlots() <= MAX_SLOTS, "Clock grew to " + cache.clockSlots());
+        }
+
+        for (int i = ROUNDS - KEYS; i < ROUNDS; i++) {
+            byte[] cached = cache.get(key(i % KEYS)).getBody();
+            assertArrayEquals(body(i), cached);
+        }
+    }
+
+    @Test
+    void staleGenerationIsNotCached() {
+        RowCache cache = new RowCache(CAPACITY_BYTES);
+        byte[] key = key(0);
+        long generation = cache.generation(key);
+        cache.invalidate(key);
+        cache.put(key, generation, "200 OK", body(0));
+        assertNull(cache.get(key));
+
+        cache.put(key, cache.generation(key), "200 OK", body(1));
+        assertNotNull(cache.get(key));
+    }
+
+    private static byte[] key(int i) {
+        return ("key" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] body(int i) {
+        return ("value" + i).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -25,6 +25,7 @@ public class ServiceInfo {
 
     public void start() throws Exception {
         service.start().get(10, TimeUnit.SECONDS);
+        stopped = false;
     }
 
     public void stop() throws Exception {
@@ -53,6 +54,19 @@ public class ServiceInfo {
         );
     }
 
+    /**
+     * Reads this node's own version of the key, the way a coordinator asks a replica: the body is
+     * the timestamp, followed by the value unless the key is deleted.
+     */
+    public HttpResponse<byte[]> localGet(String key) throws Exception {
+        return client.send(
+                request("/synchronization?id=" + key)
+                        .method("GET", HttpRequest.BodyPublishers.ofByteArray(new byte[Long.BYTES]))
+                        .build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+    }
+
     public HttpResponse<byte[]> range(String start, String end) throws Exception {
         return client.send(
                 requestForRange(start, end).GET().build(),
@@ -0,0 +1,132 @@
+package ok.dht;
+
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+import ok.dht.replication.ReplicationTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SloppyQuorumTest extends TestBase {
+    private static final int REPLICAS = 2;
+    private static final long FAST_MS = 500;
+    private static final long SUSPICION_TIMEOUT_MS = 5_000;
+    private static final long DELIVERY_TIMEOUT_MS = 10_000;
+
+    private List<ServiceInfo> nodes = List.of();
+    private ServerSocket blackHole;
+
+    @AfterEach
+    public void teardown() throws Exception {
+        for (ServiceInfo serviceInfo : nodes) {
+            serviceInfo.cleanUp();
+        }
+        if (blackHole != null) {
+            blackHole.close();
+        }
+    }
+
+    @Test
+    void writeHandedBackToOwner() throws Exception {
+        // Without read repair, only the hint can bring the value to its owner
+        nodes = createServices(3, config -> config.withSloppyQuorum(true).withReadRepair(0));
+        ConsistentHashingImpl ring = new ConsistentHashingImpl(urls());
+        String key = randomId();
+        List<String> preferences = ring.preferenceList(ring.rangeOf(key));
+        ServiceInfo coordinator = node(preferences.get(0));
+        ServiceInfo owner = node(preferences.get(1));
+        ServiceInfo substitute = node(preferences.get(2));
+        byte[] value = randomValue();
+
+        owner.stop();
+        assertEquals(HttpURLConnection.HTTP_CREATED, coordinator.upsert(key, value, REPLICAS, REPLICAS).statusCode());
+        // Kept as a hint, not as data of its own
+        HttpResponse<byte[]> kept = substitute.localGet(key);
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, kept.statusCode());
+        assertEquals(0, kept.body().length);
+
+        owner.start();
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+        while (owner.localGet(key).statusCode() != HttpURLConnection.HTTP_OK) {
+            assertTrue(System.currentTimeMillis() < deadline, "Hint never delivered to " + owner.url());
+            Thread.sleep(100);
+        }
+        HttpResponse<byte[]> delivered = owner.localGet(key);
+        assertArrayEquals(value, Arrays.copyOfRange(delivered.body(), Long.BYTES, delivered.body().length));
+        assertArrayEquals(value, coordinator.get(key, REPLICAS, REPLICAS).body());
+    }
+
+    @Test
+    void strictQuorumFailsWithOwnerDown() throws Exception {
+        nodes = createServices(3);
+        ConsistentHashingImpl ring = new ConsistentHashingImpl(urls());
+        String key = randomId();
+        List<String> preferences = ring.preferenceList(ring.rangeOf(key));
+
+        node(preferences.get(1)).stop();
+        HttpResponse<byte[]> response = node(preferences.get(0)).upsert(key, randomValue(), REPLICAS, REPLICAS);
+        assertEquals(HttpURLConnection.HTTP_GATEWAY_TIMEOUT, response.statusCode());
+    }
+
+    @Test
+    void suspectedOwnerReplacedAtOnce() throws Exception {
+        // Accepts connections into its backlog and never answers, like a node cut off by a partition
+        blackHole = new ServerSocket();
+        blackHole.bind(new InetSocketAddress(0), 64);
+        String blackHoleUrl = "http://localhost:" + blackHole.getLocalPort();
+        nodes = createServices(2, config -> {
+            List<String> cluster = new ArrayList<>(config.clusterUrls());
+            cluster.add(blackHoleUrl);
+            // The binary transport fails fast on its own after a connection attempt times out
+            return new ServiceConfig(config.selfPort(), config.selfUrl(), cluster, config.workingDir())
+                    .withReplicationTransport(ReplicationTransport.HTTP)
+                    .withSloppyQuorum(true)
+                    .withFailureDetection(8);
+        });
+        List<String> cluster = new ArrayList<>(urls());
+        cluster.add(blackHoleUrl);
+        ConsistentHashingImpl ring = new ConsistentHashingImpl(cluster);
+
+        long deadline = System.currentTimeMillis() + SUSPICION_TIMEOUT_MS;
+        while (true) {
+            String key = keyReplicatedBy(ring, blackHoleUrl);
+            long start = System.nanoTime();
+            HttpResponse<byte[]> response = nodes.get(0).upsert(key, randomValue(), REPLICAS, REPLICAS);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // Handed over to the next node after the timeout at first, at once when suspected
+            assertEquals(HttpURLConnection.HTTP_CREATED, response.statusCode());
+            if (elapsedMs < FAST_MS) {
+                break;
+            }
+            assertTrue(System.currentTimeMillis() < deadline, "Black hole never suspected");
+        }
+    }
+
+    private static String keyReplicatedBy(ConsistentHashingImpl ring, String node) {
+        while (true) {
+            String key = randomId();
+            if (ring.getNodesByKey(key, REPLICAS).contains(node)) {
+                return key;
+            }
+        }
+    }
+
+    private List<String> urls() {
+        return nodes.stream().map(ServiceInfo::url).toList();
+    }
+
+    private ServiceInfo node(String url) {
+        return nodes.stream().filter(node -> node.url().equals(url)).findFirst().orElseThrow();
+    }
+}
@@ -0,0 +1,57 @@
+package ok.dht;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SpeculativeReadTest extends TestBase {
+    private static final int READS = 50;
+
+    private List<ServiceInfo> nodes = List.of();
+
+    @AfterEach
+    public void teardown() throws Exception {
+        for (ServiceInfo serviceInfo : nodes) {
+            serviceInfo.cleanUp();
+        }
+    }
+
+    @Test
+    void quorumReadsWithSpeculation() throws Exception {
+        nodes = createServices(3, config -> config.withSpeculativeRetry(0.95));
+        String key = randomId();
+        byte[] value = randomValue();
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(key, value, 3, 3).statusCode());
+
+        for (int i = 0; i < READS; i++) {
+            assertRead(nodes.get(i % nodes.size()).get(key, 2, 3), value);
+        }
+    }
+
+    @Test
+    void failedReplicaIsReplaced() throws Exception {
+        nodes = createServices(3, config -> config.withSpeculativeRetry(0.95));
+        String key = randomId();
+        byte[] value = randomValue();
+        assertEquals(HttpURLConnection.HTTP_CREATED, nodes.get(0).upsert(key, value, 3, 3).statusCode());
+
+        nodes.get(2).stop();
+
+        // Whichever replicas are asked first, the stopped one is made up for by the third
+        for (int i = 0; i < READS; i++) {
+            assertRead(nodes.get(i % 2).get(key, 2, 3), value);
+        }
+        assertEquals(HttpURLConnection.HTTP_GATEWAY_TIMEOUT, nodes.get(0).get(key, 3, 3).statusCode());
+    }
+
+    private static void assertRead(HttpResponse<byte[]> response, byte[] value) {
+        assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+        assertArrayEquals(value, response.body());
+    }
+}
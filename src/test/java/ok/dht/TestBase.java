@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.UnaryOperator;
 
 public class TestBase {
     private static final int VALUE_LENGTH = 1024;
@@ -52,6 +53,12 @@ public class TestBase {
     }
 
     protected static List<ServiceInfo> createServices(int clusterSize) throws Exception {
+        return createServices(clusterSize, UnaryOperator.identity());
+    }
+
+    protected static List<ServiceInfo> createServices(
+            int clusterSize,
+            UnaryOperator<ServiceConfig> configurator) throws Exception {
         int[] ports = randomPorts(clusterSize);
         Arrays.sort(ports);
         List<String> cluster = new ArrayList<>(clusterSize);
@@ -63,7 +70,9 @@ public class TestBase {
         for (int i = 0; i < clusterSize; i++) {
             Path workingDir = Files.createTempDirectory("service" + i);
 
-            ServiceConfig config = new ServiceConfig(ports[i], cluster.get(i), cluster, workingDir);
+            ServiceConfig config = configurator.apply(
+                    new ServiceConfig(ports[i], cluster.get(i), cluster, workingDir)
+            );
             ServiceInfo serviceInfo =
                     new ServiceInfo(
                             new ServiceImpl(config),
@@ -0,0 +1,143 @@
+package ok.dht.admission;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveConcurrencyLimiterTest {
+    private static final long FAST_RTT = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW_RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    void risingLatencyShrinksLimit() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(100, 10, 1000);
+        feed(limiter, FAST_RTT, 5);
+        int before = limiter.getLimit();
+
+        feed(limiter, SLOW_RTT, 5);
+
+        assertTrue(limiter.getLimit() < before, limiter.getLimit() + " should be below " + before);
+    }
+
+    @Test
+    void fallingLatencyGrowsLimit() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(100, 10, 1000);
+        feed(limiter, FAST_RTT, 5);
+        feed(limiter, SLOW_RTT, 20);
+        int shrunk = limiter.getLimit();
+
+        feed(limiter, FAST_RTT, 5);
+
+        assertTrue(limiter.getLimit() > shrunk, limiter.getLimit() + " should be above " + shrunk);
+    }
+
+    @Test
+    void sustainedLatencyDoesntMoveBaseline() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(100, 10, 1000);
+        feed(limiter, FAST_RTT, 10);
+
+        // Thousands of slow samples within one baseline window: a moving average would have
+        // adopted them as the new normal and started growing the limit again
+        feed(limiter, SLOW_RTT / 3, 80);
+
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    void idleSamplesDontGrowLimit() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(100, 10, 1000);
+        for (int i = 0; i < 10 * AdaptiveConcurrencyLimiter.SAMPLES_PER_UPDATE; i++) {
+            limiter.onSample(FAST_RTT, 1);
+        }
+
+        assertEquals(100, limiter.getLimit());
+    }
+
+    @Test
+    void clientRejectedBeforeInternal() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 10, 10);
+        List<AdaptiveConcurrencyLimiter.Permit> permits = new ArrayList<>();
+
+        AdaptiveConcurrencyLimiter.Permit permit;
+        while ((permit = limiter.tryAcquire(RequestPriority.CLIENT)) != null) {
+            permits.add(permit);
+        }
+        assertEquals(8, permits.size());
+        assertEquals(1, limiter.getRejected(RequestPriority.CLIENT));
+
+        for (int i = 0; i < 2; i++) {
+            permit = limiter.tryAcquire(RequestPriority.INTERNAL);
+            assertNotNull(permit);
+            permits.add(permit);
+        }
+        assertNull(limiter.tryAcquire(RequestPriority.INTERNAL));
+        assertEquals(1, limiter.getRejected(RequestPriority.INTERNAL));
+        assertEquals(10, limiter.getInFlight());
+
+        permits.forEach(AdaptiveConcurrencyLimiter.Permit::drop);
+        assertEquals(0, limiter.getInFlight());
+        assertNotNull(limiter.tryAcquire(RequestPriority.CLIENT));
+    }
+
+    @Test
+    void backgroundShedFirst() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 10, 10);
+
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(limiter.tryAcquire(RequestPriority.BACKGROUND));
+        }
+        assertNull(limiter.tryAcquire(RequestPriority.BACKGROUND));
+
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(limiter.tryAcquire(RequestPriority.CLIENT));
+        }
+        assertNull(limiter.tryAcquire(RequestPriority.CLIENT));
+
+        for (int i = 0; i < 2; i++) {
+            assertNotNull(limiter.tryAcquire(RequestPriority.INTERNAL));
+        }
+        assertNull(limiter.tryAcquire(RequestPriority.INTERNAL));
+
+        assertEquals(1, limiter.getRejected(RequestPriority.BACKGROUND));
+        assertEquals(1, limiter.getRejected(RequestPriority.CLIENT));
+        assertEquals(1, limiter.getRejected(RequestPriority.INTERNAL));
+        assertEquals(10, limiter.getInFlight());
+    }
+
+    @Test
+    void concurrentReleasesKeepAccounting() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(64, 64, 1000);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    AdaptiveConcurrencyLimiter.Permit permit = limiter.tryAcquire(RequestPriority.INTERNAL);
+                    if (permit != null) {
+                        permit.release();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(limiter.getLimit() >= 64);
+    }
+
+    private static void feed(AdaptiveConcurrencyLimiter limiter, long rttNanos, int updates) {
+        for (int i = 0; i < updates * AdaptiveConcurrencyLimiter.SAMPLES_PER_UPDATE; i++) {
+            limiter.onSample(rttNanos, limiter.getLimit());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package ok.dht.consistenthashing;
+
+import one.nio.util.Hash;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsistentHashingImplTest {
+    private static final int KEYS = 10_000;
+    private static final double TOKENS = 1L << Integer.SIZE;
+
+    @Test
+    void replicasAreDistinct() {
+        ConsistentHashingImpl ring = new ConsistentHashingImpl(urls(5), 16);
+        for (int range = 0; range < ring.rangeCount(); range++) {
+            List<String> preferences = ring.preferenceList(range);
+            assertEquals(5, preferences.size());
+            assertEquals(new HashSet<>(ring.nodes()), new HashSet<>(preferences));
+            assertEquals(preferences.subList(0, 3), ring.rangeReplicas(range, 3));
+        }
+        assertEquals(5, ring.getNodesByKey("key", 10).size());
+    }
+
+    @Test
+    void independentOfClusterOrder() {
+        List<String> urls = urls(4);
+        List<String> reversed = new ArrayList<>(urls);
+        Collections.reverse(reversed);
+        ConsistentHashingImpl ring = new ConsistentHashingImpl(urls);
+        ConsistentHashingImpl same = new ConsistentHashingImpl(reversed);
+
+        assertEquals(ring.version(), same.version());
+        assertEquals(ring.topology(), same.topology());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(ring.getNodesByKey("key" + i, 3), same.getNodesByKey("key" + i, 3));
+        }
+        assertNotEquals(ring.version(), new ConsistentHashingImpl(urls(5)).version());
+        assertNotEquals(ring.version(), new ConsistentHashingImpl(urls, 16).version());
+    }
+
+    @Test
+    void keysFallInTheirRange() {
+        ConsistentHashingImpl ring = new ConsistentHashingImpl(urls(3), 8);
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key" + i;
+            int token = ConsistentHashingImpl.token(key.getBytes(StandardCharsets.UTF_8));
+            int range = ring.rangeOf(key);
+            assertEquals(range, ring.rangeOf(token));
+
+            // (start, end], range 0 wrapping around
+            long fromStart = Integer.toUnsignedLong(token - ring.rangeStart(range));
+            long size = Integer.toUnsignedLong(ring.rangeEnd(range) - ring.rangeStart(range));
+            assertTrue(fromStart > 0 && (size == 0 || fromStart <= size), key);
+        }
+    }
+
+    @Test
+    void virtualNodesBalanceLoad() {
+        List<String> urls = urls(5);
+        ConsistentHashingImpl ring = new ConsistentHashingImpl(urls, 64);
+        Map<String, Double> shares = new HashMap<>();
+        for (int range = 0; range < ring.rangeCount(); range++) {
+            long size = Integer.toUnsignedLong(ring.rangeEnd(range) - ring.rangeStart(range));
+            shares.merge(ring.replica(range, 0), size / TOKENS, Double::sum);
+        }
+
+        for (String url : urls) {
+            double share = shares.getOrDefault(url, 0.0) * urls.size();
+            assertTrue(share > 0.7 && share < 1.3, url + " owns " + share + " of a fair share");
+        }
+    }
+
+    @Test
+    void joiningNodeOnlyTakesKeys() {
+        List<String> urls = urls(4);
+        ConsistentHashingImpl before = new ConsistentHashingImpl(urls.subList(0, 3), 64);
+        ConsistentHashingImpl after = new ConsistentHashingImpl(urls, 64);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key" + i;
+            String owner = before.getNodesByKey(key, 1).get(0);
+            String newOwner = after.getNodesByKey(key, 1).get(0);
+            if (!owner.equals(newOwner)) {
+                assertEquals(urls.get(3), newOwner, key);
+                moved++;
+            }
+        }
+        // About a quarter of the keys
+        assertTrue(moved > KEYS / 8 && moved < KEYS * 3 / 8, "Moved " + moved);
+    }
+
+    @Test
+    void defaultRingKeepsOriginalPlacement() {
+        // Deliberately not in sorted order
+        List<String> urls = List.of(
+                "http://localhost:19236",
+                "http://localhost:19234",
+                "http://localhost:19237",
+                "http://localhost:19235"
+        );
+        ConsistentHashingImpl ring = new ConsistentHashingImpl(urls);
+
+        // The ring as it was first built: three positions per node, replicas found walking clockwise
+        int[] hashes = new int[urls.size() * 3];
+        Map<Integer, String> owners = new HashMap<>();
+        for (int i = 0; i < urls.size(); i++) {
+            for (int j = 0; j < 3; j++) {
+                int hash = hash(urls.get(i) + "_" + j);
+                hashes[i * 3 + j] = hash;
+                owners.put(hash, urls.get(i));
+            }
+        }
+        Arrays.sort(hashes);
+
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key" + i;
+            int index = Arrays.binarySearch(hashes, hash(key));
+            if (index < 0) {
+                index = -index - 1;
+            }
+            Set<String> replicas = new HashSet<>();
+            for (int j = 0; replicas.size() < 2; j++) {
+                replicas.add(owners.get(hashes[(index + j) % hashes.length]));
+            }
+            assertEquals(replicas, new HashSet<>(ring.getNodesByKey(key, 2)), key);
+        }
+    }
+
+    @Test
+    void virtualNodesMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new ConsistentHashingImpl(urls(3), 0));
+    }
+
+    private static int hash(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return Hash.xxhash(bytes, 0, bytes.length);
+    }
+
+    private static List<String> urls(int count) {
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            urls.add("http://localhost:" + (19234 + i));
+        }
+        return urls;
+    }
+}
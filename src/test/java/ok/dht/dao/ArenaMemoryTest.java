@@ -0,0 +1,172 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArenaMemoryTest {
+    private static final long SIZE_THRESHOLD = Long.MAX_VALUE;
+    private static final int WRITERS = 4;
+    private static final int KEYS_PER_WRITER = 2000;
+    private static final int VERSIONS = 5;
+
+    @Test
+    void putGetAndOverwrite() {
+        ArenaMemory memory = new ArenaMemory(SIZE_THRESHOLD, null);
+        assertTrue(memory.isEmpty());
+        put(memory, "key", "first", 1);
+        put(memory, "key", "second", 2);
+        put(memory, "deleted", null, 3);
+
+        assertFalse(memory.isEmpty());
+        assertEquals(2, memory.values().size());
+        assertEntry(memory.get(segment("key")), "key", "second", 2);
+        assertTrue(memory.get(segment("deleted")).isTombstone());
+        assertNull(memory.get(segment("absent")));
+    }
+
+    @Test
+    void iteratesInKeyOrder() {
+        ArenaMemory memory = new ArenaMemory(SIZE_THRESHOLD, null);
+        for (int i = 999; i >= 0; i--) {
+            put(memory, key(i), "value" + i, i);
+        }
+
+        Iterator<Entry<MemorySegment>> all = memory.values().iterator();
+        for (int i = 0; i < 1000; i++) {
+            assertEntry(all.next(), key(i), "value" + i, i);
+        }
+        assertFalse(all.hasNext());
+
+        Iterator<Entry<MemorySegment>> range = memory.get(segment(key(100)), segment(key(200)));
+        for (int i = 100; i < 200; i++) {
+            assertEntry(range.next(), key(i), "value" + i, i);
+        }
+        assertFalse(range.hasNext());
+    }
+
+    @Test
+    void valuesLargerThanChunk() {
+        ArenaMemory memory = new ArenaMemory(SIZE_THRESHOLD, null);
+        String big = "v".repeat(3 * 1024 * 1024);
+        put(memory, "a", "small", 1);
+        put(memory, "b", big, 2);
+        put(memory, "c", "small", 3);
+
+        assertEntry(memory.get(segment("b")), "b", big, 2);
+        assertEntry(memory.get(segment("c")), "c", "small", 3);
+    }
+
+    @Test
+    void concurrentUpsertAndIterate() throws Exception {
+        ArenaMemory memory = new ArenaMemory(SIZE_THRESHOLD, null);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + 1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                int writer = w;
+                writers.add(executor.submit(() -> {
+                    start.await();
+                    for (int version = 0; version < VERSIONS; version++) {
+                        // Interleaved keys, so writers insert next to each other
+                        for (int i = writer; i < WRITERS * KEYS_PER_WRITER; i += WRITERS) {
+                            put(memory, key(i), value(i, version), version);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            Future<Integer> reader = executor.submit(() -> {
+                start.await();
+                int scans = 0;
+                while (writing.get()) {
+                    assertConsistent(memory);
+                    scans++;
+                }
+                return scans;
+            });
+
+            start.countDown();
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            writing.set(false);
+            assertTrue(reader.get() > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(WRITERS * KEYS_PER_WRITER, memory.values().size());
+        Iterator<Entry<MemorySegment>> all = memory.values().iterator();
+        for (int i = 0; i < WRITERS * KEYS_PER_WRITER; i++) {
+            assertEntry(all.next(), key(i), value(i, VERSIONS - 1), VERSIONS - 1);
+        }
+        assertFalse(all.hasNext());
+    }
+
+    /**
+     * Keys come strictly ordered, and each with one of the values written for it.
+     */
+    private static void assertConsistent(ArenaMemory memory) {
+        String previous = null;
+        for (Entry<MemorySegment> entry : memory.values()) {
+            String key = string(entry.key());
+            assertTrue(previous == null || previous.compareTo(key) < 0, previous + " before " + key);
+            int i = Integer.parseInt(key.substring("key".length()));
+            long version = ByteBuffer.wrap(entry.timestamp().toByteArray()).getLong();
+            assertEquals(value(i, (int) version), string(entry.value()));
+            previous = key;
+        }
+    }
+
+    private static void put(ArenaMemory memory, String key, String value, long timestamp) {
+        Entry<MemorySegment> entry = new BaseEntry<>(
+                segment(key),
+                value == null ? null : segment(value),
+                MemorySegment.ofArray(ByteBuffer.allocate(Long.BYTES).putLong(timestamp).array())
+        );
+        memory.put(entry.key(), entry);
+    }
+
+    private static void assertEntry(Entry<MemorySegment> entry, String key, String value, long timestamp) {
+        assertNotNull(entry, key);
+        assertEquals(key, string(entry.key()));
+        assertArrayEquals(value.getBytes(StandardCharsets.UTF_8), entry.value().toByteArray());
+        assertEquals(timestamp, ByteBuffer.wrap(entry.timestamp().toByteArray()).getLong());
+    }
+
+    private static String key(int i) {
+        return "key" + String.format("%06d", i);
+    }
+
+    private static String value(int i, int version) {
+        return "value" + i + "v" + version;
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(MemorySegment segment) {
+        return new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
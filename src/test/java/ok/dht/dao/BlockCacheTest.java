@@ -0,0 +1,125 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockCacheTest {
+    private static final int BLOCK_SIZE = 16 * 1024;
+    // 16 shards of 64 blocks
+    private static final long CAPACITY = 16L * 64 * BLOCK_SIZE;
+    private static final MemorySegment BLOCK = MemorySegment.ofArray(new byte[BLOCK_SIZE]);
+
+    @Test
+    void getCachesBlocks() {
+        BlockCache cache = new BlockCache(CAPACITY);
+        assertNull(cache.get(1, 0));
+        DataBlock block = cache.put(1, 0, BLOCK);
+
+        assertSame(block, cache.get(1, 0));
+        BlockCache.Stats stats = cache.stats();
+        assertEquals(1, stats.hits());
+        assertEquals(1, stats.misses());
+        assertEquals(BLOCK_SIZE, stats.sizeBytes());
+    }
+
+    @Test
+    void frequentBlocksSurviveScan() {
+        BlockCache cache = new BlockCache(CAPACITY);
+        int hot = 512;
+        for (int i = 0; i < hot; i++) {
+            read(cache, 1, i, 10);
+        }
+        assertEquals(hot, cached(cache, 1, hot));
+
+        // Every scanned block is more recent than the hot ones, an LRU would keep only the scan
+        int scanned = 2000;
+        for (int i = 0; i < scanned; i++) {
+            read(cache, 2, i, 1);
+        }
+
+        assertTrue(cached(cache, 1, hot) >= hot * 0.9, "Hot blocks left: " + cached(cache, 1, hot));
+        assertTrue(cache.stats().evictions() >= scanned / 2, "Scan wasn't rejected");
+    }
+
+    @Test
+    void peekDoesntPolluteCache() {
+        BlockCache cache = new BlockCache(CAPACITY);
+        // More blocks read twice than the cache holds, so every shard is full
+        for (int i = 0; i < 16 * 80; i++) {
+            read(cache, 1, i, 2);
+        }
+        BlockCache.Stats before = cache.stats();
+
+        int candidates = 200;
+        for (int i = 0; i < candidates; i++) {
+            for (int j = 0; j < 10; j++) {
+                assertNull(cache.peek(2, i));
+            }
+            cache.put(2, i, BLOCK);
+        }
+        BlockCache.Stats after = cache.stats();
+        assertEquals(before.hits(), after.hits());
+        assertEquals(before.misses(), after.misses());
+
+        for (int i = 0; i < candidates; i++) {
+            read(cache, 3, i, 10);
+        }
+
+        // Peeks don't count as accesses, so these blocks lose against the residents
+        assertTrue(cached(cache, 2, candidates) < candidates / 10, "Peeked blocks: " + cached(cache, 2, candidates));
+        assertTrue(cached(cache, 3, candidates) > candidates / 2, "Read blocks: " + cached(cache, 3, candidates));
+    }
+
+    @Test
+    void peekSeesCachedBlock() {
+        BlockCache cache = new BlockCache(CAPACITY);
+        DataBlock block = cache.put(1, 0, BLOCK);
+
+        assertSame(block, cache.peek(1, 0));
+        assertEquals(0, cache.stats().hits());
+    }
+
+    @Test
+    void invalidateDropsTable() {
+        BlockCache cache = new BlockCache(CAPACITY);
+        for (int i = 0; i < 10; i++) {
+            cache.put(1, i, BLOCK);
+            cache.put(2, i, BLOCK);
+        }
+
+        cache.invalidate(List.of(1L));
+
+        assertEquals(0, cached(cache, 1, 10));
+        assertEquals(10, cached(cache, 2, 10));
+        assertEquals(10L * BLOCK_SIZE, cache.stats().sizeBytes());
+    }
+
+    /**
+     * Reads the block like a point lookup does: a miss is followed by loading and caching the block.
+     */
+    private static void read(BlockCache cache, long tableId, int blockIndex, int times) {
+        for (int i = 0; i < times; i++) {
+            if (cache.get(tableId, blockIndex) == null) {
+                assertNotNull(cache.put(tableId, blockIndex, BLOCK));
+            }
+        }
+    }
+
+    private static int cached(BlockCache cache, long tableId, int blocks) {
+        int cached = 0;
+        for (int i = 0; i < blocks; i++) {
+            if (cache.peek(tableId, i) != null) {
+                cached++;
+            }
+        }
+        return cached;
+    }
+}
@@ -0,0 +1,157 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockSSTableTest {
+    private static final int KEYS = 1000;
+    private static final int BLOCK_SIZE = 512;
+    private static final long CACHE_BYTES = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripRaw() throws Exception {
+        Path file = write(false);
+        assertEquals(BlockSSTable.CODEC_RAW, firstBlockCodec(file));
+        assertRoundTrip(file, null);
+        assertRoundTrip(file, new BlockCache(CACHE_BYTES));
+    }
+
+    @Test
+    void roundTripDeflate() throws Exception {
+        Path file = write(true);
+        assertEquals(BlockSSTable.CODEC_DEFLATE, firstBlockCodec(file));
+        assertRoundTrip(file, null);
+        assertRoundTrip(file, new BlockCache(CACHE_BYTES));
+    }
+
+    @Test
+    void detectsCorruptionRaw() throws Exception {
+        assertCorruptionDetected(write(false));
+    }
+
+    @Test
+    void detectsCorruptionDeflate() throws Exception {
+        assertCorruptionDetected(write(true));
+    }
+
+    private Path write(boolean compress) throws IOException {
+        Path file = dir.resolve("table");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            BlockSSTableWriter writer = new BlockSSTableWriter(channel, BLOCK_SIZE, compress);
+            for (int i = 0; i < KEYS; i++) {
+                writer.add(entry(key(i), i % 10 == 0 ? null : value(i), i));
+            }
+            writer.finish();
+        }
+        return file;
+    }
+
+    private static void assertRoundTrip(Path file, BlockCache cache) throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            SSTable table = SSTable.of(StorageUtils.mapForRead(scope, file), 0, cache);
+            assertTrue(table.hasTombstones());
+
+            // Twice: the second pass reads verified, and possibly cached, blocks
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < KEYS; i++) {
+                    Entry<MemorySegment> entry = table.get(segment(key(i)));
+                    assertNotNull(entry, key(i));
+                    assertEntry(i, entry);
+                }
+            }
+            assertNull(table.get(segment("absent")));
+            assertNull(table.get(segment("")));
+
+            Iterator<Entry<MemorySegment>> all = table.iterator(segment(""), null);
+            for (int i = 0; i < KEYS; i++) {
+                assertEntry(i, all.next());
+            }
+            assertFalse(all.hasNext());
+
+            Iterator<Entry<MemorySegment>> range = table.iterator(segment(key(100)), segment(key(200)));
+            for (int i = 100; i < 200; i++) {
+                assertEntry(i, range.next());
+            }
+            assertFalse(range.hasNext());
+        }
+    }
+
+    private static void assertCorruptionDetected(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        data[BlockSSTable.HEADER_SIZE + BlockSSTable.BLOCK_HEADER_SIZE + 10] ^= 1;
+        Files.write(file, data);
+
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            SSTable table = SSTable.of(StorageUtils.mapForRead(scope, file), 0, new BlockCache(CACHE_BYTES));
+            assertThrows(IllegalStateException.class, () -> table.get(segment(key(0))));
+            assertThrows(IllegalStateException.class, () -> table.iterator(segment(""), null));
+            // Blocks that are intact stay readable
+            assertEntry(KEYS - 1, table.get(segment(key(KEYS - 1))));
+        }
+    }
+
+    private static byte firstBlockCodec(Path file) throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            MemorySegment segment = StorageUtils.mapForRead(scope, file);
+            return MemoryAccess.getByteAtOffset(segment, BlockSSTable.HEADER_SIZE + Integer.BYTES * 3L);
+        }
+    }
+
+    private static void assertEntry(int i, Entry<MemorySegment> entry) {
+        assertEquals(key(i), string(entry.key()));
+        assertEquals(i, ByteBuffer.wrap(entry.timestamp().toByteArray()).getLong());
+        if (i % 10 == 0) {
+            assertTrue(entry.isTombstone(), key(i));
+        } else {
+            assertArrayEquals(value(i).getBytes(StandardCharsets.UTF_8), entry.value().toByteArray());
+        }
+    }
+
+    private static String key(int i) {
+        return "key" + String.format("%05d", i);
+    }
+
+    private static String value(int i) {
+        // Compressible, so Deflate blocks are actually written
+        return ("value" + i).repeat(4);
+    }
+
+    private static Entry<MemorySegment> entry(String key, String value, long timestamp) {
+        return new BaseEntry<>(
+                segment(key),
+                value == null ? null : segment(value),
+                MemorySegment.ofArray(ByteBuffer.allocate(Long.BYTES).putLong(timestamp).array())
+        );
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(MemorySegment segment) {
+        return new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,65 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest {
+    private static final int KEYS = 10_000;
+    private static final int PROBES = 100_000;
+
+    @Test
+    void containsEveryAddedKey() {
+        MemorySegment filter = filterOf(KEYS);
+
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(mightContain(filter, "key" + i), "key" + i);
+        }
+    }
+
+    @Test
+    void falsePositiveRate() {
+        MemorySegment filter = filterOf(KEYS);
+
+        int falsePositives = 0;
+        for (int i = 0; i < PROBES; i++) {
+            if (mightContain(filter, "absent" + i)) {
+                falsePositives++;
+            }
+        }
+
+        // 10 bits per key and 7 probes give about 0.8%
+        double rate = (double) falsePositives / PROBES;
+        assertTrue(rate < 0.015, "False positive rate " + rate);
+    }
+
+    @Test
+    void emptyFilterRejectsEverything() {
+        MemorySegment filter = filterOf(0);
+
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(mightContain(filter, "key" + i), "key" + i);
+        }
+    }
+
+    private static MemorySegment filterOf(int keys) {
+        long[] words = BloomFilter.create(keys);
+        for (int i = 0; i < keys; i++) {
+            BloomFilter.add(words, segment("key" + i));
+        }
+        // Tables store the words in native order, as a long[] segment does
+        return MemorySegment.ofArray(words);
+    }
+
+    private static boolean mightContain(MemorySegment filter, String key) {
+        return BloomFilter.mightContain(filter, 0, filter.byteSize() / Long.BYTES, segment(key));
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,175 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlushingMemtableTest {
+    private static final long FLUSH_THRESHOLD_BYTES = 1024;
+    private static final int BATCH = 20;
+    private static final String VALUE = "v".repeat(100);
+
+    private final CountDownLatch flushBlocked = new CountDownLatch(1);
+    private final CountDownLatch releaseFlush = new CountDownLatch(1);
+    private final List<String> flushedFirstKeys = new CopyOnWriteArrayList<>();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void queuedMemtableIsVisible() throws Exception {
+        MemorySegmentDao dao = new MemorySegmentDao(config(Long.MAX_VALUE), this::blockFlush);
+        try {
+            upsertBatch(dao, "first", 1);
+            dao.upsert(entry("shadowed", VALUE, 1));
+            awaitBlockedFlush();
+
+            // The flush thread is stuck after the first table, so this memtable waits in the queue
+            upsertBatch(dao, "second", 2);
+            dao.upsert(entry("shadowed", null, 2));
+            upsertBatch(dao, "third", 3);
+
+            for (String prefix : new String[]{"first", "second", "third"}) {
+                for (int i = 0; i < BATCH; i++) {
+                    assertValue(dao, prefix + i);
+                }
+            }
+            assertTrue(dao.get(segment("shadowed")).isTombstone());
+
+            Iterator<Entry<MemorySegment>> range = dao.get(segment("second"), segment("second:"));
+            int count = 0;
+            while (range.hasNext()) {
+                assertTrue(string(range.next().key()).startsWith("second"));
+                count++;
+            }
+            assertEquals(BATCH, count);
+        } finally {
+            // Closing waits for the flush thread
+            releaseFlush.countDown();
+            dao.close();
+        }
+    }
+
+    @Test
+    void queuedMemtablesFlushInOrder() throws Exception {
+        MemorySegmentDao dao = new MemorySegmentDao(config(Long.MAX_VALUE), this::blockFlush);
+        try {
+            upsertBatch(dao, "a", 1);
+            awaitBlockedFlush();
+            upsertBatch(dao, "b", 2);
+            upsertBatch(dao, "c", 3);
+            upsertBatch(dao, "d", 4);
+        } finally {
+            releaseFlush.countDown();
+        }
+        dao.flush();
+
+        // The tail of a batch spills into the next memtable, so batches repeat but never go back
+        List<String> batches = flushedFirstKeys.stream().map(key -> key.substring(0, 1)).toList();
+        assertEquals(batches.stream().sorted().toList(), batches);
+        assertEquals(List.of("a", "b", "c", "d"), batches.stream().distinct().toList());
+        for (String prefix : new String[]{"a", "b", "c", "d"}) {
+            for (int i = 0; i < BATCH; i++) {
+                assertValue(dao, prefix + i);
+            }
+        }
+        dao.close();
+    }
+
+    @Test
+    void writesStallOverBudget() throws Exception {
+        MemorySegmentDao dao = new MemorySegmentDao(config(2 * FLUSH_THRESHOLD_BYTES), this::blockFlush);
+        try {
+            // A single entry over the threshold, so that nothing is queued behind the held flush yet:
+            // stalled writers are only woken once a flush has completed
+            dao.upsert(entry("first", "v".repeat((int) FLUSH_THRESHOLD_BYTES), 1));
+            awaitBlockedFlush();
+
+            CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+                for (int batch = 0; batch < 4; batch++) {
+                    upsertBatch(dao, "stalled" + batch + "-", 2);
+                }
+            });
+            // The queued memtables can't be flushed, so they pile up until the budget stops the writer
+            assertThrows(TimeoutException.class, () -> writer.get(500, TimeUnit.MILLISECONDS));
+
+            releaseFlush.countDown();
+            writer.get(10, TimeUnit.SECONDS);
+            for (int batch = 0; batch < 4; batch++) {
+                for (int i = 0; i < BATCH; i++) {
+                    assertValue(dao, "stalled" + batch + "-" + i);
+                }
+            }
+        } finally {
+            releaseFlush.countDown();
+            dao.close();
+        }
+    }
+
+    private Config config(long memoryBudgetBytes) {
+        return new Config(dir, FLUSH_THRESHOLD_BYTES).withMemoryBudget(memoryBudgetBytes);
+    }
+
+    private void blockFlush(Iterator<Entry<MemorySegment>> entries) throws InterruptedIOException {
+        if (entries.hasNext()) {
+            flushedFirstKeys.add(string(entries.next().key()));
+        }
+        flushBlocked.countDown();
+        try {
+            releaseFlush.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void awaitBlockedFlush() throws InterruptedException {
+        assertTrue(flushBlocked.await(10, TimeUnit.SECONDS), "No flush started");
+    }
+
+    private static void upsertBatch(MemorySegmentDao dao, String prefix, long timestamp) {
+        for (int i = 0; i < BATCH; i++) {
+            dao.upsert(entry(prefix + i, VALUE, timestamp));
+        }
+    }
+
+    private static void assertValue(MemorySegmentDao dao, String key) {
+        Entry<MemorySegment> entry = dao.get(segment(key));
+        assertNotNull(entry, key);
+        assertArrayEquals(VALUE.getBytes(StandardCharsets.UTF_8), entry.value().toByteArray());
+    }
+
+    private static Entry<MemorySegment> entry(String key, String value, long timestamp) {
+        return new BaseEntry<>(
+                segment(key),
+                value == null ? null : segment(value),
+                MemorySegment.ofArray(ByteBuffer.allocate(Long.BYTES).putLong(timestamp).array())
+        );
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(MemorySegment segment) {
+        return new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,56 @@
+package ok.dht.dao;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LeveledCompactionStrategyTest {
+    private final CompactionStrategy strategy = new LeveledCompactionStrategy();
+
+    @Test
+    void nothingToMerge() {
+        assertNull(strategy.select(new long[]{}));
+        assertNull(strategy.select(new long[]{100}));
+    }
+
+    @Test
+    void keepsGeometricLevels() {
+        assertNull(strategy.select(new long[]{100_000, 10_000, 1000, 100}));
+    }
+
+    @Test
+    void mergesNewerTablesIntoNextLevel() {
+        assertEquals(new CompactionStrategy.Range(0, 2), strategy.select(new long[]{100, 100}));
+        assertEquals(
+                new CompactionStrategy.Range(2, 4),
+                strategy.select(new long[]{100_000, 10_000, 500, 100})
+        );
+    }
+
+    @Test
+    void cascadesWhileLevelsOverflow() {
+        // 50 pushes the newest level over 1 / 10 of 100, together they push 1000 over, and so on
+        assertEquals(
+                new CompactionStrategy.Range(1, 4),
+                strategy.select(new long[]{100_000, 1000, 100, 50})
+        );
+        assertEquals(
+                new CompactionStrategy.Range(0, 4),
+                strategy.select(new long[]{10_000, 1000, 100, 50})
+        );
+    }
+
+    @Test
+    void honoursSizeRatio() {
+        CompactionStrategy wide = new LeveledCompactionStrategy(100);
+        assertEquals(new CompactionStrategy.Range(0, 2), wide.select(new long[]{1000, 100}));
+        assertNull(wide.select(new long[]{100_000, 100}));
+    }
+
+    @Test
+    void rejectsBadSizeRatio() {
+        assertThrows(IllegalArgumentException.class, () -> new LeveledCompactionStrategy(1));
+    }
+}
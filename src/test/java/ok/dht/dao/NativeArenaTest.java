@@ -0,0 +1,93 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NativeArenaTest {
+    private static final int THREADS = 4;
+    private static final int ALLOCATIONS = 50_000;
+    private static final long ALLOCATION_SIZE = 100;
+
+    @Test
+    void allocationsAreAlignedAndInBounds() {
+        NativeArena arena = new NativeArena();
+        for (long size = 1; size < 300; size++) {
+            long pointer = arena.allocate(size);
+            assertNotEquals(NativeArena.NULL, pointer);
+            assertEquals(0, NativeArena.offset(pointer) % Long.BYTES);
+            assertTrue(NativeArena.offset(pointer) + size <= arena.chunk(pointer).byteSize());
+        }
+    }
+
+    @Test
+    void growsPastInitialDirectory() {
+        NativeArena arena = new NativeArena();
+        List<Long> pointers = new ArrayList<>();
+        // About 40 chunks of 1 MB, more than the directory starts with
+        for (int i = 0; i < 40_000; i++) {
+            long pointer = arena.allocate(1000);
+            MemoryAccess.setLongAtOffset(arena.chunk(pointer), NativeArena.offset(pointer), i);
+            pointers.add(pointer);
+        }
+        assertTrue(pointers.get(pointers.size() - 1) >>> 32 >= 32);
+        for (int i = 0; i < pointers.size(); i++) {
+            long pointer = pointers.get(i);
+            assertEquals(i, MemoryAccess.getLongAtOffset(arena.chunk(pointer), NativeArena.offset(pointer)));
+        }
+    }
+
+    @Test
+    void allocatesMoreThanChunk() {
+        NativeArena arena = new NativeArena();
+        arena.allocate(16);
+        long size = 3 * 1024 * 1024;
+        long pointer = arena.allocate(size);
+        MemorySegment chunk = arena.chunk(pointer);
+        assertTrue(NativeArena.offset(pointer) + size <= chunk.byteSize());
+        // Allocations go on after it
+        assertNotEquals(NativeArena.NULL, arena.allocate(16));
+    }
+
+    @Test
+    void concurrentAllocationsDontOverlap() throws Exception {
+        NativeArena arena = new NativeArena();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                long mark = t;
+                futures.add(executor.submit(() -> {
+                    long[] pointers = new long[ALLOCATIONS];
+                    for (int i = 0; i < ALLOCATIONS; i++) {
+                        pointers[i] = arena.allocate(ALLOCATION_SIZE);
+                        MemorySegment chunk = arena.chunk(pointers[i]);
+                        chunk.asSlice(NativeArena.offset(pointers[i]), ALLOCATION_SIZE).fill((byte) mark);
+                    }
+                    return pointers;
+                }));
+            }
+            for (int t = 0; t < THREADS; t++) {
+                for (long pointer : futures.get(t).get()) {
+                    MemorySegment allocation =
+                            arena.chunk(pointer).asSlice(NativeArena.offset(pointer), ALLOCATION_SIZE);
+                    for (long i = 0; i < ALLOCATION_SIZE; i++) {
+                        assertEquals(t, MemoryAccess.getByteAtOffset(allocation, i));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package ok.dht.dao;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SizeTieredCompactionStrategyTest {
+    private final CompactionStrategy strategy = new SizeTieredCompactionStrategy();
+
+    @Test
+    void nothingToMerge() {
+        assertNull(strategy.select(new long[]{}));
+        assertNull(strategy.select(new long[]{100}));
+    }
+
+    @Test
+    void waitsForMinThreshold() {
+        assertNull(strategy.select(new long[]{100, 100, 100}));
+        assertEquals(new CompactionStrategy.Range(0, 4), strategy.select(new long[]{100, 100, 100, 100}));
+    }
+
+    @Test
+    void mergesSimilarSizesOnly() {
+        assertNull(strategy.select(new long[]{1000, 100, 10, 1}));
+        assertEquals(
+                new CompactionStrategy.Range(1, 5),
+                strategy.select(new long[]{10_000, 120, 80, 100, 90})
+        );
+    }
+
+    @Test
+    void prefersNewestRun() {
+        assertEquals(
+                new CompactionStrategy.Range(4, 8),
+                strategy.select(new long[]{1000, 1000, 1000, 1000, 10, 10, 10, 10})
+        );
+    }
+
+    @Test
+    void capsRunAtMaxThreshold() {
+        CompactionStrategy capped = new SizeTieredCompactionStrategy(2, 3);
+        assertEquals(new CompactionStrategy.Range(2, 5), capped.select(new long[]{100, 100, 100, 100, 100}));
+    }
+
+    @Test
+    void mergesStrandedRun() {
+        // Flushes never add to the pair behind the big table, waiting for a third one would wait forever
+        assertEquals(new CompactionStrategy.Range(0, 2), strategy.select(new long[]{100, 100, 10_000, 1}));
+        assertNull(strategy.select(new long[]{100, 10_000, 1}));
+    }
+
+    @Test
+    void rejectsBadThresholds() {
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionStrategy(1, 32));
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionStrategy(4, 3));
+    }
+}
@@ -0,0 +1,73 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TombstoneGraceTest {
+    private static final long FLUSH_THRESHOLD_BYTES = 1024 * 1024;
+    private static final long GRACE_MS = TimeUnit.HOURS.toMillis(1);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void keepsYoungTombstones() throws Exception {
+        Config config = new Config(dir, FLUSH_THRESHOLD_BYTES)
+                .withCompaction(null, 0)
+                .withTombstoneGrace(GRACE_MS);
+        long now = System.currentTimeMillis();
+
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            dao.upsert(entry("old", "value", 1));
+            dao.upsert(entry("young", "value", 1));
+            dao.flush();
+            dao.upsert(entry("old", null, now - 2 * GRACE_MS));
+            dao.upsert(entry("young", null, now));
+            dao.flush();
+
+            dao.compact();
+
+            assertNull(dao.get(segment("old")));
+            assertTrue(dao.get(segment("young")).isTombstone());
+        }
+    }
+
+    @Test
+    void noGraceDropsAllTombstones() throws Exception {
+        Config config = new Config(dir, FLUSH_THRESHOLD_BYTES)
+                .withCompaction(null, 0)
+                .withTombstoneGrace(0);
+
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            dao.upsert(entry("key", "value", 1));
+            dao.flush();
+            dao.upsert(entry("key", null, System.currentTimeMillis() - 1));
+            dao.flush();
+
+            dao.compact();
+
+            assertNull(dao.get(segment("key")));
+        }
+    }
+
+    private static Entry<MemorySegment> entry(String key, String value, long timestamp) {
+        return new BaseEntry<>(
+                segment(key),
+                value == null ? null : segment(value),
+                MemorySegment.ofArray(ByteBuffer.allocate(Long.BYTES).putLong(timestamp).array())
+        );
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
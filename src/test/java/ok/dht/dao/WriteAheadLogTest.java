@@ -0,0 +1,177 @@
+package ok.dht.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteAheadLogTest {
+    private static final long FLUSH_THRESHOLD_BYTES = 1024 * 1024;
+    private static final int KEYS = 100;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replayAfterUncleanShutdown() throws Exception {
+        Path running = dir.resolve("running");
+        Path crashed = dir.resolve("crashed");
+
+        try (MemorySegmentDao dao = new MemorySegmentDao(new Config(running, FLUSH_THRESHOLD_BYTES))) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(entry("key" + i, "value" + i, i));
+            }
+            dao.upsert(entry("key0", null, KEYS));
+
+            // What a crash leaves on disk: every upsert was synced, nothing was flushed
+            copyFiles(running, crashed);
+        }
+
+        try (MemorySegmentDao dao = new MemorySegmentDao(new Config(crashed, FLUSH_THRESHOLD_BYTES))) {
+            assertTrue(dao.get(segment("key0")).isTombstone());
+            for (int i = 1; i < KEYS; i++) {
+                assertValue(dao, "key" + i, "value" + i);
+            }
+        }
+        assertTrue(WriteAheadLog.existingLogs(crashed).isEmpty());
+
+        // The replayed entries were flushed to a table, they outlive the logs
+        try (MemorySegmentDao dao = new MemorySegmentDao(new Config(crashed, FLUSH_THRESHOLD_BYTES))) {
+            for (int i = 1; i < KEYS; i++) {
+                assertValue(dao, "key" + i, "value" + i);
+            }
+        }
+    }
+
+    @Test
+    void tornLastRecord() throws Exception {
+        Config config = new Config(dir, FLUSH_THRESHOLD_BYTES);
+        Path log = writeLog(config, 3);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        assertEquals(List.of("key0", "key1"), replayedKeys(log));
+
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            assertValue(dao, "key0", "value0");
+            assertValue(dao, "key1", "value1");
+            assertNull(dao.get(segment("key2")));
+        }
+    }
+
+    @Test
+    void corruptedLastRecord() throws Exception {
+        Path log = writeLog(new Config(dir, FLUSH_THRESHOLD_BYTES), 3);
+        byte[] data = Files.readAllBytes(log);
+        data[data.length - 1] ^= 1;
+        Files.write(log, data);
+
+        assertEquals(List.of("key0", "key1"), replayedKeys(log));
+    }
+
+    @Test
+    void createsMissingDirectory() throws Exception {
+        Path missing = dir.resolve("not").resolve("yet");
+        try (MemorySegmentDao dao = new MemorySegmentDao(new Config(missing, FLUSH_THRESHOLD_BYTES))) {
+            dao.upsert(entry("key", "value", 1));
+        }
+        try (MemorySegmentDao dao = new MemorySegmentDao(new Config(missing, FLUSH_THRESHOLD_BYTES))) {
+            assertValue(dao, "key", "value");
+        }
+    }
+
+    @Test
+    void interruptedSyncFailsWrite() throws Exception {
+        try (WriteAheadLog wal = WriteAheadLog.create(new Config(dir, FLUSH_THRESHOLD_BYTES), 0)) {
+            long position = wal.append(entry("key", "value", 1));
+
+            // An interrupt during fsync closes the channel without the record being synced
+            Thread.currentThread().interrupt();
+            try {
+                assertThrows(ClosedByInterruptException.class, () -> wal.awaitDurable(position));
+            } finally {
+                Thread.interrupted();
+            }
+            assertThrows(ClosedChannelException.class, () -> wal.awaitDurable(position));
+        }
+    }
+
+    @Test
+    void syncAfterCloseSucceeds() throws Exception {
+        WriteAheadLog wal = WriteAheadLog.create(new Config(dir, FLUSH_THRESHOLD_BYTES), 0);
+        long position = wal.append(entry("key", "value", 1));
+        wal.close();
+
+        assertDoesNotThrow(() -> wal.awaitDurable(position));
+    }
+
+    private static Path writeLog(Config config, int records) throws IOException {
+        try (WriteAheadLog wal = WriteAheadLog.create(config, 0)) {
+            for (int i = 0; i < records; i++) {
+                wal.append(entry("key" + i, "value" + i, i));
+            }
+            wal.sync();
+        }
+        List<Path> logs = WriteAheadLog.existingLogs(config.basePath());
+        assertEquals(1, logs.size());
+        return logs.get(0);
+    }
+
+    private static List<String> replayedKeys(Path log) throws IOException {
+        List<String> keys = new ArrayList<>();
+        WriteAheadLog.replay(log, entry -> keys.add(string(entry.key())));
+        return keys;
+    }
+
+    private static void copyFiles(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path file : files.toList()) {
+                Files.copy(file, to.resolve(file.getFileName()));
+            }
+        }
+    }
+
+    private static void assertValue(MemorySegmentDao dao, String key, String value) {
+        Entry<MemorySegment> entry = dao.get(segment(key));
+        assertNotNull(entry, key);
+        assertArrayEquals(value.getBytes(StandardCharsets.UTF_8), entry.value().toByteArray());
+    }
+
+    private static Entry<MemorySegment> entry(String key, String value, long timestamp) {
+        return new BaseEntry<>(
+                segment(key),
+                value == null ? null : segment(value),
+                MemorySegment.ofArray(ByteBuffer.allocate(Long.BYTES).putLong(timestamp).array())
+        );
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(MemorySegment segment) {
+        return new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
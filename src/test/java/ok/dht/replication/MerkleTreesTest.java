@@ -0,0 +1,133 @@
+package ok.dht.replication;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.consistenthashing.ConsistentHashingImpl;
+import ok.dht.dao.BaseEntry;
+import ok.dht.dao.Entry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class MerkleTreesTest {
+    private static final ConsistentHashingImpl RING =
+            new ConsistentHashingImpl(List.of("http://localhost:1", "http://localhost:2"), 4);
+
+    @Test
+    void updatesCommute() {
+        MerkleTrees forward = new MerkleTrees(RING);
+        MerkleTrees backward = new MerkleTrees(RING);
+        for (int i = 0; i < 100; i++) {
+            update(forward, entry("key" + i, "value" + i, i));
+            update(backward, entry("key" + (99 - i), "value" + (99 - i), 99 - i));
+        }
+
+        for (int range = 0; range < RING.rangeCount(); range++) {
+            for (int level = 0; level <= MerkleTrees.DEPTH; level++) {
+                assertArrayEquals(
+                        forward.level(range, level, 0, 1 << level),
+                        backward.level(range, level, 0, 1 << level)
+                );
+            }
+        }
+    }
+
+    @Test
+    void replacedVersionLeavesNoTrace() {
+        MerkleTrees trees = new MerkleTrees(RING);
+        Entry<MemorySegment> old = entry("key", "old", 1);
+        Entry<MemorySegment> current = entry("key", "new", 2);
+        update(trees, old);
+        trees.update(token(old), MerkleTrees.hash(old) ^ MerkleTrees.hash(current));
+
+        MerkleTrees expected = new MerkleTrees(RING);
+        update(expected, current);
+        int range = RING.rangeOf(token(current));
+        assertArrayEquals(
+                expected.level(range, MerkleTrees.DEPTH, 0, MerkleTrees.LEAVES),
+                trees.level(range, MerkleTrees.DEPTH, 0, MerkleTrees.LEAVES)
+        );
+    }
+
+    @Test
+    void changeReachesRootOnly() {
+        MerkleTrees base = new MerkleTrees(RING);
+        MerkleTrees changed = new MerkleTrees(RING);
+        for (int i = 0; i < 100; i++) {
+            update(base, entry("key" + i, "value" + i, i));
+            update(changed, entry("key" + i, "value" + i, i));
+        }
+        Entry<MemorySegment> extra = entry("extra", "value", 1);
+        update(changed, extra);
+        int range = RING.rangeOf(token(extra));
+
+        for (int level = 0; level <= MerkleTrees.DEPTH; level++) {
+            long[] expected = base.level(range, level, 0, 1 << level);
+            long[] actual = changed.level(range, level, 0, 1 << level);
+            int differing = 0;
+            for (int i = 0; i < expected.length; i++) {
+                if (expected[i] != actual[i]) {
+                    differing++;
+                }
+            }
+            assertEquals(1, differing, "level " + level);
+        }
+        for (int other = 0; other < RING.rangeCount(); other++) {
+            if (other != range) {
+                assertArrayEquals(base.level(other, 0, 0, 1), changed.level(other, 0, 0, 1));
+            }
+        }
+    }
+
+    @Test
+    void tombstonesHashToZero() {
+        assertEquals(0, MerkleTrees.hash(entry("key", null, 1)));
+        assertNotEquals(MerkleTrees.hash(entry("key", "value", 1)), MerkleTrees.hash(entry("key", "value", 2)));
+    }
+
+    @Test
+    void leafTokensMatchLeafOf() {
+        MerkleTrees trees = new MerkleTrees(RING);
+        for (int range = 0; range < RING.rangeCount(); range++) {
+            long expectedFrom = trees.leafTokens(range, 0)[0];
+            for (int leaf = 0; leaf < MerkleTrees.LEAVES; leaf++) {
+                long[] tokens = trees.leafTokens(range, leaf);
+                // Leaves tile the range without gaps
+                assertEquals(expectedFrom % (1L << Integer.SIZE), tokens[0] % (1L << Integer.SIZE));
+                assertEquals(leaf, trees.leafOf(range, tokenAt(tokens[0])));
+                assertEquals(leaf, trees.leafOf(range, tokenAt(tokens[1] - 1)));
+                assertEquals(range, RING.rangeOf(tokenAt(tokens[0])));
+                expectedFrom = tokens[1];
+            }
+        }
+    }
+
+    private static int tokenAt(long offset) {
+        return (int) offset ^ Integer.MIN_VALUE;
+    }
+
+    private static void update(MerkleTrees trees, Entry<MemorySegment> entry) {
+        trees.update(token(entry), MerkleTrees.hash(entry));
+    }
+
+    private static int token(Entry<MemorySegment> entry) {
+        return ConsistentHashingImpl.token(entry.key().toByteArray());
+    }
+
+    private static Entry<MemorySegment> entry(String key, String value, long timestamp) {
+        return new BaseEntry<>(
+                segment(key),
+                value == null ? null : segment(value),
+                MemorySegment.ofArray(ByteBuffer.allocate(Long.BYTES).putLong(timestamp).array())
+        );
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,85 @@
+package ok.dht.replication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PeerHealthTest {
+    private static final String NODE = "http://localhost:1";
+    private static final int FAILURES_TO_OPEN = 5;
+    private static final long MIN_OPEN_MS = 1000;
+
+    // No peers to send heartbeats to, and a threshold never reached: the breaker alone decides
+    private final PeerHealth health = new PeerHealth(List::of, Double.MAX_VALUE);
+
+    @AfterEach
+    public void teardown() {
+        health.close();
+    }
+
+    @Test
+    void breakerOpensAfterFailuresInRow() {
+        for (int i = 0; i < FAILURES_TO_OPEN - 1; i++) {
+            health.onFailure(NODE);
+            assertTrue(health.allowRequest(NODE));
+        }
+        health.onSuccess(NODE);
+        for (int i = 0; i < FAILURES_TO_OPEN - 1; i++) {
+            health.onFailure(NODE);
+        }
+        assertTrue(health.allowRequest(NODE));
+
+        health.onFailure(NODE);
+        assertFalse(health.allowRequest(NODE));
+        assertTrue(health.allowRequest("http://localhost:2"));
+    }
+
+    @Test
+    void probeClosesBreaker() throws Exception {
+        open();
+        Thread.sleep(MIN_OPEN_MS + 100);
+
+        assertTrue(health.allowRequest(NODE));
+        // A single probe at a time
+        assertFalse(health.allowRequest(NODE));
+        health.onSuccess(NODE);
+        assertTrue(health.allowRequest(NODE));
+        assertTrue(health.allowRequest(NODE));
+    }
+
+    @Test
+    void failedProbeReopensBreaker() throws Exception {
+        open();
+        Thread.sleep(MIN_OPEN_MS + 100);
+
+        assertTrue(health.allowRequest(NODE));
+        health.onFailure(NODE);
+        assertFalse(health.allowRequest(NODE));
+        // Open twice as long now
+        Thread.sleep(MIN_OPEN_MS + 100);
+        assertFalse(health.allowRequest(NODE));
+    }
+
+    @Test
+    void lateFailuresDontExtendOpening() throws Exception {
+        open();
+        // Requests sent before the breaker opened fail late
+        for (int i = 0; i < FAILURES_TO_OPEN; i++) {
+            health.onFailure(NODE);
+        }
+        Thread.sleep(MIN_OPEN_MS + 100);
+
+        assertTrue(health.allowRequest(NODE));
+    }
+
+    private void open() {
+        for (int i = 0; i < FAILURES_TO_OPEN; i++) {
+            health.onFailure(NODE);
+        }
+        assertFalse(health.allowRequest(NODE));
+    }
+}
@@ -0,0 +1,54 @@
+package ok.dht.replication;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PhiAccrualFailureDetectorTest {
+    private static final long INTERVAL_MS = 20;
+
+    private final PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(INTERVAL_MS, 5, 0);
+
+    @Test
+    void regularHeartbeatsKeepNodeUp() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            detector.heartbeat("node");
+            assertTrue(detector.phi("node") < 1, "phi " + detector.phi("node"));
+            Thread.sleep(INTERVAL_MS);
+        }
+    }
+
+    @Test
+    void silenceRaisesPhi() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            detector.heartbeat("node");
+            Thread.sleep(INTERVAL_MS);
+        }
+        double previous = detector.phi("node");
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(INTERVAL_MS);
+            double phi = detector.phi("node");
+            assertTrue(phi >= previous, phi + " after " + previous);
+            previous = phi;
+        }
+        Thread.sleep(10 * INTERVAL_MS);
+        assertTrue(detector.phi("node") > 8, "phi " + detector.phi("node"));
+    }
+
+    @Test
+    void nodeDownFromStartSuspected() throws Exception {
+        assertTrue(detector.phi("never") < 1, "phi " + detector.phi("never"));
+        Thread.sleep(10 * INTERVAL_MS);
+        assertTrue(detector.phi("never") > 8, "phi " + detector.phi("never"));
+    }
+
+    @Test
+    void heartbeatClearsSuspicion() throws Exception {
+        detector.heartbeat("node");
+        Thread.sleep(10 * INTERVAL_MS);
+        assertTrue(detector.phi("node") > 8, "phi " + detector.phi("node"));
+
+        detector.heartbeat("node");
+        assertTrue(detector.phi("node") < 1, "phi " + detector.phi("node"));
+    }
+}
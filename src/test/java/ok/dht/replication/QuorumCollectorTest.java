@@ -0,0 +1,92 @@
+package ok.dht.replication;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuorumCollectorTest {
+    @Test
+    void completesOnAckthSuccess() {
+        QuorumCollector<String> collector = new QuorumCollector<>(new ReplicationParameters(2, 3));
+        collector.onSuccess("a");
+        assertFalse(collector.future().isDone());
+        collector.onFailure();
+        assertFalse(collector.future().isDone());
+
+        collector.onSuccess("b");
+        assertEquals(List.of("a", "b"), collector.future().join());
+    }
+
+    @Test
+    void failsOnceQuorumUnreachable() {
+        QuorumCollector<String> collector = new QuorumCollector<>(new ReplicationParameters(2, 4));
+        collector.onFailure();
+        collector.onSuccess("a");
+        collector.onFailure();
+        assertFalse(collector.future().isDone());
+
+        // from - ack + 1 = 3 failures
+        collector.onFailure();
+        assertTrue(collector.future().isCompletedExceptionally());
+        CompletionException e = assertThrows(CompletionException.class, () -> collector.future().join());
+        assertInstanceOf(NotEnoughReplicasException.class, e.getCause());
+    }
+
+    @Test
+    void lateResponsesIgnored() {
+        QuorumCollector<String> succeeded = new QuorumCollector<>(new ReplicationParameters(1, 3));
+        succeeded.onSuccess("a");
+        succeeded.onSuccess("b");
+        succeeded.onFailure();
+        succeeded.onFailure();
+        succeeded.onFailure();
+        assertEquals(List.of("a"), succeeded.future().join());
+
+        QuorumCollector<String> failed = new QuorumCollector<>(new ReplicationParameters(3, 3));
+        failed.onFailure();
+        failed.onSuccess("a");
+        failed.onSuccess("b");
+        failed.onSuccess("c");
+        assertTrue(failed.future().isCompletedExceptionally());
+    }
+
+    @Test
+    void concurrentResponsesCompleteOnce() throws Exception {
+        int replicas = 64;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 100; round++) {
+                QuorumCollector<Integer> collector =
+                        new QuorumCollector<>(new ReplicationParameters(replicas / 2, replicas));
+                CountDownLatch start = new CountDownLatch(1);
+                for (int i = 0; i < replicas; i++) {
+                    int response = i;
+                    executor.execute(() -> {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        collector.onSuccess(response);
+                    });
+                }
+                start.countDown();
+                List<Integer> responses = collector.future().get(1, TimeUnit.SECONDS);
+                assertTrue(responses.size() >= replicas / 2, "Got " + responses.size());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package ok.dht.replication;
+
+import one.nio.http.Request;
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicationConnectionTest {
+    private static final int REQUESTS = 500;
+
+    private FakePeer peer;
+    private ReplicationConnection connection;
+
+    @AfterEach
+    public void teardown() throws Exception {
+        if (connection != null) {
+            connection.close();
+        }
+        if (peer != null) {
+            peer.close();
+        }
+    }
+
+    @Test
+    void pipelinedResponsesMatchedById() throws Exception {
+        // Answers only once every request arrived, last one first
+        peer = new FakePeer(REQUESTS);
+        connection = ReplicationConnection.open(peer.url());
+
+        List<CompletableFuture<Response>> responses = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            responses.add(connection.send(Request.METHOD_GET, key(i), i, null));
+        }
+        for (int i = 0; i < REQUESTS; i++) {
+            assertArrayEquals(key(i), responses.get(i).get(5, TimeUnit.SECONDS).getBody());
+        }
+    }
+
+    @Test
+    void queuedRequestsShareWrites() throws Exception {
+        peer = new FakePeer(REQUESTS);
+        connection = ReplicationConnection.open(peer.url());
+
+        List<CompletableFuture<Response>> responses = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            responses.add(connection.send(Request.METHOD_PUT, key(i), i, new byte[100]));
+        }
+        CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+
+        // Requests in flight make the writer batch the queued frames instead of a syscall per frame
+        assertTrue(peer.reads() < REQUESTS / 10, peer.reads() + " reads for " + REQUESTS + " requests");
+    }
+
+    @Test
+    void frameLargerThanBatch() throws Exception {
+        peer = new FakePeer(1);
+        connection = ReplicationConnection.open(peer.url());
+
+        byte[] value = new byte[200 * 1024];
+        value[value.length - 1] = 1;
+        Response response = connection.send(Request.METHOD_PUT, key(0), 0, value).get(5, TimeUnit.SECONDS);
+
+        assertArrayEquals(key(0), response.getBody());
+        assertArrayEquals(value, peer.lastValue());
+    }
+
+    @Test
+    void peerCloseFailsPendingRequests() throws Exception {
+        // Never answers
+        peer = new FakePeer(Integer.MAX_VALUE);
+        connection = ReplicationConnection.open(peer.url());
+
+        CompletableFuture<Response> response = connection.send(Request.METHOD_GET, key(0), 0, null);
+        peer.awaitRequests(1);
+        peer.close();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> response.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, e.getCause());
+        assertFalse(connection.isOpen());
+        assertTrue(connection.send(Request.METHOD_GET, key(1), 1, null).isCompletedExceptionally());
+    }
+
+    private static byte[] key(int i) {
+        return ("key" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Accepts one replication connection, and answers every request with its key once {@code batch}
+     * requests arrived since the last answers.
+     */
+    private static final class FakePeer implements AutoCloseable {
+        private final ServerSocket server = new ServerSocket();
+        private final int batch;
+        private final Thread thread;
+        private final List<ReplicationRequest> received = new ArrayList<>();
+        private volatile Socket socket;
+        private int reads;
+
+        FakePeer(int batch) throws IOException {
+            this.batch = batch;
+            server.bind(new InetSocketAddress("localhost", 0));
+            thread = new Thread(this::serve, "FakePeer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url() {
+            return "http://localhost:" + server.getLocalPort();
+        }
+
+        synchronized int reads() {
+            return reads;
+        }
+
+        synchronized byte[] lastValue() {
+            return received.get(received.size() - 1).value();
+        }
+
+        synchronized void awaitRequests(int count) throws InterruptedException {
+            while (received.size() < count) {
+                wait();
+            }
+        }
+
+        private void serve() {
+            try (Socket accepted = server.accept()) {
+                socket = accepted;
+                InputStream in = accepted.getInputStream();
+                OutputStream out = accepted.getOutputStream();
+                skipHeaders(in);
+                out.write(("HTTP/1.1 " + ReplicationProtocol.SWITCHING_PROTOCOLS + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+
+                List<ReplicationRequest> unanswered = new ArrayList<>();
+                ReplicationFrameReader reader = new ReplicationFrameReader((frame, offset, length) -> {
+                    ReplicationRequest request = ReplicationProtocol.decodeRequest(frame, offset, length);
+                    unanswered.add(request);
+                    received(request);
+                });
+                byte[] buffer = new byte[64 * 1024];
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    reader.feed(buffer, 0, length);
+                    synchronized (this) {
+                        reads++;
+                    }
+                    if (unanswered.size() >= batch) {
+                        for (int i = unanswered.size() - 1; i >= 0; i--) {
+                            ReplicationRequest request = unanswered.get(i);
+                            out.write(ReplicationProtocol.encodeResponse(
+                                    request.id(), new Response(Response.OK, request.key())));
+                        }
+                        out.flush();
+                        unanswered.clear();
+                    }
+                }
+            } catch (IOException e) {
+                // Closed by the test
+            }
+        }
+
+        private synchronized void received(ReplicationRequest request) {
+            received.add(request);
+            notifyAll();
+        }
+
+        private static void skipHeaders(InputStream in) throws IOException {
+            int matched = 0;
+            while (matched < 4) {
+                int next = in.read();
+                if (next < 0) {
+                    throw new IOException("Closed before the upgrade");
+                }
+                boolean expected = next == (matched % 2 == 0 ? '\r' : '\n');
+                matched = expected ? matched + 1 : (next == '\r' ? 1 : 0);
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            server.close();
+            Socket accepted = socket;
+            if (accepted != null) {
+                accepted.close();
+            }
+            thread.join(1000);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ok.dht.replication;
+
+import one.nio.http.Request;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicationFrameReaderTest {
+    private final List<Long> ids = new ArrayList<>();
+    private final ReplicationFrameReader reader = new ReplicationFrameReader(
+            (frame, offset, length) -> ids.add(ReplicationProtocol.decodeRequest(frame, offset, length).id()));
+
+    @Test
+    void batchInOneRead() throws IOException {
+        byte[] batch = frames(3, 10);
+        reader.feed(batch, 0, batch.length);
+
+        assertEquals(List.of(0L, 1L, 2L), ids);
+    }
+
+    @Test
+    void frameSplitAcrossReads() throws IOException {
+        byte[] batch = frames(4, 100);
+        // Splits the length prefixes too
+        for (int offset = 0; offset < batch.length; offset += 3) {
+            reader.feed(batch, offset, Math.min(3, batch.length - offset));
+        }
+
+        assertEquals(List.of(0L, 1L, 2L, 3L), ids);
+    }
+
+    @Test
+    void partialFrameWaitsForRest() throws IOException {
+        byte[] batch = frames(2, 10);
+        int firstFrame = batch.length / 2;
+        reader.feed(batch, 0, firstFrame + 5);
+        assertEquals(List.of(0L), ids);
+
+        reader.feed(batch, firstFrame + 5, batch.length - firstFrame - 5);
+        assertEquals(List.of(0L, 1L), ids);
+    }
+
+    @Test
+    void frameLargerThanBuffer() throws IOException {
+        byte[] batch = frames(2, 64 * 1024);
+        reader.feed(batch, 0, batch.length);
+
+        assertEquals(List.of(0L, 1L), ids);
+    }
+
+    @Test
+    void negativeLengthRejected() {
+        byte[] prefix = ByteBuffer.allocate(ReplicationProtocol.LENGTH_SIZE).putInt(-1).array();
+        assertThrows(IOException.class, () -> reader.feed(prefix, 0, prefix.length));
+    }
+
+    @Test
+    void oversizedLengthRejected() {
+        for (int length : new int[]{ReplicationFrameReader.MAX_FRAME_LENGTH + 1, Integer.MAX_VALUE}) {
+            byte[] prefix = ByteBuffer.allocate(ReplicationProtocol.LENGTH_SIZE).putInt(length).array();
+            IOException e = assertThrows(
+                    IOException.class,
+                    () -> new ReplicationFrameReader((frame, offset, count) -> {
+                    }).feed(prefix, 0, prefix.length)
+            );
+            assertTrue(e.getMessage().contains(Integer.toString(length)), e.getMessage());
+        }
+        assertTrue(ids.isEmpty());
+    }
+
+    private static byte[] frames(int count, int valueSize) {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < count; i++) {
+            frames.writeBytes(ReplicationProtocol.encodeRequest(i, Request.METHOD_PUT, key, i, new byte[valueSize]));
+        }
+        return frames.toByteArray();
+    }
+}
@@ -0,0 +1,65 @@
+package ok.dht.replication;
+
+import one.nio.http.Request;
+import one.nio.http.Response;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ReplicationProtocolTest {
+    private static final byte[] KEY = "key".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void requestRoundTrip() {
+        byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+        byte[] frame = ReplicationProtocol.encodeRequest(42, Request.METHOD_PUT, KEY, 1234, value);
+
+        assertEquals(frame.length - ReplicationProtocol.LENGTH_SIZE, ByteBuffer.wrap(frame).getInt());
+        ReplicationRequest request = decodeRequest(frame);
+        assertEquals(42, request.id());
+        assertEquals(Request.METHOD_PUT, request.method());
+        assertArrayEquals(KEY, request.key());
+        assertEquals(1234, request.timestamp());
+        assertArrayEquals(value, request.value());
+    }
+
+    @Test
+    void absentValueDistinctFromEmpty() {
+        ReplicationRequest delete = decodeRequest(
+                ReplicationProtocol.encodeRequest(1, Request.METHOD_DELETE, KEY, 1, null));
+        assertNull(delete.value());
+
+        ReplicationRequest empty = decodeRequest(
+                ReplicationProtocol.encodeRequest(2, Request.METHOD_PUT, KEY, 1, new byte[0]));
+        assertArrayEquals(new byte[0], empty.value());
+    }
+
+    @Test
+    void responseRoundTrip() {
+        byte[] body = "body".getBytes(StandardCharsets.UTF_8);
+        byte[] frame = ReplicationProtocol.encodeResponse(7, new Response(Response.NOT_FOUND, body));
+        // Decoded in place, as from the reader's buffer
+        byte[] buffer = new byte[frame.length + 10];
+        System.arraycopy(frame, 0, buffer, 5, frame.length);
+        int offset = 5 + ReplicationProtocol.LENGTH_SIZE;
+        int length = frame.length - ReplicationProtocol.LENGTH_SIZE;
+
+        assertEquals(7, ReplicationProtocol.responseId(buffer, offset, length));
+        Response response = ReplicationProtocol.decodeResponse(buffer, offset, length);
+        assertEquals(404, response.getStatus());
+        assertArrayEquals(body, response.getBody());
+    }
+
+    private static ReplicationRequest decodeRequest(byte[] frame) {
+        return ReplicationProtocol.decodeRequest(
+                frame,
+                ReplicationProtocol.LENGTH_SIZE,
+                frame.length - ReplicationProtocol.LENGTH_SIZE
+        );
+    }
+}
@@ -0,0 +1,117 @@
+package ok.dht.replication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpeculativeRetryTest {
+    private static final List<String> NODES = List.of("http://a", "http://b", "http://c");
+    private static final long MAX_DELAY_MS = 1000;
+
+    private final LatencyTracker latencies = new LatencyTracker();
+    private final SpeculativeRetry speculativeRetry = new SpeculativeRetry(latencies, 0.95, MAX_DELAY_MS);
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    public void teardown() {
+        speculativeRetry.close();
+    }
+
+    @Test
+    void percentileNeedsEnoughSamples() {
+        for (int i = 1; i < 16; i++) {
+            latencies.record("http://a", i);
+            assertEquals(-1, latencies.percentile("http://a", 0.5, -1));
+        }
+        latencies.record("http://a", 16);
+        assertEquals(9, latencies.percentile("http://a", 0.5, -1));
+        assertEquals(16, latencies.percentile("http://a", 1, -1));
+        assertEquals(-1, latencies.percentile("http://b", 0.5, -1));
+    }
+
+    @Test
+    void fastestFirstPutsUnknownNodesFirst() {
+        record("http://a", TimeUnit.MILLISECONDS.toNanos(20));
+        record("http://b", TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertEquals(List.of("http://c", "http://b", "http://a"), latencies.fastestFirst(NODES));
+    }
+
+    @Test
+    void noSpareForFastReplicas() throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        speculativeRetry.dispatch(NODES, 2, done, node -> {
+            sent.add(node);
+            return CompletableFuture.completedFuture(null);
+        });
+        done.complete(null);
+
+        Thread.sleep(200);
+        assertEquals(List.of("http://a", "http://b"), sent);
+    }
+
+    @Test
+    void spareReplacesFailedReplica() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        speculativeRetry.dispatch(NODES, 2, done, node -> {
+            sent.add(node);
+            return node.equals("http://a")
+                    ? CompletableFuture.failedFuture(new IOException("Down"))
+                    : new CompletableFuture<>();
+        });
+
+        assertEquals(List.of("http://a", "http://c", "http://b"), sent);
+    }
+
+    @Test
+    void spareReplacesSlowReplica() throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> answered = new CompletableFuture<>();
+        long start = System.nanoTime();
+        speculativeRetry.dispatch(NODES, 1, done, node -> {
+            sent.add(node);
+            if (node.equals("http://a")) {
+                // Stuck, as if in a GC pause
+                return new CompletableFuture<>();
+            }
+            answered.complete(null);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        answered.get(MAX_DELAY_MS, TimeUnit.MILLISECONDS);
+        done.complete(null);
+        assertEquals(List.of("http://a", "http://b"), sent);
+        // Well before the request to the stuck replica would time out
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(waitedMs < MAX_DELAY_MS, "Waited " + waitedMs + " ms");
+    }
+
+    @Test
+    void noSpareOnceDone() throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> stuck = new CompletableFuture<>();
+        speculativeRetry.dispatch(NODES, 1, done, node -> {
+            sent.add(node);
+            return stuck;
+        });
+        done.complete(null);
+        stuck.completeExceptionally(new IOException("Late failure"));
+
+        Thread.sleep(200);
+        assertEquals(List.of("http://a"), sent);
+    }
+
+    private void record(String node, long latencyNanos) {
+        for (int i = 0; i < 16; i++) {
+            latencies.record(node, latencyNanos);
+        }
+    }
+}
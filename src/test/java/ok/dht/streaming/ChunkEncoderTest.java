@@ -0,0 +1,100 @@
+package ok.dht.streaming;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.dao.Entry;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkEncoderTest {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Test
+    void splitsRangeIntoChunks() {
+        List<Entry<MemorySegment>> entries = StreamData.entries(10_000, 100);
+        ChunkEncoder encoder = new ChunkEncoder(StreamData.HEADERS, RecordFormat.REPLICA);
+        Iterator<Entry<MemorySegment>> iterator = entries.iterator();
+        byte[] buffer = encoder.newBuffer();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        while (!encoder.finished()) {
+            // Records this small always fit, so the buffer is reused
+            assertSame(buffer, encoder.fill(buffer, iterator));
+            stream.write(buffer, encoder.start(), encoder.end() - encoder.start());
+        }
+
+        List<byte[]> chunks = StreamData.chunks(stream.toByteArray());
+        long recordSize = RecordFormat.REPLICA.recordSize(entries.get(0));
+        assertTrue(chunks.size() > 1);
+        for (byte[] chunk : chunks.subList(0, chunks.size() - 1)) {
+            assertTrue(chunk.length >= CHUNK_SIZE - recordSize, "Chunk of " + chunk.length);
+            assertTrue(chunk.length < CHUNK_SIZE + recordSize, "Chunk of " + chunk.length);
+        }
+        StreamData.assertReplicaRecords(entries, StreamData.body(chunks));
+    }
+
+    @Test
+    void oversizedRecordGetsOwnBuffer() {
+        List<Entry<MemorySegment>> entries = List.of(
+                StreamData.entry("before", new byte[10], 1),
+                StreamData.entry("huge", new byte[3 * CHUNK_SIZE], 2),
+                StreamData.entry("tombstone", null, 3),
+                StreamData.entry("after", new byte[10], 4)
+        );
+        ChunkEncoder encoder = new ChunkEncoder(StreamData.HEADERS, RecordFormat.REPLICA);
+        Iterator<Entry<MemorySegment>> iterator = entries.iterator();
+        byte[] buffer = encoder.newBuffer();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int ownBuffers = 0;
+        while (!encoder.finished()) {
+            byte[] chunk = encoder.fill(buffer, iterator);
+            if (chunk != buffer) {
+                ownBuffers++;
+            }
+            stream.write(chunk, encoder.start(), encoder.end() - encoder.start());
+        }
+
+        assertEquals(1, ownBuffers);
+        List<byte[]> chunks = StreamData.chunks(stream.toByteArray());
+        assertEquals(3, chunks.size());
+        StreamData.assertReplicaRecords(entries, StreamData.body(chunks));
+    }
+
+    @Test
+    void emptyRange() {
+        ChunkEncoder encoder = new ChunkEncoder(StreamData.HEADERS, RecordFormat.REPLICA);
+        byte[] buffer = encoder.newBuffer();
+
+        byte[] chunk = encoder.fill(buffer, Collections.emptyIterator());
+
+        assertTrue(encoder.finished());
+        byte[] stream = new byte[encoder.end() - encoder.start()];
+        System.arraycopy(chunk, encoder.start(), stream, 0, stream.length);
+        assertTrue(StreamData.chunks(stream).isEmpty());
+    }
+
+    @Test
+    void headersOnlyPrecedeFirstChunk() {
+        List<Entry<MemorySegment>> entries = StreamData.entries(2000, 100);
+        ChunkEncoder encoder = new ChunkEncoder(StreamData.HEADERS, RecordFormat.REPLICA);
+        Iterator<Entry<MemorySegment>> iterator = entries.iterator();
+        byte[] buffer = encoder.newBuffer();
+
+        encoder.fill(buffer, iterator);
+        int firstStart = encoder.start();
+        assertFalse(encoder.finished());
+        encoder.fill(buffer, iterator);
+
+        assertEquals(firstStart + StreamData.HEADERS.length, encoder.start());
+    }
+}
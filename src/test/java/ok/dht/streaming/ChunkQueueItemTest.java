@@ -0,0 +1,57 @@
+package ok.dht.streaming;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkQueueItemTest {
+    @Test
+    void writesRangeAndRecyclesOnce() throws Exception {
+        byte[] buffer = new byte[1024 * 1024];
+        Arrays.fill(buffer, (byte) 'x');
+        int start = 100;
+        int end = buffer.length - 100;
+        Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+        ChunkQueueItem item = new ChunkQueueItem(buffer, start, end, freeBuffers);
+
+        try (SocketPair sockets = new SocketPair()) {
+            sockets.writer().setBlocking(false);
+            // The peer doesn't read yet, so the socket takes only part of the range
+            item.write(sockets.writer());
+            assertTrue(item.remaining() > 0);
+            assertTrue(freeBuffers.isEmpty(), "Recycled before fully written");
+
+            sockets.startReading();
+            while (item.remaining() > 0) {
+                if (item.write(sockets.writer()) == 0) {
+                    Thread.sleep(1);
+                }
+            }
+
+            assertArrayEquals(Arrays.copyOfRange(buffer, start, end), sockets.read(end - start));
+        }
+        item.release();
+        assertEquals(1, freeBuffers.size());
+        assertSame(buffer, freeBuffers.peek());
+    }
+
+    @Test
+    void releaseRecyclesUnwrittenBuffer() {
+        byte[] buffer = new byte[16];
+        Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+        ChunkQueueItem item = new ChunkQueueItem(buffer, 0, buffer.length, freeBuffers);
+
+        item.release();
+        item.release();
+
+        assertEquals(1, freeBuffers.size());
+        assertEquals(buffer.length, item.remaining());
+    }
+}
@@ -0,0 +1,84 @@
+package ok.dht.streaming;
+
+import one.nio.net.Socket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connected one-nio socket to write to, and a peer that collects what arrives once told to read.
+ */
+final class SocketPair implements AutoCloseable {
+    private static final long READ_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    // Small socket buffers, so that a peer that doesn't read soon blocks the writer
+    private static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+
+    private final ServerSocket server = new ServerSocket();
+    private final Socket writer;
+    private final java.net.Socket peer;
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final Thread reader;
+
+    SocketPair() throws IOException {
+        server.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        writer = Socket.connectInet(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        writer.setSendBuffer(SOCKET_BUFFER_SIZE);
+        peer = server.accept();
+        reader = new Thread(this::readAll, "SocketPairReader");
+        reader.setDaemon(true);
+    }
+
+    Socket writer() {
+        return writer;
+    }
+
+    void startReading() {
+        reader.start();
+    }
+
+    /**
+     * Waits until {@code size} bytes have arrived and returns them.
+     */
+    byte[] read(int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + READ_TIMEOUT_MS;
+        synchronized (received) {
+            while (received.size() < size) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    throw new AssertionError("Received " + received.size() + " of " + size + " bytes");
+                }
+                received.wait(timeout);
+            }
+            return Arrays.copyOf(received.toByteArray(), size);
+        }
+    }
+
+    private void readAll() {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = peer.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                synchronized (received) {
+                    received.write(buffer, 0, read);
+                    received.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            // Closed by the test
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        peer.close();
+        server.close();
+    }
+}
@@ -0,0 +1,107 @@
+package ok.dht.streaming;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.dao.BaseEntry;
+import ok.dht.dao.Entry;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Builds range entries and takes apart the chunked streams made of them.
+ */
+final class StreamData {
+    static final byte[] HEADERS = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private StreamData() {
+    }
+
+    static List<Entry<MemorySegment>> entries(int count, int valueSize) {
+        List<Entry<MemorySegment>> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] value = new byte[valueSize];
+            Arrays.fill(value, (byte) ('a' + i % 26));
+            entries.add(entry(String.format("key%06d", i), value, i));
+        }
+        return entries;
+    }
+
+    static Entry<MemorySegment> entry(String key, byte[] value, long timestamp) {
+        return new BaseEntry<>(
+                MemorySegment.ofArray(key.getBytes(StandardCharsets.UTF_8)),
+                value == null ? null : MemorySegment.ofArray(value),
+                MemorySegment.ofArray(ByteBuffer.allocate(Long.BYTES).putLong(timestamp).array())
+        );
+    }
+
+    /**
+     * Checks that {@code stream} is {@link #HEADERS} followed by a complete chunked body and returns the
+     * payloads of its chunks, without the last empty one.
+     */
+    static List<byte[]> chunks(byte[] stream) {
+        assertArrayEquals(HEADERS, Arrays.copyOf(stream, HEADERS.length));
+        List<byte[]> chunks = new ArrayList<>();
+        int position = HEADERS.length;
+        while (true) {
+            int lineEnd = indexOfLineEnd(stream, position);
+            String sizeLine = new String(stream, position, lineEnd - position, StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(sizeLine, 16);
+            position = lineEnd + 2;
+            if (size == 0) {
+                assertEquals(position + 2, stream.length, "Data after the last chunk");
+                return chunks;
+            }
+            chunks.add(Arrays.copyOfRange(stream, position, position + size));
+            position += size;
+            assertEquals('\r', stream[position]);
+            assertEquals('\n', stream[position + 1]);
+            position += 2;
+        }
+    }
+
+    static byte[] body(List<byte[]> chunks) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        chunks.forEach(body::writeBytes);
+        return body.toByteArray();
+    }
+
+    /**
+     * Checks that {@code body} holds exactly {@code expected} in {@link RecordFormat#REPLICA} format.
+     */
+    static void assertReplicaRecords(List<Entry<MemorySegment>> expected, byte[] body) {
+        ByteBuffer records = ByteBuffer.wrap(body);
+        for (Entry<MemorySegment> entry : expected) {
+            byte[] key = new byte[records.getInt()];
+            records.get(key);
+            assertArrayEquals(entry.key().toByteArray(), key);
+            assertEquals(entry.timestamp().asByteBuffer().getLong(), records.getLong());
+            int valueSize = records.getInt();
+            if (entry.value() == null) {
+                assertEquals(-1, valueSize);
+                continue;
+            }
+            byte[] value = new byte[valueSize];
+            records.get(value);
+            assertArrayEquals(entry.value().toByteArray(), value);
+        }
+        assertFalse(records.hasRemaining(), "Unexpected records left: " + records.remaining() + " bytes");
+    }
+
+    private static int indexOfLineEnd(byte[] stream, int from) {
+        for (int i = from; i + 1 < stream.length; i++) {
+            if (stream[i] == '\r' && stream[i + 1] == '\n') {
+                return i;
+            }
+        }
+        throw new AssertionError("No line end after " + from);
+    }
+}
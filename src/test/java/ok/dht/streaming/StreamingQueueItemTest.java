@@ -0,0 +1,87 @@
+package ok.dht.streaming;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.dao.Entry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamingQueueItemTest {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Size line, CRLF after the data and the headers in front of the first chunk
+    private static final int CHUNK_OVERHEAD = 1024;
+
+    @Test
+    void writeBudgetBoundsEachCall() throws Exception {
+        List<Entry<MemorySegment>> entries = StreamData.entries(10_000, 100);
+        StreamingQueueItem item = new StreamingQueueItem(
+                entries.iterator(), StreamData.HEADERS, RecordFormat.REPLICA, 1);
+
+        try (SocketPair sockets = new SocketPair()) {
+            sockets.startReading();
+            int total = 0;
+            int calls = 0;
+            while (item.remaining() > 0) {
+                // A call that used up the budget doesn't start the next chunk, however fast the peer reads
+                int written = item.write(sockets.writer());
+                assertTrue(written <= CHUNK_SIZE + CHUNK_OVERHEAD, "Wrote " + written);
+                if (written == 0) {
+                    Thread.sleep(1);
+                }
+                total += written;
+                calls++;
+            }
+
+            List<byte[]> chunks = StreamData.chunks(sockets.read(total));
+            assertTrue(calls >= chunks.size(), "Calls: " + calls);
+            StreamData.assertReplicaRecords(entries, StreamData.body(chunks));
+        }
+    }
+
+    @Test
+    void resumesAfterSocketWouldBlock() throws Exception {
+        List<Entry<MemorySegment>> entries = StreamData.entries(10_000, 100);
+        StreamingQueueItem item = new StreamingQueueItem(
+                entries.iterator(), StreamData.HEADERS, RecordFormat.REPLICA, Integer.MAX_VALUE);
+
+        try (SocketPair sockets = new SocketPair()) {
+            sockets.writer().setBlocking(false);
+            // Nothing is read yet, so the call stops at a full socket buffer in the middle of a chunk
+            int total = item.write(sockets.writer());
+            assertTrue(total > 0);
+            assertEquals(1, item.remaining());
+
+            sockets.startReading();
+            while (item.remaining() > 0) {
+                int written = item.write(sockets.writer());
+                if (written == 0) {
+                    Thread.sleep(1);
+                }
+                total += written;
+            }
+
+            assertRecords(entries, sockets.read(total));
+        }
+    }
+
+    @Test
+    void emptyRange() throws Exception {
+        StreamingQueueItem item = new StreamingQueueItem(
+                List.<Entry<MemorySegment>>of().iterator(), StreamData.HEADERS, RecordFormat.REPLICA, 1024);
+
+        try (SocketPair sockets = new SocketPair()) {
+            sockets.startReading();
+            int written = item.write(sockets.writer());
+
+            assertEquals(0, item.remaining());
+            assertTrue(StreamData.chunks(sockets.read(written)).isEmpty());
+        }
+    }
+
+    private static void assertRecords(List<Entry<MemorySegment>> entries, byte[] stream) {
+        StreamData.assertReplicaRecords(entries, StreamData.body(StreamData.chunks(stream)));
+    }
+}